@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerCache;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.util.AS4BoundedCache;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.photon.io.PhotonWorkerPool;
+
+/**
+ * A shared, thread-safe cache for the results of the dynamic discovery (SML
+ * DNS resolution and SMP lookup), keyed by {@link AS4EndpointDetailCacheKey}.
+ * The receiver AP certificate and endpoint URL are cached for a TTL. When an
+ * entry is accessed after the refresh threshold, it is refreshed in the
+ * background, so that frequently used entries never expire. If the background
+ * refresh fails, the old entry is kept until it expires. Concurrent identical
+ * lookups are de-duplicated.<br>
+ * The cache can be pre-warmed with a list of receivers via
+ * {@link #prewarm(Iterable, IAS4EndpointDetailProviderFactory)}.<br>
+ * Use it via {@link AS4EndpointDetailProviderCaching}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4EndpointDetailCache
+{
+  /** The default TTL of a cache entry */
+  public static final Duration DEFAULT_TTL = Duration.ofHours (1);
+  /** The default duration before expiry, when the background refresh starts */
+  public static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes (10);
+  /** The default maximum number of cached entries */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EndpointDetailCache.class);
+
+  private static final IMutableStatisticsHandlerCache STATS_CACHE = StatisticsManager.getCacheHandler (AS4EndpointDetailCache.class.getName () +
+                                                                                                       "$cache");
+  private static final IMutableStatisticsHandlerCounter STATS_REFRESH = StatisticsManager.getCounterHandler (AS4EndpointDetailCache.class.getName () +
+                                                                                                             "$refresh");
+  private static final IMutableStatisticsHandlerCounter STATS_REFRESH_ERROR = StatisticsManager.getCounterHandler (AS4EndpointDetailCache.class.getName () +
+                                                                                                                   "$refresherror");
+
+  /**
+   * A single cache entry
+   *
+   * @author Philip Helger
+   */
+  private static final class CacheEntry
+  {
+    private final AS4EndpointDetailProviderConstant m_aDetails;
+    private final long m_nRefreshAt;
+    private final long m_nExpiresAt;
+
+    CacheEntry (@Nonnull final AS4EndpointDetailProviderConstant aDetails, final long nRefreshAt, final long nExpiresAt)
+    {
+      m_aDetails = aDetails;
+      m_nRefreshAt = nRefreshAt;
+      m_nExpiresAt = nExpiresAt;
+    }
+  }
+
+  private final Duration m_aTTL;
+  private final Duration m_aRefreshAhead;
+  private final Executor m_aRefreshExecutor;
+
+  private final AS4BoundedCache <AS4EndpointDetailCacheKey, CacheEntry> m_aCache;
+  // The lookups currently in progress
+  private final ConcurrentHashMap <AS4EndpointDetailCacheKey, CompletableFuture <AS4EndpointDetailProviderConstant>> m_aInFlight = new ConcurrentHashMap <> ();
+
+  /**
+   * Constructor using the default TTL, refresh ahead duration and maximum size
+   * and the {@link PhotonWorkerPool} for background refreshes.
+   */
+  public AS4EndpointDetailCache ()
+  {
+    this (DEFAULT_TTL,
+          DEFAULT_REFRESH_AHEAD,
+          DEFAULT_MAX_SIZE,
+          r -> PhotonWorkerPool.getInstance ().run (CAS4.LIB_NAME + " discovery cache refresh", r));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aTTL
+   *        The time to live of a cache entry. May not be <code>null</code> and
+   *        must be positive.
+   * @param aRefreshAhead
+   *        The duration before expiry, after which an accessed entry is
+   *        refreshed in the background. May not be <code>null</code> and must
+   *        not be negative. Use {@link Duration#ZERO} to disable background
+   *        refreshes.
+   * @param nMaxSize
+   *        The maximum number of cached entries. Must be &gt; 0.
+   * @param aRefreshExecutor
+   *        The executor to run the background refreshes and pre-warming. May
+   *        not be <code>null</code>.
+   */
+  public AS4EndpointDetailCache (@Nonnull final Duration aTTL,
+                                 @Nonnull final Duration aRefreshAhead,
+                                 @Nonnegative final int nMaxSize,
+                                 @Nonnull final Executor aRefreshExecutor)
+  {
+    ValueEnforcer.notNull (aTTL, "TTL");
+    ValueEnforcer.isFalse (aTTL.isNegative () || aTTL.isZero (), "TTL must be positive");
+    ValueEnforcer.notNull (aRefreshAhead, "RefreshAhead");
+    ValueEnforcer.isFalse (aRefreshAhead.isNegative (), "RefreshAhead must not be negative");
+    ValueEnforcer.isTrue (aRefreshAhead.compareTo (aTTL) < 0, "RefreshAhead must be smaller than the TTL");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    ValueEnforcer.notNull (aRefreshExecutor, "RefreshExecutor");
+    m_aTTL = aTTL;
+    m_aRefreshAhead = aRefreshAhead;
+    m_aRefreshExecutor = aRefreshExecutor;
+    m_aCache = new AS4BoundedCache <> (nMaxSize);
+  }
+
+  /**
+   * @return The cache hit and miss statistics of all instances. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCacheStatistics ()
+  {
+    return STATS_CACHE;
+  }
+
+  /**
+   * @return The number of background refreshes of all instances. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getRefreshStatistics ()
+  {
+    return STATS_REFRESH;
+  }
+
+  /**
+   * @return The number of failed background refreshes and pre-warmings of all
+   *         instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getRefreshErrorStatistics ()
+  {
+    return STATS_REFRESH_ERROR;
+  }
+
+  /**
+   * @return The time to live of a cache entry. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getTTL ()
+  {
+    return m_aTTL;
+  }
+
+  /**
+   * @return The duration before expiry, after which an accessed entry is
+   *         refreshed in the background. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getRefreshAhead ()
+  {
+    return m_aRefreshAhead;
+  }
+
+  /**
+   * @return The number of currently cached entries. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCachedCount ()
+  {
+    return m_aCache.size ();
+  }
+
+  /**
+   * Remove a single entry from the cache, e.g. because sending to the endpoint
+   * failed.
+   *
+   * @param aKey
+   *        The key to remove. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange removeFromCache (@Nullable final AS4EndpointDetailCacheKey aKey)
+  {
+    return m_aCache.remove (aKey);
+  }
+
+  /**
+   * Remove all cached entries.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return m_aCache.clear ();
+  }
+
+  /**
+   * @return The current time in milliseconds. Overwrite for testing only.
+   */
+  protected long getCurrentTimeMillis ()
+  {
+    return System.currentTimeMillis ();
+  }
+
+  @Nonnull
+  private static AS4EndpointDetailProviderConstant _await (@Nonnull final CompletableFuture <AS4EndpointDetailProviderConstant> aFuture) throws Phase4Exception
+  {
+    try
+    {
+      return aFuture.get ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new Phase4Exception ("Interrupted while waiting for endpoint discovery", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof Phase4Exception)
+        throw (Phase4Exception) aCause;
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      throw new Phase4Exception ("Error in endpoint discovery", aCause);
+    }
+  }
+
+  /**
+   * Perform the discovery and update the cache. If an identical discovery is
+   * already in progress, its result is used instead.
+   */
+  @Nonnull
+  private AS4EndpointDetailProviderConstant _load (@Nonnull final AS4EndpointDetailCacheKey aKey,
+                                                   @Nonnull final IAS4EndpointDetailProviderFactory aFactory) throws Phase4Exception
+  {
+    final CompletableFuture <AS4EndpointDetailProviderConstant> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <AS4EndpointDetailProviderConstant> aExistingFuture = m_aInFlight.putIfAbsent (aKey,
+                                                                                                          aOwnFuture);
+    if (aExistingFuture != null)
+      return _await (aExistingFuture);
+
+    try
+    {
+      final IAS4EndpointDetailProvider aProvider = aFactory.create (aKey.getReceiverID ());
+      aProvider.init (aKey.getDocTypeID (), aKey.getProcessID (), aKey.getReceiverID ());
+      final AS4EndpointDetailProviderConstant ret = new AS4EndpointDetailProviderConstant (aProvider.getReceiverAPCertificate (),
+                                                                                           aProvider.getReceiverAPEndpointURL ());
+
+      final long nNow = getCurrentTimeMillis ();
+      final long nExpiresAt = nNow + m_aTTL.toMillis ();
+      final long nRefreshAt = nExpiresAt - m_aRefreshAhead.toMillis ();
+      m_aCache.put (aKey, new CacheEntry (ret, nRefreshAt, nExpiresAt));
+
+      aOwnFuture.complete (ret);
+      return ret;
+    }
+    catch (final Phase4Exception | RuntimeException ex)
+    {
+      aOwnFuture.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      m_aInFlight.remove (aKey, aOwnFuture);
+    }
+  }
+
+  @Nonnull
+  private CompletableFuture <Void> _loadInBackground (@Nonnull final AS4EndpointDetailCacheKey aKey,
+                                                      @Nonnull final IAS4EndpointDetailProviderFactory aFactory)
+  {
+    return CompletableFuture.runAsync ( () -> {
+      try
+      {
+        _load (aKey, aFactory);
+      }
+      catch (final Phase4Exception | RuntimeException ex)
+      {
+        STATS_REFRESH_ERROR.increment ();
+        LOGGER.warn ("Failed to resolve endpoint details for " + aKey + " in the background: " + ex.getMessage ());
+      }
+    }, m_aRefreshExecutor);
+  }
+
+  /**
+   * Get the endpoint details from the cache or perform the discovery using the
+   * provided factory. Entries accessed after the refresh threshold are
+   * refreshed in the background.
+   *
+   * @param aKey
+   *        The cache key. May not be <code>null</code>.
+   * @param aFactory
+   *        The factory to create the endpoint detail provider that performs the
+   *        real discovery. May not be <code>null</code>.
+   * @return The initialized endpoint details. Never <code>null</code>.
+   * @throws Phase4Exception
+   *         If the discovery failed
+   */
+  @Nonnull
+  public IAS4EndpointDetailProvider getEndpointDetails (@Nonnull final AS4EndpointDetailCacheKey aKey,
+                                                       @Nonnull final IAS4EndpointDetailProviderFactory aFactory) throws Phase4Exception
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aFactory, "Factory");
+
+    final CacheEntry aEntry = m_aCache.get (aKey);
+    if (aEntry != null)
+    {
+      final long nNow = getCurrentTimeMillis ();
+      if (nNow < aEntry.m_nExpiresAt)
+      {
+        STATS_CACHE.cacheHit ();
+        if (nNow >= aEntry.m_nRefreshAt && !m_aInFlight.containsKey (aKey))
+        {
+          // Refresh before it expires
+          STATS_REFRESH.increment ();
+          _loadInBackground (aKey, aFactory);
+        }
+        return aEntry.m_aDetails;
+      }
+    }
+
+    STATS_CACHE.cacheMiss ();
+    return _load (aKey, aFactory);
+  }
+
+  /**
+   * Pre-warm the cache with the provided keys. The discovery is performed
+   * asynchronously in the refresh executor. Failures are logged but don't stop
+   * the other keys from being resolved.
+   *
+   * @param aKeys
+   *        The keys to resolve. May not be <code>null</code>.
+   * @param aFactory
+   *        The factory to create the endpoint detail provider that performs the
+   *        real discovery. May not be <code>null</code>.
+   * @return A future that is completed, when all keys were handled. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public CompletableFuture <Void> prewarm (@Nonnull final Iterable <? extends AS4EndpointDetailCacheKey> aKeys,
+                                           @Nonnull final IAS4EndpointDetailProviderFactory aFactory)
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    ValueEnforcer.notNull (aFactory, "Factory");
+
+    final ICommonsList <CompletableFuture <Void>> aFutures = new CommonsArrayList <> ();
+    for (final AS4EndpointDetailCacheKey aKey : aKeys)
+      aFutures.add (_loadInBackground (aKey, aFactory));
+    LOGGER.info ("Pre-warming the endpoint discovery cache with " + aFutures.size () + " entries");
+    return CompletableFuture.allOf (aFutures.toArray (new CompletableFuture [0]));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TTL", m_aTTL)
+                                       .append ("RefreshAhead", m_aRefreshAhead)
+                                       .append ("MaxSize", m_aCache.getMaxSize ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * The key of the {@link AS4EndpointDetailCache}, consisting of the discovery
+ * ID, receiver, document type, process and transport profile. The discovery ID
+ * identifies the SML/SMP client setup used for the lookup (e.g. the SML DNS
+ * zone), so that the same cache can be shared between e.g. test and
+ * production lookups without mixing up the results.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@Immutable
+public final class AS4EndpointDetailCacheKey
+{
+  private final String m_sDiscoveryID;
+  private final IParticipantIdentifier m_aReceiverID;
+  private final IDocumentTypeIdentifier m_aDocTypeID;
+  private final IProcessIdentifier m_aProcessID;
+  private final String m_sTransportProfileID;
+  // Status vars
+  private final String m_sReceiverID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+  private final int m_nHashCode;
+
+  public AS4EndpointDetailCacheKey (@Nonnull @Nonempty final String sDiscoveryID,
+                                    @Nonnull final IParticipantIdentifier aReceiverID,
+                                    @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                    @Nonnull final IProcessIdentifier aProcessID,
+                                    @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    this (sDiscoveryID, aReceiverID, aDocTypeID, aProcessID, aTransportProfile.getID ());
+  }
+
+  public AS4EndpointDetailCacheKey (@Nonnull @Nonempty final String sDiscoveryID,
+                                    @Nonnull final IParticipantIdentifier aReceiverID,
+                                    @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                    @Nonnull final IProcessIdentifier aProcessID,
+                                    @Nonnull @Nonempty final String sTransportProfileID)
+  {
+    ValueEnforcer.notEmpty (sDiscoveryID, "DiscoveryID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notEmpty (sTransportProfileID, "TransportProfileID");
+    m_sDiscoveryID = sDiscoveryID;
+    m_aReceiverID = aReceiverID;
+    m_aDocTypeID = aDocTypeID;
+    m_aProcessID = aProcessID;
+    m_sTransportProfileID = sTransportProfileID;
+    // Identifiers are compared by their URI encoded representation, so that
+    // different implementations of the identifier interfaces are considered
+    // equal
+    m_sReceiverID = aReceiverID.getURIEncoded ();
+    m_sDocTypeID = aDocTypeID.getURIEncoded ();
+    m_sProcessID = aProcessID.getURIEncoded ();
+    m_nHashCode = new HashCodeGenerator (this).append (sDiscoveryID)
+                                              .append (m_sReceiverID)
+                                              .append (m_sDocTypeID)
+                                              .append (m_sProcessID)
+                                              .append (sTransportProfileID)
+                                              .getHashCode ();
+  }
+
+  /**
+   * @return The ID of the SML/SMP client setup used for the lookup. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getDiscoveryID ()
+  {
+    return m_sDiscoveryID;
+  }
+
+  /**
+   * @return The receiver participant ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IParticipantIdentifier getReceiverID ()
+  {
+    return m_aReceiverID;
+  }
+
+  /**
+   * @return The document type ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IDocumentTypeIdentifier getDocTypeID ()
+  {
+    return m_aDocTypeID;
+  }
+
+  /**
+   * @return The process ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IProcessIdentifier getProcessID ()
+  {
+    return m_aProcessID;
+  }
+
+  /**
+   * @return The transport profile ID. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getTransportProfileID ()
+  {
+    return m_sTransportProfileID;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4EndpointDetailCacheKey rhs = (AS4EndpointDetailCacheKey) o;
+    return m_sDiscoveryID.equals (rhs.m_sDiscoveryID) &&
+           m_sReceiverID.equals (rhs.m_sReceiverID) &&
+           m_sDocTypeID.equals (rhs.m_sDocTypeID) &&
+           m_sProcessID.equals (rhs.m_sProcessID) &&
+           m_sTransportProfileID.equals (rhs.m_sTransportProfileID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return m_nHashCode;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("DiscoveryID", m_sDiscoveryID)
+                                       .append ("ReceiverID", m_sReceiverID)
+                                       .append ("DocTypeID", m_sDocTypeID)
+                                       .append ("ProcessID", m_sProcessID)
+                                       .append ("TransportProfileID", m_sTransportProfileID)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.url.ISMPURLProvider;
+import com.helger.smpclient.url.SMPDNSResolutionException;
+
+/**
+ * Implementation of {@link IAS4EndpointDetailProvider} that uses a shared
+ * {@link AS4EndpointDetailCache} and only performs the dynamic discovery via
+ * the provided {@link IAS4EndpointDetailProviderFactory} if the cache does not
+ * contain the requested endpoint.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class AS4EndpointDetailProviderCaching implements IAS4EndpointDetailProvider
+{
+  private final AS4EndpointDetailCache m_aCache;
+  private final String m_sDiscoveryID;
+  private final ISMPTransportProfile m_aTP;
+  private final IAS4EndpointDetailProviderFactory m_aFactory;
+  private IAS4EndpointDetailProvider m_aEndpointDetails;
+
+  /**
+   * Constructor
+   *
+   * @param aCache
+   *        The shared cache to use. May not be <code>null</code>.
+   * @param sDiscoveryID
+   *        The ID of the SML/SMP client setup used by the factory, that is
+   *        part of the cache key. Factories using different SMLs or SMPs must
+   *        use different IDs. See
+   *        {@link #getPeppolDiscoveryID(ISMPURLProvider, ISMLInfo)}. May
+   *        neither be <code>null</code> nor empty.
+   * @param aTP
+   *        The transport profile that is part of the cache key. Must match the
+   *        transport profile used by the providers created by the factory. May
+   *        not be <code>null</code>.
+   * @param aFactory
+   *        The factory to create the endpoint detail providers that perform the
+   *        real discovery. May not be <code>null</code>.
+   */
+  public AS4EndpointDetailProviderCaching (@Nonnull final AS4EndpointDetailCache aCache,
+                                           @Nonnull @Nonempty final String sDiscoveryID,
+                                           @Nonnull final ISMPTransportProfile aTP,
+                                           @Nonnull final IAS4EndpointDetailProviderFactory aFactory)
+  {
+    ValueEnforcer.notNull (aCache, "Cache");
+    ValueEnforcer.notEmpty (sDiscoveryID, "DiscoveryID");
+    ValueEnforcer.notNull (aTP, "TransportProfile");
+    ValueEnforcer.notNull (aFactory, "Factory");
+    m_aCache = aCache;
+    m_sDiscoveryID = sDiscoveryID;
+    m_aTP = aTP;
+    m_aFactory = aFactory;
+  }
+
+  /**
+   * @return The cache passed in the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4EndpointDetailCache getCache ()
+  {
+    return m_aCache;
+  }
+
+  /**
+   * @return The discovery ID passed in the constructor. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getDiscoveryID ()
+  {
+    return m_sDiscoveryID;
+  }
+
+  /**
+   * @return The transport profile passed in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final ISMPTransportProfile getTransportProfile ()
+  {
+    return m_aTP;
+  }
+
+  /**
+   * @return The factory passed in the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4EndpointDetailProviderFactory getFactory ()
+  {
+    return m_aFactory;
+  }
+
+  public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                    @Nonnull final IProcessIdentifier aProcID,
+                    @Nonnull final IParticipantIdentifier aReceiverID) throws Phase4Exception
+  {
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcID, "ProcID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+
+    // Do the lookup only once
+    if (m_aEndpointDetails == null)
+    {
+      final AS4EndpointDetailCacheKey aKey = new AS4EndpointDetailCacheKey (m_sDiscoveryID,
+                                                                            aReceiverID,
+                                                                            aDocTypeID,
+                                                                            aProcID,
+                                                                            m_aTP);
+      m_aEndpointDetails = m_aCache.getEndpointDetails (aKey, m_aFactory);
+    }
+  }
+
+  @Nullable
+  public X509Certificate getReceiverAPCertificate () throws Phase4Exception
+  {
+    if (m_aEndpointDetails == null)
+      throw new IllegalStateException ("Please call 'init' first");
+    return m_aEndpointDetails.getReceiverAPCertificate ();
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getReceiverAPEndpointURL () throws Phase4Exception
+  {
+    if (m_aEndpointDetails == null)
+      throw new IllegalStateException ("Please call 'init' first");
+    return m_aEndpointDetails.getReceiverAPEndpointURL ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Cache", m_aCache)
+                                       .append ("DiscoveryID", m_sDiscoveryID)
+                                       .append ("TransportProfile", m_aTP)
+                                       .append ("Factory", m_aFactory)
+                                       .getToString ();
+  }
+
+  /**
+   * Get the discovery ID for Peppol lookups, consisting of the SMP URL
+   * provider implementation and the SML DNS zone.
+   *
+   * @param aURLProvider
+   *        The SMP URL provider to be used. May not be <code>null</code>.
+   * @param aSMLInfo
+   *        The SML to be used. May not be <code>null</code>.
+   * @return Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public static String getPeppolDiscoveryID (@Nonnull final ISMPURLProvider aURLProvider,
+                                             @Nonnull final ISMLInfo aSMLInfo)
+  {
+    ValueEnforcer.notNull (aURLProvider, "URLProvider");
+    ValueEnforcer.notNull (aSMLInfo, "SMLInfo");
+    return aURLProvider.getClass ().getName () + '@' + aSMLInfo.getDNSZone ();
+  }
+
+  /**
+   * Create a factory for Peppol endpoint detail providers, that performs the
+   * SML DNS lookup and the SMP lookup for each receiver.
+   *
+   * @param aURLProvider
+   *        The SMP URL provider to be used. May not be <code>null</code>.
+   * @param aSMLInfo
+   *        The SML to be used. May not be <code>null</code>.
+   * @param aTP
+   *        The transport profile to be used. May not be <code>null</code>.
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  public static IAS4EndpointDetailProviderFactory createPeppolFactory (@Nonnull final ISMPURLProvider aURLProvider,
+                                                                      @Nonnull final ISMLInfo aSMLInfo,
+                                                                      @Nonnull final ISMPTransportProfile aTP)
+  {
+    ValueEnforcer.notNull (aURLProvider, "URLProvider");
+    ValueEnforcer.notNull (aSMLInfo, "SMLInfo");
+    ValueEnforcer.notNull (aTP, "TransportProfile");
+    return aReceiverID -> {
+      try
+      {
+        final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (aURLProvider, aReceiverID, aSMLInfo);
+        return new AS4EndpointDetailProviderPeppol (aSMPClient, aSMPClient).setTransportProfile (aTP);
+      }
+      catch (final SMPDNSResolutionException ex)
+      {
+        throw new Phase4Exception ("Failed to resolve SMP of " + aReceiverID.getURIEncoded () + " via DNS", ex);
+      }
+    };
+  }
+
+  /**
+   * Create a caching Peppol endpoint detail provider using the default
+   * transport profile {@link AS4EndpointDetailProviderPeppol#DEFAULT_TRANSPORT_PROFILE}.
+   *
+   * @param aCache
+   *        The shared cache to use. May not be <code>null</code>.
+   * @param aURLProvider
+   *        The SMP URL provider to be used. May not be <code>null</code>.
+   * @param aSMLInfo
+   *        The SML to be used. May not be <code>null</code>.
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4EndpointDetailProviderCaching createForPeppol (@Nonnull final AS4EndpointDetailCache aCache,
+                                                                  @Nonnull final ISMPURLProvider aURLProvider,
+                                                                  @Nonnull final ISMLInfo aSMLInfo)
+  {
+    final ISMPTransportProfile aTP = AS4EndpointDetailProviderPeppol.DEFAULT_TRANSPORT_PROFILE;
+    return new AS4EndpointDetailProviderCaching (aCache,
+                                                 getPeppolDiscoveryID (aURLProvider, aSMLInfo),
+                                                 aTP,
+                                                 createPeppolFactory (aURLProvider, aSMLInfo, aTP));
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import javax.annotation.Nonnull;
+
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Factory for {@link IAS4EndpointDetailProvider} instances, used by
+ * {@link AS4EndpointDetailCache} to perform the real lookup on a cache miss.
+ * Creating the provider only on demand, avoids e.g. the SML DNS resolution for
+ * cached receivers.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@FunctionalInterface
+public interface IAS4EndpointDetailProviderFactory
+{
+  /**
+   * Create a new endpoint detail provider for the provided receiver.
+   *
+   * @param aReceiverID
+   *        Participant ID of the receiver. May not be <code>null</code>.
+   * @return A new, uninitialized endpoint detail provider. May not be
+   *         <code>null</code>.
+   * @throws Phase4Exception
+   *         in case of error, e.g. if the SMP of the receiver cannot be
+   *         determined
+   */
+  @Nonnull
+  IAS4EndpointDetailProvider create (@Nonnull IParticipantIdentifier aReceiverID) throws Phase4Exception;
+}
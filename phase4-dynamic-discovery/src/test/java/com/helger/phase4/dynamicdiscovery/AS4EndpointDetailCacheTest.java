@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+
+/**
+ * Test class for class {@link AS4EndpointDetailCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4EndpointDetailCacheTest
+{
+  private static final String DISCOVERY_ID = "test-sml";
+  private static final IDocumentTypeIdentifier DOCTYPE = SimpleIdentifierFactory.INSTANCE.createDocumentTypeIdentifier ("dt-scheme",
+                                                                                                                           "doctype");
+  private static final IProcessIdentifier PROCESS = SimpleIdentifierFactory.INSTANCE.createProcessIdentifier ("pr-scheme",
+                                                                                                              "process");
+
+  private static final class MockCache extends AS4EndpointDetailCache
+  {
+    private final AtomicLong m_aNow = new AtomicLong (1_000_000);
+
+    MockCache (final ICommonsList <Runnable> aTasks)
+    {
+      super (Duration.ofMinutes (10), Duration.ofMinutes (2), 100, aTasks::add);
+    }
+
+    @Override
+    protected long getCurrentTimeMillis ()
+    {
+      return m_aNow.get ();
+    }
+  }
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    final ICommonsList <Runnable> aTasks = new CommonsArrayList <> ();
+    final MockCache aCache = new MockCache (aTasks);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final IAS4EndpointDetailProviderFactory aFactory = x -> new AS4EndpointDetailProviderConstant (null,
+                                                                                                   "http://ap.example.org/as4/" +
+                                                                                                         aCount.incrementAndGet ());
+
+    final IParticipantIdentifier aPI = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test");
+    final AS4EndpointDetailCacheKey aKey = new AS4EndpointDetailCacheKey (DISCOVERY_ID,
+                                                                          aPI,
+                                                                          DOCTYPE,
+                                                                          PROCESS,
+                                                                          ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2);
+    assertEquals (aKey,
+                  new AS4EndpointDetailCacheKey (DISCOVERY_ID,
+                                                 PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test"),
+                                                 DOCTYPE,
+                                                 PROCESS,
+                                                 ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2.getID ()));
+    // Different SML/SMP setup
+    assertNotEquals (aKey,
+                     new AS4EndpointDetailCacheKey ("other-sml",
+                                                    aPI,
+                                                    DOCTYPE,
+                                                    PROCESS,
+                                                    ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+
+    // Miss
+    IAS4EndpointDetailProvider aEP = aCache.getEndpointDetails (aKey, aFactory);
+    assertEquals ("http://ap.example.org/as4/1", aEP.getReceiverAPEndpointURL ());
+    assertNull (aEP.getReceiverAPCertificate ());
+    assertEquals (1, aCount.get ());
+    assertEquals (1, aCache.getCachedCount ());
+
+    // Hit
+    aCache.m_aNow.addAndGet (Duration.ofMinutes (5).toMillis ());
+    aEP = aCache.getEndpointDetails (aKey, aFactory);
+    assertEquals ("http://ap.example.org/as4/1", aEP.getReceiverAPEndpointURL ());
+    assertEquals (1, aCount.get ());
+    assertTrue (aTasks.isEmpty ());
+
+    // Hit within refresh window - old value is returned, refresh is scheduled
+    aCache.m_aNow.addAndGet (Duration.ofMinutes (4).toMillis ());
+    aEP = aCache.getEndpointDetails (aKey, aFactory);
+    assertEquals ("http://ap.example.org/as4/1", aEP.getReceiverAPEndpointURL ());
+    assertEquals (1, aTasks.size ());
+    aTasks.remove (0).run ();
+    assertEquals (2, aCount.get ());
+
+    aEP = aCache.getEndpointDetails (aKey, aFactory);
+    assertEquals ("http://ap.example.org/as4/2", aEP.getReceiverAPEndpointURL ());
+    assertTrue (aTasks.isEmpty ());
+
+    // Expired
+    aCache.m_aNow.addAndGet (Duration.ofMinutes (11).toMillis ());
+    aEP = aCache.getEndpointDetails (aKey, aFactory);
+    assertEquals ("http://ap.example.org/as4/3", aEP.getReceiverAPEndpointURL ());
+    assertEquals (3, aCount.get ());
+
+    // Via the provider
+    final AS4EndpointDetailProviderCaching aProvider = new AS4EndpointDetailProviderCaching (aCache,
+                                                                                            DISCOVERY_ID,
+                                                                                            ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2,
+                                                                                            aFactory);
+    aProvider.init (DOCTYPE, PROCESS, aPI);
+    assertEquals ("http://ap.example.org/as4/3", aProvider.getReceiverAPEndpointURL ());
+    assertEquals (3, aCount.get ());
+
+    aCache.clearCache ();
+    assertEquals (0, aCache.getCachedCount ());
+  }
+
+  @Test
+  public void testFailedRefreshKeepsEntry () throws Exception
+  {
+    final ICommonsList <Runnable> aTasks = new CommonsArrayList <> ();
+    final MockCache aCache = new MockCache (aTasks);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final IAS4EndpointDetailProviderFactory aFactory = x -> {
+      if (aCount.incrementAndGet () > 1)
+        throw new Phase4SMPException ("SMP not reachable");
+      return new AS4EndpointDetailProviderConstant (null, "http://ap.example.org/as4");
+    };
+
+    final AS4EndpointDetailCacheKey aKey = new AS4EndpointDetailCacheKey (DISCOVERY_ID,
+                                                                          PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test"),
+                                                                          DOCTYPE,
+                                                                          PROCESS,
+                                                                          ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2);
+    aCache.getEndpointDetails (aKey, aFactory);
+
+    aCache.m_aNow.addAndGet (Duration.ofMinutes (9).toMillis ());
+    aCache.getEndpointDetails (aKey, aFactory);
+    aTasks.remove (0).run ();
+    assertEquals (2, aCount.get ());
+
+    // Still cached
+    assertEquals ("http://ap.example.org/as4", aCache.getEndpointDetails (aKey, aFactory).getReceiverAPEndpointURL ());
+  }
+
+  @Test
+  public void testPrewarm () throws Exception
+  {
+    final ICommonsList <Runnable> aTasks = new CommonsArrayList <> ();
+    final MockCache aCache = new MockCache (aTasks);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final IAS4EndpointDetailProviderFactory aFactory = x -> {
+      aCount.incrementAndGet ();
+      return new AS4EndpointDetailProviderConstant (null, "http://ap.example.org/" + x.getValue ());
+    };
+
+    final ICommonsList <AS4EndpointDetailCacheKey> aKeys = new CommonsArrayList <> ();
+    for (int i = 0; i < 5; ++i)
+      aKeys.add (new AS4EndpointDetailCacheKey (DISCOVERY_ID,
+                                                PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test" +
+                                                                                                                             i),
+                                                DOCTYPE,
+                                                PROCESS,
+                                                ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+    aCache.prewarm (aKeys, aFactory);
+    assertEquals (5, aTasks.size ());
+    aTasks.forEach (Runnable::run);
+    assertEquals (5, aCount.get ());
+    assertEquals (5, aCache.getCachedCount ());
+
+    // All hits
+    for (final AS4EndpointDetailCacheKey aKey : aKeys)
+      aCache.getEndpointDetails (aKey, aFactory);
+    assertEquals (5, aCount.get ());
+  }
+}
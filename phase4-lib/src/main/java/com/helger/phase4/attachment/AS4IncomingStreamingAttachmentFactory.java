@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeUtility;
+
+/**
+ * An {@link IAS4IncomingStreamingAttachmentFactory} that reads each incoming
+ * attachment exactly once. Small attachments are kept in memory, all others
+ * are written directly to a temporary file while reading. Optionally message
+ * digests of the decoded content are calculated at the same time and stored in
+ * {@link WSS4JAttachment#incomingDigests()}. This is disabled by default,
+ * because phase4 itself does not evaluate these digests. The created attachments
+ * can be read multiple times, so WSS4J can e.g. first verify and later decrypt
+ * them. The heap usage is independent of the attachment size.<br>
+ * The in-memory buffers are pooled and returned to the pool when the
+ * {@link AS4ResourceHelper} of the message is closed. Decrypted attachments
+ * are written directly into a pooled buffer or a temporary file, or - if lazy
+ * decryption is enabled - are decrypted while being read by the consumer.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4IncomingStreamingAttachmentFactory implements IAS4IncomingStreamingAttachmentFactory
+{
+  /** The default maximum number of bytes kept in memory */
+  public static final int DEFAULT_MAX_IN_MEMORY_BYTES = 64 * CGlobal.BYTES_PER_KILOBYTE;
+  /** The SHA-256 digest algorithm name, e.g. to be passed to the constructor */
+  public static final String DIGEST_ALGORITHM_SHA256 = "SHA-256";
+  /** The default number of in-memory buffers kept for reuse */
+  public static final int DEFAULT_BUFFER_POOL_SIZE = 32;
+  /** By default decrypted attachments can be read multiple times */
+  public static final boolean DEFAULT_LAZY_DECRYPTION = false;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4IncomingStreamingAttachmentFactory.class);
+  private static final int BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private final int m_nMaxInMemoryBytes;
+  private final ICommonsList <String> m_aDigestAlgorithms;
+  private final BlockingQueue <byte []> m_aBufferPool = new ArrayBlockingQueue <> (DEFAULT_BUFFER_POOL_SIZE);
+  private volatile boolean m_bLazyDecryption = DEFAULT_LAZY_DECRYPTION;
+
+  /**
+   * Default constructor keeping attachments up to
+   * {@link #DEFAULT_MAX_IN_MEMORY_BYTES} in memory and calculating no digest.
+   */
+  public AS4IncomingStreamingAttachmentFactory ()
+  {
+    this (DEFAULT_MAX_IN_MEMORY_BYTES);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxInMemoryBytes
+   *        The maximum number of bytes an attachment may have to be kept in
+   *        memory. Use 0 to always use a temporary file. Must be &ge; 0.
+   * @param aDigestAlgorithms
+   *        The message digest algorithm names (as in
+   *        {@link MessageDigest#getInstance(String)}) to calculate while
+   *        reading. May be empty, which is the recommended setting unless
+   *        the application evaluates
+   *        {@link WSS4JAttachment#incomingDigests()}.
+   */
+  public AS4IncomingStreamingAttachmentFactory (@Nonnegative final int nMaxInMemoryBytes,
+                                                @Nonnull final String... aDigestAlgorithms)
+  {
+    ValueEnforcer.isGE0 (nMaxInMemoryBytes, "MaxInMemoryBytes");
+    ValueEnforcer.notNullNoNullValue (aDigestAlgorithms, "DigestAlgorithms");
+    for (final String sAlgorithm : aDigestAlgorithms)
+      try
+      {
+        MessageDigest.getInstance (sAlgorithm);
+      }
+      catch (final NoSuchAlgorithmException ex)
+      {
+        throw new IllegalArgumentException ("Unsupported digest algorithm '" + sAlgorithm + "'", ex);
+      }
+    m_nMaxInMemoryBytes = nMaxInMemoryBytes;
+    m_aDigestAlgorithms = new CommonsArrayList <> (aDigestAlgorithms);
+  }
+
+  /**
+   * @return The maximum number of bytes an attachment may have to be kept in
+   *         memory. Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getMaxInMemoryBytes ()
+  {
+    return m_nMaxInMemoryBytes;
+  }
+
+  /**
+   * @return A copy of all digest algorithms calculated while reading. Never
+   *         <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public final ICommonsList <String> getAllDigestAlgorithms ()
+  {
+    return m_aDigestAlgorithms.getClone ();
+  }
+
+  /**
+   * @return <code>true</code> if decrypted attachments keep the lazily
+   *         decrypting stream and can therefore be read only once,
+   *         <code>false</code> if they are decrypted directly into memory or a
+   *         temporary file. Default is {@link #DEFAULT_LAZY_DECRYPTION}.
+   */
+  public final boolean isLazyDecryption ()
+  {
+    return m_bLazyDecryption;
+  }
+
+  /**
+   * Enable or disable lazy decryption of attachments. This should only be
+   * enabled if all attachment consumers read the decrypted content at most
+   * once, because no copy of the decrypted content is created.
+   *
+   * @param bLazyDecryption
+   *        <code>true</code> to enable lazy decryption, <code>false</code> to
+   *        disable it.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4IncomingStreamingAttachmentFactory setLazyDecryption (final boolean bLazyDecryption)
+  {
+    m_bLazyDecryption = bLazyDecryption;
+    return this;
+  }
+
+  @Nonnull
+  public WSS4JAttachment createAttachment (@Nonnull final MimeBodyPart aBodyPart,
+                                           @Nonnull final AS4ResourceHelper aResHelper) throws IOException,
+                                                                                        MessagingException
+  {
+    // Body part was already read completely - nothing to stream
+    return WSS4JAttachment.createIncomingFileAttachment (aBodyPart, aResHelper);
+  }
+
+  @Nonnull
+  private static MessageDigest _createMessageDigest (@Nonnull @Nonempty final String sAlgorithm)
+  {
+    try
+    {
+      return MessageDigest.getInstance (sAlgorithm);
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      // Checked in the constructor
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  private static void _updateDigests (@Nonnull final ICommonsList <MessageDigest> aMDs,
+                                      @Nonnull final byte [] aBuffer,
+                                      @Nonnegative final int nOfs,
+                                      @Nonnegative final int nLen)
+  {
+    for (final MessageDigest aMD : aMDs)
+      aMD.update (aBuffer, nOfs, nLen);
+  }
+
+  @Nonnull
+  private byte [] _borrowBuffer ()
+  {
+    final byte [] ret = m_aBufferPool.poll ();
+    return ret != null ? ret : new byte [m_nMaxInMemoryBytes];
+  }
+
+  private void _returnBuffer (@Nonnull final byte [] aBuffer)
+  {
+    // If the pool is full, the buffer is simply garbage collected
+    m_aBufferPool.offer (aBuffer);
+  }
+
+  /**
+   * Read the provided stream completely and store it either in a pooled
+   * memory buffer or in a temporary file. Pooled memory buffers are returned
+   * to the pool when the resource helper is closed.
+   *
+   * @param aIS
+   *        The stream to read. May not be <code>null</code>.
+   * @param aResHelper
+   *        The resource helper to use. May not be <code>null</code>.
+   * @param aMDs
+   *        The message digests to update while reading. May not be
+   *        <code>null</code>.
+   * @return The input stream provider that can be read multiple times.
+   * @throws IOException
+   *         In case of IO error
+   */
+  @Nonnull
+  private IHasInputStream _store (@Nonnull @WillNotClose final InputStream aIS,
+                                  @Nonnull final AS4ResourceHelper aResHelper,
+                                  @Nonnull final ICommonsList <MessageDigest> aMDs) throws IOException
+  {
+    final byte [] aChunk = new byte [BUFFER_SIZE];
+    byte [] aMemBuffer = null;
+    int nMemLen = 0;
+    int nRead;
+    if (m_nMaxInMemoryBytes > 0)
+    {
+      // Try to keep everything in memory
+      aMemBuffer = _borrowBuffer ();
+      while ((nRead = aIS.read (aMemBuffer, nMemLen, aMemBuffer.length - nMemLen)) > -1)
+      {
+        _updateDigests (aMDs, aMemBuffer, nMemLen, nRead);
+        nMemLen += nRead;
+        if (nMemLen == aMemBuffer.length)
+        {
+          // Buffer is full - check if there is more
+          nRead = aIS.read (aChunk);
+          break;
+        }
+      }
+
+      if (nRead < 0)
+      {
+        // Everything fits into memory
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Read WSS4J attachment with " + nMemLen + " bytes into memory");
+
+        final byte [] aFinalBuffer = aMemBuffer;
+        final int nFinalLen = nMemLen;
+        aResHelper.addCloseable ( () -> _returnBuffer (aFinalBuffer));
+        return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aFinalBuffer, 0, nFinalLen));
+      }
+    }
+    else
+      nRead = aIS.read (aChunk);
+
+    // Switch to a temporary file
+    final File aTempFile = aResHelper.createTempFile ();
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Streaming WSS4J attachment to temporary file '" + aTempFile.getAbsolutePath () + "'");
+
+    long nTotal = nMemLen;
+    try (final OutputStream aFileOS = FileHelper.getBufferedOutputStream (aTempFile))
+    {
+      if (aFileOS == null)
+        throw new IOException ("Failed to open temporary file '" + aTempFile.getAbsolutePath () + "' for writing");
+
+      if (aMemBuffer != null)
+      {
+        aFileOS.write (aMemBuffer, 0, nMemLen);
+        _returnBuffer (aMemBuffer);
+      }
+
+      // The last read chunk was not yet processed
+      while (nRead > -1)
+      {
+        _updateDigests (aMDs, aChunk, 0, nRead);
+        aFileOS.write (aChunk, 0, nRead);
+        nTotal += nRead;
+        nRead = aIS.read (aChunk);
+      }
+    }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Read WSS4J attachment with " + nTotal + " bytes into temporary file");
+
+    return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+  }
+
+  @Nonnull
+  public WSS4JAttachment createAttachment (@Nonnull final InternetHeaders aHeaders,
+                                           @Nonnull @WillNotClose final InputStream aContentIS,
+                                           @Nonnull final AS4ResourceHelper aResHelper) throws IOException,
+                                                                                        MessagingException
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aContentIS, "ContentIS");
+    ValueEnforcer.notNull (aResHelper, "ResHelper");
+
+    // Same default as in MimeBodyPart
+    final String sContentType = aHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+    final WSS4JAttachment ret = new WSS4JAttachment (aResHelper,
+                                                     StringHelper.hasText (sContentType) ? sContentType
+                                                                                         : "text/plain");
+    // Reference in Content-ID header is: "<ID>"
+    ret.setId (StringHelper.trimStartAndEnd (aHeaders.getHeader (CHttpHeader.CONTENT_ID, null), '<', '>'));
+
+    // Decode the transfer encoding on the fly
+    final String sCTE = aHeaders.getHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, null);
+    final InputStream aDecodedIS = StringHelper.hasText (sCTE) ? MimeUtility.decode (aContentIS, sCTE.trim ())
+                                                               : aContentIS;
+
+    // Empty unless digests were explicitly requested
+    final ICommonsList <MessageDigest> aMDs = m_aDigestAlgorithms.getAllMapped (x -> _createMessageDigest (x));
+    ret.setSourceStreamProvider (_store (aDecodedIS, aResHelper, aMDs));
+
+    for (int i = 0; i < aMDs.size (); ++i)
+      ret.incomingDigests ().put (m_aDigestAlgorithms.get (i), aMDs.get (i).digest ());
+
+    WSS4JAttachment.addIncomingHeaders (ret, aHeaders.getAllHeaders ());
+    return ret;
+  }
+
+  @Override
+  public void handleDecryptedAttachment (@Nonnull final WSS4JAttachment aAttachment,
+                                         @Nonnull final AS4ResourceHelper aResHelper) throws IOException
+  {
+    if (m_bLazyDecryption)
+    {
+      // Keep the lazily decrypting stream provided by WSS4J
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Keeping lazily decrypting stream for attachment '" + aAttachment.getId () + "'");
+      return;
+    }
+
+    // Decrypt directly into the final storage
+    try (final InputStream aDecryptingIS = aAttachment.getSourceStream (aResHelper))
+    {
+      aAttachment.setSourceStreamProvider (_store (aDecryptingIS, aResHelper, new CommonsArrayList <> ()));
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxInMemoryBytes", m_nMaxInMemoryBytes)
+                                       .append ("DigestAlgorithms", m_aDigestAlgorithms)
+                                       .append ("LazyDecryption", m_bLazyDecryption)
+                                       .getToString ();
+  }
+}
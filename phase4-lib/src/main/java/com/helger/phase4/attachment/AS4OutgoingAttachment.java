@@ -27,6 +27,7 @@ import javax.annotation.concurrent.Immutable;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.builder.IBuilder;
 import com.helger.commons.io.ByteArrayWrapper;
+import com.helger.commons.io.IWriteToStream;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.string.ToStringGenerator;
@@ -43,6 +44,7 @@ public class AS4OutgoingAttachment
 {
   private final ByteArrayWrapper m_aDataBytes;
   private final File m_aDataFile;
+  private final IWriteToStream m_aDataWriter;
   private final String m_sContentID;
   private final String m_sFilename;
   private final IMimeType m_aMimeType;
@@ -57,12 +59,46 @@ public class AS4OutgoingAttachment
                                    @Nullable final EAS4CompressionMode eCompressionMode,
                                    @Nullable final Charset aCharset)
   {
-    ValueEnforcer.isTrue (aDataBytes != null || aDataFile != null, "SrcData or SrcFile must be present");
-    ValueEnforcer.isFalse (aDataBytes != null && aDataFile != null,
-                           "Either SrcData or SrcFile must be present but not both");
+    this (aDataBytes, aDataFile, null, sContentID, sFilename, aMimeType, eCompressionMode, aCharset);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDataBytes
+   *        Data as a byte array. May be <code>null</code>.
+   * @param aDataFile
+   *        Data as a File. May be <code>null</code>.
+   * @param aDataWriter
+   *        Data as a stream writer. May be <code>null</code>.
+   * @param sContentID
+   *        Content ID. May be <code>null</code>.
+   * @param sFilename
+   *        Filename. May be <code>null</code>.
+   * @param aMimeType
+   *        MIME type. May not be <code>null</code>.
+   * @param eCompressionMode
+   *        Compression mode. May be <code>null</code>.
+   * @param aCharset
+   *        Character set. May be <code>null</code>.
+   * @since 3.0.0
+   */
+  protected AS4OutgoingAttachment (@Nullable final ByteArrayWrapper aDataBytes,
+                                   @Nullable final File aDataFile,
+                                   @Nullable final IWriteToStream aDataWriter,
+                                   @Nullable final String sContentID,
+                                   @Nullable final String sFilename,
+                                   @Nonnull final IMimeType aMimeType,
+                                   @Nullable final EAS4CompressionMode eCompressionMode,
+                                   @Nullable final Charset aCharset)
+  {
+    final int nSources = (aDataBytes != null ? 1 : 0) + (aDataFile != null ? 1 : 0) + (aDataWriter != null ? 1 : 0);
+    ValueEnforcer.isTrue (nSources > 0, "SrcData or SrcFile or SrcWriter must be present");
+    ValueEnforcer.isTrue (nSources == 1, "Only one of SrcData, SrcFile and SrcWriter may be present");
     ValueEnforcer.notNull (aMimeType, "MimeType");
     m_aDataBytes = aDataBytes;
     m_aDataFile = aDataFile;
+    m_aDataWriter = aDataWriter;
     m_sContentID = sContentID;
     m_sFilename = sFilename;
     m_aMimeType = aMimeType;
@@ -114,6 +150,28 @@ public class AS4OutgoingAttachment
     return m_aDataFile != null;
   }
 
+  /**
+   * @return The writer that creates the data to be send. May be
+   *         <code>null</code> in which case {@link #getDataBytes()} or
+   *         {@link #getDataFile()} has the content.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final IWriteToStream getDataWriter ()
+  {
+    return m_aDataWriter;
+  }
+
+  /**
+   * @return <code>true</code> if the data is created by a writer,
+   *         <code>false</code> if it is a byte array or a File.
+   * @since 3.0.0
+   */
+  public final boolean hasDataWriter ()
+  {
+    return m_aDataWriter != null;
+  }
+
   /**
    * @return The Content-ID to be used. May be <code>null</code>.
    */
@@ -165,6 +223,7 @@ public class AS4OutgoingAttachment
   {
     return new ToStringGenerator (this).append ("DataBytes", m_aDataBytes)
                                        .append ("DataFile", m_aDataFile)
+                                       .append ("DataWriter", m_aDataWriter)
                                        .append ("ContentID", m_sContentID)
                                        .append ("Filename", m_sFilename)
                                        .append ("MimeType", m_aMimeType)
@@ -194,6 +253,7 @@ public class AS4OutgoingAttachment
   {
     private ByteArrayWrapper m_aDataBytes;
     private File m_aDataFile;
+    private IWriteToStream m_aDataWriter;
     private String m_sContentID;
     private String m_sFilename;
     private IMimeType m_aMimeType;
@@ -214,6 +274,7 @@ public class AS4OutgoingAttachment
     {
       m_aDataBytes = a;
       m_aDataFile = null;
+      m_aDataWriter = null;
       return this;
     }
 
@@ -222,6 +283,27 @@ public class AS4OutgoingAttachment
     {
       m_aDataBytes = null;
       m_aDataFile = a;
+      m_aDataWriter = null;
+      return this;
+    }
+
+    /**
+     * Set the data as a writer, that is invoked exactly once when the outgoing
+     * attachment is created. The written bytes are compressed on the fly, if a
+     * compression mode is set, so no intermediate copy of the uncompressed
+     * data is needed.
+     *
+     * @param a
+     *        The writer to use. May be <code>null</code>.
+     * @return this for chaining
+     * @since 3.0.0
+     */
+    @Nonnull
+    public Builder data (@Nullable final IWriteToStream a)
+    {
+      m_aDataBytes = null;
+      m_aDataFile = null;
+      m_aDataWriter = a;
       return this;
     }
 
@@ -299,7 +381,7 @@ public class AS4OutgoingAttachment
     @OverridingMethodsMustInvokeSuper
     protected void checkConsistency ()
     {
-      if (m_aDataBytes == null && m_aDataFile == null)
+      if (m_aDataBytes == null && m_aDataFile == null && m_aDataWriter == null)
         throw new IllegalStateException ("Phase4OutgoingAttachment has no 'data' element");
       if (m_aMimeType == null)
         throw new IllegalStateException ("Phase4OutgoingAttachment has no 'mimeType' element");
@@ -311,6 +393,7 @@ public class AS4OutgoingAttachment
       checkConsistency ();
       return new AS4OutgoingAttachment (m_aDataBytes,
                                         m_aDataFile,
+                                        m_aDataWriter,
                                         m_sContentID,
                                         m_sFilename,
                                         m_aMimeType,
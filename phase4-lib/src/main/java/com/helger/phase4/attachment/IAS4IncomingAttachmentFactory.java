@@ -16,10 +16,16 @@
  */
 package com.helger.phase4.attachment;
 
+import java.io.File;
 import java.io.IOException;
 
 import javax.annotation.Nonnull;
 
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.phase4.util.AS4ResourceHelper;
 
 import jakarta.mail.MessagingException;
@@ -52,6 +58,44 @@ public interface IAS4IncomingAttachmentFactory
                                                                                                             throws IOException,
                                                                                                             MessagingException;
 
+  /**
+   * Make the content of a decrypted attachment available for further
+   * processing. When this method is called, the source stream of the provided
+   * attachment is the lazily decrypting stream provided by WSS4J, that can
+   * only be read once. Implementations may decide where the decrypted content
+   * is stored and must set the new source stream provider on the attachment
+   * (if needed).<br>
+   * The default implementation always copies the decrypted content to a
+   * temporary file, so that it can be read more than once.
+   *
+   * @param aAttachment
+   *        The decrypted attachment to handle. May not be <code>null</code>.
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of IO error
+   * @since 3.0.0
+   */
+  default void handleDecryptedAttachment (@Nonnull final WSS4JAttachment aAttachment,
+                                          @Nonnull final AS4ResourceHelper aResHelper) throws IOException
+  {
+    final File aTempFile = aResHelper.createTempFile ();
+    if (StreamHelper.copyByteStream ()
+                    .from (aAttachment.getSourceStream ())
+                    .closeFrom (true)
+                    .to (FileHelper.getBufferedOutputStream (aTempFile))
+                    .closeTo (true)
+                    .build ()
+                    .isFailure ())
+    {
+      LoggerFactory.getLogger (IAS4IncomingAttachmentFactory.class)
+                   .error ("Failed to write decrypted attachment to temporary file '" +
+                           aTempFile.getAbsolutePath () +
+                           "'");
+    }
+    aAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
+  }
+
   /**
    * The default instance of {@link IAS4IncomingAttachmentFactory} that uses
    * {@link WSS4JAttachment#createIncomingFileAttachment(MimeBodyPart, AS4ResourceHelper)}
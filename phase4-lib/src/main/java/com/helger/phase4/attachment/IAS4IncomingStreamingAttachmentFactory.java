@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+
+import com.helger.phase4.util.AS4ResourceHelper;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetHeaders;
+
+/**
+ * Extended {@link IAS4IncomingAttachmentFactory} that can create attachments
+ * directly from the MIME part stream, without creating an intermediate
+ * {@link jakarta.mail.internet.MimeBodyPart}. If the incoming attachment
+ * factory implements this interface, the incoming MIME message parsing uses
+ * this method for all attachment parts.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public interface IAS4IncomingStreamingAttachmentFactory extends IAS4IncomingAttachmentFactory
+{
+  /**
+   * Create an attachment from the streamed MIME part.
+   *
+   * @param aHeaders
+   *        The already parsed MIME part headers. May not be <code>null</code>.
+   * @param aContentIS
+   *        The raw (still transfer encoded) content of the MIME part. Must be
+   *        consumed completely by this method. May not be <code>null</code>.
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The internal attachment representation. Never <code>null</code>.
+   * @throws IOException
+   *         In case of IO error
+   * @throws MessagingException
+   *         In case MIME part reading fails.
+   */
+  @Nonnull
+  WSS4JAttachment createAttachment (@Nonnull InternetHeaders aHeaders,
+                                    @Nonnull @WillNotClose InputStream aContentIS,
+                                    @Nonnull AS4ResourceHelper aResHelper) throws IOException, MessagingException;
+}
@@ -42,6 +42,7 @@ import com.helger.commons.collection.impl.CommonsLinkedHashMap;
 import com.helger.commons.collection.impl.ICommonsOrderedMap;
 import com.helger.commons.http.CHttpHeader;
 import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.IWriteToStream;
 import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.NonBlockingBufferedOutputStream;
@@ -87,6 +88,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
   private Charset m_aCharset;
   private String m_sUncompressedMimeType;
   private final ICommonsOrderedMap <String, String> m_aCustomPartProps = new CommonsLinkedHashMap <> ();
+  private final ICommonsOrderedMap <String, byte []> m_aIncomingDigests = new CommonsLinkedHashMap <> ();
 
   public WSS4JAttachment (@Nonnull @WillNotClose final AS4ResourceHelper aResHelper, @Nullable final String sMimeType)
   {
@@ -301,6 +303,20 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     return m_aCustomPartProps;
   }
 
+  /**
+   * @return The digest values of the decoded attachment content, that were
+   *         calculated while the incoming attachment was read. The key is the
+   *         message digest algorithm name (e.g. <code>SHA-256</code>). Never
+   *         <code>null</code> but maybe empty.
+   * @since 3.0.0
+   */
+  @Nonnull
+  @ReturnsMutableObject
+  public ICommonsOrderedMap <String, byte []> incomingDigests ()
+  {
+    return m_aIncomingDigests;
+  }
+
   @Override
   public String toString ()
   {
@@ -363,7 +379,19 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                            aResHelper);
     }
 
-    // Must be one of the 2 variants
+    if (aAttachment.hasDataWriter ())
+    {
+      // Writer based
+      return createOutgoingFileAttachment (aAttachment.getDataWriter (),
+                                           aAttachment.getContentID (),
+                                           aAttachment.getFilename (),
+                                           aAttachment.getMimeType (),
+                                           aAttachment.getCompressionMode (),
+                                           aAttachment.getCharset (),
+                                           aResHelper);
+    }
+
+    // Must be one of the 3 variants
     throw new IllegalStateException ("Unsupported outgoing attachment data provider: " + aAttachment);
   }
 
@@ -508,6 +536,78 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     return ret;
   }
 
+  /**
+   * Quasi constructor. Performs compression internally if necessary. The
+   * writer is invoked exactly once and the created bytes are compressed on the
+   * fly into a temporary file, so that no uncompressed copy is kept.
+   *
+   * @param aSrcWriter
+   *        Source writer, creating the uncompressed, unencrypted data. May not
+   *        be <code>null</code>.
+   * @param sContentID
+   *        Optional content ID or <code>null</code> to create a random one.
+   * @param sFilename
+   *        Optional filename to use in the "Content-Disposition" headers. May
+   *        be <code>null</code>.
+   * @param aMimeType
+   *        Original mime type of the data. May not be <code>null</code>.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param aCharset
+   *        The character set to use. May be <code>null</code>
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during writing or compression
+   * @since 3.0.0
+   */
+  @SuppressWarnings ("resource")
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final IWriteToStream aSrcWriter,
+                                                              @Nullable final String sContentID,
+                                                              @Nullable final String sFilename,
+                                                              @Nonnull final IMimeType aMimeType,
+                                                              @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              @Nullable final Charset aCharset,
+                                                              @Nonnull @WillNotClose final AS4ResourceHelper aResHelper) throws IOException
+  {
+    ValueEnforcer.notNull (aSrcWriter, "Writer");
+    ValueEnforcer.notNull (aMimeType, "MimeType");
+    ValueEnforcer.notNull (aResHelper, "ResHelper");
+
+    final WSS4JAttachment ret = new WSS4JAttachment (aResHelper, aMimeType.getAsString ());
+    ret.setId (sContentID);
+    ret.setCharset (aCharset);
+    _addOutgoingHeaders (ret, sFilename);
+
+    // If the attachment has an compressionMode do it directly, so that
+    // encryption later on works on the compressed content
+    if (eCompressionMode != null)
+      ret.setCompressionMode (eCompressionMode);
+
+    // Create temporary file with the (optionally compressed) content in a
+    // single pass
+    final File aRealFile = aResHelper.createTempFile ();
+    try (final NonBlockingBufferedOutputStream aFOS = FileHelper.getBufferedOutputStream (aRealFile))
+    {
+      if (aFOS == null)
+        throw new IOException ("Failed to open temporary file '" + aRealFile.getAbsolutePath () + "' for writing");
+
+      if (eCompressionMode != null)
+      {
+        try (final OutputStream aOS = eCompressionMode.getCompressStream (aFOS))
+        {
+          aSrcWriter.writeTo (aOS);
+        }
+      }
+      else
+        aSrcWriter.writeTo (aFOS);
+    }
+    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
+    return ret;
+  }
+
   /**
    * Check if an incoming attachment can be kept in memory, or if a temporary
    * file is needed.
@@ -521,6 +621,30 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     return nBytes <= 64 * CGlobal.BYTES_PER_KILOBYTE;
   }
 
+  /**
+   * Copy all provided MIME part headers to the attachment and add the
+   * mandatory headers afterwards.
+   *
+   * @param aAttachment
+   *        The incoming attachment to modify. May not be <code>null</code>.
+   * @param aHeaders
+   *        The MIME part headers. May not be <code>null</code>.
+   * @since 3.0.0
+   */
+  static void addIncomingHeaders (@Nonnull final WSS4JAttachment aAttachment, @Nonnull final Enumeration <Header> aHeaders)
+  {
+    while (aHeaders.hasMoreElements ())
+    {
+      final Header aHeader = aHeaders.nextElement ();
+      aAttachment.addHeader (aHeader.getName (), aHeader.getValue ());
+    }
+
+    // These headers are mandatory and overwrite headers from the MIME body part
+    aAttachment.addHeader (CHttpHeader.CONTENT_DESCRIPTION, CONTENT_DESCRIPTION_ATTACHMENT);
+    aAttachment.addHeader (CHttpHeader.CONTENT_ID, CONTENT_ID_PREFIX + aAttachment.getId () + CONTENT_ID_SUFFIX);
+    aAttachment.addHeader (CHttpHeader.CONTENT_TYPE, aAttachment.getMimeType ());
+  }
+
   @SuppressWarnings ("resource")
   @Nonnull
   public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final MimeBodyPart aBodyPart,
@@ -599,17 +723,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     }
 
     // Read all MIME part headers
-    final Enumeration <Header> aEnum = aBodyPart.getAllHeaders ();
-    while (aEnum.hasMoreElements ())
-    {
-      final Header aHeader = aEnum.nextElement ();
-      ret.addHeader (aHeader.getName (), aHeader.getValue ());
-    }
-
-    // These headers are mandatory and overwrite headers from the MIME body part
-    ret.addHeader (CHttpHeader.CONTENT_DESCRIPTION, CONTENT_DESCRIPTION_ATTACHMENT);
-    ret.addHeader (CHttpHeader.CONTENT_ID, CONTENT_ID_PREFIX + ret.getId () + CONTENT_ID_SUFFIX);
-    ret.addHeader (CHttpHeader.CONTENT_TYPE, ret.getMimeType ());
+    addIncomingHeaders (ret, aBodyPart.getAllHeaders ());
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Finished handling of incoming WSS4J attachment");
@@ -28,6 +28,7 @@ import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.messaging.http.HttpAS4MessageEntity;
 import com.helger.phase4.messaging.http.HttpMimeMessageEntity;
 import com.helger.phase4.messaging.http.HttpXMLEntity;
 import com.helger.phase4.messaging.mime.AS4MimeMessageHelper;
@@ -58,6 +59,27 @@ public final class AS4ClientBuiltMessage
     m_aDSReferences = aCreatedDSReferences;
   }
 
+  /**
+   * Constructor for unsigned and unencrypted messages that are streamed.
+   *
+   * @param sMessageID
+   *        The AS4 message ID. May neither be <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The streaming HTTP entity. May not be <code>null</code>.
+   * @param aCreatedDSReferences
+   *        The created DSig references. May be <code>null</code>.
+   * @since 3.0.0
+   */
+  public AS4ClientBuiltMessage (@Nonnull @Nonempty final String sMessageID,
+                                @Nonnull final HttpAS4MessageEntity aHttpEntity,
+                                @Nullable final ICommonsList <ReferenceType> aCreatedDSReferences)
+  {
+    m_sMessageID = ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    m_aHttpEntity = ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+    m_aCustomHttpHeaders = null;
+    m_aDSReferences = aCreatedDSReferences;
+  }
+
   public AS4ClientBuiltMessage (@Nonnull @Nonempty final String sMessageID,
                                 @Nonnull final HttpMimeMessageEntity aHttpEntity,
                                 @Nullable final ICommonsList <ReferenceType> aCreatedDSReferences) throws MessagingException
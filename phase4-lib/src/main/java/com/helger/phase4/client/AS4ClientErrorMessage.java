@@ -35,6 +35,7 @@ import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.ebms3header.Ebms3Error;
 import com.helger.phase4.ebms3header.Ebms3MessageInfo;
 import com.helger.phase4.messaging.crypto.AS4Signer;
+import com.helger.phase4.messaging.http.HttpAS4MessageEntity;
 import com.helger.phase4.messaging.http.HttpXMLEntity;
 import com.helger.phase4.model.error.IEbmsError;
 import com.helger.phase4.model.message.AS4ErrorMessage;
@@ -113,6 +114,15 @@ public class AS4ClientErrorMessage extends AbstractAS4ClientSignalMessage <AS4Cl
     if (aCallback != null)
       aCallback.onAS4Message (aErrorMsg);
 
+    final boolean bSign = m_bErrorShouldBeSigned && signingParams ().isSigningEnabled ();
+    if (!bSign && aCallback == null)
+    {
+      // Nothing needs the DOM - stream the SOAP envelope directly
+      return new AS4ClientBuiltMessage (sMessageID,
+                                        new HttpAS4MessageEntity (aErrorMsg, null, getSoapVersion ().getMimeType ()),
+                                        null);
+    }
+
     final Document aPureSoapDoc = aErrorMsg.getAsSoapDocument ();
 
     if (aCallback != null)
@@ -120,7 +130,7 @@ public class AS4ClientErrorMessage extends AbstractAS4ClientSignalMessage <AS4Cl
 
     final Document aDoc;
     ICommonsList <ReferenceType> aCreatedDSReferences = null;
-    if (m_bErrorShouldBeSigned && signingParams ().isSigningEnabled ())
+    if (bSign)
     {
       final IAS4CryptoFactory aCryptoFactorySign = internalGetCryptoFactorySign ();
 
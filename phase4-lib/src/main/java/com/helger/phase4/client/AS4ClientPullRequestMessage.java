@@ -29,6 +29,7 @@ import com.helger.commons.string.StringHelper;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.ebms3header.Ebms3MessageInfo;
 import com.helger.phase4.messaging.crypto.AS4Signer;
+import com.helger.phase4.messaging.http.HttpAS4MessageEntity;
 import com.helger.phase4.messaging.http.HttpXMLEntity;
 import com.helger.phase4.model.message.AS4PullRequestMessage;
 import com.helger.phase4.model.message.EAS4MessageType;
@@ -88,6 +89,15 @@ public class AS4ClientPullRequestMessage extends AbstractAS4ClientSignalMessage
     if (aCallback != null)
       aCallback.onAS4Message (aPullRequest);
 
+    final boolean bSign = signingParams ().isSigningEnabled ();
+    if (!bSign && aCallback == null)
+    {
+      // Nothing needs the DOM - stream the SOAP envelope directly
+      return new AS4ClientBuiltMessage (sMessageID,
+                                        new HttpAS4MessageEntity (aPullRequest, null, getSoapVersion ().getMimeType ()),
+                                        null);
+    }
+
     final Document aPureSoapDoc = aPullRequest.getAsSoapDocument ();
 
     if (aCallback != null)
@@ -95,7 +105,7 @@ public class AS4ClientPullRequestMessage extends AbstractAS4ClientSignalMessage
 
     final Document aDoc;
     ICommonsList <ReferenceType> aCreatedDSReferences = null;
-    if (signingParams ().isSigningEnabled ())
+    if (bSign)
     {
       final IAS4CryptoFactory aCryptoFactorySign = internalGetCryptoFactorySign ();
 
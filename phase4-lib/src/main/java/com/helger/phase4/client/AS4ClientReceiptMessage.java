@@ -29,6 +29,7 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.ebms3header.Ebms3UserMessage;
 import com.helger.phase4.messaging.crypto.AS4Signer;
+import com.helger.phase4.messaging.http.HttpAS4MessageEntity;
 import com.helger.phase4.messaging.http.HttpXMLEntity;
 import com.helger.phase4.model.message.AS4ReceiptMessage;
 import com.helger.phase4.model.message.EAS4MessageType;
@@ -158,6 +159,15 @@ public class AS4ClientReceiptMessage extends AbstractAS4ClientSignalMessage <AS4
     if (aCallback != null)
       aCallback.onAS4Message (aReceiptMsg);
 
+    final boolean bSign = m_bReceiptShouldBeSigned && signingParams ().isSigningEnabled ();
+    if (!bSign && aCallback == null)
+    {
+      // Nothing needs the DOM - stream the SOAP envelope directly
+      return new AS4ClientBuiltMessage (sMessageID,
+                                        new HttpAS4MessageEntity (aReceiptMsg, null, getSoapVersion ().getMimeType ()),
+                                        null);
+    }
+
     final Document aPureSoapDoc = aReceiptMsg.getAsSoapDocument ();
 
     if (aCallback != null)
@@ -165,7 +175,7 @@ public class AS4ClientReceiptMessage extends AbstractAS4ClientSignalMessage <AS4
 
     final Document aDoc;
     ICommonsList <ReferenceType> aCreatedDSReferences = null;
-    if (m_bReceiptShouldBeSigned && signingParams ().isSigningEnabled ())
+    if (bSign)
     {
       final IAS4CryptoFactory aCryptoFactorySign = internalGetCryptoFactorySign ();
 
@@ -19,6 +19,10 @@ package com.helger.phase4.client;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
@@ -47,6 +51,7 @@ import com.helger.phase4.dump.AS4DumpManager;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.messaging.http.BasicHttpPoster;
 import com.helger.phase4.messaging.http.HttpRetrySettings;
+import com.helger.phase4.messaging.http.IAsyncHttpPoster;
 import com.helger.phase4.messaging.http.IHttpPoster;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.ESoapVersion;
@@ -514,6 +519,11 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
                                                                                                                       WSSecurityException,
                                                                                                                       MessagingException
   {
+    // Fail fast before signing and encryption, if the endpoint is known to be
+    // down
+    if (m_aHttpPoster instanceof BasicHttpPoster)
+      ((BasicHttpPoster) m_aHttpPoster).checkEndpointAvailable (sURL);
+
     // Create a new message ID for each build!
     final String sMessageID = createMessageID ();
     final AS4ClientBuiltMessage aBuiltMsg = buildMessage (sMessageID, aCallback);
@@ -569,4 +579,103 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
 
     return ret;
   }
+
+  /**
+   * The non-blocking counterpart of
+   * {@link #sendMessageWithRetries(String, HttpClientResponseHandler, IAS4ClientBuildMessageCallback, IAS4OutgoingDumper, IAS4RetryCallback)}.
+   * Building the message (incl. signing and encryption) is performed on the
+   * provided executor, the HTTP exchange including the retries is performed
+   * by the provided asynchronous HTTP poster without blocking a thread. The
+   * internal {@link AS4ResourceHelper} must not be closed before the returned
+   * future is completed.
+   *
+   * @param <T>
+   *        The response data type
+   * @param sURL
+   *        The URL to send the HTTP POST to
+   * @param aResponseHandler
+   *        The response handler that converts the HTTP response to a domain
+   *        object. May not be <code>null</code>.
+   * @param aCallback
+   *        An optional callback for the different stages of building the
+   *        document. May be <code>null</code>.
+   * @param aOutgoingDumper
+   *        An outgoing dumper to be used. Maybe <code>null</code>. If
+   *        <code>null</code> the global outgoing dumper from
+   *        {@link AS4DumpManager} is used.
+   * @param aRetryCallback
+   *        An optional callback to be invoked if a retry happens on HTTP level.
+   *        May be <code>null</code>.
+   * @param aAsyncHttpPoster
+   *        The asynchronous HTTP poster to be used. May not be
+   *        <code>null</code>.
+   * @param aExecutor
+   *        The executor on which the message is build. May not be
+   *        <code>null</code>.
+   * @return The future that is completed with the sent message or
+   *         exceptionally in case of error. Never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final <T> CompletableFuture <AS4ClientSentMessage <T>> sendMessageWithRetriesAsync (@Nonnull final String sURL,
+                                                                                             @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler,
+                                                                                             @Nullable final IAS4ClientBuildMessageCallback aCallback,
+                                                                                             @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                                                             @Nullable final IAS4RetryCallback aRetryCallback,
+                                                                                             @Nonnull final IAsyncHttpPoster aAsyncHttpPoster,
+                                                                                             @Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aAsyncHttpPoster, "AsyncHttpPoster");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+
+    return CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        // Create a new message ID for each build!
+        final String sMessageID = createMessageID ();
+        final AS4ClientBuiltMessage aBuiltMsg = buildMessage (sMessageID, aCallback);
+        HttpEntity aBuiltEntity = aBuiltMsg.getHttpEntity ();
+
+        if (m_aHttpRetrySettings.isRetryEnabled () ||
+            aOutgoingDumper != null ||
+            AS4DumpManager.getOutgoingDumper () != null)
+        {
+          // Ensure a repeatable entity is provided
+          aBuiltEntity = m_aResHelper.createRepeatableHttpEntity (aBuiltEntity);
+        }
+
+        // Keep the HTTP response status line for external evaluation
+        final Wrapper <StatusLine> aStatusLineKeeper = new Wrapper <> ();
+        // Keep the HTTP response headers for external evaluation
+        final HttpHeaderMap aResponseHeaders = new HttpHeaderMap ();
+
+        final HttpClientResponseHandler <T> aRealResponseHandler = x -> {
+          // Remember the HTTP response data
+          aStatusLineKeeper.set (new StatusLine (x));
+          final Header [] aHeaders = x.getHeaders ();
+          if (aHeaders != null)
+            for (final Header aHeader : aHeaders)
+              aResponseHeaders.addHeader (aHeader.getName (), aHeader.getValue ());
+          // Call the original handler
+          return aResponseHandler.handleResponse (x);
+        };
+        return aAsyncHttpPoster.sendGenericMessageWithRetriesAsync (sURL,
+                                                                    aBuiltMsg.getAllCustomHttpHeaders (),
+                                                                    aBuiltEntity,
+                                                                    sMessageID,
+                                                                    m_aHttpRetrySettings,
+                                                                    aRealResponseHandler,
+                                                                    aOutgoingDumper,
+                                                                    aRetryCallback)
+                               .thenApply (aResponseContent -> new AS4ClientSentMessage <> (aBuiltMsg,
+                                                                                           aStatusLineKeeper.get (),
+                                                                                           aResponseHeaders,
+                                                                                           aResponseContent));
+      }
+      catch (final IOException | WSSecurityException | MessagingException ex)
+      {
+        throw new CompletionException (ex);
+      }
+    }, aExecutor).thenCompose (Function.identity ());
+  }
 }
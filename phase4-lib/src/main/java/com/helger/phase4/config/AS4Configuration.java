@@ -19,6 +19,7 @@ package com.helger.phase4.config;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -26,10 +27,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsSet;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.io.resource.IReadableResource;
 import com.helger.commons.io.resourceprovider.ReadableResourceProviderChain;
+import com.helger.commons.string.StringHelper;
 import com.helger.commons.string.StringParser;
 import com.helger.config.Config;
 import com.helger.config.ConfigFactory;
@@ -62,8 +67,88 @@ public final class AS4Configuration
   public static final String PROPERTY_PHASE4_WSS4J_SYNCSECURITY = "phase4.wss4j.syncsecurity";
   public static final boolean DEFAULT_PHASE4_WSS4J_SYNCSECURITY = false;
 
+  /**
+   * The string property to define how WSS4J actions are synchronized, if
+   * {@link #PROPERTY_PHASE4_WSS4J_SYNCSECURITY} is enabled.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_WSS4J_SYNCSECURITY_MODE = "phase4.wss4j.syncsecurity.mode";
+  public static final String DEFAULT_PHASE4_WSS4J_SYNCSECURITY_MODE = "global";
+
+  /**
+   * The int property to define the maximum number of WSS4J actions that may run
+   * in parallel in the concurrent synchronization mode.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_WSS4J_SYNCSECURITY_MAXCONCURRENT = "phase4.wss4j.syncsecurity.maxconcurrent";
+
   public static final long DEFAULT_PHASE4_INCOMING_DUPLICATEDISPOSAL_MINUTES = 10;
 
+  /**
+   * The boolean property to enable XSD validation of the created Ebms3 and
+   * SOAP structures of outgoing messages.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_OUTGOING_XSD_VALIDATION = "phase4.outgoing.xsd.validation";
+  public static final boolean DEFAULT_PHASE4_OUTGOING_XSD_VALIDATION = true;
+
+  /**
+   * The property with the comma separated sender party IDs, for which the
+   * Ebms3 structures of incoming user messages are not validated against the
+   * XSDs.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_INCOMING_XSD_VALIDATION_SKIP_SENDERS = "phase4.incoming.xsd.validation.skip.senders";
+
+  /**
+   * The boolean property to run asynchronous processing on virtual threads, if
+   * the JVM supports them.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_VIRTUAL_THREADS_ENABLED = "phase4.virtualthreads.enabled";
+  public static final boolean DEFAULT_PHASE4_VIRTUAL_THREADS_ENABLED = false;
+
+  /**
+   * The int property to define the number of threads used to process and send
+   * asynchronous responses.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_ASYNCRESPONSE_THREADS = "phase4.asyncresponse.threads";
+  public static final int DEFAULT_PHASE4_ASYNCRESPONSE_THREADS = 16;
+
+  /**
+   * The int property to define the maximum number of asynchronous responses
+   * waiting for a free thread.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_ASYNCRESPONSE_QUEUESIZE = "phase4.asyncresponse.queuesize";
+  public static final int DEFAULT_PHASE4_ASYNCRESPONSE_QUEUESIZE = 1_000;
+
+  /**
+   * The int property to define the maximum number of asynchronous responses
+   * sent in parallel to a single destination.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_ASYNCRESPONSE_MAXPERDESTINATION = "phase4.asyncresponse.maxperdestination";
+  public static final int DEFAULT_PHASE4_ASYNCRESPONSE_MAXPERDESTINATION = 8;
+
+  /**
+   * The string property to define what happens with asynchronous responses if
+   * the queue is full.
+   *
+   * @since 3.0.0
+   */
+  public static final String PROPERTY_PHASE4_ASYNCRESPONSE_REJECTIONPOLICY = "phase4.asyncresponse.rejectionpolicy";
+  public static final String DEFAULT_PHASE4_ASYNCRESPONSE_REJECTIONPOLICY = "callerruns";
+
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4Configuration.class);
 
   /**
@@ -230,6 +315,34 @@ public final class AS4Configuration
     return StringParser.parseBool (sValue, DEFAULT_PHASE4_WSS4J_SYNCSECURITY);
   }
 
+  /**
+   * @return The synchronization mode ID to be used, if
+   *         {@link #isWSS4JSynchronizedSecurity()} is enabled. The
+   *         configuration item is <code>phase4.wss4j.syncsecurity.mode</code>.
+   *         Defaults to {@value #DEFAULT_PHASE4_WSS4J_SYNCSECURITY_MODE}.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static String getWSS4JSynchronizedSecurityMode ()
+  {
+    return getConfig ().getAsString (PROPERTY_PHASE4_WSS4J_SYNCSECURITY_MODE, DEFAULT_PHASE4_WSS4J_SYNCSECURITY_MODE);
+  }
+
+  /**
+   * @return The maximum number of WSS4J actions that may run in parallel in
+   *         the concurrent synchronization mode. The configuration item is
+   *         <code>phase4.wss4j.syncsecurity.maxconcurrent</code>. Defaults to
+   *         the number of available processors.
+   * @since 3.0.0
+   */
+  @Nonnegative
+  public static int getWSS4JSynchronizedSecurityMaxConcurrent ()
+  {
+    final int nDefault = Runtime.getRuntime ().availableProcessors ();
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_WSS4J_SYNCSECURITY_MAXCONCURRENT, nDefault);
+    return ret > 0 ? ret : nDefault;
+  }
+
   /**
    * @return The AS4 profile to use, taken from the configuration item
    *         <code>phase4.profile</code>. May be <code>null</code>.
@@ -289,6 +402,115 @@ public final class AS4Configuration
     return getConfig ().getAsString ("phase4.endpoint.address");
   }
 
+  /**
+   * @return <code>true</code> if the Ebms3 and SOAP structures of outgoing
+   *         messages should be validated against the XSDs when they are
+   *         created. Disabling this saves a considerable amount of CPU per
+   *         message, as the structures are created by phase4 itself. The
+   *         configuration item is <code>phase4.outgoing.xsd.validation</code>.
+   *         Defaults to {@value #DEFAULT_PHASE4_OUTGOING_XSD_VALIDATION}.
+   * @since 3.0.0
+   */
+  public static boolean isOutgoingXSDValidation ()
+  {
+    return getConfig ().getAsBoolean (PROPERTY_PHASE4_OUTGOING_XSD_VALIDATION, DEFAULT_PHASE4_OUTGOING_XSD_VALIDATION);
+  }
+
+  /**
+   * @return The sender party IDs, for which the Ebms3 structures of incoming
+   *         user messages are not validated against the XSDs. The sender is
+   *         taken from the not yet validated header, so only add parties that
+   *         are required to sign their messages. Messages of all other senders
+   *         are always validated. The configuration item is
+   *         <code>phase4.incoming.xsd.validation.skip.senders</code>. Defaults
+   *         to an empty set.
+   * @since 3.0.0
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsSet <String> getIncomingXSDValidationSkipSenders ()
+  {
+    final ICommonsSet <String> ret = new CommonsHashSet <> ();
+    final String sValue = getConfig ().getAsString (PROPERTY_PHASE4_INCOMING_XSD_VALIDATION_SKIP_SENDERS);
+    if (StringHelper.hasText (sValue))
+      for (final String sPartyID : StringHelper.getExploded (',', sValue))
+        if (StringHelper.hasText (sPartyID.trim ()))
+          ret.add (sPartyID.trim ());
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if asynchronous sending, asynchronous responses
+   *         and the processing of incoming messages should run on virtual
+   *         threads. This only has an effect if the JVM supports virtual
+   *         threads (Java 21+). The configuration item is
+   *         <code>phase4.virtualthreads.enabled</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_VIRTUAL_THREADS_ENABLED}.
+   * @since 3.0.0
+   */
+  public static boolean isVirtualThreadsEnabled ()
+  {
+    return getConfig ().getAsBoolean (PROPERTY_PHASE4_VIRTUAL_THREADS_ENABLED, DEFAULT_PHASE4_VIRTUAL_THREADS_ENABLED);
+  }
+
+  /**
+   * @return The number of threads used to process and send asynchronous
+   *         responses. The configuration item is
+   *         <code>phase4.asyncresponse.threads</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_ASYNCRESPONSE_THREADS}.
+   * @since 3.0.0
+   */
+  @Nonnegative
+  public static int getAsyncResponseThreads ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_ASYNCRESPONSE_THREADS, DEFAULT_PHASE4_ASYNCRESPONSE_THREADS);
+    return ret > 0 ? ret : DEFAULT_PHASE4_ASYNCRESPONSE_THREADS;
+  }
+
+  /**
+   * @return The maximum number of asynchronous responses waiting for a free
+   *         thread. The configuration item is
+   *         <code>phase4.asyncresponse.queuesize</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_ASYNCRESPONSE_QUEUESIZE}.
+   * @since 3.0.0
+   */
+  @Nonnegative
+  public static int getAsyncResponseQueueSize ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_ASYNCRESPONSE_QUEUESIZE,
+                                           DEFAULT_PHASE4_ASYNCRESPONSE_QUEUESIZE);
+    return ret > 0 ? ret : DEFAULT_PHASE4_ASYNCRESPONSE_QUEUESIZE;
+  }
+
+  /**
+   * @return The maximum number of asynchronous responses sent in parallel to a
+   *         single destination. The configuration item is
+   *         <code>phase4.asyncresponse.maxperdestination</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_ASYNCRESPONSE_MAXPERDESTINATION}.
+   * @since 3.0.0
+   */
+  @Nonnegative
+  public static int getAsyncResponseMaxPerDestination ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_ASYNCRESPONSE_MAXPERDESTINATION,
+                                           DEFAULT_PHASE4_ASYNCRESPONSE_MAXPERDESTINATION);
+    return ret > 0 ? ret : DEFAULT_PHASE4_ASYNCRESPONSE_MAXPERDESTINATION;
+  }
+
+  /**
+   * @return The ID of the policy to apply, if the queue of asynchronous
+   *         responses is full. The configuration item is
+   *         <code>phase4.asyncresponse.rejectionpolicy</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_ASYNCRESPONSE_REJECTIONPOLICY}.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static String getAsyncResponseRejectionPolicy ()
+  {
+    return getConfig ().getAsString (PROPERTY_PHASE4_ASYNCRESPONSE_REJECTIONPOLICY,
+                                     DEFAULT_PHASE4_ASYNCRESPONSE_REJECTIONPOLICY);
+  }
+
   /**
    * @return <code>true</code> if stack traces should be contained in error
    *         messages, <code>false</code> if not. Defaults to <code>true</code>.
@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.IStatisticsHandlerCache;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.util.AS4BoundedCache;
+import com.helger.photon.io.PhotonWorkerPool;
+
+/**
+ * A shared, thread-safe cache for certificate revocation verdicts, keyed by the
+ * SHA-256 fingerprint of the certificate, the ID of the checker (see
+ * {@link IAS4CertificateRevocationChecker#getCheckerID()}) and the check date.
+ * Explicit check dates are grouped into slots of the configured check date
+ * resolution, and the first check date of a slot is used for the real check.
+ * Different TTLs are used for "not revoked" and "revoked" verdicts. When a
+ * verdict is accessed after the refresh threshold, it is still returned, but
+ * re-checked asynchronously, so that the OCSP/CRL latency is only paid when a
+ * certificate is seen for the first time or was not used for longer than the
+ * TTL. Concurrent identical checks are de-duplicated.<br>
+ * A global default instance is available via {@link #getDefaultInstance()}, so
+ * that all revocation checks on incoming messages share the same verdicts.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4CertificateRevocationCache
+{
+  /** The default TTL of a "not revoked" verdict */
+  public static final Duration DEFAULT_TTL_NOT_REVOKED = Duration.ofHours (6);
+  /** The default TTL of a "revoked" verdict */
+  public static final Duration DEFAULT_TTL_REVOKED = Duration.ofHours (24);
+  /** The default duration before expiry, when the asynchronous refresh starts */
+  public static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofHours (1);
+  /** The default maximum number of cached verdicts */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+  /** The default resolution of explicit check dates in the cache key */
+  public static final Duration DEFAULT_CHECK_DATE_RESOLUTION = Duration.ofHours (1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4CertificateRevocationCache.class);
+
+  private static final IMutableStatisticsHandlerCache STATS_CACHE = StatisticsManager.getCacheHandler (AS4CertificateRevocationCache.class.getName () +
+                                                                                                       "$cache");
+  private static final IMutableStatisticsHandlerTimer STATS_CHECK = StatisticsManager.getTimerHandler (AS4CertificateRevocationCache.class.getName () +
+                                                                                                       "$check");
+  private static final IMutableStatisticsHandlerCounter STATS_STALE = StatisticsManager.getCounterHandler (AS4CertificateRevocationCache.class.getName () +
+                                                                                                           "$stale");
+  private static final IMutableStatisticsHandlerCounter STATS_DEDUPLICATED = StatisticsManager.getCounterHandler (AS4CertificateRevocationCache.class.getName () +
+                                                                                                                  "$deduplicated");
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static AS4CertificateRevocationCache s_aDefaultInstance = new AS4CertificateRevocationCache ();
+
+  /**
+   * A single cached verdict
+   *
+   * @author Philip Helger
+   */
+  private static final class CacheEntry
+  {
+    private final boolean m_bRevoked;
+    private final long m_nRefreshAt;
+    private final long m_nExpiresAt;
+
+    CacheEntry (final boolean bRevoked, final long nRefreshAt, final long nExpiresAt)
+    {
+      m_bRevoked = bRevoked;
+      m_nRefreshAt = nRefreshAt;
+      m_nExpiresAt = nExpiresAt;
+    }
+  }
+
+  private final Duration m_aTTLNotRevoked;
+  private final Duration m_aTTLRevoked;
+  private final Duration m_aRefreshAhead;
+  private final Duration m_aCheckDateResolution;
+  private final Executor m_aRefreshExecutor;
+
+  private final AS4BoundedCache <String, CacheEntry> m_aCache;
+  // The checks currently in progress
+  private final ConcurrentHashMap <String, CompletableFuture <Boolean>> m_aInFlight = new ConcurrentHashMap <> ();
+
+  /**
+   * Constructor using the default TTLs, refresh ahead duration and maximum size
+   * and the {@link PhotonWorkerPool} for asynchronous refreshes.
+   */
+  public AS4CertificateRevocationCache ()
+  {
+    this (DEFAULT_TTL_NOT_REVOKED,
+          DEFAULT_TTL_REVOKED,
+          DEFAULT_REFRESH_AHEAD,
+          DEFAULT_MAX_SIZE,
+          r -> PhotonWorkerPool.getInstance ().run (CAS4.LIB_NAME + " revocation check refresh", r));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aTTLNotRevoked
+   *        The time to live of a "not revoked" verdict. May not be
+   *        <code>null</code> and must be positive.
+   * @param aTTLRevoked
+   *        The time to live of a "revoked" verdict. May not be
+   *        <code>null</code> and must be positive.
+   * @param aRefreshAhead
+   *        The duration before expiry, after which an accessed verdict is
+   *        re-checked asynchronously. May not be <code>null</code>, must not be
+   *        negative and must be smaller than both TTLs. Use
+   *        {@link Duration#ZERO} to disable asynchronous refreshes.
+   * @param nMaxSize
+   *        The maximum number of cached verdicts. Must be &gt; 0.
+   * @param aRefreshExecutor
+   *        The executor to run the asynchronous refreshes. May not be
+   *        <code>null</code>.
+   */
+  public AS4CertificateRevocationCache (@Nonnull final Duration aTTLNotRevoked,
+                                        @Nonnull final Duration aTTLRevoked,
+                                        @Nonnull final Duration aRefreshAhead,
+                                        @Nonnegative final int nMaxSize,
+                                        @Nonnull final Executor aRefreshExecutor)
+  {
+    this (aTTLNotRevoked, aTTLRevoked, aRefreshAhead, DEFAULT_CHECK_DATE_RESOLUTION, nMaxSize, aRefreshExecutor);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aTTLNotRevoked
+   *        The time to live of a "not revoked" verdict. May not be
+   *        <code>null</code> and must be positive.
+   * @param aTTLRevoked
+   *        The time to live of a "revoked" verdict. May not be
+   *        <code>null</code> and must be positive.
+   * @param aRefreshAhead
+   *        The duration before expiry, after which an accessed verdict is
+   *        re-checked asynchronously. May not be <code>null</code>, must not be
+   *        negative and must be smaller than both TTLs. Use
+   *        {@link Duration#ZERO} to disable asynchronous refreshes.
+   * @param aCheckDateResolution
+   *        The size of the slots explicit check dates are grouped into. Check
+   *        dates within the same slot share the same verdict. May not be
+   *        <code>null</code> and must be positive.
+   * @param nMaxSize
+   *        The maximum number of cached verdicts. Must be &gt; 0.
+   * @param aRefreshExecutor
+   *        The executor to run the asynchronous refreshes. May not be
+   *        <code>null</code>.
+   */
+  public AS4CertificateRevocationCache (@Nonnull final Duration aTTLNotRevoked,
+                                        @Nonnull final Duration aTTLRevoked,
+                                        @Nonnull final Duration aRefreshAhead,
+                                        @Nonnull final Duration aCheckDateResolution,
+                                        @Nonnegative final int nMaxSize,
+                                        @Nonnull final Executor aRefreshExecutor)
+  {
+    ValueEnforcer.notNull (aTTLNotRevoked, "TTLNotRevoked");
+    ValueEnforcer.isFalse (aTTLNotRevoked.isNegative () || aTTLNotRevoked.isZero (), "TTLNotRevoked must be positive");
+    ValueEnforcer.notNull (aTTLRevoked, "TTLRevoked");
+    ValueEnforcer.isFalse (aTTLRevoked.isNegative () || aTTLRevoked.isZero (), "TTLRevoked must be positive");
+    ValueEnforcer.notNull (aRefreshAhead, "RefreshAhead");
+    ValueEnforcer.isFalse (aRefreshAhead.isNegative (), "RefreshAhead must not be negative");
+    ValueEnforcer.isTrue (aRefreshAhead.compareTo (aTTLNotRevoked) < 0 && aRefreshAhead.compareTo (aTTLRevoked) < 0,
+                          "RefreshAhead must be smaller than the TTLs");
+    ValueEnforcer.notNull (aCheckDateResolution, "CheckDateResolution");
+    ValueEnforcer.isFalse (aCheckDateResolution.isNegative () || aCheckDateResolution.isZero (),
+                           "CheckDateResolution must be positive");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    ValueEnforcer.notNull (aRefreshExecutor, "RefreshExecutor");
+    m_aTTLNotRevoked = aTTLNotRevoked;
+    m_aTTLRevoked = aTTLRevoked;
+    m_aRefreshAhead = aRefreshAhead;
+    m_aCheckDateResolution = aCheckDateResolution;
+    m_aRefreshExecutor = aRefreshExecutor;
+    m_aCache = new AS4BoundedCache <> (nMaxSize);
+  }
+
+  /**
+   * @return The global default instance that is shared between the different
+   *         revocation checks. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4CertificateRevocationCache getDefaultInstance ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aDefaultInstance);
+  }
+
+  /**
+   * Set the global default instance, e.g. to use different TTLs.
+   *
+   * @param aInstance
+   *        The new default instance. May not be <code>null</code>.
+   */
+  public static void setDefaultInstance (@Nonnull final AS4CertificateRevocationCache aInstance)
+  {
+    ValueEnforcer.notNull (aInstance, "Instance");
+    RW_LOCK.writeLocked ( () -> s_aDefaultInstance = aInstance);
+    LOGGER.info ("The default certificate revocation cache was changed to " + aInstance);
+  }
+
+  /**
+   * @return The cache hit and miss statistics of all instances. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCacheStatistics ()
+  {
+    return STATS_CACHE;
+  }
+
+  /**
+   * @return The duration statistics of the real revocation checks (OCSP/CRL)
+   *         of all instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerTimer getCheckStatistics ()
+  {
+    return STATS_CHECK;
+  }
+
+  /**
+   * @return The number of verdicts served while an asynchronous refresh was
+   *         necessary, of all instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getStaleStatistics ()
+  {
+    return STATS_STALE;
+  }
+
+  /**
+   * @return The number of checks that waited for an identical check already
+   *         in progress, of all instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getDeduplicatedStatistics ()
+  {
+    return STATS_DEDUPLICATED;
+  }
+
+  /**
+   * @return The time to live of a "not revoked" verdict. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getTTLNotRevoked ()
+  {
+    return m_aTTLNotRevoked;
+  }
+
+  /**
+   * @return The time to live of a "revoked" verdict. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getTTLRevoked ()
+  {
+    return m_aTTLRevoked;
+  }
+
+  /**
+   * @return The duration before expiry, after which an accessed verdict is
+   *         re-checked asynchronously. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getRefreshAhead ()
+  {
+    return m_aRefreshAhead;
+  }
+
+  /**
+   * @return The size of the slots explicit check dates are grouped into.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getCheckDateResolution ()
+  {
+    return m_aCheckDateResolution;
+  }
+
+  /**
+   * @return The number of currently cached verdicts. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCachedCount ()
+  {
+    return m_aCache.size ();
+  }
+
+  /**
+   * Remove all cached verdicts.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return m_aCache.clear ();
+  }
+
+  /**
+   * @return The current time in milliseconds. Overwrite for testing only.
+   */
+  protected long getCurrentTimeMillis ()
+  {
+    return System.currentTimeMillis ();
+  }
+
+  /**
+   * Get the fingerprint of the provided certificate, that is part of the cache
+   * key.
+   *
+   * @param aCert
+   *        The certificate to use. May not be <code>null</code>.
+   * @return The hex encoded SHA-256 fingerprint of the certificate. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static String getFingerprint (@Nonnull final X509Certificate aCert)
+  {
+    try
+    {
+      final byte [] aDigest = MessageDigest.getInstance ("SHA-256").digest (aCert.getEncoded ());
+      return StringHelper.getHexEncoded (aDigest);
+    }
+    catch (final NoSuchAlgorithmException | CertificateEncodingException ex)
+    {
+      throw new IllegalStateException ("Failed to determine certificate fingerprint", ex);
+    }
+  }
+
+  @Nonnull
+  private String _getCacheKey (@Nonnull final String sFingerprint,
+                               @Nonnull final IAS4CertificateRevocationChecker aChecker,
+                               @Nullable final OffsetDateTime aCheckDate)
+  {
+    final String ret = sFingerprint + '|' + aChecker.getCheckerID ();
+    if (aCheckDate == null)
+      return ret;
+    final long nSlot = Math.floorDiv (aCheckDate.toInstant ().toEpochMilli (), m_aCheckDateResolution.toMillis ());
+    return ret + '|' + nSlot;
+  }
+
+  private boolean _check (@Nonnull final String sKey,
+                          @Nonnull final X509Certificate aCert,
+                          @Nullable final OffsetDateTime aCheckDate,
+                          @Nonnull final IAS4CertificateRevocationChecker aChecker)
+  {
+    final StopWatch aSW = StopWatch.createdStarted ();
+    final boolean bRevoked = aChecker.isRevoked (aCert, aCheckDate);
+    STATS_CHECK.addTime (aSW.stopAndGetMillis ());
+
+    final long nExpiresAt = getCurrentTimeMillis () + (bRevoked ? m_aTTLRevoked : m_aTTLNotRevoked).toMillis ();
+    final long nRefreshAt = nExpiresAt - m_aRefreshAhead.toMillis ();
+    m_aCache.put (sKey, new CacheEntry (bRevoked, nRefreshAt, nExpiresAt));
+    return bRevoked;
+  }
+
+  private static boolean _await (@Nonnull final CompletableFuture <Boolean> aFuture)
+  {
+    try
+    {
+      return aFuture.get ().booleanValue ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new IllegalStateException ("Interrupted while waiting for the revocation check", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      throw new IllegalStateException ("Error in revocation check", aCause);
+    }
+  }
+
+  /**
+   * Perform the real check and update the cache. If an identical check is
+   * already in progress, its result is used instead.
+   */
+  private boolean _load (@Nonnull final String sKey,
+                         @Nonnull final X509Certificate aCert,
+                         @Nullable final OffsetDateTime aCheckDate,
+                         @Nonnull final IAS4CertificateRevocationChecker aChecker)
+  {
+    final CompletableFuture <Boolean> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <Boolean> aExistingFuture = m_aInFlight.putIfAbsent (sKey, aOwnFuture);
+    if (aExistingFuture != null)
+    {
+      STATS_DEDUPLICATED.increment ();
+      return _await (aExistingFuture);
+    }
+    return _loadInFlight (sKey, aCert, aCheckDate, aChecker, aOwnFuture);
+  }
+
+  /**
+   * Perform the real check for a future that was already registered as in
+   * flight, complete it and unregister it.
+   */
+  private boolean _loadInFlight (@Nonnull final String sKey,
+                                 @Nonnull final X509Certificate aCert,
+                                 @Nullable final OffsetDateTime aCheckDate,
+                                 @Nonnull final IAS4CertificateRevocationChecker aChecker,
+                                 @Nonnull final CompletableFuture <Boolean> aOwnFuture)
+  {
+    try
+    {
+      final boolean ret = _check (sKey, aCert, aCheckDate, aChecker);
+      aOwnFuture.complete (Boolean.valueOf (ret));
+      return ret;
+    }
+    catch (final RuntimeException ex)
+    {
+      aOwnFuture.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      m_aInFlight.remove (sKey, aOwnFuture);
+    }
+  }
+
+  /**
+   * Schedule an asynchronous refresh, unless a check of the same key is
+   * already scheduled or in progress. The refresh is registered as in flight
+   * before it is handed to the executor, so that it is scheduled only once.
+   */
+  private void _scheduleRefresh (@Nonnull final String sKey,
+                                 @Nonnull final X509Certificate aCert,
+                                 @Nullable final OffsetDateTime aCheckDate,
+                                 @Nonnull final IAS4CertificateRevocationChecker aChecker)
+  {
+    final CompletableFuture <Boolean> aOwnFuture = new CompletableFuture <> ();
+    if (m_aInFlight.putIfAbsent (sKey, aOwnFuture) != null)
+      return;
+
+    try
+    {
+      m_aRefreshExecutor.execute ( () -> {
+        try
+        {
+          _loadInFlight (sKey, aCert, aCheckDate, aChecker, aOwnFuture);
+        }
+        catch (final RuntimeException ex)
+        {
+          LOGGER.warn ("Failed to refresh the revocation verdict " + sKey + ": " + ex.getMessage ());
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // The current verdict is still valid - try again on the next access
+      m_aInFlight.remove (sKey, aOwnFuture);
+      aOwnFuture.completeExceptionally (ex);
+      LOGGER.warn ("Failed to schedule the refresh of the revocation verdict " + sKey + ": " + ex.getMessage ());
+    }
+  }
+
+  /**
+   * Check if the provided certificate is revoked now, using a cached verdict
+   * if possible.
+   *
+   * @param aCert
+   *        The certificate to check. May not be <code>null</code>.
+   * @param aChecker
+   *        The checker performing the real OCSP/CRL check, if no cached verdict
+   *        is present. May not be <code>null</code>.
+   * @return <code>true</code> if the certificate is revoked,
+   *         <code>false</code> if not.
+   * @see #isRevoked(X509Certificate, OffsetDateTime,
+   *      IAS4CertificateRevocationChecker)
+   */
+  public boolean isRevoked (@Nonnull final X509Certificate aCert,
+                            @Nonnull final IAS4CertificateRevocationChecker aChecker)
+  {
+    return isRevoked (aCert, null, aChecker);
+  }
+
+  /**
+   * Check if the provided certificate is revoked, using a cached verdict if
+   * possible. Verdicts accessed after the refresh threshold are re-checked
+   * asynchronously.
+   *
+   * @param aCert
+   *        The certificate to check. May not be <code>null</code>.
+   * @param aCheckDate
+   *        The date and time for which the revocation status should be
+   *        determined. May be <code>null</code> to indicate "now".
+   * @param aChecker
+   *        The checker performing the real OCSP/CRL check, if no cached verdict
+   *        is present. May not be <code>null</code>.
+   * @return <code>true</code> if the certificate is revoked,
+   *         <code>false</code> if not.
+   */
+  public boolean isRevoked (@Nonnull final X509Certificate aCert,
+                            @Nullable final OffsetDateTime aCheckDate,
+                            @Nonnull final IAS4CertificateRevocationChecker aChecker)
+  {
+    ValueEnforcer.notNull (aCert, "Cert");
+    ValueEnforcer.notNull (aChecker, "Checker");
+
+    final String sKey = _getCacheKey (getFingerprint (aCert), aChecker, aCheckDate);
+    final CacheEntry aEntry = m_aCache.get (sKey);
+    if (aEntry != null)
+    {
+      final long nNow = getCurrentTimeMillis ();
+      if (nNow < aEntry.m_nExpiresAt)
+      {
+        STATS_CACHE.cacheHit ();
+        if (nNow >= aEntry.m_nRefreshAt)
+        {
+          STATS_STALE.increment ();
+          _scheduleRefresh (sKey, aCert, aCheckDate, aChecker);
+        }
+        return aEntry.m_bRevoked;
+      }
+    }
+
+    STATS_CACHE.cacheMiss ();
+    return _load (sKey, aCert, aCheckDate, aChecker);
+  }
+
+  /**
+   * Remove all cached verdicts of a single certificate.
+   *
+   * @param aCert
+   *        The certificate to remove. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange removeFromCache (@Nullable final X509Certificate aCert)
+  {
+    if (aCert == null)
+      return EChange.UNCHANGED;
+    final String sPrefix = getFingerprint (aCert) + '|';
+    return m_aCache.removeIf (x -> x.startsWith (sPrefix));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TTLNotRevoked", m_aTTLNotRevoked)
+                                       .append ("TTLRevoked", m_aTTLRevoked)
+                                       .append ("RefreshAhead", m_aRefreshAhead)
+                                       .append ("CheckDateResolution", m_aCheckDateResolution)
+                                       .append ("MaxSize", m_aCache.getMaxSize ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.crypto;
+
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * Interface for performing the real (uncached) revocation check (OCSP or CRL)
+ * of a single certificate. Use it in combination with
+ * {@link AS4CertificateRevocationCache}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@FunctionalInterface
+public interface IAS4CertificateRevocationChecker
+{
+  /**
+   * @return The ID of this checker. It is part of the cache key, so that
+   *         checkers with different configurations (e.g. different trusted
+   *         CAs) don't share their verdicts. Defaults to the class name.
+   *         Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  default String getCheckerID ()
+  {
+    return getClass ().getName ();
+  }
+
+  /**
+   * Check if the provided certificate is revoked.
+   *
+   * @param aCert
+   *        The certificate to check. May not be <code>null</code>.
+   * @param aCheckDate
+   *        The date and time for which the revocation status should be
+   *        determined. May be <code>null</code> to indicate "now".
+   * @return <code>true</code> if the certificate is revoked,
+   *         <code>false</code> if not.
+   */
+  boolean isRevoked (@Nonnull X509Certificate aCert, @Nullable OffsetDateTime aCheckDate);
+}
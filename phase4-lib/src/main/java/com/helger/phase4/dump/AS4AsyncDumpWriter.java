@@ -0,0 +1,762 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerSize;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerSize;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.system.SystemProperties;
+import com.helger.phase4.CAS4;
+
+/**
+ * Writes AS4 dumps in background threads, so that a slow disk does not slow
+ * down sending and receiving. The data written to the output streams created
+ * by {@link #createOutputStream(String, IThrowingSupplier)} is collected in
+ * chunks, and each full chunk is handed to one of the writer threads via a
+ * bounded queue. The target output stream is only opened by the writer
+ * thread. Optionally the data is GZIP compressed by the writer thread. The
+ * {@link EAS4DumpOverflowPolicy} defines what happens if the queue is full.
+ * This applies to the closing of a dump as well. Dumps that are incomplete,
+ * because data was dropped, are reported to the optional incomplete handler, so
+ * that they can be told apart from complete dumps.
+ * <br>
+ * All output streams created by this writer should be closed before the writer
+ * itself is closed. Writing to an output stream after the writer was closed
+ * fails with an {@link IOException}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4AsyncDumpWriter implements AutoCloseable
+{
+  public static final int DEFAULT_WRITER_THREADS = 2;
+  public static final int DEFAULT_QUEUE_SIZE = 256;
+  public static final int DEFAULT_CHUNK_SIZE = 64 * CGlobal.BYTES_PER_KILOBYTE;
+  public static final EAS4DumpOverflowPolicy DEFAULT_OVERFLOW_POLICY = EAS4DumpOverflowPolicy.BLOCK;
+  public static final boolean DEFAULT_COMPRESS = false;
+  /** The file extension that is appended to compressed dump files */
+  public static final String COMPRESSED_FILE_EXTENSION = ".gz";
+  /** The file extension that is appended to incomplete dump files */
+  public static final String INCOMPLETE_FILE_EXTENSION = ".incomplete";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncDumpWriter.class);
+
+  private static final IMutableStatisticsHandlerCounter STATS_BYTES = StatisticsManager.getCounterHandler (AS4AsyncDumpWriter.class.getName () +
+                                                                                                           "$bytes");
+  private static final IMutableStatisticsHandlerSize STATS_QUEUE_SIZE = StatisticsManager.getSizeHandler (AS4AsyncDumpWriter.class.getName () +
+                                                                                                          "$queue");
+  private static final IMutableStatisticsHandlerCounter STATS_DROPPED = StatisticsManager.getCounterHandler (AS4AsyncDumpWriter.class.getName () +
+                                                                                                             "$dropped");
+  private static final IMutableStatisticsHandlerCounter STATS_SPILLED = StatisticsManager.getCounterHandler (AS4AsyncDumpWriter.class.getName () +
+                                                                                                             "$spilled");
+
+  // Marker to end a writer thread
+  private static final Runnable STOP = () -> {};
+
+  private final int m_nChunkSize;
+  private final EAS4DumpOverflowPolicy m_eOverflowPolicy;
+  private final boolean m_bCompress;
+  private final File m_aSpillDirectory;
+  private final ICommonsList <BlockingQueue <Runnable>> m_aQueues = new CommonsArrayList <> ();
+  private final ICommonsList <Thread> m_aThreads = new CommonsArrayList <> ();
+  private final AtomicInteger m_aNextQueue = new AtomicInteger (0);
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+  /**
+   * An output stream that collects the data in chunks and passes them to a
+   * writer thread. The fields for the target are only accessed by one writer
+   * thread at a time - only if the target cannot be closed by a writer thread,
+   * it is closed by the calling thread.
+   */
+  @NotThreadSafe
+  private final class AsyncDumpOutputStream extends OutputStream
+  {
+    private final String m_sDumpName;
+    private final BlockingQueue <Runnable> m_aQueue;
+    private final IThrowingSupplier <? extends OutputStream, IOException> m_aTargetFactory;
+    private final Runnable m_aIncompleteHandler;
+    // The number of queued chunks plus one while the stream is open. Whoever
+    // decrements it to 0 closes the target.
+    private final AtomicInteger m_aPending = new AtomicInteger (1);
+
+    // Used by the calling thread, read when closing the target
+    private byte [] m_aBuffer;
+    private int m_nCount;
+    private boolean m_bClosed;
+    private boolean m_bDropped;
+    private File m_aSpillFile;
+    private OutputStream m_aSpillOS;
+
+    // Used by the writer thread
+    private boolean m_bTargetOpened;
+    private OutputStream m_aTarget;
+
+    AsyncDumpOutputStream (@Nonnull final String sDumpName,
+                           @Nonnull final BlockingQueue <Runnable> aQueue,
+                           @Nonnull final IThrowingSupplier <? extends OutputStream, IOException> aTargetFactory,
+                           @Nullable final Runnable aIncompleteHandler)
+    {
+      m_sDumpName = sDumpName;
+      m_aQueue = aQueue;
+      m_aTargetFactory = aTargetFactory;
+      m_aIncompleteHandler = aIncompleteHandler;
+      m_aBuffer = new byte [m_nChunkSize];
+    }
+
+    private void _ensureOpen () throws IOException
+    {
+      if (m_bClosed)
+        throw new IOException ("The dump output stream of '" + m_sDumpName + "' is already closed");
+      if (m_aClosed.get ())
+      {
+        // Fail fast
+        _markDropped ();
+        throw new IOException ("The AS4 async dump writer is already closed - cannot write dump '" + m_sDumpName + "'");
+      }
+    }
+
+    /**
+     * Queue a task for the writer thread.
+     *
+     * @return <code>true</code> if the task was queued, <code>false</code> if
+     *         the queue is full and blocking is not allowed.
+     * @throws IOException
+     *         if the writer is already closed, so that the task would never
+     *         be run
+     */
+    private boolean _queue (@Nonnull final Runnable aTask, final boolean bBlock) throws IOException
+    {
+      if (m_aClosed.get ())
+        throw new IOException ("The AS4 async dump writer is already closed - cannot write dump '" + m_sDumpName + "'");
+
+      boolean bQueued = m_aQueue.offer (aTask);
+      if (!bQueued && bBlock)
+        try
+        {
+          m_aQueue.put (aTask);
+          bQueued = true;
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          throw new InterruptedIOException ("Interrupted while queuing the data of dump '" + m_sDumpName + "'");
+        }
+
+      // The writer may have been closed in the meantime. If the task is still
+      // in the queue, it would never be run.
+      if (bQueued && m_aClosed.get () && m_aQueue.remove (aTask))
+        throw new IOException ("The AS4 async dump writer is already closed - cannot write dump '" + m_sDumpName + "'");
+      return bQueued;
+    }
+
+    private void _markDropped ()
+    {
+      if (!m_bDropped)
+      {
+        STATS_DROPPED.increment ();
+        m_bDropped = true;
+      }
+    }
+
+    private void _enqueueChunk (@Nonnull final byte [] aChunk, @Nonnegative final int nLength) throws IOException
+    {
+      if (m_bDropped)
+        return;
+
+      if (m_aSpillOS != null)
+      {
+        // Keep the order, once spilling started
+        m_aSpillOS.write (aChunk, 0, nLength);
+        return;
+      }
+
+      final Runnable aTask = () -> {
+        _writeToTarget (aChunk, nLength);
+        _release ();
+      };
+      m_aPending.incrementAndGet ();
+      boolean bQueued = false;
+      try
+      {
+        bQueued = _queue (aTask, m_eOverflowPolicy == EAS4DumpOverflowPolicy.BLOCK);
+      }
+      catch (final IOException ex)
+      {
+        // Fail fast - nothing more is written
+        _markDropped ();
+        throw ex;
+      }
+      finally
+      {
+        if (!bQueued)
+          m_aPending.decrementAndGet ();
+      }
+
+      if (bQueued)
+      {
+        STATS_QUEUE_SIZE.addSize (m_aQueue.size ());
+        return;
+      }
+
+      switch (m_eOverflowPolicy)
+      {
+        case DROP:
+          LOGGER.warn ("The AS4 dump queue is full - dropping the remaining data of dump '" + m_sDumpName + "'");
+          _markDropped ();
+          break;
+        case SPILL:
+          m_aSpillFile = File.createTempFile ("phase4-dump-", ".spill", m_aSpillDirectory);
+          m_aSpillOS = FileHelper.getBufferedOutputStream (m_aSpillFile);
+          if (m_aSpillOS == null)
+            throw new IOException ("Failed to open spill file '" + m_aSpillFile.getAbsolutePath () + "'");
+          LOGGER.warn ("The AS4 dump queue is full - spilling the remaining data of dump '" +
+                       m_sDumpName +
+                       "' to '" +
+                       m_aSpillFile.getAbsolutePath () +
+                       "'");
+          STATS_SPILLED.increment ();
+          m_aSpillOS.write (aChunk, 0, nLength);
+          break;
+        default:
+          throw new IllegalStateException ("Unsupported overflow policy " + m_eOverflowPolicy);
+      }
+    }
+
+    private void _flushBuffer () throws IOException
+    {
+      if (m_nCount > 0)
+      {
+        final byte [] aChunk = m_aBuffer;
+        final int nLength = m_nCount;
+        m_aBuffer = new byte [m_nChunkSize];
+        m_nCount = 0;
+        _enqueueChunk (aChunk, nLength);
+      }
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      _ensureOpen ();
+      if (m_nCount == m_aBuffer.length)
+        _flushBuffer ();
+      m_aBuffer[m_nCount++] = (byte) b;
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+      _ensureOpen ();
+
+      int nRealOfs = nOfs;
+      int nRest = nLen;
+      while (nRest > 0)
+      {
+        if (m_nCount == m_aBuffer.length)
+          _flushBuffer ();
+        final int nCopy = Math.min (nRest, m_aBuffer.length - m_nCount);
+        System.arraycopy (aBuf, nRealOfs, m_aBuffer, m_nCount, nCopy);
+        m_nCount += nCopy;
+        nRealOfs += nCopy;
+        nRest -= nCopy;
+      }
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      if (m_bClosed)
+        return;
+      m_bClosed = true;
+
+      try
+      {
+        _flushBuffer ();
+      }
+      finally
+      {
+        m_aBuffer = null;
+        StreamHelper.close (m_aSpillOS);
+
+        // Let the writer thread close the target, applying the overflow
+        // policy. If that is not possible, the writer thread finishing the
+        // last queued chunk or this thread closes the target.
+        boolean bQueued = false;
+        try
+        {
+          bQueued = _queue (this::_release, m_eOverflowPolicy == EAS4DumpOverflowPolicy.BLOCK);
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Closing dump '" + m_sDumpName + "' in the calling thread: " + ex.getMessage ());
+        }
+        finally
+        {
+          if (!bQueued)
+            _release ();
+        }
+      }
+    }
+
+    private void _release ()
+    {
+      if (m_aPending.decrementAndGet () == 0)
+        _closeTarget ();
+    }
+
+    @Nullable
+    private OutputStream _getTarget ()
+    {
+      if (!m_bTargetOpened)
+      {
+        m_bTargetOpened = true;
+        try
+        {
+          final OutputStream aOS = m_aTargetFactory.get ();
+          if (aOS == null)
+            LOGGER.warn ("Failed to open the target of dump '" + m_sDumpName + "'");
+          else
+            if (m_bCompress)
+            {
+              try
+              {
+                m_aTarget = new GZIPOutputStream (aOS, m_nChunkSize);
+              }
+              catch (final IOException ex)
+              {
+                StreamHelper.close (aOS);
+                throw ex;
+              }
+            }
+            else
+              m_aTarget = aOS;
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to open the target of dump '" + m_sDumpName + "'", ex);
+        }
+      }
+      return m_aTarget;
+    }
+
+    private void _onTargetError (@Nonnull final IOException ex)
+    {
+      LOGGER.error ("Failed to write dump '" + m_sDumpName + "'", ex);
+      StreamHelper.close (m_aTarget);
+      m_aTarget = null;
+    }
+
+    private void _writeToTarget (@Nonnull final byte [] aChunk, @Nonnegative final int nLength)
+    {
+      final OutputStream aTarget = _getTarget ();
+      if (aTarget != null)
+        try
+        {
+          aTarget.write (aChunk, 0, nLength);
+          STATS_BYTES.increment (nLength);
+        }
+        catch (final IOException ex)
+        {
+          _onTargetError (ex);
+        }
+    }
+
+    private void _closeTarget ()
+    {
+      final File aSpillFile = m_aSpillFile;
+      try
+      {
+        // Open it, even if nothing was written
+        final OutputStream aTarget = _getTarget ();
+        if (aSpillFile != null)
+        {
+          if (aTarget != null)
+            try (final InputStream aIS = FileHelper.getBufferedInputStream (aSpillFile))
+            {
+              if (aIS != null)
+                STATS_BYTES.increment (aIS.transferTo (aTarget));
+            }
+            catch (final IOException ex)
+            {
+              _onTargetError (ex);
+            }
+          FileOperations.deleteFileIfExisting (aSpillFile);
+        }
+      }
+      finally
+      {
+        StreamHelper.close (m_aTarget);
+        m_aTarget = null;
+      }
+
+      if (m_bDropped)
+      {
+        LOGGER.warn ("The dump '" + m_sDumpName + "' is incomplete, because the dump data was dropped");
+        if (m_aIncompleteHandler != null)
+          try
+          {
+            m_aIncompleteHandler.run ();
+          }
+          catch (final RuntimeException ex)
+          {
+            LOGGER.error ("Error handling the incomplete dump '" + m_sDumpName + "'", ex);
+          }
+      }
+    }
+  }
+
+  /**
+   * Constructor with all default values. Spill files are created in the
+   * temporary directory.
+   */
+  public AS4AsyncDumpWriter ()
+  {
+    this (DEFAULT_WRITER_THREADS,
+          DEFAULT_QUEUE_SIZE,
+          DEFAULT_CHUNK_SIZE,
+          DEFAULT_OVERFLOW_POLICY,
+          DEFAULT_COMPRESS,
+          new File (SystemProperties.getTmpDir ()));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nWriterThreads
+   *        The number of writer threads. Must be &gt; 0.
+   * @param nQueueSize
+   *        The maximum number of chunks waiting for each writer thread. Must be
+   *        &gt; 0.
+   * @param nChunkSize
+   *        The size of each chunk in bytes. Must be &gt; 0.
+   * @param eOverflowPolicy
+   *        The policy to apply, if a queue is full. May not be
+   *        <code>null</code>.
+   * @param bCompress
+   *        <code>true</code> to GZIP compress the dumps, <code>false</code> to
+   *        write them as they are.
+   * @param aSpillDirectory
+   *        The directory to create the temporary files in, if the overflow
+   *        policy is {@link EAS4DumpOverflowPolicy#SPILL}. May not be
+   *        <code>null</code>.
+   */
+  public AS4AsyncDumpWriter (@Nonnegative final int nWriterThreads,
+                             @Nonnegative final int nQueueSize,
+                             @Nonnegative final int nChunkSize,
+                             @Nonnull final EAS4DumpOverflowPolicy eOverflowPolicy,
+                             final boolean bCompress,
+                             @Nonnull final File aSpillDirectory)
+  {
+    ValueEnforcer.isGT0 (nWriterThreads, "WriterThreads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    ValueEnforcer.isGT0 (nChunkSize, "ChunkSize");
+    ValueEnforcer.notNull (eOverflowPolicy, "OverflowPolicy");
+    ValueEnforcer.notNull (aSpillDirectory, "SpillDirectory");
+
+    m_nChunkSize = nChunkSize;
+    m_eOverflowPolicy = eOverflowPolicy;
+    m_bCompress = bCompress;
+    m_aSpillDirectory = aSpillDirectory;
+
+    final ThreadFactory aThreadFactory = new BasicThreadFactory.Builder ().namingPattern (CAS4.LIB_NAME +
+                                                                                         "-dump-writer-%d")
+                                                                          .daemon (true)
+                                                                          .build ();
+    for (int i = 0; i < nWriterThreads; ++i)
+    {
+      final BlockingQueue <Runnable> aQueue = new ArrayBlockingQueue <> (nQueueSize);
+      final Thread aThread = aThreadFactory.newThread ( () -> _runWriter (aQueue));
+      m_aQueues.add (aQueue);
+      m_aThreads.add (aThread);
+      aThread.start ();
+    }
+  }
+
+  private static void _runWriter (@Nonnull final BlockingQueue <Runnable> aQueue)
+  {
+    while (true)
+    {
+      final Runnable aTask;
+      try
+      {
+        aTask = aQueue.take ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        return;
+      }
+      if (aTask == STOP)
+        return;
+
+      _runTask (aTask);
+    }
+  }
+
+  private static void _runTask (@Nonnull final Runnable aTask)
+  {
+    try
+    {
+      aTask.run ();
+    }
+    catch (final RuntimeException ex)
+    {
+      LOGGER.error ("Error writing AS4 dump", ex);
+    }
+  }
+
+  /**
+   * @return The number of writer threads. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getWriterThreads ()
+  {
+    return m_aThreads.size ();
+  }
+
+  /**
+   * @return The size of each chunk in bytes. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getChunkSize ()
+  {
+    return m_nChunkSize;
+  }
+
+  /**
+   * @return The policy applied, if a queue is full. Never <code>null</code>.
+   */
+  @Nonnull
+  public final EAS4DumpOverflowPolicy getOverflowPolicy ()
+  {
+    return m_eOverflowPolicy;
+  }
+
+  /**
+   * @return <code>true</code> if the dumps are GZIP compressed.
+   */
+  public final boolean isCompress ()
+  {
+    return m_bCompress;
+  }
+
+  /**
+   * @return The number of chunks currently waiting to be written. Always &ge;
+   *         0.
+   */
+  @Nonnegative
+  public final int getQueueSize ()
+  {
+    int ret = 0;
+    for (final BlockingQueue <Runnable> aQueue : m_aQueues)
+      ret += aQueue.size ();
+    return ret;
+  }
+
+  /**
+   * @return The number of bytes written to the dump targets. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getBytesStatistics ()
+  {
+    return STATS_BYTES;
+  }
+
+  /**
+   * @return The queue size at the time a chunk was queued. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerSize getQueueSizeStatistics ()
+  {
+    return STATS_QUEUE_SIZE;
+  }
+
+  /**
+   * @return The number of dumps that are incomplete, because the queue was
+   *         full or the writer was already closed. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getDroppedStatistics ()
+  {
+    return STATS_DROPPED;
+  }
+
+  /**
+   * @return The number of dumps that were partially written to a temporary
+   *         file, because the queue was full. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getSpilledStatistics ()
+  {
+    return STATS_SPILLED;
+  }
+
+  /**
+   * Create a new output stream, that writes to the provided target
+   * asynchronously.
+   *
+   * @param sDumpName
+   *        The name of the dump used for logging. May neither be
+   *        <code>null</code> nor empty.
+   * @param aTargetFactory
+   *        The factory for the target output stream. It is invoked in a writer
+   *        thread. If it returns <code>null</code> the data is discarded. May
+   *        not be <code>null</code>.
+   * @return The output stream that must be closed by the caller. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         if this writer is already closed
+   */
+  @Nonnull
+  public OutputStream createOutputStream (@Nonnull @Nonempty final String sDumpName,
+                                          @Nonnull final IThrowingSupplier <? extends OutputStream, IOException> aTargetFactory)
+  {
+    return createOutputStream (sDumpName, aTargetFactory, null);
+  }
+
+  /**
+   * Create a new output stream, that writes to the provided target
+   * asynchronously.
+   *
+   * @param sDumpName
+   *        The name of the dump used for logging. May neither be
+   *        <code>null</code> nor empty.
+   * @param aTargetFactory
+   *        The factory for the target output stream. It is invoked in a writer
+   *        thread. If it returns <code>null</code> the data is discarded. May
+   *        not be <code>null</code>.
+   * @param aIncompleteHandler
+   *        The handler that is invoked after the target was closed, if data of
+   *        the dump was dropped. It is usually invoked in a writer thread. May
+   *        be <code>null</code>.
+   * @return The output stream that must be closed by the caller. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         if this writer is already closed
+   */
+  @Nonnull
+  public OutputStream createOutputStream (@Nonnull @Nonempty final String sDumpName,
+                                          @Nonnull final IThrowingSupplier <? extends OutputStream, IOException> aTargetFactory,
+                                          @Nullable final Runnable aIncompleteHandler)
+  {
+    ValueEnforcer.notEmpty (sDumpName, "DumpName");
+    ValueEnforcer.notNull (aTargetFactory, "TargetFactory");
+    if (m_aClosed.get ())
+      throw new IllegalStateException ("The AS4 async dump writer is already closed");
+
+    // Distribute the dumps evenly across the writer threads
+    final int nIndex = Math.floorMod (m_aNextQueue.getAndIncrement (), m_aQueues.size ());
+    return new AsyncDumpOutputStream (sDumpName, m_aQueues.get (nIndex), aTargetFactory, aIncompleteHandler);
+  }
+
+  /**
+   * Create a new output stream, that writes to the provided file
+   * asynchronously. If data of the dump is dropped, the file is renamed by
+   * appending {@link #INCOMPLETE_FILE_EXTENSION}.
+   *
+   * @param aFile
+   *        The file to write to. May not be <code>null</code>.
+   * @return The output stream that must be closed by the caller. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         if this writer is already closed
+   */
+  @Nonnull
+  public OutputStream createFileOutputStream (@Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    return createOutputStream (aFile.getAbsolutePath (), () -> FileHelper.getBufferedOutputStream (aFile), () -> {
+      if (aFile.exists ())
+      {
+        final File aIncompleteFile = new File (aFile.getPath () + INCOMPLETE_FILE_EXTENSION);
+        if (FileOperations.renameFile (aFile, aIncompleteFile).isFailure ())
+          LOGGER.error ("Failed to rename the incomplete dump '" + aFile.getAbsolutePath () + "'");
+        else
+          LOGGER.warn ("Renamed the incomplete dump to '" + aIncompleteFile.getAbsolutePath () + "'");
+      }
+    });
+  }
+
+  /**
+   * Write all queued chunks and stop the writer threads. Output streams that
+   * are still open afterwards fail on the next write.
+   */
+  public void close ()
+  {
+    if (!m_aClosed.getAndSet (true))
+    {
+      LOGGER.info ("Closing AS4 async dump writer");
+      try
+      {
+        for (final BlockingQueue <Runnable> aQueue : m_aQueues)
+          aQueue.put (STOP);
+        for (final Thread aThread : m_aThreads)
+          aThread.join ();
+
+        // Run the tasks that were queued concurrently to closing
+        for (final BlockingQueue <Runnable> aQueue : m_aQueues)
+        {
+          Runnable aTask;
+          while ((aTask = aQueue.poll ()) != null)
+            _runTask (aTask);
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        LOGGER.error ("Interrupted while closing the AS4 async dump writer", ex);
+        Thread.currentThread ().interrupt ();
+      }
+    }
+  }
+}
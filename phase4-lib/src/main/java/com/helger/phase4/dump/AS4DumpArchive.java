@@ -0,0 +1,1240 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.io.file.FilenameHelper;
+import com.helger.commons.io.stream.NonBlockingBufferedOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * An archive for AS4 message dumps, that avoids one file per message:
+ * <ul>
+ * <li>Each dump is GZIP compressed and streamed as a single record directly
+ * into a segment file, without buffering it in memory. Each dump that is
+ * written in parallel uses its own segment file. A segment file is no longer
+ * used for new records, once it exceeds the configured maximum size.</li>
+ * <li>Each record contains the incoming unique ID and the AS4 message ID. The
+ * AS4 message ID is taken from the unencrypted ebMS header at the beginning of
+ * the dump and is stored after the data. The length of the data is written
+ * last - a record without length is incomplete.</li>
+ * <li>A memory mapped hash index file maps both IDs to the segment and the
+ * offset of the record, so that a dump can be found in constant time. The
+ * index only contains hashes of the IDs, so the full ID is always verified
+ * against the record. Therefore hash collisions neither hide nor replace
+ * records. The index grows automatically up to {@link #MAX_INDEX_CAPACITY}
+ * slots. Afterwards no more dumps can be archived and a new archive directory
+ * must be used. If the same ID is archived more than once, the latest record is
+ * found.</li>
+ * <li>Each segment file remembers up to which offset it was indexed. Upon
+ * startup, records that were appended but not indexed (e.g. due to a crash) are
+ * added to the index and incomplete records are removed. If the index file is
+ * missing, it is rebuilt from all segment files.</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4DumpArchive implements AutoCloseable
+{
+  /** The default maximum size of a single segment file */
+  public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * CGlobal.BYTES_PER_MEGABYTE;
+  /** The default number of index slots of a new index */
+  public static final int DEFAULT_INDEX_CAPACITY = 64 * 1024;
+  /**
+   * The maximum number of index slots. As the index is kept below a load factor
+   * of 0.75, this allows for approximately 50 million IDs, which are 25 million
+   * dumps. The index file is memory mapped as a whole and must therefore stay
+   * below 2 GB.
+   */
+  public static final int MAX_INDEX_CAPACITY = 64 * 1024 * 1024;
+  /** The file extension of the segment files */
+  public static final String SEGMENT_FILE_EXTENSION = ".as4seg";
+  /** The filename of the index file */
+  public static final String INDEX_FILENAME = "index.as4idx";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DumpArchive.class);
+
+  // The number of leading bytes of a dump, that are searched for the message ID
+  private static final int MESSAGE_ID_SCAN_SIZE = 32 * CGlobal.BYTES_PER_KILOBYTE;
+  private static final int BUFFER_SIZE = 64 * CGlobal.BYTES_PER_KILOBYTE;
+
+  // Segment layout: magic, end offset of the last indexed record, followed by
+  // the records
+  private static final int SEGMENT_MAGIC = 0x41533453;
+  private static final int SEGMENT_HEADER_SIZE = 4 + 8;
+
+  // Record layout: magic, data length (-1 while writing), incoming ID length,
+  // incoming ID, compressed data, message ID length (-1 if none), message ID
+  private static final int RECORD_MAGIC = 0x41533452;
+  private static final int RECORD_START_SIZE = 4 + 8 + 2;
+
+  // Index layout: magic, capacity, count, followed by the slots (hash and
+  // location)
+  private static final int INDEX_MAGIC = 0x4153344A;
+  private static final int INDEX_HEADER_SIZE = 4 + 4 + 4;
+  private static final int INDEX_SLOT_SIZE = 8 + 8;
+
+  // A location is the segment number in the upper bits and the offset in the
+  // lower bits
+  private static final int LOCATION_OFFSET_BITS = 40;
+  private static final long LOCATION_OFFSET_MASK = (1L << LOCATION_OFFSET_BITS) - 1;
+
+  /**
+   * The header of a single complete record.
+   */
+  private static final class RecordHeader
+  {
+    private final String m_sIncomingUniqueID;
+    private final String m_sMessageID;
+    private final long m_nDataOffset;
+    private final long m_nDataLength;
+    private final long m_nEndOffset;
+
+    RecordHeader (@Nonnull final String sIncomingUniqueID,
+                  @Nullable final String sMessageID,
+                  final long nDataOffset,
+                  final long nDataLength,
+                  final long nEndOffset)
+    {
+      m_sIncomingUniqueID = sIncomingUniqueID;
+      m_sMessageID = sMessageID;
+      m_nDataOffset = nDataOffset;
+      m_nDataLength = nDataLength;
+      m_nEndOffset = nEndOffset;
+    }
+
+    boolean hasID (@Nonnull final String sID)
+    {
+      return sID.equals (m_sIncomingUniqueID) || sID.equals (m_sMessageID);
+    }
+  }
+
+  /**
+   * A memory mapped open addressing hash table from 64 bit ID hash to record
+   * location. As different IDs may have the same hash, the caller must verify
+   * the ID of the record.
+   */
+  private static final class DiskIndex
+  {
+    private final MappedByteBuffer m_aBuffer;
+    private final int m_nCapacity;
+    private final int m_nMask;
+
+    DiskIndex (@Nonnull final File aFile, @Nonnegative final int nCapacity, final boolean bCreate) throws IOException
+    {
+      m_nCapacity = nCapacity;
+      m_nMask = nCapacity - 1;
+      try (final FileChannel aChannel = FileChannel.open (aFile.toPath (),
+                                                          StandardOpenOption.CREATE,
+                                                          StandardOpenOption.READ,
+                                                          StandardOpenOption.WRITE))
+      {
+        // The mapping stays valid after the channel is closed
+        m_aBuffer = aChannel.map (FileChannel.MapMode.READ_WRITE,
+                                  0,
+                                  INDEX_HEADER_SIZE + (long) nCapacity * INDEX_SLOT_SIZE);
+      }
+      if (bCreate)
+      {
+        m_aBuffer.putInt (4, nCapacity);
+        m_aBuffer.putInt (8, 0);
+        // Magic last - an index without magic is considered invalid
+        m_aBuffer.putInt (0, INDEX_MAGIC);
+      }
+    }
+
+    @Nullable
+    static DiskIndex openExisting (@Nonnull final File aFile) throws IOException
+    {
+      if (aFile.length () < INDEX_HEADER_SIZE)
+        return null;
+      final ByteBuffer aHeader = ByteBuffer.allocate (8);
+      try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+      {
+        if (!_readFully (aChannel, aHeader, 0))
+          return null;
+      }
+      final int nCapacity = aHeader.getInt (4);
+      if (aHeader.getInt (0) != INDEX_MAGIC ||
+          nCapacity <= 0 ||
+          nCapacity > MAX_INDEX_CAPACITY ||
+          Integer.bitCount (nCapacity) != 1 ||
+          aFile.length () < INDEX_HEADER_SIZE + (long) nCapacity * INDEX_SLOT_SIZE)
+        return null;
+      return new DiskIndex (aFile, nCapacity, false);
+    }
+
+    int getCapacity ()
+    {
+      return m_nCapacity;
+    }
+
+    int getCount ()
+    {
+      return m_aBuffer.getInt (8);
+    }
+
+    boolean isGrowNeeded ()
+    {
+      // Keep the load factor below 0.75
+      return getCount () >= m_nCapacity / 4 * 3;
+    }
+
+    private static int _getSlotOffset (final int nSlot)
+    {
+      // The capacity limit ensures that this fits into the mapping
+      return Math.toIntExact (INDEX_HEADER_SIZE + (long) nSlot * INDEX_SLOT_SIZE);
+    }
+
+    private int _getFirstSlot (final long nHash)
+    {
+      return (int) (nHash ^ (nHash >>> 32)) & m_nMask;
+    }
+
+    /**
+     * Add or replace an entry.
+     *
+     * @param nHash
+     *        The hash of the ID. Never 0.
+     * @param nLocation
+     *        The location of the record.
+     * @param aIsSameID
+     *        Checks whether the record at an existing location with the same
+     *        hash has the same ID. Only then the entry is replaced.
+     */
+    void put (final long nHash, final long nLocation, @Nonnull final LongPredicate aIsSameID)
+    {
+      int nSlot = _getFirstSlot (nHash);
+      while (true)
+      {
+        final int nOfs = _getSlotOffset (nSlot);
+        final long nSlotHash = m_aBuffer.getLong (nOfs);
+        if (nSlotHash == 0)
+        {
+          if (getCount () >= m_nCapacity - 1)
+            throw new IllegalStateException ("The dump archive index is full");
+          // Hash last - it marks the slot as used
+          m_aBuffer.putLong (nOfs + 8, nLocation);
+          m_aBuffer.putLong (nOfs, nHash);
+          m_aBuffer.putInt (8, getCount () + 1);
+          return;
+        }
+        if (nSlotHash == nHash && aIsSameID.test (m_aBuffer.getLong (nOfs + 8)))
+        {
+          // Latest record wins
+          m_aBuffer.putLong (nOfs + 8, nLocation);
+          return;
+        }
+        nSlot = (nSlot + 1) & m_nMask;
+      }
+    }
+
+    /**
+     * Find an entry.
+     *
+     * @param nHash
+     *        The hash of the ID. Never 0.
+     * @param aIsSameID
+     *        Checks whether the record at a location with the same hash has
+     *        the searched ID.
+     * @return The location or -1 if not found.
+     */
+    long get (final long nHash, @Nonnull final LongPredicate aIsSameID)
+    {
+      int nSlot = _getFirstSlot (nHash);
+      while (true)
+      {
+        final int nOfs = _getSlotOffset (nSlot);
+        final long nSlotHash = m_aBuffer.getLong (nOfs);
+        if (nSlotHash == 0)
+          return -1;
+        if (nSlotHash == nHash)
+        {
+          final long nLocation = m_aBuffer.getLong (nOfs + 8);
+          if (aIsSameID.test (nLocation))
+            return nLocation;
+        }
+        nSlot = (nSlot + 1) & m_nMask;
+      }
+    }
+
+    void copyTo (@Nonnull final DiskIndex aTarget)
+    {
+      for (int i = 0; i < m_nCapacity; ++i)
+      {
+        final int nOfs = _getSlotOffset (i);
+        final long nHash = m_aBuffer.getLong (nOfs);
+        // All entries are for different IDs
+        if (nHash != 0)
+          aTarget.put (nHash, m_aBuffer.getLong (nOfs + 8), x -> false);
+      }
+    }
+
+    void force ()
+    {
+      m_aBuffer.force ();
+    }
+  }
+
+  /**
+   * A segment file that is open for writing. It is used by at most one output
+   * stream at a time.
+   */
+  private static final class SegmentWriter
+  {
+    private final int m_nSegment;
+    private final FileChannel m_aChannel;
+    // The end offset of the last complete record
+    private long m_nSize;
+
+    SegmentWriter (final int nSegment, @Nonnull final FileChannel aChannel, final long nSize)
+    {
+      m_nSegment = nSegment;
+      m_aChannel = aChannel;
+      m_nSize = nSize;
+    }
+  }
+
+  /**
+   * Writes to a file channel at an explicit position, without closing it.
+   */
+  private static final class ChannelOutputStream extends OutputStream
+  {
+    private final FileChannel m_aChannel;
+    private long m_nPosition;
+
+    ChannelOutputStream (@Nonnull final FileChannel aChannel, final long nPosition)
+    {
+      m_aChannel = aChannel;
+      m_nPosition = nPosition;
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      write (new byte [] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      _writeFully (m_aChannel, ByteBuffer.wrap (aBuf, nOfs, nLen), m_nPosition);
+      m_nPosition += nLen;
+    }
+  }
+
+  /**
+   * Reads a range of a file channel and closes the channel when closed.
+   */
+  private static final class ChannelRangeInputStream extends InputStream
+  {
+    private final FileChannel m_aChannel;
+    private final long m_nEnd;
+    private long m_nPosition;
+
+    ChannelRangeInputStream (@Nonnull final FileChannel aChannel, final long nPosition, final long nLength)
+    {
+      m_aChannel = aChannel;
+      m_nEnd = nPosition + nLength;
+      m_nPosition = nPosition;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      final byte [] aBuf = new byte [1];
+      return read (aBuf, 0, 1) < 0 ? -1 : aBuf[0] & 0xff;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+      if (nLen == 0)
+        return 0;
+      final long nRest = m_nEnd - m_nPosition;
+      if (nRest <= 0)
+        return -1;
+      final int nRead = m_aChannel.read (ByteBuffer.wrap (aBuf, nOfs, (int) Math.min (nLen, nRest)), m_nPosition);
+      if (nRead < 0)
+        return -1;
+      m_nPosition += nRead;
+      return nRead;
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      m_aChannel.close ();
+    }
+  }
+
+  /**
+   * Compresses the dump directly into the exclusively used segment and
+   * completes the record upon close.
+   */
+  @NotThreadSafe
+  private final class ArchiveOutputStream extends OutputStream
+  {
+    private final String m_sIncomingUniqueID;
+    private final SegmentWriter m_aSegment;
+    private final long m_nRecordOffset;
+    private final long m_nDataOffset;
+    private final ChannelOutputStream m_aChannelOS;
+    private final GZIPOutputStream m_aGZIPOS;
+    private final byte [] m_aScanBuffer = new byte [MESSAGE_ID_SCAN_SIZE];
+    private int m_nScanCount;
+    private boolean m_bFailed;
+    private boolean m_bClosed;
+
+    ArchiveOutputStream (@Nonnull final String sIncomingUniqueID,
+                         @Nonnull final byte [] aIncomingID,
+                         @Nonnull final SegmentWriter aSegment) throws IOException
+    {
+      m_sIncomingUniqueID = sIncomingUniqueID;
+      m_aSegment = aSegment;
+      m_nRecordOffset = aSegment.m_nSize;
+
+      final ByteBuffer aStart = ByteBuffer.allocate (RECORD_START_SIZE + aIncomingID.length);
+      aStart.putInt (RECORD_MAGIC);
+      aStart.putLong (-1);
+      aStart.putShort ((short) aIncomingID.length);
+      aStart.put (aIncomingID);
+      aStart.flip ();
+      _writeFully (aSegment.m_aChannel, aStart, m_nRecordOffset);
+
+      m_nDataOffset = m_nRecordOffset + aStart.limit ();
+      m_aChannelOS = new ChannelOutputStream (aSegment.m_aChannel, m_nDataOffset);
+      m_aGZIPOS = new GZIPOutputStream (new NonBlockingBufferedOutputStream (m_aChannelOS, BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    private void _ensureWritable () throws IOException
+    {
+      if (m_bClosed)
+        throw new IOException ("The archive output stream of '" + m_sIncomingUniqueID + "' is already closed");
+      if (m_bFailed)
+        throw new IOException ("The archive output stream of '" + m_sIncomingUniqueID + "' failed before");
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      _ensureWritable ();
+      if (m_nScanCount < m_aScanBuffer.length)
+        m_aScanBuffer[m_nScanCount++] = (byte) b;
+      try
+      {
+        m_aGZIPOS.write (b);
+      }
+      catch (final IOException ex)
+      {
+        m_bFailed = true;
+        throw ex;
+      }
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+      _ensureWritable ();
+      final int nScan = Math.min (nLen, m_aScanBuffer.length - m_nScanCount);
+      if (nScan > 0)
+      {
+        System.arraycopy (aBuf, nOfs, m_aScanBuffer, m_nScanCount, nScan);
+        m_nScanCount += nScan;
+      }
+      try
+      {
+        m_aGZIPOS.write (aBuf, nOfs, nLen);
+      }
+      catch (final IOException ex)
+      {
+        m_bFailed = true;
+        throw ex;
+      }
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      if (m_bClosed)
+        return;
+      m_bClosed = true;
+
+      try
+      {
+        if (m_bFailed)
+        {
+          // Discard the record - only release the resources
+          StreamHelper.close (m_aGZIPOS);
+          return;
+        }
+
+        // Finishes the GZIP data - the underlying stream is not closed
+        m_aGZIPOS.close ();
+        final long nDataLength = m_aChannelOS.m_nPosition - m_nDataOffset;
+
+        final String sMessageID = findMessageID (m_aScanBuffer, m_nScanCount);
+        if (sMessageID == null)
+          LOGGER.warn ("Failed to find the AS4 message ID of dump '" + m_sIncomingUniqueID + "'");
+        final byte [] aMessageID = sMessageID == null ? null : sMessageID.getBytes (StandardCharsets.UTF_8);
+        if (aMessageID != null && aMessageID.length > Short.MAX_VALUE)
+          throw new IOException ("The AS4 message ID of dump '" + m_sIncomingUniqueID + "' is too long");
+
+        final ByteBuffer aTrailer = ByteBuffer.allocate (2 + (aMessageID == null ? 0 : aMessageID.length));
+        aTrailer.putShort ((short) (aMessageID == null ? -1 : aMessageID.length));
+        if (aMessageID != null)
+          aTrailer.put (aMessageID);
+        aTrailer.flip ();
+        final long nEndOffset = m_nDataOffset + nDataLength + aTrailer.limit ();
+        _writeFully (m_aSegment.m_aChannel, aTrailer, m_nDataOffset + nDataLength);
+
+        // Writing the length completes the record
+        final ByteBuffer aLength = ByteBuffer.allocate (8);
+        aLength.putLong (nDataLength);
+        aLength.flip ();
+        _writeFully (m_aSegment.m_aChannel, aLength, m_nRecordOffset + 4);
+        if (m_bSyncOnWrite)
+          m_aSegment.m_aChannel.force (false);
+
+        _commit (m_aSegment, m_sIncomingUniqueID, sMessageID, m_nRecordOffset, nEndOffset);
+      }
+      finally
+      {
+        // Incomplete records are removed
+        _returnSegment (m_aSegment);
+      }
+    }
+  }
+
+  private final File m_aDirectory;
+  private final long m_nMaxSegmentSize;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private DiskIndex m_aIndex;
+  // The highest segment number
+  @GuardedBy ("m_aRWLock")
+  private int m_nSegment;
+  // The segments open for writing, that are not used by an output stream
+  @GuardedBy ("m_aRWLock")
+  private final Deque <SegmentWriter> m_aIdleSegments = new ArrayDeque <> ();
+  private boolean m_bSyncOnWrite = false;
+
+  /**
+   * Constructor with the default maximum segment size.
+   *
+   * @param aDirectory
+   *        The directory to store the segment and index files in. Will be
+   *        created if it does not exist. May not be <code>null</code>.
+   * @throws IOException
+   *         If the existing files cannot be read
+   */
+  public AS4DumpArchive (@Nonnull final File aDirectory) throws IOException
+  {
+    this (aDirectory, DEFAULT_MAX_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDirectory
+   *        The directory to store the segment and index files in. Will be
+   *        created if it does not exist. May not be <code>null</code>.
+   * @param nMaxSegmentSize
+   *        The size in bytes after which no new records are added to a segment
+   *        file. Must be &gt; 0.
+   * @throws IOException
+   *         If the existing files cannot be read
+   */
+  public AS4DumpArchive (@Nonnull final File aDirectory, @Nonnegative final long nMaxSegmentSize) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.isBetweenInclusive (nMaxSegmentSize, "MaxSegmentSize", 1, LOCATION_OFFSET_MASK);
+    m_aDirectory = aDirectory;
+    m_nMaxSegmentSize = nMaxSegmentSize;
+
+    if (FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aDirectory).isFailure ())
+      throw new IOException ("Failed to create dump archive directory " + aDirectory.getAbsolutePath ());
+    _open ();
+  }
+
+  private static boolean _readFully (@Nonnull final FileChannel aChannel,
+                                     @Nonnull final ByteBuffer aBuffer,
+                                     final long nPosition) throws IOException
+  {
+    long nPos = nPosition;
+    while (aBuffer.hasRemaining ())
+    {
+      final int nRead = aChannel.read (aBuffer, nPos);
+      if (nRead < 0)
+        return false;
+      nPos += nRead;
+    }
+    aBuffer.flip ();
+    return true;
+  }
+
+  private static void _writeFully (@Nonnull final FileChannel aChannel,
+                                   @Nonnull final ByteBuffer aBuffer,
+                                   final long nPosition) throws IOException
+  {
+    long nPos = nPosition;
+    while (aBuffer.hasRemaining ())
+      nPos += aChannel.write (aBuffer, nPos);
+  }
+
+  private static void _writeSegmentHeader (@Nonnull final FileChannel aChannel, final long nIndexedEndOffset) throws IOException
+  {
+    final ByteBuffer aHeader = ByteBuffer.allocate (SEGMENT_HEADER_SIZE);
+    aHeader.putInt (SEGMENT_MAGIC);
+    aHeader.putLong (nIndexedEndOffset);
+    aHeader.flip ();
+    _writeFully (aChannel, aHeader, 0);
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final int nSegment)
+  {
+    return new File (m_aDirectory, StringHelper.getLeadingZero (nSegment, 8) + SEGMENT_FILE_EXTENSION);
+  }
+
+  @Nonnull
+  private File _getIndexFile ()
+  {
+    return new File (m_aDirectory, INDEX_FILENAME);
+  }
+
+  private static long _hash (@Nonnull final String sKey)
+  {
+    // FNV-1a 64 bit
+    long ret = 0xcbf29ce484222325L;
+    for (int i = 0; i < sKey.length (); ++i)
+    {
+      ret ^= sKey.charAt (i);
+      ret *= 0x100000001b3L;
+    }
+    // 0 marks an empty slot in the index
+    return ret == 0 ? 1 : ret;
+  }
+
+  private static long _getLocation (final int nSegment, final long nOffset)
+  {
+    return ((long) nSegment << LOCATION_OFFSET_BITS) | nOffset;
+  }
+
+  @Nullable
+  private static String _readString (@Nonnull final FileChannel aChannel,
+                                     final long nPosition,
+                                     final int nLength) throws IOException
+  {
+    final ByteBuffer aBuffer = ByteBuffer.allocate (nLength);
+    if (!_readFully (aChannel, aBuffer, nPosition))
+      return null;
+    return new String (aBuffer.array (), 0, nLength, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read the record header at the provided position.
+   *
+   * @return <code>null</code> if there is no complete record at this position
+   */
+  @Nullable
+  private static RecordHeader _readRecordHeader (@Nonnull final FileChannel aChannel,
+                                                 final long nPosition) throws IOException
+  {
+    final ByteBuffer aStart = ByteBuffer.allocate (RECORD_START_SIZE);
+    if (!_readFully (aChannel, aStart, nPosition) || aStart.getInt () != RECORD_MAGIC)
+      return null;
+
+    // A negative length marks a record that is incomplete
+    final long nDataLength = aStart.getLong ();
+    final int nIncomingIDLen = aStart.getShort ();
+    if (nDataLength < 0 || nIncomingIDLen < 0)
+      return null;
+
+    long nPos = nPosition + RECORD_START_SIZE;
+    final String sIncomingUniqueID = _readString (aChannel, nPos, nIncomingIDLen);
+    if (sIncomingUniqueID == null)
+      return null;
+    nPos += nIncomingIDLen;
+
+    final long nDataOffset = nPos;
+    nPos += nDataLength;
+    if (nPos > aChannel.size ())
+      return null;
+
+    final ByteBuffer aShort = ByteBuffer.allocate (2);
+    if (!_readFully (aChannel, aShort, nPos))
+      return null;
+    nPos += 2;
+    final int nMessageIDLen = aShort.getShort ();
+    String sMessageID = null;
+    if (nMessageIDLen >= 0)
+    {
+      sMessageID = _readString (aChannel, nPos, nMessageIDLen);
+      if (sMessageID == null)
+        return null;
+      nPos += nMessageIDLen;
+    }
+    return new RecordHeader (sIncomingUniqueID, sMessageID, nDataOffset, nDataLength, nPos);
+  }
+
+  /**
+   * @return <code>true</code> if the record at the provided location is a
+   *         complete record with the provided ID.
+   */
+  private boolean _isRecordOf (final long nLocation, @Nonnull final String sID)
+  {
+    final int nSegment = (int) (nLocation >>> LOCATION_OFFSET_BITS);
+    try (final FileChannel aChannel = FileChannel.open (_getSegmentFile (nSegment).toPath (), StandardOpenOption.READ))
+    {
+      final RecordHeader aHeader = _readRecordHeader (aChannel, nLocation & LOCATION_OFFSET_MASK);
+      return aHeader != null && aHeader.hasID (sID);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to read the dump archive record of segment " + nSegment + ": " + ex.getMessage ());
+      return false;
+    }
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _putIndex (@Nonnull final String sKey, final long nLocation) throws IOException
+  {
+    if (m_aIndex.isGrowNeeded () && m_aIndex.getCapacity () < MAX_INDEX_CAPACITY)
+    {
+      // Copy into a new index with double the size
+      final File aIndexFile = _getIndexFile ();
+      final File aTmpFile = new File (m_aDirectory, INDEX_FILENAME + ".tmp");
+      Files.deleteIfExists (aTmpFile.toPath ());
+      final DiskIndex aNewIndex = new DiskIndex (aTmpFile, m_aIndex.getCapacity () * 2, true);
+      m_aIndex.copyTo (aNewIndex);
+      aNewIndex.force ();
+      Files.move (aTmpFile.toPath (),
+                  aIndexFile.toPath (),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+      m_aIndex = aNewIndex;
+      LOGGER.info ("Increased the dump archive index to " + aNewIndex.getCapacity () + " slots");
+    }
+    m_aIndex.put (_hash (sKey), nLocation, x -> _isRecordOf (x, sKey));
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _putIndex (@Nonnull final RecordHeader aHeader, final long nLocation) throws IOException
+  {
+    _putIndex (aHeader.m_sIncomingUniqueID, nLocation);
+    if (aHeader.m_sMessageID != null)
+      _putIndex (aHeader.m_sMessageID, nLocation);
+  }
+
+  /**
+   * Add all complete records of a segment, that are not yet indexed, to the
+   * index and remove incomplete records at the end.
+   *
+   * @param bAll
+   *        <code>true</code> to index all records, <code>false</code> to start
+   *        after the last indexed record
+   * @return The end offset of the last complete record or -1 if the segment
+   *         file is invalid.
+   */
+  @GuardedBy ("m_aRWLock")
+  private long _indexSegment (final int nSegment, final boolean bAll) throws IOException
+  {
+    try (final FileChannel aChannel = FileChannel.open (_getSegmentFile (nSegment).toPath (),
+                                                        StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE))
+    {
+      final ByteBuffer aHeader = ByteBuffer.allocate (SEGMENT_HEADER_SIZE);
+      if (!_readFully (aChannel, aHeader, 0) || aHeader.getInt () != SEGMENT_MAGIC)
+      {
+        LOGGER.error ("The dump archive segment " + nSegment + " is invalid and is ignored");
+        return -1;
+      }
+      final long nIndexedEndOffset = aHeader.getLong ();
+
+      long nPos = bAll || nIndexedEndOffset < SEGMENT_HEADER_SIZE ? SEGMENT_HEADER_SIZE : nIndexedEndOffset;
+      int nRecords = 0;
+      while (true)
+      {
+        final RecordHeader aRecord = _readRecordHeader (aChannel, nPos);
+        if (aRecord == null)
+          break;
+        _putIndex (aRecord, _getLocation (nSegment, nPos));
+        nPos = aRecord.m_nEndOffset;
+        nRecords++;
+      }
+      if (aChannel.size () > nPos)
+      {
+        LOGGER.warn ("Removing " +
+                     (aChannel.size () - nPos) +
+                     " bytes of incomplete records of dump archive segment " +
+                     nSegment);
+        aChannel.truncate (nPos);
+      }
+      _writeSegmentHeader (aChannel, nPos);
+      if (nRecords > 0)
+        LOGGER.info ("Indexed " + nRecords + " records of dump archive segment " + nSegment);
+      return nPos;
+    }
+  }
+
+  private static int _parseSegmentName (@Nonnull final File aFile)
+  {
+    final String sName = FilenameHelper.getWithoutExtension (aFile.getName ());
+    try
+    {
+      return Integer.parseInt (sName);
+    }
+    catch (final NumberFormatException ex)
+    {
+      return 0;
+    }
+  }
+
+  private void _open () throws IOException
+  {
+    final ICommonsList <Integer> aSegments = new CommonsArrayList <> ();
+    for (final File aFile : new FileSystemIterator (m_aDirectory))
+      if (aFile.isFile () && aFile.getName ().endsWith (SEGMENT_FILE_EXTENSION))
+      {
+        final int nSegment = _parseSegmentName (aFile);
+        if (nSegment > 0)
+          aSegments.add (Integer.valueOf (nSegment));
+      }
+    aSegments.sort (Integer::compare);
+
+    m_aRWLock.writeLockedThrowing ( () -> {
+      final File aIndexFile = _getIndexFile ();
+      m_aIndex = DiskIndex.openExisting (aIndexFile);
+      final boolean bRebuild = m_aIndex == null;
+      if (bRebuild)
+      {
+        // Rebuild from scratch
+        if (aSegments.isNotEmpty ())
+          LOGGER.warn ("Rebuilding the dump archive index of " + aSegments.size () + " segments");
+        Files.deleteIfExists (aIndexFile.toPath ());
+        m_aIndex = new DiskIndex (aIndexFile, DEFAULT_INDEX_CAPACITY, true);
+      }
+
+      // Index everything that was appended after the last indexed record
+      long nEndOffset = -1;
+      for (final Integer aSegment : aSegments)
+        nEndOffset = _indexSegment (aSegment.intValue (), bRebuild);
+
+      if (aSegments.isNotEmpty ())
+      {
+        m_nSegment = aSegments.getLastOrNull ().intValue ();
+        // Continue with the last segment
+        if (nEndOffset >= 0 && nEndOffset < m_nMaxSegmentSize)
+          m_aIdleSegments.add (new SegmentWriter (m_nSegment,
+                                                  FileChannel.open (_getSegmentFile (m_nSegment).toPath (),
+                                                                    StandardOpenOption.READ,
+                                                                    StandardOpenOption.WRITE),
+                                                  nEndOffset));
+      }
+      m_aIndex.force ();
+    });
+  }
+
+  /**
+   * Get a segment for exclusive writing. Either an idle one, or a new one.
+   */
+  @Nonnull
+  private SegmentWriter _leaseSegment () throws IOException
+  {
+    return m_aRWLock.writeLockedGetThrowing ( () -> {
+      if (m_aIndex == null)
+        throw new IOException ("The dump archive is already closed");
+      if (m_aIndex.isGrowNeeded () && m_aIndex.getCapacity () >= MAX_INDEX_CAPACITY)
+        throw new IOException ("The dump archive index is full (" +
+                               m_aIndex.getCount () +
+                               " IDs) - please use a new archive directory");
+
+      final SegmentWriter aIdle = m_aIdleSegments.pollLast ();
+      if (aIdle != null)
+        return aIdle;
+
+      // All segments are in use or full - start a new one
+      m_nSegment++;
+      final FileChannel aChannel = FileChannel.open (_getSegmentFile (m_nSegment).toPath (),
+                                                     StandardOpenOption.CREATE_NEW,
+                                                     StandardOpenOption.READ,
+                                                     StandardOpenOption.WRITE);
+      try
+      {
+        _writeSegmentHeader (aChannel, SEGMENT_HEADER_SIZE);
+      }
+      catch (final IOException ex)
+      {
+        aChannel.close ();
+        throw ex;
+      }
+      return new SegmentWriter (m_nSegment, aChannel, SEGMENT_HEADER_SIZE);
+    });
+  }
+
+  /**
+   * Index a complete record.
+   */
+  private void _commit (@Nonnull final SegmentWriter aSegment,
+                        @Nonnull final String sIncomingUniqueID,
+                        @Nullable final String sMessageID,
+                        final long nOffset,
+                        final long nEndOffset) throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aIndex == null)
+        throw new IOException ("The dump archive is already closed");
+
+      final long nLocation = _getLocation (aSegment.m_nSegment, nOffset);
+      _putIndex (sIncomingUniqueID, nLocation);
+      if (sMessageID != null)
+        _putIndex (sMessageID, nLocation);
+      if (m_bSyncOnWrite)
+        m_aIndex.force ();
+      aSegment.m_nSize = nEndOffset;
+      _writeSegmentHeader (aSegment.m_aChannel, nEndOffset);
+    });
+  }
+
+  /**
+   * Return a segment after writing. Everything after the last complete record
+   * is removed. Full segments are closed.
+   */
+  private void _returnSegment (@Nonnull final SegmentWriter aSegment)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      boolean bReuse = m_aIndex != null && aSegment.m_nSize < m_nMaxSegmentSize;
+      try
+      {
+        if (aSegment.m_aChannel.size () > aSegment.m_nSize)
+          aSegment.m_aChannel.truncate (aSegment.m_nSize);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to remove the incomplete record of dump archive segment " + aSegment.m_nSegment, ex);
+        bReuse = false;
+      }
+      if (bReuse)
+        m_aIdleSegments.add (aSegment);
+      else
+        StreamHelper.close (aSegment.m_aChannel);
+    });
+  }
+
+  /**
+   * @return The directory in which the segment and index files are stored.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return The size in bytes after which no new records are added to a
+   *         segment file. Always &gt; 0.
+   */
+  @Nonnegative
+  public final long getMaxSegmentSize ()
+  {
+    return m_nMaxSegmentSize;
+  }
+
+  /**
+   * @return <code>true</code> if each record is explicitly flushed to disk
+   *         after writing, <code>false</code> if flushing is left to the
+   *         operating system. Default is <code>false</code>.
+   */
+  public final boolean isSyncOnWrite ()
+  {
+    return m_bSyncOnWrite;
+  }
+
+  /**
+   * Define whether each record should be explicitly flushed to disk.
+   *
+   * @param bSyncOnWrite
+   *        <code>true</code> to flush after each write, <code>false</code> to
+   *        let the operating system decide.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4DumpArchive setSyncOnWrite (final boolean bSyncOnWrite)
+  {
+    m_bSyncOnWrite = bSyncOnWrite;
+    return this;
+  }
+
+  /**
+   * @return The highest number of all segment files. 0 if no dump was archived
+   *         yet.
+   */
+  @Nonnegative
+  public int getCurrentSegment ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_nSegment);
+  }
+
+  /**
+   * @return The number of IDs contained in the index. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getIndexedIDCount ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_aIndex == null ? 0 : m_aIndex.getCount ());
+  }
+
+  /**
+   * Find the AS4 message ID in the beginning of a dump. This is a simple byte
+   * based search for the first <code>MessageId</code> element.
+   *
+   * @param aBytes
+   *        The beginning of the dump. May not be <code>null</code>.
+   * @param nLength
+   *        The number of bytes to search.
+   * @return <code>null</code> if no message ID was found.
+   */
+  @Nullable
+  static String findMessageID (@Nonnull final byte [] aBytes, @Nonnegative final int nLength)
+  {
+    final String s = new String (aBytes, 0, nLength, StandardCharsets.ISO_8859_1);
+    int nStart = 0;
+    while (true)
+    {
+      final int nIndex = s.indexOf ("MessageId>", nStart);
+      if (nIndex <= 0)
+        return null;
+      final char cPrev = s.charAt (nIndex - 1);
+      // Skip closing tags and e.g. RefToMessageId
+      if ((cPrev == '<' || cPrev == ':') && s.charAt (s.lastIndexOf ('<', nIndex) + 1) != '/')
+      {
+        final int nValueStart = nIndex + "MessageId>".length ();
+        final int nValueEnd = s.indexOf ('<', nValueStart);
+        if (nValueEnd < 0)
+          return null;
+        // Go back to the original encoding
+        final byte [] aValue = s.substring (nValueStart, nValueEnd).getBytes (StandardCharsets.ISO_8859_1);
+        final String ret = new String (aValue, StandardCharsets.UTF_8).trim ()
+                                                                       .replace ("&lt;", "<")
+                                                                       .replace ("&gt;", ">")
+                                                                       .replace ("&quot;", "\"")
+                                                                       .replace ("&apos;", "'")
+                                                                       .replace ("&amp;", "&");
+        return StringHelper.hasText (ret) ? ret : null;
+      }
+      nStart = nIndex + 1;
+    }
+  }
+
+  /**
+   * Create a new output stream for a single dump. The dump is compressed and
+   * written directly into a segment file, that is used exclusively by this
+   * stream until it is closed. The dump can be found after the stream was
+   * closed.
+   *
+   * @param sIncomingUniqueID
+   *        The incoming unique ID of the message. May neither be
+   *        <code>null</code> nor empty.
+   * @return The output stream that must be closed by the caller. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         In case of error, if the archive is closed or if the index is full
+   */
+  @Nonnull
+  public OutputStream createOutputStream (@Nonnull @Nonempty final String sIncomingUniqueID) throws IOException
+  {
+    ValueEnforcer.notEmpty (sIncomingUniqueID, "IncomingUniqueID");
+    final byte [] aIncomingID = sIncomingUniqueID.getBytes (StandardCharsets.UTF_8);
+    if (aIncomingID.length > Short.MAX_VALUE)
+      throw new IOException ("The ID of dump '" + sIncomingUniqueID + "' is too long");
+
+    final SegmentWriter aSegment = _leaseSegment ();
+    try
+    {
+      return new ArchiveOutputStream (sIncomingUniqueID, aIncomingID, aSegment);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      _returnSegment (aSegment);
+      throw ex;
+    }
+  }
+
+  /**
+   * Open the dump with the provided incoming unique ID or AS4 message ID.
+   *
+   * @param sID
+   *        The incoming unique ID or the AS4 message ID to search. May be
+   *        <code>null</code>.
+   * @return <code>null</code> if no such dump is contained. The returned
+   *         stream contains the uncompressed dump and must be closed by the
+   *         caller.
+   * @throws IOException
+   *         In case of read error
+   */
+  @Nullable
+  @WillCloseWhenClosed
+  public InputStream openDump (@Nullable final String sID) throws IOException
+  {
+    if (StringHelper.hasNoText (sID))
+      return null;
+
+    final long nHash = _hash (sID);
+    final long nLocation = m_aRWLock.readLockedGet ( () -> m_aIndex == null ? -1
+                                                                            : m_aIndex.get (nHash,
+                                                                                            x -> _isRecordOf (x, sID)));
+    if (nLocation < 0)
+      return null;
+
+    final int nSegment = (int) (nLocation >>> LOCATION_OFFSET_BITS);
+    final FileChannel aChannel = FileChannel.open (_getSegmentFile (nSegment).toPath (), StandardOpenOption.READ);
+    try
+    {
+      final RecordHeader aHeader = _readRecordHeader (aChannel, nLocation & LOCATION_OFFSET_MASK);
+      if (aHeader == null || !aHeader.hasID (sID))
+      {
+        // Broken archive
+        aChannel.close ();
+        return null;
+      }
+      return new GZIPInputStream (new ChannelRangeInputStream (aChannel, aHeader.m_nDataOffset, aHeader.m_nDataLength),
+                                  BUFFER_SIZE);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      StreamHelper.close (aChannel);
+      throw ex;
+    }
+  }
+
+  /**
+   * Check if a dump with the provided ID is contained.
+   *
+   * @param sID
+   *        The incoming unique ID or the AS4 message ID to search. May be
+   *        <code>null</code>.
+   * @return <code>true</code> if it is contained, <code>false</code> if not.
+   * @throws IOException
+   *         In case of read error
+   */
+  public boolean containsDump (@Nullable final String sID) throws IOException
+  {
+    try (final InputStream aIS = openDump (sID))
+    {
+      return aIS != null;
+    }
+  }
+
+  /**
+   * Iterate the incoming unique IDs of all archived records, ordered by segment
+   * and by the order in which they were archived within a segment. Records that
+   * are appended while iterating may or may not be contained.
+   *
+   * @param aConsumer
+   *        The consumer to be invoked for each incoming unique ID. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of read error
+   */
+  public void forEachIncomingUniqueID (@Nonnull final Consumer <? super String> aConsumer) throws IOException
+  {
+    ValueEnforcer.notNull (aConsumer, "Consumer");
+
+    final int nLastSegment = getCurrentSegment ();
+    for (int nSegment = 1; nSegment <= nLastSegment; ++nSegment)
+    {
+      final File aFile = _getSegmentFile (nSegment);
+      if (!aFile.isFile ())
+        continue;
+
+      try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+      {
+        // Stops at the first incomplete record
+        long nPos = SEGMENT_HEADER_SIZE;
+        while (true)
+        {
+          final RecordHeader aHeader = _readRecordHeader (aChannel, nPos);
+          if (aHeader == null)
+            break;
+          aConsumer.accept (aHeader.m_sIncomingUniqueID);
+          nPos = aHeader.m_nEndOffset;
+        }
+      }
+    }
+  }
+
+  /**
+   * Close the archive. Output streams that are still open fail when they are
+   * closed.
+   */
+  public void close () throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aIndex != null)
+      {
+        m_aIndex.force ();
+        m_aIndex = null;
+      }
+      for (final SegmentWriter aSegment : m_aIdleSegments)
+        aSegment.m_aChannel.close ();
+      m_aIdleSegments.clear ();
+    });
+  }
+}
@@ -17,6 +17,7 @@
 package com.helger.phase4.dump;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.function.Consumer;
@@ -25,6 +26,7 @@ import java.util.function.IntConsumer;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
 
 import org.apache.wss4j.common.ext.WSSecurityException;
 import org.slf4j.Logger;
@@ -33,14 +35,17 @@ import org.w3c.dom.Node;
 
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mutable.MutableInt;
+import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
 import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
 import com.helger.phase4.attachment.WSS4JAttachment;
@@ -53,6 +58,7 @@ import com.helger.phase4.incoming.AS4IncomingReceiverConfiguration;
 import com.helger.phase4.incoming.AS4RequestHandler;
 import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
 import com.helger.phase4.incoming.IAS4IncomingMessageState;
+import com.helger.phase4.incoming.IAS4RequestHandlerErrorConsumer;
 import com.helger.phase4.incoming.IAS4ResponseAbstraction;
 import com.helger.phase4.incoming.crypto.AS4IncomingSecurityConfiguration;
 import com.helger.phase4.incoming.spi.AS4MessageProcessorResult;
@@ -211,6 +217,239 @@ public final class AS4DumpReader
 
     LOGGER.info ("Now at byte " + nHttpEnd + " having " + hm.getCount () + " HTTP headers");
 
+    _decryptAS4In (new NonBlockingByteArrayInputStream (aAS4InData, nHttpEnd, aAS4InData.length - nHttpEnd),
+                   hm,
+                   aCryptoFactorySign,
+                   aCryptoFactoryCrypt,
+                   aDecryptedConsumer,
+                   null,
+                   true);
+  }
+
+  /**
+   * Utility method to just read and consume the leading HTTP headers from a
+   * dump stream. After this method, the stream is positioned at the start of
+   * the payload.
+   *
+   * @param aAS4InStream
+   *        The stream with the dump. May not be <code>null</code>.
+   * @return The read HTTP headers. Never <code>null</code>.
+   * @throws IOException
+   *         In case of read error
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static HttpHeaderMap readAndSkipInitialHttpHeaders (@Nonnull @WillNotClose final InputStream aAS4InStream) throws IOException
+  {
+    ValueEnforcer.notNull (aAS4InStream, "AS4InStream");
+
+    final HttpHeaderMap ret = new HttpHeaderMap ();
+    final NonBlockingByteArrayOutputStream aLine = new NonBlockingByteArrayOutputStream ();
+
+    // Read all the HTTP headers - same logic as for byte arrays
+    boolean bLastWasCR = false;
+    int b;
+    while ((b = aAS4InStream.read ()) >= 0)
+    {
+      if (b == '\n')
+      {
+        // Do we have 2 consecutive newlines?
+        if (bLastWasCR)
+          break;
+        bLastWasCR = true;
+
+        // The full header line
+        final String sLine = aLine.getAsString (StandardCharsets.ISO_8859_1);
+        aLine.reset ();
+
+        // Split in name and value
+        final String [] aParts = StringHelper.getExplodedArray (':', sLine, 2);
+        ret.addHeader (aParts[0].trim (), aParts.length > 1 ? aParts[1].trim () : "");
+      }
+      else
+      {
+        // No newline
+        if (b != '\r')
+        {
+          bLastWasCR = false;
+          aLine.write (b);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Utility method to decrypt a dumped .as4in message from a stream, without
+   * reading it into memory first.
+   *
+   * @param aAS4InStream
+   *        The stream with the dumped data, starting with the HTTP headers.
+   *        May not be <code>null</code>.
+   * @param aCryptoFactorySign
+   *        The Crypto factory to be used. May not be <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        The Crypto factory to be used for decrypting. This crypto factory
+   *        must use the private key that can be used to decrypt this particular
+   *        message. May not be <code>null</code>.
+   * @param aHttpHeaderConsumer
+   *        An optional HTTP Header map consumer. May be <code>null</code>.
+   * @param aDecryptedConsumer
+   *        The consumer for the decrypted payload. May not be
+   *        <code>null</code>.
+   * @throws WSSecurityException
+   *         In case of error
+   * @throws Phase4Exception
+   *         In case of error
+   * @throws IOException
+   *         In case of error
+   * @throws MessagingException
+   *         In case of error
+   * @since 3.0.0
+   */
+  public static void decryptAS4In (@Nonnull @WillNotClose final InputStream aAS4InStream,
+                                   @Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                   @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                   @Nullable final Consumer <HttpHeaderMap> aHttpHeaderConsumer,
+                                   @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer) throws WSSecurityException,
+                                                                                                Phase4Exception,
+                                                                                                IOException,
+                                                                                                MessagingException
+  {
+    final InputStream aIS = StreamHelper.getBuffered (aAS4InStream);
+    final HttpHeaderMap hm = readAndSkipInitialHttpHeaders (aIS);
+
+    // In case somebody cares about the HTTP headers
+    if (aHttpHeaderConsumer != null)
+      aHttpHeaderConsumer.accept (hm);
+
+    LOGGER.info ("Read " + hm.getCount () + " HTTP headers from stream");
+
+    _decryptAS4In (aIS, hm, aCryptoFactorySign, aCryptoFactoryCrypt, aDecryptedConsumer, null, true);
+  }
+
+  /**
+   * Utility method to replay a dumped .as4in message from a stream. In contrast
+   * to
+   * {@link #decryptAS4In(InputStream, IAS4CryptoFactory, IAS4CryptoFactory, Consumer, IDecryptedPayloadConsumer)}
+   * the duplicate check is bypassed, so that already received messages can be
+   * processed again, and the processing errors are returned instead of only
+   * being logged.
+   *
+   * @param aAS4InStream
+   *        The stream with the dumped data, starting with the HTTP headers.
+   *        May not be <code>null</code>.
+   * @param aCryptoFactorySign
+   *        The Crypto factory to be used. May not be <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        The Crypto factory to be used for decrypting. May not be
+   *        <code>null</code>.
+   * @param aDecryptedConsumer
+   *        The consumer for the decrypted payload. May not be
+   *        <code>null</code>.
+   * @return All processing errors. Never <code>null</code>. If the list is
+   *         empty, the message was processed successfully.
+   * @throws WSSecurityException
+   *         In case of error
+   * @throws Phase4Exception
+   *         In case of error
+   * @throws IOException
+   *         In case of error
+   * @throws MessagingException
+   *         In case of error
+   * @since 3.0.0
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsList <Ebms3Error> replayAS4In (@Nonnull @WillNotClose final InputStream aAS4InStream,
+                                                       @Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                                       @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                                       @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer) throws WSSecurityException,
+                                                                                                                    Phase4Exception,
+                                                                                                                    IOException,
+                                                                                                                    MessagingException
+  {
+    final InputStream aIS = StreamHelper.getBuffered (aAS4InStream);
+    final HttpHeaderMap hm = readAndSkipInitialHttpHeaders (aIS);
+
+    final ICommonsList <Ebms3Error> ret = new CommonsArrayList <> ();
+    _decryptAS4In (aIS,
+                   hm,
+                   aCryptoFactorySign,
+                   aCryptoFactoryCrypt,
+                   aDecryptedConsumer,
+                   (aIncomingState, aEbmsErrors, aAS4ErrorMsg) -> ret.addAll (aEbmsErrors),
+                   false);
+    return ret;
+  }
+
+  /**
+   * Utility method to decrypt a message stored in an {@link AS4DumpArchive}.
+   *
+   * @param aArchive
+   *        The archive to read from. May not be <code>null</code>.
+   * @param sID
+   *        The incoming unique ID or the AS4 message ID of the message to
+   *        decrypt. May neither be <code>null</code> nor empty.
+   * @param aCryptoFactorySign
+   *        The Crypto factory to be used. May not be <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        The Crypto factory to be used for decrypting. May not be
+   *        <code>null</code>.
+   * @param aHttpHeaderConsumer
+   *        An optional HTTP Header map consumer. May be <code>null</code>.
+   * @param aDecryptedConsumer
+   *        The consumer for the decrypted payload. May not be
+   *        <code>null</code>.
+   * @return {@link ESuccess#FAILURE} if no message with the provided ID is
+   *         contained in the archive.
+   * @throws WSSecurityException
+   *         In case of error
+   * @throws Phase4Exception
+   *         In case of error
+   * @throws IOException
+   *         In case of error
+   * @throws MessagingException
+   *         In case of error
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static ESuccess decryptAS4InFromArchive (@Nonnull final AS4DumpArchive aArchive,
+                                                  @Nonnull @Nonempty final String sID,
+                                                  @Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                                  @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                                  @Nullable final Consumer <HttpHeaderMap> aHttpHeaderConsumer,
+                                                  @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer) throws WSSecurityException,
+                                                                                                               Phase4Exception,
+                                                                                                               IOException,
+                                                                                                               MessagingException
+  {
+    ValueEnforcer.notNull (aArchive, "Archive");
+    ValueEnforcer.notEmpty (sID, "ID");
+
+    try (final InputStream aIS = aArchive.openDump (sID))
+    {
+      if (aIS == null)
+      {
+        LOGGER.warn ("Found no archived message with ID '" + sID + "'");
+        return ESuccess.FAILURE;
+      }
+      decryptAS4In (aIS, aCryptoFactorySign, aCryptoFactoryCrypt, aHttpHeaderConsumer, aDecryptedConsumer);
+    }
+    return ESuccess.SUCCESS;
+  }
+
+  private static void _decryptAS4In (@Nonnull final InputStream aPayloadIS,
+                                     @Nonnull final HttpHeaderMap hm,
+                                     @Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                     @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                     @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer,
+                                     @Nullable final IAS4RequestHandlerErrorConsumer aErrorConsumer,
+                                     final boolean bCheckForDuplicates) throws WSSecurityException,
+                                                                        Phase4Exception,
+                                                                        IOException,
+                                                                        MessagingException
+  {
     final boolean bGlobalScopePresent = WebScopeManager.isGlobalScopePresent ();
     if (!bGlobalScopePresent)
     {
@@ -228,6 +467,8 @@ public final class AS4DumpReader
       aHandler.setIncomingAttachmentFactory (IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE);
       aHandler.setIncomingSecurityConfiguration (AS4IncomingSecurityConfiguration.createDefaultInstance ());
       aHandler.setIncomingReceiverConfiguration (new AS4IncomingReceiverConfiguration ());
+      aHandler.setErrorConsumer (aErrorConsumer);
+      aHandler.setCheckForDuplicates (bCheckForDuplicates);
 
       final IAS4IncomingMessageProcessorSPI aSPI = new IAS4IncomingMessageProcessorSPI ()
       {
@@ -291,7 +532,7 @@ public final class AS4DumpReader
         {}
       };
       aHandler.setProcessorSupplier ( () -> new CommonsArrayList <> (aSPI));
-      aHandler.handleRequest (new NonBlockingByteArrayInputStream (aAS4InData, nHttpEnd, aAS4InData.length - nHttpEnd),
+      aHandler.handleRequest (aPayloadIS,
                               hm,
                               new IAS4ResponseAbstraction ()
                               {
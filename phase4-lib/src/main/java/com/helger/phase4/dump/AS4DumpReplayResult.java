@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.time.Duration;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The progress or final result of a {@link AS4DumpReplayer} run.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@Immutable
+public final class AS4DumpReplayResult
+{
+  private final long m_nProcessed;
+  private final long m_nSkipped;
+  private final long m_nFailed;
+  private final long m_nWithoutPayload;
+  private final long m_nPayloads;
+  private final long m_nPayloadBytes;
+  private final Duration m_aDuration;
+
+  public AS4DumpReplayResult (@Nonnegative final long nProcessed,
+                              @Nonnegative final long nSkipped,
+                              @Nonnegative final long nFailed,
+                              @Nonnegative final long nWithoutPayload,
+                              @Nonnegative final long nPayloads,
+                              @Nonnegative final long nPayloadBytes,
+                              @Nonnull final Duration aDuration)
+  {
+    ValueEnforcer.notNull (aDuration, "Duration");
+    m_nProcessed = nProcessed;
+    m_nSkipped = nSkipped;
+    m_nFailed = nFailed;
+    m_nWithoutPayload = nWithoutPayload;
+    m_nPayloads = nPayloads;
+    m_nPayloadBytes = nPayloadBytes;
+    m_aDuration = aDuration;
+  }
+
+  /**
+   * @return The number of dumps that were successfully replayed in this run.
+   *         This includes the dumps without payload.
+   */
+  @Nonnegative
+  public long getProcessedCount ()
+  {
+    return m_nProcessed;
+  }
+
+  /**
+   * @return The number of dumps that were skipped, because they were already
+   *         replayed according to the checkpoint.
+   */
+  @Nonnegative
+  public long getSkippedCount ()
+  {
+    return m_nSkipped;
+  }
+
+  /**
+   * @return The number of dumps that could not be replayed. They are not added
+   *         to the checkpoint and are retried in the next run.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_nFailed;
+  }
+
+  /**
+   * @return The number of successfully replayed dumps that did not deliver any
+   *         payload (e.g. signal messages or user messages without
+   *         attachments).
+   */
+  @Nonnegative
+  public long getWithoutPayloadCount ()
+  {
+    return m_nWithoutPayload;
+  }
+
+  /**
+   * @return The number of payloads passed to the sink.
+   */
+  @Nonnegative
+  public long getPayloadCount ()
+  {
+    return m_nPayloads;
+  }
+
+  /**
+   * @return The number of payload bytes passed to the sink.
+   */
+  @Nonnegative
+  public long getPayloadBytes ()
+  {
+    return m_nPayloadBytes;
+  }
+
+  /**
+   * @return The time since the start of the run. Never <code>null</code>.
+   */
+  @Nonnull
+  public Duration getDuration ()
+  {
+    return m_aDuration;
+  }
+
+  /**
+   * @return The number of processed and failed dumps per second.
+   */
+  public double getDumpsPerSecond ()
+  {
+    final long nMillis = m_aDuration.toMillis ();
+    return nMillis <= 0 ? 0 : (m_nProcessed + m_nFailed) * 1000d / nMillis;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Processed", m_nProcessed)
+                                       .append ("Skipped", m_nSkipped)
+                                       .append ("Failed", m_nFailed)
+                                       .append ("WithoutPayload", m_nWithoutPayload)
+                                       .append ("Payloads", m_nPayloads)
+                                       .append ("PayloadBytes", m_nPayloadBytes)
+                                       .append ("Duration", m_aDuration)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.functional.IThrowingConsumer;
+import com.helger.commons.functional.IThrowingFunction;
+import com.helger.commons.io.EAppend;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileSystemRecursiveIterator;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.servlet.mock.MockServletContext;
+import com.helger.web.scope.mgr.WebScopeManager;
+
+/**
+ * Replay and decrypt many dumped incoming messages in parallel, e.g. to
+ * re-extract the payloads after a downstream outage. Each dump is handled via
+ * {@link AS4DumpReader#replayAS4In(InputStream, IAS4CryptoFactory, IAS4CryptoFactory, AS4DumpReader.IDecryptedPayloadConsumer)}
+ * on a fixed pool of worker threads, all sharing the same crypto factories.
+ * The decrypted payloads are passed to an {@link IAS4DumpReplaySink}.<br>
+ * Dumps for which the message handler reports processing errors (e.g.
+ * because they cannot be decrypted) are counted as failed.<br>
+ * If a checkpoint file is configured, the ID of each successfully replayed
+ * dump is appended to it and dumps contained in it are skipped, so that an
+ * interrupted run can be restarted.<br>
+ * Note: the replayed messages bypass the incoming duplicate check and are not
+ * registered in the duplicate manager.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@NotThreadSafe
+public class AS4DumpReplayer
+{
+  /** The default interval in which the progress is reported */
+  public static final Duration DEFAULT_PROGRESS_INTERVAL = Duration.ofSeconds (10);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DumpReplayer.class);
+
+  /**
+   * The state of a single replay run.
+   */
+  private final class ReplayRun
+  {
+    private final long m_nStartNanos = System.nanoTime ();
+    private final ICommonsSet <String> m_aCheckpoint;
+    private final Writer m_aCheckpointWriter;
+    private final AtomicLong m_aProcessed = new AtomicLong ();
+    private final AtomicLong m_aSkipped = new AtomicLong ();
+    private final AtomicLong m_aFailed = new AtomicLong ();
+    private final AtomicLong m_aWithoutPayload = new AtomicLong ();
+    private final AtomicLong m_aPayloads = new AtomicLong ();
+    private final AtomicLong m_aPayloadBytes = new AtomicLong ();
+
+    ReplayRun (@Nonnull final ICommonsSet <String> aCheckpoint, @Nullable final Writer aCheckpointWriter)
+    {
+      m_aCheckpoint = aCheckpoint;
+      m_aCheckpointWriter = aCheckpointWriter;
+    }
+
+    @Nonnull
+    AS4DumpReplayResult getResult ()
+    {
+      return new AS4DumpReplayResult (m_aProcessed.get (),
+                                      m_aSkipped.get (),
+                                      m_aFailed.get (),
+                                      m_aWithoutPayload.get (),
+                                      m_aPayloads.get (),
+                                      m_aPayloadBytes.get (),
+                                      Duration.ofNanos (System.nanoTime () - m_nStartNanos));
+    }
+
+    void replay (@Nonnull final String sDumpID,
+                 @Nonnull final IThrowingFunction <String, InputStream, IOException> aOpener)
+    {
+      final AtomicInteger aPayloadCount = new AtomicInteger ();
+      final Wrapper <IOException> aSinkException = new Wrapper <> ();
+      try (final InputStream aIS = aOpener.apply (sDumpID))
+      {
+        if (aIS == null)
+          throw new IOException ("Failed to open dump");
+
+        final AS4DumpReader.IDecryptedPayloadConsumer aConsumer = (nIndex, aPayload) -> {
+          try
+          {
+            m_aSink.onPayload (sDumpID, nIndex, aPayload);
+          }
+          catch (final IOException ex)
+          {
+            aSinkException.set (ex);
+            throw new UncheckedIOException (ex);
+          }
+          aPayloadCount.incrementAndGet ();
+          m_aPayloads.incrementAndGet ();
+          m_aPayloadBytes.addAndGet (aPayload.length);
+        };
+        final ICommonsList <Ebms3Error> aErrors = AS4DumpReader.replayAS4In (aIS,
+                                                                            m_aCryptoFactorySign,
+                                                                            m_aCryptoFactoryCrypt,
+                                                                            aConsumer);
+
+        // The message handler may swallow exceptions of the sink
+        if (aSinkException.isSet ())
+          throw aSinkException.get ();
+
+        // E.g. decryption or signature verification failed - the handler only
+        // creates an error response
+        if (aErrors.isNotEmpty ())
+          throw new IOException ("Processing the dump resulted in " +
+                                 aErrors.size () +
+                                 " error(s): " +
+                                 aErrors.getAllMapped (x -> StringHelper.getConcatenatedOnDemand (x.getDescriptionValue (),
+                                                                                                  " / ",
+                                                                                                  x.getErrorDetail ())));
+
+        if (aPayloadCount.get () == 0)
+          m_aWithoutPayload.incrementAndGet ();
+        m_aProcessed.incrementAndGet ();
+
+        if (m_aCheckpointWriter != null)
+          synchronized (m_aCheckpointWriter)
+          {
+            m_aCheckpointWriter.write (sDumpID);
+            m_aCheckpointWriter.write ('\n');
+            m_aCheckpointWriter.flush ();
+          }
+      }
+      catch (final Exception ex)
+      {
+        m_aFailed.incrementAndGet ();
+        LOGGER.error ("Failed to replay dump '" + sDumpID + "'", ex);
+      }
+    }
+  }
+
+  private final IAS4CryptoFactory m_aCryptoFactorySign;
+  private final IAS4CryptoFactory m_aCryptoFactoryCrypt;
+  private final IAS4DumpReplaySink m_aSink;
+  private int m_nThreads = Runtime.getRuntime ().availableProcessors ();
+  private File m_aCheckpointFile;
+  private Duration m_aProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+  private Consumer <? super AS4DumpReplayResult> m_aProgressConsumer = x -> LOGGER.info ("Dump replay progress: " +
+                                                                                         x.getProcessedCount () +
+                                                                                         " processed, " +
+                                                                                         x.getSkippedCount () +
+                                                                                         " skipped, " +
+                                                                                         x.getFailedCount () +
+                                                                                         " failed; " +
+                                                                                         Math.round (x.getDumpsPerSecond ()) +
+                                                                                         " dumps/s");
+
+  /**
+   * Constructor
+   *
+   * @param aCryptoFactorySign
+   *        The crypto factory for signature verification. May not be
+   *        <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        The crypto factory with the private key to decrypt the messages. May
+   *        not be <code>null</code>.
+   * @param aSink
+   *        The sink for the decrypted payloads. May not be <code>null</code>.
+   */
+  public AS4DumpReplayer (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                          @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                          @Nonnull final IAS4DumpReplaySink aSink)
+  {
+    ValueEnforcer.notNull (aCryptoFactorySign, "CryptoFactorySign");
+    ValueEnforcer.notNull (aCryptoFactoryCrypt, "CryptoFactoryCrypt");
+    ValueEnforcer.notNull (aSink, "Sink");
+    m_aCryptoFactorySign = aCryptoFactorySign;
+    m_aCryptoFactoryCrypt = aCryptoFactoryCrypt;
+    m_aSink = aSink;
+  }
+
+  /**
+   * @return The number of worker threads. Defaults to the number of available
+   *         processors.
+   */
+  @Nonnegative
+  public final int getThreads ()
+  {
+    return m_nThreads;
+  }
+
+  /**
+   * @param nThreads
+   *        The number of worker threads to use. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4DumpReplayer setThreads (@Nonnegative final int nThreads)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    m_nThreads = nThreads;
+    return this;
+  }
+
+  /**
+   * @return The checkpoint file. May be <code>null</code>.
+   */
+  @Nullable
+  public final File getCheckpointFile ()
+  {
+    return m_aCheckpointFile;
+  }
+
+  /**
+   * @param aCheckpointFile
+   *        The file to which the IDs of the replayed dumps are appended. Dumps
+   *        contained in this file are skipped. May be <code>null</code> to
+   *        always replay all dumps.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4DumpReplayer setCheckpointFile (@Nullable final File aCheckpointFile)
+  {
+    m_aCheckpointFile = aCheckpointFile;
+    return this;
+  }
+
+  /**
+   * @return The interval in which the progress is reported. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getProgressInterval ()
+  {
+    return m_aProgressInterval;
+  }
+
+  /**
+   * Set the progress reporting.
+   *
+   * @param aProgressInterval
+   *        The interval in which the progress is reported. May not be
+   *        <code>null</code> and must be positive.
+   * @param aProgressConsumer
+   *        The consumer of the progress. The default logs it. May not be
+   *        <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4DumpReplayer setProgress (@Nonnull final Duration aProgressInterval,
+                                            @Nonnull final Consumer <? super AS4DumpReplayResult> aProgressConsumer)
+  {
+    ValueEnforcer.notNull (aProgressInterval, "ProgressInterval");
+    ValueEnforcer.isFalse (aProgressInterval.isNegative () || aProgressInterval.isZero (),
+                           "ProgressInterval must be positive");
+    ValueEnforcer.notNull (aProgressConsumer, "ProgressConsumer");
+    m_aProgressInterval = aProgressInterval;
+    m_aProgressConsumer = aProgressConsumer;
+    return this;
+  }
+
+  @Nonnull
+  private AS4DumpReplayResult _replay (@Nonnull final IThrowingConsumer <Consumer <String>, IOException> aEnumerator,
+                                       @Nonnull final IThrowingFunction <String, InputStream, IOException> aOpener) throws IOException
+  {
+    final ICommonsSet <String> aCheckpoint = new CommonsHashSet <> ();
+    if (m_aCheckpointFile != null && m_aCheckpointFile.isFile ())
+    {
+      SimpleFileIO.readFileLines (m_aCheckpointFile, StandardCharsets.UTF_8, aCheckpoint::add);
+      LOGGER.info ("Read " + aCheckpoint.size () + " replayed dumps from checkpoint file " + m_aCheckpointFile);
+    }
+
+    final boolean bGlobalScopePresent = WebScopeManager.isGlobalScopePresent ();
+    if (!bGlobalScopePresent)
+    {
+      // Create it once for all workers
+      WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    }
+
+    final ReplayRun aRun;
+    try (final Writer aCheckpointWriter = m_aCheckpointFile == null ? null
+                                                                    : FileHelper.getBufferedWriter (m_aCheckpointFile,
+                                                                                                    EAppend.APPEND,
+                                                                                                    StandardCharsets.UTF_8))
+    {
+      if (m_aCheckpointFile != null && aCheckpointWriter == null)
+        throw new IOException ("Failed to open checkpoint file " + m_aCheckpointFile + " for writing");
+
+      aRun = new ReplayRun (aCheckpoint, aCheckpointWriter);
+
+      // Bounded queue - if all workers are busy, the enumerating thread helps
+      final ThreadPoolExecutor aExecutor = new ThreadPoolExecutor (m_nThreads,
+                                                                   m_nThreads,
+                                                                   0,
+                                                                   TimeUnit.MILLISECONDS,
+                                                                   new ArrayBlockingQueue <> (m_nThreads * 4),
+                                                                   new BasicThreadFactory.Builder ().namingPattern ("phase4-dump-replay-%d")
+                                                                                                    .daemon (true)
+                                                                                                    .build (),
+                                                                   new ThreadPoolExecutor.CallerRunsPolicy ());
+      final ScheduledExecutorService aProgressExecutor = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().namingPattern ("phase4-dump-replay-progress-%d")
+                                                                                                                                      .daemon (true)
+                                                                                                                                      .build ());
+      final long nProgressMillis = m_aProgressInterval.toMillis ();
+      aProgressExecutor.scheduleAtFixedRate ( () -> m_aProgressConsumer.accept (aRun.getResult ()),
+                                             nProgressMillis,
+                                             nProgressMillis,
+                                             TimeUnit.MILLISECONDS);
+      try
+      {
+        aEnumerator.accept (sDumpID -> {
+          if (aRun.m_aCheckpoint.contains (sDumpID))
+            aRun.m_aSkipped.incrementAndGet ();
+          else
+            aExecutor.execute ( () -> aRun.replay (sDumpID, aOpener));
+        });
+      }
+      finally
+      {
+        ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+        aProgressExecutor.shutdownNow ();
+      }
+    }
+    finally
+    {
+      if (!bGlobalScopePresent)
+      {
+        // If we created one, also end it here
+        WebScopeManager.onGlobalEnd ();
+      }
+    }
+
+    final AS4DumpReplayResult ret = aRun.getResult ();
+    LOGGER.info ("Finished dump replay: " + ret);
+    return ret;
+  }
+
+  private static boolean _isDumpFile (@Nonnull final File aFile)
+  {
+    final String sName = aFile.getName ();
+    return aFile.isFile () &&
+           (sName.endsWith (AS4IncomingDumperFileBased.IFileProvider.DEFAULT_FILE_EXTENSION) ||
+            sName.endsWith (AS4IncomingDumperFileBased.IFileProvider.DEFAULT_FILE_EXTENSION +
+                            AS4AsyncDumpWriter.COMPRESSED_FILE_EXTENSION));
+  }
+
+  /**
+   * Replay all incoming dump files (<code>.as4in</code> and
+   * <code>.as4in.gz</code>) in the provided directory and all sub directories.
+   * The dump ID is the path relative to the directory.
+   *
+   * @param aDirectory
+   *        The directory to scan. May not be <code>null</code>.
+   * @return The result of the replay. Never <code>null</code>.
+   * @throws IOException
+   *         In case the checkpoint file cannot be accessed
+   */
+  @Nonnull
+  public AS4DumpReplayResult replayDirectory (@Nonnull final File aDirectory) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.isTrue (aDirectory::isDirectory, () -> "Directory " + aDirectory + " does not exist");
+
+    return _replay (aConsumer -> {
+      for (final File aFile : new FileSystemRecursiveIterator (aDirectory))
+        if (_isDumpFile (aFile))
+          aConsumer.accept (aDirectory.toPath ().relativize (aFile.toPath ()).toString ());
+    }, sDumpID -> {
+      final File aFile = new File (aDirectory, sDumpID);
+      final InputStream aIS = FileHelper.getBufferedInputStream (aFile);
+      if (aIS != null && sDumpID.endsWith (AS4AsyncDumpWriter.COMPRESSED_FILE_EXTENSION))
+        return new GZIPInputStream (aIS);
+      return aIS;
+    });
+  }
+
+  /**
+   * Replay all messages contained in the provided archive. The dump ID is the
+   * incoming unique ID.
+   *
+   * @param aArchive
+   *        The archive to read from. May not be <code>null</code>.
+   * @return The result of the replay. Never <code>null</code>.
+   * @throws IOException
+   *         In case the archive or the checkpoint file cannot be accessed
+   */
+  @Nonnull
+  public AS4DumpReplayResult replayArchive (@Nonnull final AS4DumpArchive aArchive) throws IOException
+  {
+    ValueEnforcer.notNull (aArchive, "Archive");
+
+    return _replay (aArchive::forEachIncomingUniqueID, aArchive::openDump);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
+
+/**
+ * An {@link IAS4IncomingDumper} that stores all incoming messages in an
+ * {@link AS4DumpArchive} instead of one file per message. The dumps can be
+ * retrieved by incoming unique ID or AS4 message ID via
+ * {@link AS4DumpArchive#openDump(String)} or
+ * {@link AS4DumpReader#decryptAS4InFromArchive(AS4DumpArchive, String, com.helger.phase4.crypto.IAS4CryptoFactory, com.helger.phase4.crypto.IAS4CryptoFactory, java.util.function.Consumer, AS4DumpReader.IDecryptedPayloadConsumer)}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class AS4IncomingDumperArchive extends AbstractAS4IncomingDumperWithHeaders <AS4IncomingDumperArchive>
+{
+  private final AS4DumpArchive m_aArchive;
+
+  /**
+   * Constructor
+   *
+   * @param aArchive
+   *        The archive to write to. May not be <code>null</code>. The archive
+   *        is not closed by this class.
+   */
+  public AS4IncomingDumperArchive (@Nonnull final AS4DumpArchive aArchive)
+  {
+    ValueEnforcer.notNull (aArchive, "Archive");
+    m_aArchive = aArchive;
+  }
+
+  /**
+   * @return The archive used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4DumpArchive getArchive ()
+  {
+    return m_aArchive;
+  }
+
+  @Override
+  protected OutputStream openOutputStream (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                           @Nonnull final HttpHeaderMap aHttpHeaderMap) throws IOException
+  {
+    return m_aArchive.createOutputStream (aMessageMetadata.getIncomingUniqueID ());
+  }
+}
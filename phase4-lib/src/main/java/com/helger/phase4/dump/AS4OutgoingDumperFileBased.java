@@ -100,6 +100,7 @@ public class AS4OutgoingDumperFileBased extends AbstractAS4OutgoingDumperWithHea
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4OutgoingDumperFileBased.class);
 
   private final IFileProvider m_aFileProvider;
+  private AS4AsyncDumpWriter m_aAsyncDumpWriter;
 
   /**
    * Default constructor. Writes the files to the AS4 configured data path +
@@ -132,6 +133,36 @@ public class AS4OutgoingDumperFileBased extends AbstractAS4OutgoingDumperWithHea
     return m_aFileProvider;
   }
 
+  /**
+   * @return The writer used to write the dumps asynchronously. May be
+   *         <code>null</code> in which case the dumps are written in the
+   *         calling thread.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4AsyncDumpWriter getAsyncDumpWriter ()
+  {
+    return m_aAsyncDumpWriter;
+  }
+
+  /**
+   * Set the writer used to write the dumps asynchronously. If the writer
+   * compresses the dumps, {@link AS4AsyncDumpWriter#COMPRESSED_FILE_EXTENSION}
+   * is appended to the filename.
+   *
+   * @param aAsyncDumpWriter
+   *        The writer to use. May be <code>null</code> to write the dumps in the
+   *        calling thread.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final AS4OutgoingDumperFileBased setAsyncDumpWriter (@Nullable final AS4AsyncDumpWriter aAsyncDumpWriter)
+  {
+    m_aAsyncDumpWriter = aAsyncDumpWriter;
+    return this;
+  }
+
   @Override
   protected OutputStream openOutputStream (@Nonnull final EAS4MessageMode eMsgMode,
                                            @Nullable final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
@@ -141,6 +172,19 @@ public class AS4OutgoingDumperFileBased extends AbstractAS4OutgoingDumperWithHea
                                            @Nonnegative final int nTry) throws IOException
   {
     final File aDumpFile = m_aFileProvider.getFile (eMsgMode, sMessageID, nTry);
+    final AS4AsyncDumpWriter aAsyncDumpWriter = m_aAsyncDumpWriter;
+    if (aAsyncDumpWriter != null)
+    {
+      final File aRealDumpFile = aAsyncDumpWriter.isCompress () ? new File (aDumpFile.getPath () +
+                                                                           AS4AsyncDumpWriter.COMPRESSED_FILE_EXTENSION)
+                                                               : aDumpFile;
+      LOGGER.info ("Asynchronously logging outgoing AS4 message to '" +
+                   aRealDumpFile.getAbsolutePath () +
+                   "' " +
+                   (isIncludeHeaders () ? "including headers" : "excluding headers"));
+      return aAsyncDumpWriter.createFileOutputStream (aRealDumpFile);
+    }
+
     LOGGER.info ("Logging outgoing AS4 message to '" +
                  aDumpFile.getAbsolutePath () +
                  "' " +
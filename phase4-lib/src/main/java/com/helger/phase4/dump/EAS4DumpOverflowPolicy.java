@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines what {@link AS4AsyncDumpWriter} does, if the queue of a writer
+ * thread is full.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public enum EAS4DumpOverflowPolicy implements IHasID <String>
+{
+  /**
+   * Wait until the queue has space again. No dump data is lost, but a slow
+   * disk slows down the message exchange. This is the default.
+   */
+  BLOCK ("block"),
+  /**
+   * Skip the remaining data of the dump. The message exchange is never slowed
+   * down, but the dump is incomplete. File based dumps are renamed with the
+   * extension {@link AS4AsyncDumpWriter#INCOMPLETE_FILE_EXTENSION}.
+   */
+  DROP ("drop"),
+  /**
+   * Write the remaining data of the dump to a temporary file, that is appended
+   * to the dump by the writer thread later on.
+   */
+  SPILL ("spill");
+
+  private final String m_sID;
+
+  EAS4DumpOverflowPolicy (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4DumpOverflowPolicy getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4DumpOverflowPolicy.class, sID);
+  }
+
+  @Nullable
+  public static EAS4DumpOverflowPolicy getFromIDOrDefault (@Nullable final String sID,
+                                                           @Nullable final EAS4DumpOverflowPolicy eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4DumpOverflowPolicy.class, sID, eDefault);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FilenameHelper;
+
+/**
+ * Target of the decrypted payloads of {@link AS4DumpReplayer}. Implementations
+ * must be thread-safe, as they are invoked from multiple worker threads.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@FunctionalInterface
+public interface IAS4DumpReplaySink
+{
+  /**
+   * Invoked for every decrypted attachment of a replayed dump.
+   *
+   * @param sDumpID
+   *        The ID of the dump. This is the relative file path for dump
+   *        directories and the incoming unique ID for dump archives. Never
+   *        <code>null</code> nor empty.
+   * @param nAttachmentIndex
+   *        0-based attachment index.
+   * @param aPayload
+   *        Decrypted payload. Never <code>null</code>.
+   * @throws IOException
+   *         In case the payload cannot be stored
+   */
+  void onPayload (@Nonnull @Nonempty String sDumpID,
+                  @Nonnegative int nAttachmentIndex,
+                  @Nonnull byte [] aPayload) throws IOException;
+
+  /**
+   * Create a sink that writes each payload into a separate file in the
+   * provided directory.
+   *
+   * @param aTargetDir
+   *        The target directory. Must exist. May not be <code>null</code>.
+   * @return The new sink and never <code>null</code>.
+   */
+  @Nonnull
+  static IAS4DumpReplaySink createForDirectory (@Nonnull final File aTargetDir)
+  {
+    ValueEnforcer.notNull (aTargetDir, "TargetDir");
+    ValueEnforcer.isTrue (aTargetDir::isDirectory, () -> "Target directory " + aTargetDir + " does not exist");
+    return (sDumpID, nAttachmentIndex, aPayload) -> {
+      final File aFile = new File (aTargetDir,
+                                   FilenameHelper.getAsSecureValidASCIIFilename (sDumpID) +
+                                               "-" +
+                                               nAttachmentIndex +
+                                               ".payload");
+      try (final OutputStream aOS = FileHelper.getOutputStream (aFile))
+      {
+        if (aOS == null)
+          throw new IOException ("Failed to open " + aFile.getAbsolutePath () + " for writing");
+        aOS.write (aPayload);
+      }
+    };
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.duplicate;
+
+import java.time.OffsetDateTime;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.EContinue;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An in-memory duplicate checker that is optimized for high message rates and
+ * large retention windows. In contrast to {@link AS4DuplicateManagerInMemory}
+ * no global lock is used:
+ * <ul>
+ * <li>The message IDs are stored in a {@link ConcurrentHashMap} so that
+ * registration is a single atomic <code>putIfAbsent</code> operation with
+ * per-bin locking only.</li>
+ * <li>Each message ID is additionally appended to a time bucket (by default one
+ * per minute). Eviction simply drops all buckets that are completely expired,
+ * so the effort is proportional to the number of expired entries and not to
+ * the number of retained entries.</li>
+ * <li>On the registration path no {@link AS4DuplicateItem} and no
+ * {@link OffsetDateTime} is created. The items are only materialized when
+ * {@link #getItemOfMessageID(String)} or {@link #getAll()} is called.</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4DuplicateManagerInMemoryBucketed implements IAS4DuplicateManager
+{
+  /** The default bucket duration is one minute */
+  public static final long DEFAULT_BUCKET_MILLIS = 60_000L;
+
+  /**
+   * The compact data stored per message ID.
+   */
+  private static final class Entry
+  {
+    private final long m_nTimestamp;
+    private final String m_sProfileID;
+    private final String m_sPModeID;
+
+    Entry (final long nTimestamp, @Nullable final String sProfileID, @Nullable final String sPModeID)
+    {
+      m_nTimestamp = nTimestamp;
+      m_sProfileID = sProfileID;
+      m_sPModeID = sPModeID;
+    }
+  }
+
+  /**
+   * A single time bucket containing all message IDs registered in that time
+   * frame.
+   */
+  private static final class Bucket
+  {
+    private final long m_nIndex;
+    private final ConcurrentLinkedQueue <String> m_aIDs = new ConcurrentLinkedQueue <> ();
+    private volatile boolean m_bEvicted = false;
+
+    Bucket (final long nIndex)
+    {
+      m_nIndex = nIndex;
+    }
+  }
+
+  private final LongSupplier m_aClock;
+  private final long m_nBucketMillis;
+  private final ConcurrentHashMap <String, Entry> m_aMap = new ConcurrentHashMap <> ();
+  private final ConcurrentSkipListMap <Long, Bucket> m_aBuckets = new ConcurrentSkipListMap <> ();
+  // Cache the most recent bucket to avoid the skip list lookup per message
+  private volatile Bucket m_aCurrentBucket;
+
+  public AS4DuplicateManagerInMemoryBucketed ()
+  {
+    this (System::currentTimeMillis, DEFAULT_BUCKET_MILLIS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aClock
+   *        The clock that returns the current time in milliseconds since the
+   *        epoch. May not be <code>null</code>.
+   * @param nBucketMillis
+   *        The duration of a single time bucket in milliseconds. Must be &gt;
+   *        0.
+   */
+  public AS4DuplicateManagerInMemoryBucketed (@Nonnull final LongSupplier aClock,
+                                              @Nonnegative final long nBucketMillis)
+  {
+    ValueEnforcer.notNull (aClock, "Clock");
+    ValueEnforcer.isGT0 (nBucketMillis, "BucketMillis");
+    m_aClock = aClock;
+    m_nBucketMillis = nBucketMillis;
+  }
+
+  /**
+   * @return The duration of a single time bucket in milliseconds. Always &gt;
+   *         0.
+   */
+  @Nonnegative
+  public final long getBucketMillis ()
+  {
+    return m_nBucketMillis;
+  }
+
+  /**
+   * @return The number of time buckets currently in use. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getBucketCount ()
+  {
+    return m_aBuckets.size ();
+  }
+
+  @Nonnull
+  private Bucket _getBucket (final long nIndex)
+  {
+    final Bucket aCurrent = m_aCurrentBucket;
+    if (aCurrent != null && aCurrent.m_nIndex == nIndex && !aCurrent.m_bEvicted)
+      return aCurrent;
+
+    final Bucket ret = m_aBuckets.computeIfAbsent (Long.valueOf (nIndex), Bucket::new);
+    m_aCurrentBucket = ret;
+    return ret;
+  }
+
+  @Nonnull
+  public EContinue registerAndCheck (@Nullable final String sMessageID,
+                                     @Nullable final String sProfileID,
+                                     @Nullable final String sPModeID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+    {
+      // No message ID present - don't check for duplication
+      return EContinue.CONTINUE;
+    }
+
+    final long nNow = m_aClock.getAsLong ();
+    final Entry aEntry = new Entry (nNow, sProfileID, sPModeID);
+    if (m_aMap.putIfAbsent (sMessageID, aEntry) != null)
+    {
+      // ID already in use
+      return EContinue.BREAK;
+    }
+
+    final Bucket aBucket = _getBucket (Math.floorDiv (nNow, m_nBucketMillis));
+    aBucket.m_aIDs.add (sMessageID);
+    if (aBucket.m_bEvicted)
+    {
+      // The bucket was evicted concurrently (eviction reference date in the
+      // future) - the entry counts as evicted as well
+      m_aMap.remove (sMessageID, aEntry);
+    }
+    return EContinue.CONTINUE;
+  }
+
+  private void _evictBucket (@Nonnull final Bucket aBucket, @Nonnull final ICommonsList <String> aEvictedIDs)
+  {
+    // Mark first, drain afterwards - see registerAndCheck
+    aBucket.m_bEvicted = true;
+    String sID;
+    while ((sID = aBucket.m_aIDs.poll ()) != null)
+      if (m_aMap.remove (sID) != null)
+        aEvictedIDs.add (sID);
+  }
+
+  @Nonnull
+  public EChange clearCache ()
+  {
+    final boolean bWasEmpty = m_aMap.isEmpty ();
+    final ICommonsList <String> aEvictedIDs = new CommonsArrayList <> ();
+    for (final Map.Entry <Long, Bucket> aEntry : m_aBuckets.entrySet ())
+      if (m_aBuckets.remove (aEntry.getKey (), aEntry.getValue ()))
+        _evictBucket (aEntry.getValue (), aEvictedIDs);
+    m_aMap.clear ();
+    return EChange.valueOf (!bWasEmpty);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <String> evictAllItemsBefore (@Nonnull final OffsetDateTime aRefDT)
+  {
+    ValueEnforcer.notNull (aRefDT, "RefDT");
+
+    final long nRefMillis = aRefDT.toInstant ().toEpochMilli ();
+    final long nRefIndex = Math.floorDiv (nRefMillis, m_nBucketMillis);
+    final ICommonsList <String> ret = new CommonsArrayList <> ();
+
+    // All buckets before the reference bucket are completely expired
+    final ConcurrentNavigableMap <Long, Bucket> aExpired = m_aBuckets.headMap (Long.valueOf (nRefIndex), false);
+    for (final Map.Entry <Long, Bucket> aEntry : aExpired.entrySet ())
+      if (m_aBuckets.remove (aEntry.getKey (), aEntry.getValue ()))
+        _evictBucket (aEntry.getValue (), ret);
+
+    // The reference bucket may be partially expired
+    final Bucket aRefBucket = m_aBuckets.get (Long.valueOf (nRefIndex));
+    if (aRefBucket != null)
+    {
+      final Iterator <String> it = aRefBucket.m_aIDs.iterator ();
+      while (it.hasNext ())
+      {
+        final String sID = it.next ();
+        final Entry aEntry = m_aMap.get (sID);
+        if (aEntry == null)
+          it.remove ();
+        else
+          if (aEntry.m_nTimestamp < nRefMillis && m_aMap.remove (sID, aEntry))
+          {
+            it.remove ();
+            ret.add (sID);
+          }
+      }
+    }
+    return ret;
+  }
+
+  public boolean isEmpty ()
+  {
+    return m_aMap.isEmpty ();
+  }
+
+  @Nonnegative
+  public int size ()
+  {
+    return m_aMap.size ();
+  }
+
+  @Nonnull
+  private static AS4DuplicateItem _toItem (@Nonnull final String sMessageID, @Nonnull final Entry aEntry)
+  {
+    return new AS4DuplicateItem (PDTFactory.createOffsetDateTime (aEntry.m_nTimestamp),
+                                 sMessageID,
+                                 aEntry.m_sProfileID,
+                                 aEntry.m_sPModeID);
+  }
+
+  @Nullable
+  public IAS4DuplicateItem getItemOfMessageID (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+      return null;
+
+    final Entry aEntry = m_aMap.get (sMessageID);
+    return aEntry == null ? null : _toItem (sMessageID, aEntry);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IAS4DuplicateItem> getAll ()
+  {
+    final ICommonsList <IAS4DuplicateItem> ret = new CommonsArrayList <> (m_aMap.size ());
+    m_aMap.forEach ( (k, v) -> ret.add (_toItem (k, v)));
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("BucketMillis", m_nBucketMillis)
+                                       .append ("Size", m_aMap.size ())
+                                       .append ("BucketCount", m_aBuckets.size ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,846 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.duplicate;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.FilenameHelper;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.EContinue;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A persistent duplicate checker that stores the message IDs in an append-only
+ * binary log:
+ * <ul>
+ * <li>Each registration is a single fixed-size record of
+ * {@value #RECORD_SIZE} bytes, appended to the current segment file.</li>
+ * <li>Segment files are memory mapped, so writing and looking up records does
+ * not require any explicit I/O call.</li>
+ * <li>A new segment is started after the configured segment duration or if the
+ * current segment is full. Eviction simply deletes the segment files of which
+ * all records are expired. Records of a partially expired segment are kept
+ * until the whole segment is expired, so the effective retention time may be up
+ * to one segment duration longer than requested.</li>
+ * <li>Lookups use a compact in-memory hash index per segment. Upon startup only
+ * this index is rebuilt from the existing segment files.</li>
+ * <li>Registrations of different message IDs only contend on the segment that
+ * is currently written. The global lock is only exclusively taken when
+ * segments are added or removed.</li>
+ * </ul>
+ * Message IDs that are too long to fit into a record are stored as their
+ * SHA-256 hash, and the original ID is kept in a small side file of the
+ * segment. Profile and PMode IDs that don't fit are not stored.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4DuplicateManagerSegmentedFile implements IAS4DuplicateManager
+{
+  /** The size of a single record in bytes */
+  public static final int RECORD_SIZE = 512;
+  /** The default duration of a single segment */
+  public static final Duration DEFAULT_SEGMENT_DURATION = Duration.ofMinutes (1);
+  /** The default maximum number of records per segment */
+  public static final int DEFAULT_MAX_RECORDS_PER_SEGMENT = 8192;
+  /** The file extension of the segment files */
+  public static final String SEGMENT_FILE_EXTENSION = ".seg";
+  /** The file extension of the side files with the overlong message IDs */
+  public static final String LONG_ID_FILE_EXTENSION = ".ids";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DuplicateManagerSegmentedFile.class);
+
+  // Record layout: timestamp (written last), 3 string lengths, string bytes
+  private static final int OFFSET_ID_LEN = 8;
+  private static final int OFFSET_PROFILE_LEN = 10;
+  private static final int OFFSET_PMODE_LEN = 12;
+  private static final int OFFSET_DATA = 14;
+  private static final int MAX_DATA_LEN = RECORD_SIZE - OFFSET_DATA;
+  private static final String HASHED_ID_PREFIX = "sha256:";
+  // Must be a power of 2
+  private static final int KEY_LOCK_COUNT = 64;
+
+  /**
+   * A primitive open addressing hash table from 64 bit key hash to record
+   * index. Multiple records may share the same hash.
+   */
+  private static final class RecordIndex
+  {
+    private final long [] m_aHashes;
+    private final int [] m_aRecords;
+    private final int m_nMask;
+
+    RecordIndex (@Nonnegative final int nMaxRecords)
+    {
+      final int nCapacity = Integer.highestOneBit (Math.max (nMaxRecords, 8) * 2 - 1) << 1;
+      m_aHashes = new long [nCapacity];
+      m_aRecords = new int [nCapacity];
+      m_nMask = nCapacity - 1;
+    }
+
+    void put (final long nHash, final int nRecord)
+    {
+      int nSlot = (int) (nHash ^ (nHash >>> 32)) & m_nMask;
+      while (m_aHashes[nSlot] != 0)
+        nSlot = (nSlot + 1) & m_nMask;
+      m_aHashes[nSlot] = nHash;
+      m_aRecords[nSlot] = nRecord;
+    }
+
+    void forEachCandidate (final long nHash, @Nonnull final IntPredicate aConsumer)
+    {
+      int nSlot = (int) (nHash ^ (nHash >>> 32)) & m_nMask;
+      while (m_aHashes[nSlot] != 0)
+      {
+        if (m_aHashes[nSlot] == nHash && !aConsumer.test (m_aRecords[nSlot]))
+          return;
+        nSlot = (nSlot + 1) & m_nMask;
+      }
+    }
+  }
+
+  /**
+   * A single memory mapped segment file. Only the newest segment is written, so
+   * the lock of all other segments is effectively uncontended.
+   */
+  private static final class Segment
+  {
+    private final File m_aFile;
+    private final File m_aLongIDFile;
+    private final FileChannel m_aChannel;
+    private final MappedByteBuffer m_aBuffer;
+    private final int m_nMaxRecords;
+    private final SimpleReadWriteLock m_aLock = new SimpleReadWriteLock ();
+    @GuardedBy ("m_aLock")
+    private final RecordIndex m_aIndex;
+    // Record index to original message ID - only for IDs that were hashed
+    @GuardedBy ("m_aLock")
+    private final ICommonsMap <Integer, String> m_aLongIDs = new CommonsHashMap <> ();
+    private volatile int m_nCount;
+    private volatile long m_nMinTimestamp = Long.MAX_VALUE;
+    private volatile long m_nMaxTimestamp = Long.MIN_VALUE;
+
+    Segment (@Nonnull final File aFile, @Nonnegative final int nMaxRecords) throws IOException
+    {
+      m_aFile = aFile;
+      m_aLongIDFile = _getLongIDFile (aFile);
+      m_nMaxRecords = nMaxRecords;
+      m_aChannel = FileChannel.open (aFile.toPath (),
+                                     StandardOpenOption.CREATE,
+                                     StandardOpenOption.READ,
+                                     StandardOpenOption.WRITE);
+      try
+      {
+        m_aBuffer = m_aChannel.map (FileChannel.MapMode.READ_WRITE, 0, (long) nMaxRecords * RECORD_SIZE);
+      }
+      catch (final IOException ex)
+      {
+        StreamHelper.close (m_aChannel);
+        throw ex;
+      }
+      m_aIndex = new RecordIndex (nMaxRecords);
+    }
+
+    boolean canAppend (final long nNow, final long nSegmentMillis)
+    {
+      final int nCount = m_nCount;
+      return nCount < m_nMaxRecords && (nCount == 0 || nNow - m_nMinTimestamp < nSegmentMillis);
+    }
+
+    long getTimestamp (final int nRecord)
+    {
+      return m_aBuffer.getLong (nRecord * RECORD_SIZE);
+    }
+
+    @Nullable
+    private String _readString (final int nRecordOfs, final int nLenOfs, final int nDataOfs)
+    {
+      final short nLen = m_aBuffer.getShort (nRecordOfs + nLenOfs);
+      if (nLen < 0)
+        return null;
+      final byte [] aBytes = new byte [nLen];
+      // Use a duplicate, so that concurrent readers don't share the position
+      final ByteBuffer aView = m_aBuffer.duplicate ();
+      aView.position (nRecordOfs + OFFSET_DATA + nDataOfs);
+      aView.get (aBytes);
+      return new String (aBytes, StandardCharsets.UTF_8);
+    }
+
+    @Nonnull
+    String readKey (final int nRecord)
+    {
+      return _readString (nRecord * RECORD_SIZE, OFFSET_ID_LEN, 0);
+    }
+
+    @Nonnull
+    @GuardedBy ("m_aLock")
+    private String _readMessageID (final int nRecord)
+    {
+      final String sLongID = m_aLongIDs.get (Integer.valueOf (nRecord));
+      return sLongID != null ? sLongID : readKey (nRecord);
+    }
+
+    @Nonnull
+    AS4DuplicateItem readItem (final int nRecord)
+    {
+      final int nOfs = nRecord * RECORD_SIZE;
+      final int nIDLen = m_aBuffer.getShort (nOfs + OFFSET_ID_LEN);
+      final int nProfileLen = Math.max (m_aBuffer.getShort (nOfs + OFFSET_PROFILE_LEN), 0);
+      return new AS4DuplicateItem (PDTFactory.createOffsetDateTime (getTimestamp (nRecord)),
+                                   m_aLock.readLockedGet ( () -> _readMessageID (nRecord)),
+                                   _readString (nOfs, OFFSET_PROFILE_LEN, nIDLen),
+                                   _readString (nOfs, OFFSET_PMODE_LEN, nIDLen + nProfileLen));
+    }
+
+    private void _put (final int nOfs, @Nonnull final byte [] aBytes)
+    {
+      final ByteBuffer aView = m_aBuffer.duplicate ();
+      aView.position (nOfs);
+      aView.put (aBytes);
+    }
+
+    private void _appendLongID (final int nRecord,
+                                @Nonnull final String sLongID,
+                                final boolean bSync) throws IOException
+    {
+      final byte [] aBytes = sLongID.getBytes (StandardCharsets.UTF_8);
+      try (final FileOutputStream aFOS = new FileOutputStream (m_aLongIDFile, true);
+           final DataOutputStream aDOS = new DataOutputStream (aFOS))
+      {
+        aDOS.writeInt (nRecord);
+        aDOS.writeInt (aBytes.length);
+        aDOS.write (aBytes);
+        aDOS.flush ();
+        if (bSync)
+          aFOS.getFD ().sync ();
+      }
+    }
+
+    /**
+     * Append a new record, if this segment can still take it.
+     *
+     * @return <code>false</code> if the segment is full or too old.
+     */
+    boolean tryAppend (final long nTimestamp,
+                       final long nSegmentMillis,
+                       @Nonnull final byte [] aID,
+                       @Nullable final byte [] aProfile,
+                       @Nullable final byte [] aPMode,
+                       final long nHash,
+                       @Nullable final String sLongID,
+                       final boolean bSync) throws IOException
+    {
+      m_aLock.writeLock ().lock ();
+      try
+      {
+        if (!canAppend (nTimestamp, nSegmentMillis))
+          return false;
+
+        final int nRecord = m_nCount;
+        // Before the record, so that a persisted record always has its ID
+        if (sLongID != null)
+          _appendLongID (nRecord, sLongID, bSync);
+
+        final int nOfs = nRecord * RECORD_SIZE;
+        int nDataOfs = nOfs + OFFSET_DATA;
+        m_aBuffer.putShort (nOfs + OFFSET_ID_LEN, (short) aID.length);
+        _put (nDataOfs, aID);
+        nDataOfs += aID.length;
+        m_aBuffer.putShort (nOfs + OFFSET_PROFILE_LEN, (short) (aProfile == null ? -1 : aProfile.length));
+        if (aProfile != null)
+        {
+          _put (nDataOfs, aProfile);
+          nDataOfs += aProfile.length;
+        }
+        m_aBuffer.putShort (nOfs + OFFSET_PMODE_LEN, (short) (aPMode == null ? -1 : aPMode.length));
+        if (aPMode != null)
+          _put (nDataOfs, aPMode);
+        // Timestamp last - a record with a 0 timestamp is considered not written
+        m_aBuffer.putLong (nOfs, nTimestamp);
+        if (bSync)
+          m_aBuffer.force ();
+
+        m_aIndex.put (nHash, nRecord);
+        if (sLongID != null)
+          m_aLongIDs.put (Integer.valueOf (nRecord), sLongID);
+        m_nMinTimestamp = Math.min (m_nMinTimestamp, nTimestamp);
+        m_nMaxTimestamp = Math.max (m_nMaxTimestamp, nTimestamp);
+        // Last, so that unlocked readers only see complete records
+        m_nCount = nRecord + 1;
+        return true;
+      }
+      finally
+      {
+        m_aLock.writeLock ().unlock ();
+      }
+    }
+
+    private void _readLongIDs () throws IOException
+    {
+      if (!m_aLongIDFile.isFile ())
+        return;
+      try (final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (new FileInputStream (m_aLongIDFile))))
+      {
+        while (true)
+        {
+          final int nRecord = aDIS.readInt ();
+          final byte [] aBytes = new byte [aDIS.readInt ()];
+          aDIS.readFully (aBytes);
+          // Ignore entries of records that were never completely written
+          final String sLongID = new String (aBytes, StandardCharsets.UTF_8);
+          if (nRecord >= 0 && nRecord < m_nCount && readKey (nRecord).equals (_getKey (sLongID)))
+            m_aLongIDs.put (Integer.valueOf (nRecord), sLongID);
+        }
+      }
+      catch (final EOFException ex)
+      {
+        // End of file or a truncated last entry
+      }
+    }
+
+    /**
+     * Scan all existing records of a re-opened segment and rebuild the index.
+     *
+     * @throws IOException
+     *         if the long ID file cannot be read
+     */
+    void rebuildIndex () throws IOException
+    {
+      int nCount = 0;
+      while (nCount < m_nMaxRecords)
+      {
+        final long nTimestamp = getTimestamp (nCount);
+        if (nTimestamp == 0)
+          break;
+        m_aIndex.put (_hash (readKey (nCount)), nCount);
+        m_nMinTimestamp = Math.min (m_nMinTimestamp, nTimestamp);
+        m_nMaxTimestamp = Math.max (m_nMaxTimestamp, nTimestamp);
+        nCount++;
+      }
+      m_nCount = nCount;
+      _readLongIDs ();
+    }
+
+    int findRecord (@Nonnull final String sKey, final long nHash)
+    {
+      return m_aLock.readLockedInt ( () -> {
+        final int [] ret = { -1 };
+        m_aIndex.forEachCandidate (nHash, nRecord -> {
+          if (readKey (nRecord).equals (sKey))
+          {
+            ret[0] = nRecord;
+            return false;
+          }
+          return true;
+        });
+        return ret[0];
+      });
+    }
+
+    void forEachMessageID (@Nonnull final Consumer <String> aConsumer)
+    {
+      m_aLock.readLocked ( () -> {
+        for (int i = 0; i < m_nCount; ++i)
+          aConsumer.accept (_readMessageID (i));
+      });
+    }
+
+    /**
+     * Release the mapping and the channel and delete the files. The segment may
+     * no longer be reachable by other threads when this is called.
+     */
+    void closeAndDelete ()
+    {
+      m_aLock.writeLocked ( () -> {
+        _unmap (m_aBuffer);
+        StreamHelper.close (m_aChannel);
+      });
+      _deleteFile (m_aFile);
+      _deleteFile (m_aLongIDFile);
+    }
+  }
+
+  private final File m_aDirectory;
+  private final long m_nSegmentMillis;
+  private final int m_nMaxRecordsPerSegment;
+  private final LongSupplier m_aClock;
+  // Write lock only for adding and removing segments
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  // Ordered from oldest to newest
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsList <Segment> m_aSegments = new CommonsArrayList <> ();
+  @GuardedBy ("m_aRWLock")
+  private long m_nLastSegmentName = 0;
+  // Makes the check and the append atomic for the same message ID
+  private final Lock [] m_aKeyLocks = new Lock [KEY_LOCK_COUNT];
+  private volatile boolean m_bSyncOnWrite = false;
+
+  public AS4DuplicateManagerSegmentedFile (@Nonnull final File aDirectory) throws IOException
+  {
+    this (aDirectory, DEFAULT_SEGMENT_DURATION, DEFAULT_MAX_RECORDS_PER_SEGMENT, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDirectory
+   *        The directory to store the segment files in. Will be created if it
+   *        does not exist. May not be <code>null</code>.
+   * @param aSegmentDuration
+   *        The maximum time span of a single segment. May not be
+   *        <code>null</code>.
+   * @param nMaxRecordsPerSegment
+   *        The maximum number of records per segment. Must be &gt; 0.
+   * @param aClock
+   *        The clock that returns the current time in milliseconds since the
+   *        epoch. May not be <code>null</code>.
+   * @throws IOException
+   *         If the existing segment files cannot be read
+   */
+  public AS4DuplicateManagerSegmentedFile (@Nonnull final File aDirectory,
+                                           @Nonnull final Duration aSegmentDuration,
+                                           @Nonnegative final int nMaxRecordsPerSegment,
+                                           @Nonnull final LongSupplier aClock) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.notNull (aSegmentDuration, "SegmentDuration");
+    ValueEnforcer.isTrue ( () -> aSegmentDuration.toMillis () > 0, "SegmentDuration must be positive");
+    ValueEnforcer.isGT0 (nMaxRecordsPerSegment, "MaxRecordsPerSegment");
+    ValueEnforcer.notNull (aClock, "Clock");
+    m_aDirectory = aDirectory;
+    m_nSegmentMillis = aSegmentDuration.toMillis ();
+    m_nMaxRecordsPerSegment = nMaxRecordsPerSegment;
+    m_aClock = aClock;
+    for (int i = 0; i < KEY_LOCK_COUNT; ++i)
+      m_aKeyLocks[i] = new ReentrantLock ();
+
+    if (FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aDirectory).isFailure ())
+      throw new IOException ("Failed to create duplicate directory " + aDirectory.getAbsolutePath ());
+    _openExistingSegments ();
+  }
+
+  private void _openExistingSegments () throws IOException
+  {
+    final ICommonsList <File> aFiles = new CommonsArrayList <> ();
+    for (final File aFile : new FileSystemIterator (m_aDirectory))
+      if (aFile.isFile () && aFile.getName ().endsWith (SEGMENT_FILE_EXTENSION))
+        aFiles.add (aFile);
+    // Names are fixed-width hex timestamps, so name order is creation order
+    aFiles.sort (Comparator.comparing (File::getName));
+
+    int nRecords = 0;
+    for (final File aFile : aFiles)
+    {
+      // Use the size of the existing file, in case the settings changed
+      final int nMaxRecords = (int) (aFile.length () / RECORD_SIZE);
+      if (nMaxRecords <= 0)
+      {
+        _deleteFile (aFile);
+        _deleteFile (_getLongIDFile (aFile));
+        continue;
+      }
+      final Segment aSegment = new Segment (aFile, nMaxRecords);
+      aSegment.rebuildIndex ();
+      m_aSegments.add (aSegment);
+      nRecords += aSegment.m_nCount;
+      m_nLastSegmentName = Math.max (m_nLastSegmentName, _parseSegmentName (aFile));
+    }
+    if (aFiles.isNotEmpty ())
+      LOGGER.info ("Rebuilt duplicate index from " + m_aSegments.size () + " segments with " + nRecords + " records");
+  }
+
+  private static long _parseSegmentName (@Nonnull final File aFile)
+  {
+    final String sName = FilenameHelper.getWithoutExtension (aFile.getName ());
+    try
+    {
+      return Long.parseUnsignedLong (sName, 16);
+    }
+    catch (final NumberFormatException ex)
+    {
+      return 0;
+    }
+  }
+
+  @Nonnull
+  private static File _getLongIDFile (@Nonnull final File aSegmentFile)
+  {
+    return new File (aSegmentFile.getParentFile (),
+                     FilenameHelper.getWithoutExtension (aSegmentFile.getName ()) + LONG_ID_FILE_EXTENSION);
+  }
+
+  private static void _deleteFile (@Nonnull final File aFile)
+  {
+    try
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to delete duplicate segment file " + aFile.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * Release a memory mapping right away instead of waiting for the garbage
+   * collector. There is no public API for that, so the JDK internal cleaner is
+   * used if available.
+   */
+  private static void _unmap (@Nonnull final MappedByteBuffer aBuffer)
+  {
+    try
+    {
+      final Class <?> aUnsafeClass = Class.forName ("sun.misc.Unsafe");
+      final Field aField = aUnsafeClass.getDeclaredField ("theUnsafe");
+      aField.setAccessible (true);
+      aUnsafeClass.getMethod ("invokeCleaner", ByteBuffer.class).invoke (aField.get (null), aBuffer);
+    }
+    catch (final ReflectiveOperationException | RuntimeException ex)
+    {
+      LOGGER.debug ("Failed to unmap duplicate segment - leaving it to the garbage collector", ex);
+    }
+  }
+
+  /**
+   * @return The directory in which the segment files are stored. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return <code>true</code> if each record is explicitly flushed to disk
+   *         after writing, <code>false</code> if flushing is left to the
+   *         operating system. Default is <code>false</code>.
+   */
+  public final boolean isSyncOnWrite ()
+  {
+    return m_bSyncOnWrite;
+  }
+
+  /**
+   * Define whether each record should be explicitly flushed to disk. Without
+   * that the records survive a crash of the JVM but not necessarily a crash of
+   * the operating system.
+   *
+   * @param bSyncOnWrite
+   *        <code>true</code> to flush after each write, <code>false</code> to
+   *        let the operating system decide.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4DuplicateManagerSegmentedFile setSyncOnWrite (final boolean bSyncOnWrite)
+  {
+    m_bSyncOnWrite = bSyncOnWrite;
+    return this;
+  }
+
+  /**
+   * @return The number of segment files currently in use. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getSegmentCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aSegments::size);
+  }
+
+  private static long _hash (@Nonnull final String sKey)
+  {
+    // FNV-1a 64 bit
+    long ret = 0xcbf29ce484222325L;
+    for (int i = 0; i < sKey.length (); ++i)
+    {
+      ret ^= sKey.charAt (i);
+      ret *= 0x100000001b3L;
+    }
+    // 0 marks an empty slot in the index
+    return ret == 0 ? 1 : ret;
+  }
+
+  @Nonnull
+  private static String _getKey (@Nonnull final String sMessageID)
+  {
+    if (sMessageID.length () * 3 <= MAX_DATA_LEN ||
+        sMessageID.getBytes (StandardCharsets.UTF_8).length <= MAX_DATA_LEN)
+      return sMessageID;
+    try
+    {
+      final byte [] aDigest = MessageDigest.getInstance ("SHA-256").digest (sMessageID.getBytes (StandardCharsets.UTF_8));
+      return HASHED_ID_PREFIX + StringHelper.getHexEncoded (aDigest);
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("SHA-256 is not supported", ex);
+    }
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private boolean _contains (@Nonnull final String sKey, final long nHash)
+  {
+    // Newest first, as duplicates usually arrive shortly after the original
+    for (int i = m_aSegments.size () - 1; i >= 0; --i)
+      if (m_aSegments.get (i).findRecord (sKey, nHash) >= 0)
+        return true;
+    return false;
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _addSegmentIfNecessary (final long nNow) throws IOException
+  {
+    // Another thread may have added a new segment in the meantime
+    final Segment aLast = m_aSegments.getLastOrNull ();
+    if (aLast != null && aLast.canAppend (nNow, m_nSegmentMillis))
+      return;
+
+    // Unique, fixed-width, ascending file name
+    final long nName = Math.max (nNow, m_nLastSegmentName + 1);
+    m_nLastSegmentName = nName;
+    final File aFile = new File (m_aDirectory, StringHelper.getHexStringLeadingZero (nName, 16) + SEGMENT_FILE_EXTENSION);
+    m_aSegments.add (new Segment (aFile, m_nMaxRecordsPerSegment));
+  }
+
+  @Nullable
+  private static byte [] _getOptionalBytes (@Nullable final String s, @Nonnegative final int nMaxLen)
+  {
+    if (s == null)
+      return null;
+    final byte [] ret = s.getBytes (StandardCharsets.UTF_8);
+    return ret.length <= nMaxLen ? ret : null;
+  }
+
+  @Nonnull
+  public EContinue registerAndCheck (@Nullable final String sMessageID,
+                                     @Nullable final String sProfileID,
+                                     @Nullable final String sPModeID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+    {
+      // No message ID present - don't check for duplication
+      return EContinue.CONTINUE;
+    }
+
+    // Prepare everything outside of the lock
+    final String sKey = _getKey (sMessageID);
+    final long nHash = _hash (sKey);
+    final byte [] aID = sKey.getBytes (StandardCharsets.UTF_8);
+    final byte [] aProfile = _getOptionalBytes (sProfileID, MAX_DATA_LEN - aID.length);
+    final byte [] aPMode = _getOptionalBytes (sPModeID,
+                                              MAX_DATA_LEN - aID.length - (aProfile == null ? 0 : aProfile.length));
+    final String sLongID = sKey.equals (sMessageID) ? null : sMessageID;
+    final boolean bSync = m_bSyncOnWrite;
+
+    final Lock aKeyLock = m_aKeyLocks[(int) nHash & (KEY_LOCK_COUNT - 1)];
+    aKeyLock.lock ();
+    try
+    {
+      while (true)
+      {
+        m_aRWLock.readLock ().lock ();
+        try
+        {
+          if (_contains (sKey, nHash))
+          {
+            // ID already in use
+            return EContinue.BREAK;
+          }
+
+          final long nNow = m_aClock.getAsLong ();
+          final Segment aLast = m_aSegments.getLastOrNull ();
+          if (aLast != null && aLast.tryAppend (nNow, m_nSegmentMillis, aID, aProfile, aPMode, nHash, sLongID, bSync))
+            return EContinue.CONTINUE;
+        }
+        finally
+        {
+          m_aRWLock.readLock ().unlock ();
+        }
+
+        // Start a new segment and try again
+        final long nNow = m_aClock.getAsLong ();
+        m_aRWLock.writeLock ().lock ();
+        try
+        {
+          _addSegmentIfNecessary (nNow);
+        }
+        finally
+        {
+          m_aRWLock.writeLock ().unlock ();
+        }
+      }
+    }
+    catch (final IOException ex)
+    {
+      throw new IllegalStateException ("Failed to persist duplicate message ID '" + sMessageID + "'", ex);
+    }
+    finally
+    {
+      aKeyLock.unlock ();
+    }
+  }
+
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return m_aRWLock.writeLockedGet ( () -> {
+      if (m_aSegments.isEmpty ())
+        return EChange.UNCHANGED;
+      for (final Segment aSegment : m_aSegments)
+        aSegment.closeAndDelete ();
+      m_aSegments.clear ();
+      return EChange.CHANGED;
+    });
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <String> evictAllItemsBefore (@Nonnull final OffsetDateTime aRefDT)
+  {
+    ValueEnforcer.notNull (aRefDT, "RefDT");
+
+    final long nRefMillis = aRefDT.toInstant ().toEpochMilli ();
+    final ICommonsList <String> ret = new CommonsArrayList <> ();
+    final ICommonsList <Segment> aExpired = new CommonsArrayList <> ();
+    m_aRWLock.writeLocked ( () -> {
+      // Segments are ordered, so stop at the first segment not fully expired
+      while (m_aSegments.isNotEmpty ())
+      {
+        final Segment aSegment = m_aSegments.getFirstOrNull ();
+        if (aSegment.m_nCount > 0 && aSegment.m_nMaxTimestamp >= nRefMillis)
+          break;
+        aExpired.add (m_aSegments.removeFirstOrNull ());
+      }
+    });
+
+    // The expired segments are no longer reachable - no global lock needed
+    for (final Segment aSegment : aExpired)
+    {
+      aSegment.forEachMessageID (ret::add);
+      aSegment.closeAndDelete ();
+    }
+    return ret;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size () == 0;
+  }
+
+  @Nonnegative
+  public int size ()
+  {
+    return m_aRWLock.readLockedInt ( () -> {
+      int ret = 0;
+      for (final Segment aSegment : m_aSegments)
+        ret += aSegment.m_nCount;
+      return ret;
+    });
+  }
+
+  @Nullable
+  public IAS4DuplicateItem getItemOfMessageID (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+      return null;
+
+    final String sKey = _getKey (sMessageID);
+    final long nHash = _hash (sKey);
+    return m_aRWLock.readLockedGet ( () -> {
+      for (int i = m_aSegments.size () - 1; i >= 0; --i)
+      {
+        final Segment aSegment = m_aSegments.get (i);
+        final int nRecord = aSegment.findRecord (sKey, nHash);
+        if (nRecord >= 0)
+          return aSegment.readItem (nRecord);
+      }
+      return null;
+    });
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IAS4DuplicateItem> getAll ()
+  {
+    return m_aRWLock.readLockedGet ( () -> {
+      final ICommonsList <IAS4DuplicateItem> ret = new CommonsArrayList <> ();
+      for (final Segment aSegment : m_aSegments)
+      {
+        final int nCount = aSegment.m_nCount;
+        for (int i = 0; i < nCount; ++i)
+          ret.add (aSegment.readItem (i));
+      }
+      return ret;
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Directory", m_aDirectory)
+                                       .append ("SegmentMillis", m_nSegmentMillis)
+                                       .append ("MaxRecordsPerSegment", m_nMaxRecordsPerSegment)
+                                       .append ("SyncOnWrite", m_bSyncOnWrite)
+                                       .getToString ();
+  }
+}
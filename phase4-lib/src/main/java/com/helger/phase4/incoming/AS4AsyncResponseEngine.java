@@ -0,0 +1,751 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.incoming;
+
+import java.io.IOException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerSize;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerSize;
+import com.helger.commons.statistics.IStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.url.URLHelper;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.messaging.http.AS4CircuitOpenException;
+import com.helger.phase4.messaging.http.AS4HttpClientPool;
+import com.helger.phase4.messaging.http.BasicHttpPoster;
+import com.helger.phase4.messaging.http.HttpRetrySettings;
+import com.helger.phase4.util.AS4ExecutorHelper;
+
+/**
+ * Dedicated executor for the processing and sending of asynchronous AS4
+ * responses. It uses a fixed number of threads with a bounded queue, so that a
+ * burst of asynchronous requests cannot exhaust the threads used by the rest of
+ * the application. If the queue is full, the configured
+ * {@link EAS4AsyncResponseRejectionPolicy} is applied. The number of responses
+ * sent in parallel to the same destination (protocol, host and port) is
+ * limited as well. Responses exceeding that limit wait in a queue per
+ * destination without occupying a thread, and retries are scheduled without
+ * occupying a thread or a destination permit. All responses are sent with a
+ * single {@link BasicHttpPoster} using the provided {@link AS4HttpClientPool}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4AsyncResponseEngine implements AutoCloseable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncResponseEngine.class);
+
+  private static final IMutableStatisticsHandlerSize STATS_QUEUE_SIZE = StatisticsManager.getSizeHandler (AS4AsyncResponseEngine.class.getName () +
+                                                                                                          "$queue");
+  private static final IMutableStatisticsHandlerTimer STATS_WAIT_TIME = StatisticsManager.getTimerHandler (AS4AsyncResponseEngine.class.getName () +
+                                                                                                           "$wait");
+  private static final IMutableStatisticsHandlerTimer STATS_SEND_TIME = StatisticsManager.getTimerHandler (AS4AsyncResponseEngine.class.getName () +
+                                                                                                           "$send");
+  private static final IMutableStatisticsHandlerCounter STATS_REJECTED = StatisticsManager.getCounterHandler (AS4AsyncResponseEngine.class.getName () +
+                                                                                                              "$rejected");
+
+  // Used for the single tries
+  private static final HttpRetrySettings NO_RETRY = new HttpRetrySettings ().setMaxRetries (0);
+
+  private final ThreadPoolExecutor m_aExecutor;
+  private final int m_nMaxPerDestination;
+  private final EAS4AsyncResponseRejectionPolicy m_eRejectionPolicy;
+  private final BasicHttpPoster m_aHttpPoster;
+  private final HttpRetrySettings m_aRetrySettings = new HttpRetrySettings ();
+  // Only used to hand over retries to the executor after the backoff
+  private final ScheduledExecutorService m_aRetryScheduler;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  // Contains only destinations with running or waiting tries
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, Destination> m_aDestinations = new CommonsHashMap <> ();
+
+  /**
+   * The state of a single destination.
+   */
+  private static final class Destination
+  {
+    private int m_nActive = 0;
+    private final Queue <AsyncSend <?>> m_aWaiting = new ArrayDeque <> ();
+  }
+
+  /**
+   * Wrapper for tries that were already accepted. They are never run in the
+   * calling thread, independent of the rejection policy.
+   */
+  private static final class ContinuationRunnable implements Runnable
+  {
+    private final Runnable m_aRunnable;
+
+    ContinuationRunnable (@Nonnull final Runnable aRunnable)
+    {
+      m_aRunnable = aRunnable;
+    }
+
+    public void run ()
+    {
+      m_aRunnable.run ();
+    }
+  }
+
+  /**
+   * A single asynchronous response with all its tries.
+   *
+   * @param <T>
+   *        Response data type
+   */
+  private final class AsyncSend <T> implements Runnable
+  {
+    private final String m_sURL;
+    private final String m_sDestinationKey;
+    private final HttpHeaderMap m_aCustomHttpHeaders;
+    private final HttpEntity m_aHttpEntity;
+    private final String m_sMessageID;
+    private final HttpClientResponseHandler <? extends T> m_aResponseHandler;
+    private final IAS4OutgoingDumper m_aOutgoingDumper;
+    private final IAS4RetryCallback m_aRetryCallback;
+    private final CompletableFuture <T> m_aFuture = new CompletableFuture <> ();
+    private final long m_nStart = System.nanoTime ();
+    // Only accessed by one thread at a time
+    private int m_nTry = 0;
+    private Duration m_aDurationBeforeRetry;
+
+    AsyncSend (@Nonnull final String sURL,
+               @Nullable final HttpHeaderMap aCustomHttpHeaders,
+               @Nonnull final HttpEntity aHttpEntity,
+               @Nonnull final String sMessageID,
+               @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler,
+               @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+               @Nullable final IAS4RetryCallback aRetryCallback)
+    {
+      m_sURL = sURL;
+      m_sDestinationKey = getDestinationKey (sURL);
+      m_aCustomHttpHeaders = aCustomHttpHeaders;
+      m_aHttpEntity = aHttpEntity;
+      m_sMessageID = sMessageID;
+      m_aResponseHandler = aResponseHandler;
+      m_aOutgoingDumper = aOutgoingDumper;
+      m_aRetryCallback = aRetryCallback;
+      m_aDurationBeforeRetry = m_aRetrySettings.getDurationBeforeRetry ();
+      m_aFuture.whenComplete ( (x, ex) -> STATS_SEND_TIME.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () -
+                                                                                                  m_nStart)));
+    }
+
+    /**
+     * Run a single try. The caller holds a permit of the destination.
+     */
+    public void run ()
+    {
+      final int nMaxTries = 1 + m_aRetrySettings.getMaxRetries ();
+      if (m_nTry > 0)
+        LOGGER.info ("Retry #" + m_nTry + "/" + (nMaxTries - 1) + " for sending message with ID '" + m_sMessageID + "'");
+
+      T aResult = null;
+      Exception aError = null;
+      try
+      {
+        // Each try is a single send - the retries are scheduled by the engine
+        aResult = m_aHttpPoster.sendGenericMessageWithRetries (m_sURL,
+                                                               m_aCustomHttpHeaders,
+                                                               m_aHttpEntity,
+                                                               m_sMessageID,
+                                                               NO_RETRY,
+                                                               m_aResponseHandler,
+                                                               m_aOutgoingDumper,
+                                                               null);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        aError = ex;
+      }
+      finally
+      {
+        // Never hold the permit while waiting for the next try
+        _executeOrFail (m_sDestinationKey, _release (m_sDestinationKey));
+      }
+
+      if (aError == null)
+        m_aFuture.complete (aResult);
+      else
+        if (aError instanceof IOException && m_nTry < nMaxTries - 1 && !(aError instanceof AS4CircuitOpenException))
+          _scheduleRetry ((IOException) aError, nMaxTries);
+        else
+          m_aFuture.completeExceptionally (aError);
+    }
+
+    private void _scheduleRetry (@Nonnull final IOException ex, final int nMaxTries)
+    {
+      // After the first retry, increase the waiting time
+      if (m_nTry > 1)
+        m_aDurationBeforeRetry = HttpRetrySettings.getIncreased (m_aDurationBeforeRetry,
+                                                                 m_aRetrySettings.getRetryIncreaseFactor ());
+
+      if (m_aRetryCallback != null &&
+          m_aRetryCallback.onBeforeRetry (m_sMessageID,
+                                          m_sURL,
+                                          m_nTry,
+                                          nMaxTries,
+                                          m_aDurationBeforeRetry.toMillis (),
+                                          ex)
+                          .isBreak ())
+      {
+        // Explicitly interrupt retry
+        LOGGER.warn ("Error sending message '" +
+                     m_sMessageID +
+                     "' to '" +
+                     m_sURL +
+                     "': " +
+                     ex.getClass ().getSimpleName () +
+                     " - " +
+                     ex.getMessage () +
+                     " - retrying was explicitly stopped by the RetryCallback");
+        m_aFuture.completeExceptionally (ex);
+        return;
+      }
+
+      LOGGER.warn ("Error sending message '" +
+                   m_sMessageID +
+                   "' to '" +
+                   m_sURL +
+                   "': " +
+                   ex.getClass ().getSimpleName () +
+                   " - " +
+                   ex.getMessage () +
+                   " - waiting " +
+                   m_aDurationBeforeRetry.toMillis () +
+                   " ms, than retrying");
+
+      m_nTry++;
+      try
+      {
+        m_aRetryScheduler.schedule ( () -> _dispatch (this),
+                                     m_aDurationBeforeRetry.toMillis (),
+                                     TimeUnit.MILLISECONDS);
+      }
+      catch (final RejectedExecutionException ex2)
+      {
+        ex.addSuppressed (ex2);
+        m_aFuture.completeExceptionally (ex);
+      }
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nThreads
+   *        The number of threads to use. Must be &gt; 0.
+   * @param nQueueSize
+   *        The maximum number of responses waiting for a free thread. Must be
+   *        &gt; 0.
+   * @param nMaxPerDestination
+   *        The maximum number of responses sent in parallel to a single
+   *        destination. Must be &gt; 0.
+   * @param eRejectionPolicy
+   *        The policy to apply if the queue is full. May not be
+   *        <code>null</code>.
+   * @param aHttpClientPool
+   *        The HTTP client pool to send the responses with. May not be
+   *        <code>null</code>.
+   * @param aRetrySettings
+   *        The HTTP retry settings for sending the responses. The values are
+   *        copied. May not be <code>null</code>.
+   */
+  public AS4AsyncResponseEngine (@Nonnegative final int nThreads,
+                                 @Nonnegative final int nQueueSize,
+                                 @Nonnegative final int nMaxPerDestination,
+                                 @Nonnull final EAS4AsyncResponseRejectionPolicy eRejectionPolicy,
+                                 @Nonnull final AS4HttpClientPool aHttpClientPool,
+                                 @Nonnull final HttpRetrySettings aRetrySettings)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    ValueEnforcer.isGT0 (nMaxPerDestination, "MaxPerDestination");
+    ValueEnforcer.notNull (eRejectionPolicy, "RejectionPolicy");
+    ValueEnforcer.notNull (aHttpClientPool, "HttpClientPool");
+    ValueEnforcer.notNull (aRetrySettings, "RetrySettings");
+
+    final ThreadFactory aThreadFactory = AS4ExecutorHelper.isUseVirtualThreads () ? AS4ExecutorHelper.getVirtualThreadFactory ()
+                                                                                   : new BasicThreadFactory.Builder ().namingPattern (CAS4.LIB_NAME +
+                                                                                                                                      "-async-response-%d")
+                                                                                                                      .daemon (true)
+                                                                                                                      .build ();
+    m_aExecutor = new ThreadPoolExecutor (nThreads,
+                                          nThreads,
+                                          1,
+                                          TimeUnit.MINUTES,
+                                          new ArrayBlockingQueue <> (nQueueSize),
+                                          aThreadFactory,
+                                          this::_onRejected);
+    m_aExecutor.allowCoreThreadTimeOut (true);
+    m_nMaxPerDestination = nMaxPerDestination;
+    m_eRejectionPolicy = eRejectionPolicy;
+    m_aHttpPoster = new BasicHttpPoster ().setHttpClientPool (aHttpClientPool);
+    m_aRetrySettings.assignFrom (aRetrySettings);
+    m_aRetryScheduler = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().namingPattern (CAS4.LIB_NAME +
+                                                                                                                     "-async-response-retry-%d")
+                                                                                                     .daemon (true)
+                                                                                                     .build ());
+
+    LOGGER.info ("Created new AS4 async response engine with " +
+                 nThreads +
+                 " threads, a queue size of " +
+                 nQueueSize +
+                 ", max " +
+                 nMaxPerDestination +
+                 " responses per destination and rejection policy '" +
+                 eRejectionPolicy.getID () +
+                 "'");
+  }
+
+  /**
+   * Create a new engine with the settings from {@link AS4Configuration} and the
+   * default HTTP retry settings.
+   *
+   * @param aHttpClientPool
+   *        The HTTP client pool to send the responses with. May not be
+   *        <code>null</code>.
+   * @return The new engine and never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4AsyncResponseEngine createFromConfiguration (@Nonnull final AS4HttpClientPool aHttpClientPool)
+  {
+    final String sRejectionPolicy = AS4Configuration.getAsyncResponseRejectionPolicy ();
+    EAS4AsyncResponseRejectionPolicy eRejectionPolicy = EAS4AsyncResponseRejectionPolicy.getFromIDOrNull (sRejectionPolicy);
+    if (eRejectionPolicy == null)
+    {
+      LOGGER.warn ("Unsupported async response rejection policy '" + sRejectionPolicy + "' configured - using the default");
+      eRejectionPolicy = EAS4AsyncResponseRejectionPolicy.CALLER_RUNS;
+    }
+    return new AS4AsyncResponseEngine (AS4Configuration.getAsyncResponseThreads (),
+                                       AS4Configuration.getAsyncResponseQueueSize (),
+                                       AS4Configuration.getAsyncResponseMaxPerDestination (),
+                                       eRejectionPolicy,
+                                       aHttpClientPool,
+                                       new HttpRetrySettings ());
+  }
+
+  private void _onRejected (@Nonnull final Runnable aRunnable, @Nonnull final ThreadPoolExecutor aExecutor)
+  {
+    STATS_REJECTED.increment ();
+    if (aExecutor.isShutdown ())
+      throw new RejectedExecutionException ("The AS4 async response engine is already shut down");
+    if (aRunnable instanceof ContinuationRunnable)
+      throw new RejectedExecutionException ("The AS4 async response queue is full - cannot continue sending");
+
+    switch (m_eRejectionPolicy)
+    {
+      case CALLER_RUNS:
+        LOGGER.warn ("The AS4 async response queue is full - processing the response in the calling thread");
+        aRunnable.run ();
+        break;
+      case ABORT:
+        throw new RejectedExecutionException ("The AS4 async response queue is full (" +
+                                              aExecutor.getQueue ().size () +
+                                              " entries)");
+      default:
+        throw new IllegalStateException ("Unsupported rejection policy " + m_eRejectionPolicy);
+    }
+  }
+
+  /**
+   * Get the key used to limit the number of parallel responses.
+   *
+   * @param sURL
+   *        The URL to send to. May not be <code>null</code>.
+   * @return The protocol, host and port of the URL, or the URL itself if it
+   *         cannot be parsed. Never <code>null</code>.
+   */
+  @Nonnull
+  protected static String getDestinationKey (@Nonnull final String sURL)
+  {
+    final URL aURL = URLHelper.getAsURL (sURL);
+    if (aURL == null)
+      return sURL;
+    final int nPort = aURL.getPort () >= 0 ? aURL.getPort () : aURL.getDefaultPort ();
+    return aURL.getProtocol () + "://" + aURL.getHost () + ":" + nPort;
+  }
+
+  /**
+   * @return The number of threads in the engine. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getThreads ()
+  {
+    return m_aExecutor.getMaximumPoolSize ();
+  }
+
+  /**
+   * @return The maximum number of responses sent in parallel to a single
+   *         destination. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxPerDestination ()
+  {
+    return m_nMaxPerDestination;
+  }
+
+  /**
+   * @return The policy applied if the queue is full. Never <code>null</code>.
+   */
+  @Nonnull
+  public final EAS4AsyncResponseRejectionPolicy getRejectionPolicy ()
+  {
+    return m_eRejectionPolicy;
+  }
+
+  /**
+   * @return A copy of the HTTP retry settings used for sending. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final HttpRetrySettings getRetrySettings ()
+  {
+    final HttpRetrySettings ret = new HttpRetrySettings ();
+    ret.assignFrom (m_aRetrySettings);
+    return ret;
+  }
+
+  /**
+   * @return The number of responses currently waiting for a free thread.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getQueueSize ()
+  {
+    return m_aExecutor.getQueue ().size ();
+  }
+
+  /**
+   * @return The approximate number of responses currently being processed.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getActiveCount ()
+  {
+    return m_aExecutor.getActiveCount ();
+  }
+
+  /**
+   * @return The queue size at the time new responses were submitted. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerSize getQueueSizeStatistics ()
+  {
+    return STATS_QUEUE_SIZE;
+  }
+
+  /**
+   * @return The time in milliseconds that responses waited in the queue. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerTimer getWaitTimeStatistics ()
+  {
+    return STATS_WAIT_TIME;
+  }
+
+  /**
+   * @return The time in milliseconds it took to send responses, including
+   *         retries and the wait for a destination. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerTimer getSendTimeStatistics ()
+  {
+    return STATS_SEND_TIME;
+  }
+
+  /**
+   * @return The number of responses that could not be queued. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getRejectedStatistics ()
+  {
+    return STATS_REJECTED;
+  }
+
+  /**
+   * Submit an asynchronous response task. Exceptions of the task are logged and
+   * not propagated.
+   *
+   * @param sTaskName
+   *        The name of the task used for logging. May neither be
+   *        <code>null</code> nor empty.
+   * @param aRunnable
+   *        The task to be run. May not be <code>null</code>.
+   * @return The future that is completed after the task finished. Never
+   *         <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the queue is full and the rejection policy is
+   *         {@link EAS4AsyncResponseRejectionPolicy#ABORT} or if the engine is
+   *         already closed.
+   */
+  @Nonnull
+  public CompletableFuture <Void> submit (@Nonnull @Nonempty final String sTaskName,
+                                          @Nonnull final IThrowingRunnable <? extends Exception> aRunnable)
+  {
+    ValueEnforcer.notEmpty (sTaskName, "TaskName");
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    STATS_QUEUE_SIZE.addSize (m_aExecutor.getQueue ().size ());
+    final long nSubmitted = System.nanoTime ();
+    return CompletableFuture.runAsync ( () -> {
+      STATS_WAIT_TIME.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nSubmitted));
+      try
+      {
+        aRunnable.run ();
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Error running AS4 async response job '" + sTaskName + "'", ex);
+      }
+    }, m_aExecutor);
+  }
+
+  /**
+   * Submit an asynchronous response task that itself completes asynchronously,
+   * e.g. because it calls
+   * {@link #sendGenericMessageAsync(String, HttpHeaderMap, HttpEntity, String, HttpClientResponseHandler, IAS4OutgoingDumper, IAS4RetryCallback)}.
+   * The thread is returned to the engine as soon as the supplier returns.
+   * Exceptions of the task are logged and not propagated.
+   *
+   * @param sTaskName
+   *        The name of the task used for logging. May neither be
+   *        <code>null</code> nor empty.
+   * @param aSupplier
+   *        The task to be run, returning the future of the asynchronous part.
+   *        May not be <code>null</code>.
+   * @return The future that is completed after the future returned by the task
+   *         completed. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the queue is full and the rejection policy is
+   *         {@link EAS4AsyncResponseRejectionPolicy#ABORT} or if the engine is
+   *         already closed.
+   */
+  @Nonnull
+  public CompletableFuture <Void> submitAsync (@Nonnull @Nonempty final String sTaskName,
+                                               @Nonnull final IThrowingSupplier <? extends CompletableFuture <?>, ? extends Exception> aSupplier)
+  {
+    ValueEnforcer.notEmpty (sTaskName, "TaskName");
+    ValueEnforcer.notNull (aSupplier, "Supplier");
+
+    STATS_QUEUE_SIZE.addSize (m_aExecutor.getQueue ().size ());
+    final long nSubmitted = System.nanoTime ();
+    return CompletableFuture.supplyAsync ( () -> {
+      STATS_WAIT_TIME.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nSubmitted));
+      try
+      {
+        return aSupplier.get ();
+      }
+      catch (final Exception ex)
+      {
+        return CompletableFuture.failedFuture (ex);
+      }
+    }, m_aExecutor).thenCompose (aFuture -> aFuture.thenApply (x -> (Void) null)).exceptionally (ex -> {
+      LOGGER.error ("Error running AS4 async response job '" + sTaskName + "'", ex);
+      return null;
+    });
+  }
+
+  /**
+   * Send an asynchronous response with the retry settings of this engine. This
+   * method never blocks. Every try is run on a thread of this engine. If the
+   * maximum number of parallel responses to the same destination is reached,
+   * the try is queued per destination and started as soon as another try to
+   * that destination finished. The permit of a destination is only held while
+   * a try is running and never while waiting for the next retry. Between two
+   * tries no thread of the engine is occupied.
+   *
+   * @param <T>
+   *        Response data type
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aCustomHttpHeaders
+   *        Custom HTTP headers to add. May be <code>null</code>.
+   * @param aHttpEntity
+   *        The HTTP entity to send. Must be repeatable if retries are enabled.
+   *        May not be <code>null</code>.
+   * @param sMessageID
+   *        The AS4 message ID of the response. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The HTTP response handler. May not be <code>null</code>.
+   * @param aOutgoingDumper
+   *        The outgoing dumper to use. May be <code>null</code>.
+   * @param aRetryCallback
+   *        The retry callback to use. May be <code>null</code>.
+   * @return The future that is completed with the result of the response
+   *         handler, or exceptionally with the error of the last try. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> sendGenericMessageAsync (@Nonnull @Nonempty final String sURL,
+                                                            @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                                                            @Nonnull final HttpEntity aHttpEntity,
+                                                            @Nonnull final String sMessageID,
+                                                            @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler,
+                                                            @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                            @Nullable final IAS4RetryCallback aRetryCallback)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+    ValueEnforcer.notNull (sMessageID, "MessageID");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+    if (m_aRetrySettings.isRetryEnabled () && !aHttpEntity.isRepeatable ())
+      throw new IllegalStateException ("If retry is enabled, a repeatable entity must be provided");
+
+    final AsyncSend <T> aSend = new AsyncSend <> (sURL,
+                                                  aCustomHttpHeaders,
+                                                  aHttpEntity,
+                                                  sMessageID,
+                                                  aResponseHandler,
+                                                  aOutgoingDumper,
+                                                  aRetryCallback);
+    _dispatch (aSend);
+    return aSend.m_aFuture;
+  }
+
+  /**
+   * Run the provided try if the destination has a free permit, or queue it
+   * otherwise.
+   */
+  private void _dispatch (@Nonnull final AsyncSend <?> aSend)
+  {
+    final boolean bRunNow = m_aRWLock.writeLockedBoolean ( () -> {
+      final Destination aDest = m_aDestinations.computeIfAbsent (aSend.m_sDestinationKey, k -> new Destination ());
+      if (aDest.m_nActive < m_nMaxPerDestination)
+      {
+        aDest.m_nActive++;
+        return true;
+      }
+      aDest.m_aWaiting.add (aSend);
+      return false;
+    });
+    if (bRunNow)
+      _executeOrFail (aSend.m_sDestinationKey, aSend);
+  }
+
+  /**
+   * Release a permit of the destination. If a try is waiting for the
+   * destination, the permit is handed over to it.
+   *
+   * @return The waiting try that got the permit. May be <code>null</code>.
+   */
+  @Nullable
+  private AsyncSend <?> _release (@Nonnull final String sDestinationKey)
+  {
+    return m_aRWLock.writeLockedGet ( () -> {
+      final Destination aDest = m_aDestinations.get (sDestinationKey);
+      final AsyncSend <?> ret = aDest.m_aWaiting.poll ();
+      if (ret == null)
+      {
+        aDest.m_nActive--;
+        // Evict idle destinations
+        if (aDest.m_nActive == 0)
+          m_aDestinations.remove (sDestinationKey);
+      }
+      return ret;
+    });
+  }
+
+  /**
+   * Execute the provided try that already holds a permit of its destination.
+   * If it cannot be executed, it is failed and its permit is handed over to the
+   * next waiting try of the same destination.
+   */
+  private void _executeOrFail (@Nonnull final String sDestinationKey, @Nullable final AsyncSend <?> aFirst)
+  {
+    AsyncSend <?> aNext = aFirst;
+    while (aNext != null)
+    {
+      try
+      {
+        m_aExecutor.execute (new ContinuationRunnable (aNext));
+        break;
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        aNext.m_aFuture.completeExceptionally (ex);
+      }
+      aNext = _release (sDestinationKey);
+    }
+  }
+
+  /**
+   * @return The number of destinations that currently have a response in
+   *         progress or waiting. Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getActiveDestinationCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aDestinations::size);
+  }
+
+  /**
+   * Stop accepting new responses and wait until all queued responses are
+   * processed. Responses that are waiting for a retry are failed.
+   */
+  public void close ()
+  {
+    LOGGER.info ("Closing AS4 async response engine");
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+    // Run all pending retries now - they fail, because the executor is shut down
+    for (final Runnable aRunnable : m_aRetryScheduler.shutdownNow ())
+      aRunnable.run ();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.incoming;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.phase4.messaging.http.AS4HttpClientPoolManager;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * Global singleton holding the default {@link AS4AsyncResponseEngine}, that is
+ * used if no specific engine is configured in {@link AS4RequestHandler}. The
+ * default engine is configured via
+ * {@link AS4AsyncResponseEngine#createFromConfiguration(com.helger.phase4.messaging.http.AS4HttpClientPool)}
+ * with the default pool of {@link AS4HttpClientPoolManager} and is closed, when
+ * the global scope ends.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4AsyncResponseEngineManager extends AbstractGlobalSingleton
+{
+  private AS4AsyncResponseEngine m_aDefaultEngine;
+
+  @Deprecated (forRemoval = false)
+  @UsedViaReflection
+  public AS4AsyncResponseEngineManager ()
+  {}
+
+  @Nonnull
+  public static AS4AsyncResponseEngineManager getInstance ()
+  {
+    return getGlobalSingleton (AS4AsyncResponseEngineManager.class);
+  }
+
+  /**
+   * @return The default async response engine. Created on demand. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AS4AsyncResponseEngine getDefaultEngine ()
+  {
+    AS4AsyncResponseEngine ret = m_aRWLock.readLockedGet ( () -> m_aDefaultEngine);
+    if (ret == null)
+    {
+      ret = m_aRWLock.writeLockedGet ( () -> {
+        // Try again in write lock
+        if (m_aDefaultEngine == null)
+          m_aDefaultEngine = AS4AsyncResponseEngine.createFromConfiguration (AS4HttpClientPoolManager.getInstance ()
+                                                                                                     .getDefaultPool ());
+        return m_aDefaultEngine;
+      });
+    }
+    return ret;
+  }
+
+  @Override
+  protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
+  {
+    final AS4AsyncResponseEngine aEngine = m_aRWLock.writeLockedGet ( () -> {
+      final AS4AsyncResponseEngine ret = m_aDefaultEngine;
+      m_aDefaultEngine = null;
+      return ret;
+    });
+    if (aEngine != null)
+      aEngine.close ();
+  }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -49,7 +50,6 @@ import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
-import com.helger.commons.lang.ServiceLoaderHelper;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mime.MimeTypeParser;
 import com.helger.commons.state.ESuccess;
@@ -58,6 +58,7 @@ import com.helger.commons.wrapper.Wrapper;
 import com.helger.phase4.attachment.AS4DecompressException;
 import com.helger.phase4.attachment.EAS4CompressionMode;
 import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
+import com.helger.phase4.attachment.IAS4IncomingStreamingAttachmentFactory;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.dump.AS4DumpManager;
@@ -74,6 +75,7 @@ import com.helger.phase4.incoming.soap.AS4SingleSoapHeader;
 import com.helger.phase4.incoming.soap.ISoapHeaderElementProcessor;
 import com.helger.phase4.incoming.soap.SoapHeaderElementProcessorRegistry;
 import com.helger.phase4.incoming.spi.IAS4IncomingMessageProcessingStatusSPI;
+import com.helger.phase4.mgr.AS4SPIRegistry;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.AS4Helper;
 import com.helger.phase4.model.ESoapVersion;
@@ -96,6 +98,7 @@ import com.helger.xml.XMLHelper;
 import com.helger.xml.serialize.read.DOMReader;
 
 import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetHeaders;
 import jakarta.mail.internet.MimeBodyPart;
 
 /**
@@ -188,8 +191,8 @@ public final class AS4IncomingHandler
     final Wrapper <OutputStream> aDumpOSHolder = new Wrapper <> ();
     Exception aCaughtException = null;
 
-    // Load all SPIs
-    final ICommonsList <IAS4IncomingMessageProcessingStatusSPI> aStatusSPIs = ServiceLoaderHelper.getAllSPIImplementations (IAS4IncomingMessageProcessingStatusSPI.class);
+    // Get all SPIs - they are only discovered once
+    final List <IAS4IncomingMessageProcessingStatusSPI> aStatusSPIs = AS4SPIRegistry.getAll (IAS4IncomingMessageProcessingStatusSPI.class);
     for (final IAS4IncomingMessageProcessingStatusSPI aStatusSPI : aStatusSPIs)
       try
       {
@@ -233,6 +236,8 @@ public final class AS4IncomingHandler
           final MultipartStream aMulti = new MultipartStream (aRequestIS,
                                                               sBoundary.getBytes (StandardCharsets.ISO_8859_1),
                                                               (MultipartProgressNotifier) null);
+          // MIME headers are ASCII only
+          aMulti.setHeaderEncoding (StandardCharsets.ISO_8859_1.name ());
 
           int nIndex = 0;
           while (true)
@@ -244,45 +249,65 @@ public final class AS4IncomingHandler
             if (LOGGER.isDebugEnabled ())
               LOGGER.debug ("Found MIME part #" + nIndex);
 
-            try (final MultipartItemInputStream aBodyPartIS = aMulti.createInputStream ())
+            if (nIndex > 0 && aIAF instanceof IAS4IncomingStreamingAttachmentFactory)
             {
-              // Read headers AND content
-              final MimeBodyPart aBodyPart = new MimeBodyPart (aBodyPartIS);
-
-              if (nIndex == 0)
+              // MIME Attachment - read the headers separately and stream the
+              // content without creating a MimeBodyPart
+              if (LOGGER.isDebugEnabled ())
+                LOGGER.debug ("Streaming MIME part #" + nIndex + " as attachment");
+
+              final byte [] aHeaderBytes = aMulti.readHeaders ().getBytes (StandardCharsets.ISO_8859_1);
+              final InternetHeaders aPartHeaders = new InternetHeaders (new NonBlockingByteArrayInputStream (aHeaderBytes));
+              try (final MultipartItemInputStream aContentIS = aMulti.createInputStream ())
               {
-                // First MIME part -> SOAP document
-                if (LOGGER.isDebugEnabled ())
-                  LOGGER.debug ("Parsing first MIME part as SOAP document");
+                final WSS4JAttachment aAttachment = ((IAS4IncomingStreamingAttachmentFactory) aIAF).createAttachment (aPartHeaders,
+                                                                                                                        aContentIS,
+                                                                                                                        aResHelper);
+                aIncomingAttachments.add (aAttachment);
+              }
+            }
+            else
+            {
+              try (final MultipartItemInputStream aBodyPartIS = aMulti.createInputStream ())
+              {
+                // Read headers AND content
+                final MimeBodyPart aBodyPart = new MimeBodyPart (aBodyPartIS);
 
-                // Read SOAP document
-                aSoapDocument = DOMReader.readXMLDOM (aBodyPart.getInputStream ());
+                if (nIndex == 0)
+                {
+                  // First MIME part -> SOAP document
+                  if (LOGGER.isDebugEnabled ())
+                    LOGGER.debug ("Parsing first MIME part as SOAP document");
 
-                IMimeType aPlainPartMT = MimeTypeParser.safeParseMimeType (aBodyPart.getContentType ());
-                if (aPlainPartMT != null)
-                  aPlainPartMT = aPlainPartMT.getCopyWithoutParameters ();
+                  // Read SOAP document
+                  aSoapDocument = DOMReader.readXMLDOM (aBodyPart.getInputStream ());
 
-                // Determine SOAP version from MIME part content type
-                eSoapVersion = ESoapVersion.getFromMimeTypeOrNull (aPlainPartMT);
-                if (eSoapVersion != null && LOGGER.isDebugEnabled ())
-                  LOGGER.debug ("Determined SOAP version " + eSoapVersion + " from Content-Type");
+                  IMimeType aPlainPartMT = MimeTypeParser.safeParseMimeType (aBodyPart.getContentType ());
+                  if (aPlainPartMT != null)
+                    aPlainPartMT = aPlainPartMT.getCopyWithoutParameters ();
 
-                if (eSoapVersion == null && aSoapDocument != null)
-                {
-                  // Determine SOAP version from the read document
-                  eSoapVersion = ESoapVersion.getFromNamespaceURIOrNull (XMLHelper.getNamespaceURI (aSoapDocument));
+                  // Determine SOAP version from MIME part content type
+                  eSoapVersion = ESoapVersion.getFromMimeTypeOrNull (aPlainPartMT);
                   if (eSoapVersion != null && LOGGER.isDebugEnabled ())
-                    LOGGER.debug ("Determined SOAP version " + eSoapVersion + " from XML root element namespace URI");
+                    LOGGER.debug ("Determined SOAP version " + eSoapVersion + " from Content-Type");
+
+                  if (eSoapVersion == null && aSoapDocument != null)
+                  {
+                    // Determine SOAP version from the read document
+                    eSoapVersion = ESoapVersion.getFromNamespaceURIOrNull (XMLHelper.getNamespaceURI (aSoapDocument));
+                    if (eSoapVersion != null && LOGGER.isDebugEnabled ())
+                      LOGGER.debug ("Determined SOAP version " + eSoapVersion + " from XML root element namespace URI");
+                  }
                 }
-              }
-              else
-              {
-                // MIME Attachment (index is gt 0)
-                if (LOGGER.isDebugEnabled ())
-                  LOGGER.debug ("Parsing MIME part #" + nIndex + " as attachment");
+                else
+                {
+                  // MIME Attachment (index is gt 0)
+                  if (LOGGER.isDebugEnabled ())
+                    LOGGER.debug ("Parsing MIME part #" + nIndex + " as attachment");
 
-                final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, aResHelper);
-                aIncomingAttachments.add (aAttachment);
+                  final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, aResHelper);
+                  aIncomingAttachments.add (aAttachment);
+                }
               }
             }
             nIndex++;
@@ -851,7 +876,8 @@ public final class AS4IncomingHandler
                                                                                                              aCryptoFactoryCrypt,
                                                                                                              aSendingPMode,
                                                                                                              aIncomingSecurityConfiguration,
-                                                                                                             aIncomingReceiverConfiguration);
+                                                                                                             aIncomingReceiverConfiguration,
+                                                                                                             aIAF);
 
       // Parse AS4, verify signature etc
       final IAS4IncomingMessageState aIncomingState = processEbmsMessage (aResHelper,
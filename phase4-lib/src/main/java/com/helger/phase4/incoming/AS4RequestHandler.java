@@ -39,9 +39,9 @@ import org.w3c.dom.Node;
 import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
-import com.helger.commons.callback.IThrowingRunnable;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.functional.IThrowingSupplier;
 import com.helger.commons.http.CHttp;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
@@ -84,9 +84,7 @@ import com.helger.phase4.messaging.EAS4MessageMode;
 import com.helger.phase4.messaging.crypto.AS4Encryptor;
 import com.helger.phase4.messaging.crypto.AS4Signer;
 import com.helger.phase4.messaging.http.AS4HttpDebug;
-import com.helger.phase4.messaging.http.BasicHttpPoster;
 import com.helger.phase4.messaging.http.HttpMimeMessageEntity;
-import com.helger.phase4.messaging.http.HttpRetrySettings;
 import com.helger.phase4.messaging.http.HttpXMLEntity;
 import com.helger.phase4.messaging.mime.AS4MimeMessage;
 import com.helger.phase4.messaging.mime.AS4MimeMessageHelper;
@@ -109,7 +107,6 @@ import com.helger.phase4.profile.IAS4Profile;
 import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.phase4.util.AS4XMLHelper;
 import com.helger.phase4.util.Phase4Exception;
-import com.helger.photon.io.PhotonWorkerPool;
 import com.helger.xml.serialize.write.XMLWriter;
 
 import jakarta.mail.MessagingException;
@@ -141,6 +138,7 @@ public class AS4RequestHandler implements AutoCloseable
     private final String m_sResponseMessageID;
     private final Document m_aDoc;
     private final IMimeType m_aMimeType;
+    private HttpXMLEntity m_aHttpEntity;
 
     public AS4ResponseFactoryXML (@Nonnull final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
                                   @Nonnull final IAS4IncomingMessageState aIncomingState,
@@ -160,18 +158,32 @@ public class AS4RequestHandler implements AutoCloseable
       m_aMimeType = aMimeType;
     }
 
+    @Nonnull
+    private HttpXMLEntity _getHttpEntity ()
+    {
+      // The serialized response is needed more than once (SPIs, response,
+      // dumping), so serialize it only once
+      HttpXMLEntity ret = m_aHttpEntity;
+      if (ret == null)
+      {
+        ret = new HttpXMLEntity (m_aDoc, m_aMimeType);
+        ret.getSerializedBytes ();
+        m_aHttpEntity = ret;
+      }
+      return ret;
+    }
+
     @Nonnull
     public HttpEntity getHttpEntityForSending (@Nonnull final IMimeType aMimType)
     {
-      return new HttpXMLEntity (m_aDoc, m_aMimeType);
+      return _getHttpEntity ();
     }
 
     public void applyToResponse (@Nonnull final IAS4ResponseAbstraction aHttpResponse,
                                  @Nullable final IAS4OutgoingDumper aOutgoingDumper)
     {
-      final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
       final Charset aCharset = AS4XMLHelper.XWS.getCharset ();
-      final byte [] aXMLBytes = sXML.getBytes (aCharset);
+      final byte [] aXMLBytes = _getHttpEntity ().getSerializedBytes ();
       aHttpResponse.setContent (aXMLBytes, aCharset);
       aHttpResponse.setMimeType (m_aMimeType);
 
@@ -374,11 +386,13 @@ public class AS4RequestHandler implements AutoCloseable
   private IAS4IncomingDumper m_aIncomingDumper;
   private IAS4OutgoingDumper m_aOutgoingDumper;
   private IAS4RetryCallback m_aRetryCallback;
+  private AS4AsyncResponseEngine m_aAsyncResponseEngine;
   private ISoapProcessingFinalizedCallback m_aSoapProcessingFinalizedCB;
 
   /** By default get all message processors from the global SPI registry */
   private Supplier <? extends ICommonsList <IAS4IncomingMessageProcessorSPI>> m_aProcessorSupplier = AS4IncomingMessageProcessorManager::getAllProcessors;
   private IAS4RequestHandlerErrorConsumer m_aErrorConsumer;
+  private boolean m_bCheckForDuplicates = true;
 
   public AS4RequestHandler (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata)
   {
@@ -714,6 +728,34 @@ public class AS4RequestHandler implements AutoCloseable
     return this;
   }
 
+  /**
+   * @return The engine used to process and send asynchronous responses. May be
+   *         <code>null</code> in which case the default engine of
+   *         {@link AS4AsyncResponseEngineManager} is used.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4AsyncResponseEngine getAsyncResponseEngine ()
+  {
+    return m_aAsyncResponseEngine;
+  }
+
+  /**
+   * Set the engine used to process and send asynchronous responses.
+   *
+   * @param aAsyncResponseEngine
+   *        The engine to use. May be <code>null</code> to use the default
+   *        engine of {@link AS4AsyncResponseEngineManager}.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final AS4RequestHandler setAsyncResponseEngine (@Nullable final AS4AsyncResponseEngine aAsyncResponseEngine)
+  {
+    m_aAsyncResponseEngine = aAsyncResponseEngine;
+    return this;
+  }
+
   /**
    * @return The internal SOAP processing finalized callback. <code>null</code>
    *         by default.
@@ -813,6 +855,35 @@ public class AS4RequestHandler implements AutoCloseable
     return this;
   }
 
+  /**
+   * @return <code>true</code> if incoming messages are checked for duplicates,
+   *         <code>false</code> if not. Default is <code>true</code>.
+   * @since 3.0.0
+   */
+  public final boolean isCheckForDuplicates ()
+  {
+    return m_bCheckForDuplicates;
+  }
+
+  /**
+   * Enable or disable the duplicate message check. If disabled, the message ID
+   * is also not registered in the duplicate manager. Only disable it if the
+   * same message is deliberately processed again, e.g. when replaying dumped
+   * messages.
+   *
+   * @param bCheckForDuplicates
+   *        <code>true</code> to check for duplicates, <code>false</code> to not
+   *        check.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final AS4RequestHandler setCheckForDuplicates (final boolean bCheckForDuplicates)
+  {
+    m_bCheckForDuplicates = bCheckForDuplicates;
+    return this;
+  }
+
   /**
    * Invoke custom SPI message processors
    *
@@ -1586,7 +1657,8 @@ public class AS4RequestHandler implements AutoCloseable
                                                                                                            m_aCryptoFactoryCrypt,
                                                                                                            (IPMode) null,
                                                                                                            m_aIncomingSecurityConfig,
-                                                                                                           m_aIncomingReceiverConfig);
+                                                                                                           m_aIncomingReceiverConfig,
+                                                                                                           m_aIncomingAttachmentFactory);
 
     // Decompose the SOAP message
     final IAS4IncomingMessageState aIncomingState = AS4IncomingHandler.processEbmsMessage (m_aResHelper,
@@ -1610,7 +1682,7 @@ public class AS4RequestHandler implements AutoCloseable
     final Ebms3UserMessage aEbmsUserMessage = aIncomingState.getEbmsUserMessage ();
     final Ebms3SignalMessage aEbmsSignalMessage = aIncomingState.getEbmsSignalMessage ();
 
-    if (aIncomingState.isSoapHeaderElementProcessingSuccessful ())
+    if (m_bCheckForDuplicates && aIncomingState.isSoapHeaderElementProcessingSuccessful ())
     {
       final String sProfileID = aIncomingState.getProfileID ();
 
@@ -1718,8 +1790,13 @@ public class AS4RequestHandler implements AutoCloseable
         // Call asynchronous
         // this should only apply to MEP binding PUSH_PUSH Leg 1
 
+        // Determine the engine in the request thread
+        final AS4AsyncResponseEngine aAsyncResponseEngine = m_aAsyncResponseEngine != null ? m_aAsyncResponseEngine
+                                                                                            : AS4AsyncResponseEngineManager.getInstance ()
+                                                                                                                           .getDefaultEngine ();
+
         // Only leg1 can be async!
-        final IThrowingRunnable <Exception> r = () -> {
+        final IThrowingSupplier <CompletableFuture <?>, Exception> r = () -> {
           // Start async processing
           final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
           final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
@@ -1811,37 +1888,24 @@ public class AS4RequestHandler implements AutoCloseable
                                   sResponseMessageID);
 
           // invoke client with new document
-          final BasicHttpPoster aSender = new BasicHttpPoster ();
-          final Document aAsyncResponse;
-          if (true)
-          {
-            final HttpHeaderMap aResponseHttpHeaders = null;
-            // TODO make async send parameters customizable
-            final HttpRetrySettings aRetrySettings = new HttpRetrySettings ();
-            aAsyncResponse = aSender.sendGenericMessageWithRetries (sAsyncResponseURL,
-                                                                    aResponseHttpHeaders,
-                                                                    aHttpEntity,
-                                                                    sMessageID,
-                                                                    aRetrySettings,
-                                                                    new ResponseHandlerXml (),
-                                                                    m_aOutgoingDumper,
-                                                                    m_aRetryCallback);
-          }
-          else
-          {
-            aAsyncResponse = aSender.sendGenericMessage (sAsyncResponseURL,
-                                                         null,
-                                                         aHttpEntity,
-                                                         new ResponseHandlerXml ());
-          }
-          AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
-                                     (aAsyncResponse == null ? "null"
-                                                             : XMLWriter.getNodeAsString (aAsyncResponse,
-                                                                                          AS4HttpDebug.getDebugXMLWriterSettings ())));
+          final HttpHeaderMap aResponseHttpHeaders = null;
+          // Does not block the thread while waiting for the destination or a
+          // retry
+          return aAsyncResponseEngine.sendGenericMessageAsync (sAsyncResponseURL,
+                                                               aResponseHttpHeaders,
+                                                               aHttpEntity,
+                                                               sMessageID,
+                                                               new ResponseHandlerXml (),
+                                                               m_aOutgoingDumper,
+                                                               m_aRetryCallback)
+                                     .thenAccept (aAsyncResponse -> AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
+                                                                                             (aAsyncResponse == null ? "null"
+                                                                                                                     : XMLWriter.getNodeAsString (aAsyncResponse,
+                                                                                                                                                  AS4HttpDebug.getDebugXMLWriterSettings ()))));
         };
 
-        final CompletableFuture <Void> aFuture = PhotonWorkerPool.getInstance ()
-                                                                 .runThrowing (CAS4.LIB_NAME + " async processing", r);
+        // Throws an exception if the queue is full and the policy is "abort"
+        final CompletableFuture <Void> aFuture = aAsyncResponseEngine.submitAsync (CAS4.LIB_NAME + " async processing", r);
 
         if (m_aSoapProcessingFinalizedCB != null)
         {
@@ -1893,6 +1957,15 @@ public class AS4RequestHandler implements AutoCloseable
         {
           // Too bad - the error message gets dismissed
           LOGGER.warn ("Not sending back the AS4 Error response, because it is prohibited in the PMode");
+
+          // Call optional consumer nevertheless
+          if (m_aErrorConsumer != null)
+            m_aErrorConsumer.onAS4ErrorMessage (aIncomingState,
+                                                aEbmsErrorMessagesTarget,
+                                                AS4ErrorMessage.create (eSoapVersion,
+                                                                        MessageHelperMethods.createEbms3MessageInfo (MessageHelperMethods.createRandomMessageID (),
+                                                                                                                     aIncomingState.getMessageID ()),
+                                                                        aEbmsErrorMessagesTarget));
           sResponseMessageID = null;
           ret = null;
         }
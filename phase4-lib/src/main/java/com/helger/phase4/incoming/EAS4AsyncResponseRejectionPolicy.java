@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.incoming;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines what {@link AS4AsyncResponseEngine} does with an asynchronous
+ * response, if the queue is full.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public enum EAS4AsyncResponseRejectionPolicy implements IHasID <String>
+{
+  /**
+   * The asynchronous response is processed in the thread handling the incoming
+   * request. This slows down the sender and is the default.
+   */
+  CALLER_RUNS ("callerruns"),
+  /**
+   * The incoming request fails with an exception, so that the sender can retry
+   * later.
+   */
+  ABORT ("abort");
+
+  private final String m_sID;
+
+  EAS4AsyncResponseRejectionPolicy (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4AsyncResponseRejectionPolicy getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4AsyncResponseRejectionPolicy.class, sID);
+  }
+
+  @Nullable
+  public static EAS4AsyncResponseRejectionPolicy getFromIDOrDefault (@Nullable final String sID,
+                                                                     @Nullable final EAS4AsyncResponseRejectionPolicy eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4AsyncResponseRejectionPolicy.class, sID, eDefault);
+  }
+}
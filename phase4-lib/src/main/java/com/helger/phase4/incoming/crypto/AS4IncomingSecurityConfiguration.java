@@ -23,6 +23,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 import com.helger.commons.string.ToStringGenerator;
 import com.helger.phase4.crypto.AS4CryptParams;
 import com.helger.phase4.crypto.AS4SigningParams;
+import com.helger.phase4.crypto.IAS4CertificateRevocationChecker;
 import com.helger.phase4.crypto.IAS4DecryptParameterModifier;
 
 /**
@@ -37,6 +38,7 @@ public class AS4IncomingSecurityConfiguration implements IAS4IncomingSecurityCon
   private AS4SigningParams m_aSigningParams;
   private AS4CryptParams m_aCryptParams;
   private IAS4DecryptParameterModifier m_aDecryptParameterModifier;
+  private IAS4CertificateRevocationChecker m_aSigningCertificateRevocationChecker;
 
   public AS4IncomingSecurityConfiguration ()
   {}
@@ -80,12 +82,36 @@ public class AS4IncomingSecurityConfiguration implements IAS4IncomingSecurityCon
     return this;
   }
 
+  @Nullable
+  public IAS4CertificateRevocationChecker getSigningCertificateRevocationChecker ()
+  {
+    return m_aSigningCertificateRevocationChecker;
+  }
+
+  /**
+   * Set the checker for the revocation of the signing certificate of incoming
+   * messages.
+   *
+   * @param a
+   *        The checker to use. May be <code>null</code> to disable the check.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public AS4IncomingSecurityConfiguration setSigningCertificateRevocationChecker (@Nullable final IAS4CertificateRevocationChecker a)
+  {
+    m_aSigningCertificateRevocationChecker = a;
+    return this;
+  }
+
   @Override
   public String toString ()
   {
     return new ToStringGenerator (null).append ("SigningParams", m_aSigningParams)
                                        .append ("CryptParams", m_aCryptParams)
                                        .append ("DecryptParameterModifier", m_aDecryptParameterModifier)
+                                       .append ("SigningCertificateRevocationChecker",
+                                                m_aSigningCertificateRevocationChecker)
                                        .getToString ();
   }
 
@@ -95,6 +121,7 @@ public class AS4IncomingSecurityConfiguration implements IAS4IncomingSecurityCon
     // No SigningParams
     // No CryptParams
     // No DecryptParameterModifier
+    // No SigningCertificateRevocationChecker
     return new AS4IncomingSecurityConfiguration ();
   }
 }
@@ -21,6 +21,7 @@ import javax.annotation.Nullable;
 
 import com.helger.phase4.crypto.AS4CryptParams;
 import com.helger.phase4.crypto.AS4SigningParams;
+import com.helger.phase4.crypto.IAS4CertificateRevocationChecker;
 import com.helger.phase4.crypto.IAS4DecryptParameterModifier;
 
 /**
@@ -79,4 +80,18 @@ public interface IAS4IncomingSecurityConfiguration
    */
   @Nullable
   IAS4DecryptParameterModifier getDecryptParameterModifier ();
+
+  /**
+   * @return An optional checker for the revocation of the signing certificate
+   *         of incoming messages. If present, the check is performed via the
+   *         shared
+   *         {@link com.helger.phase4.crypto.AS4CertificateRevocationCache#getDefaultInstance()}
+   *         after the signature was verified. May be <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  default IAS4CertificateRevocationChecker getSigningCertificateRevocationChecker ()
+  {
+    return null;
+  }
 }
@@ -16,6 +16,8 @@
  */
 package com.helger.phase4.incoming.mgr;
 
+import java.util.List;
+
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -27,8 +29,8 @@ import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
-import com.helger.commons.lang.ServiceLoaderHelper;
 import com.helger.phase4.incoming.spi.IAS4IncomingMessageProcessorSPI;
+import com.helger.phase4.mgr.AS4SPIRegistry;
 
 /**
  * This class manages all the {@link IAS4IncomingMessageProcessorSPI} SPI
@@ -53,7 +55,8 @@ public final class AS4IncomingMessageProcessorManager
    */
   public static void reinitProcessors ()
   {
-    final ICommonsList <IAS4IncomingMessageProcessorSPI> aProcessorSPIs = ServiceLoaderHelper.getAllSPIImplementations (IAS4IncomingMessageProcessorSPI.class);
+    AS4SPIRegistry.reload (IAS4IncomingMessageProcessorSPI.class);
+    final List <IAS4IncomingMessageProcessorSPI> aProcessorSPIs = AS4SPIRegistry.getAll (IAS4IncomingMessageProcessorSPI.class);
     if (aProcessorSPIs.isEmpty ())
       LOGGER.warn ("No AS4 message processor is registered. All incoming messages will be discarded!");
     else
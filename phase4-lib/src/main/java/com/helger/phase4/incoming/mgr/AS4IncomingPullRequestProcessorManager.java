@@ -16,6 +16,8 @@
  */
 package com.helger.phase4.incoming.mgr;
 
+import java.util.List;
+
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -27,8 +29,8 @@ import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
-import com.helger.commons.lang.ServiceLoaderHelper;
 import com.helger.phase4.incoming.spi.IAS4IncomingPullRequestProcessorSPI;
+import com.helger.phase4.mgr.AS4SPIRegistry;
 
 /**
  * This class manages all the {@link IAS4IncomingPullRequestProcessorSPI} SPI
@@ -55,7 +57,8 @@ public final class AS4IncomingPullRequestProcessorManager
    */
   public static void reinitProcessors ()
   {
-    final ICommonsList <IAS4IncomingPullRequestProcessorSPI> aProcessorSPIs = ServiceLoaderHelper.getAllSPIImplementations (IAS4IncomingPullRequestProcessorSPI.class);
+    AS4SPIRegistry.reload (IAS4IncomingPullRequestProcessorSPI.class);
+    final List <IAS4IncomingPullRequestProcessorSPI> aProcessorSPIs = AS4SPIRegistry.getAll (IAS4IncomingPullRequestProcessorSPI.class);
     if (aProcessorSPIs.isEmpty ())
       LOGGER.warn ("No AS4 message processor is registered. All incoming pull requests will be discarded!");
     else
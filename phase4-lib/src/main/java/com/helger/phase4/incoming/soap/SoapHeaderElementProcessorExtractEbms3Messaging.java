@@ -36,6 +36,7 @@ import com.helger.commons.collection.CollectionHelper;
 import com.helger.commons.collection.impl.CommonsHashMap;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.error.IError;
 import com.helger.commons.state.ESuccess;
@@ -43,12 +44,14 @@ import com.helger.commons.string.StringHelper;
 import com.helger.jaxb.validation.CollectingValidationEventHandler;
 import com.helger.phase4.attachment.EAS4CompressionMode;
 import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.ebms3header.Ebms3CollaborationInfo;
 import com.helger.phase4.ebms3header.Ebms3Error;
 import com.helger.phase4.ebms3header.Ebms3MessageInfo;
 import com.helger.phase4.ebms3header.Ebms3Messaging;
 import com.helger.phase4.ebms3header.Ebms3PartInfo;
 import com.helger.phase4.ebms3header.Ebms3PartyId;
+import com.helger.phase4.ebms3header.Ebms3PartyInfo;
 import com.helger.phase4.ebms3header.Ebms3PayloadInfo;
 import com.helger.phase4.ebms3header.Ebms3Property;
 import com.helger.phase4.ebms3header.Ebms3PullRequest;
@@ -209,6 +212,31 @@ public class SoapHeaderElementProcessorExtractEbms3Messaging implements ISoapHea
     return aBody != null && aBody.hasChildNodes ();
   }
 
+  /**
+   * Check if the XSD validation of the provided, not yet validated header may
+   * be skipped. This is only the case for a single user message from one of
+   * the provided senders, that contains the mandatory party information
+   * accessed later on.
+   */
+  private static boolean _isSkipXSDValidation (@Nonnull final Ebms3Messaging aMessaging,
+                                               @Nonnull final ICommonsSet <String> aSkipXSDSenders)
+  {
+    if (aMessaging.getUserMessageCount () != 1 || aMessaging.hasSignalMessageEntries ())
+      return false;
+
+    final Ebms3PartyInfo aPartyInfo = aMessaging.getUserMessageAtIndex (0).getPartyInfo ();
+    if (aPartyInfo == null ||
+        aPartyInfo.getFrom () == null ||
+        aPartyInfo.getTo () == null ||
+        aPartyInfo.getTo ().hasNoPartyIdEntries ())
+      return false;
+
+    for (final Ebms3PartyId aPartyID : aPartyInfo.getFrom ().getPartyId ())
+      if (aSkipXSDSenders.contains (aPartyID.getValue ()))
+        return true;
+    return false;
+  }
+
   private void _notifyPModeResolved (@Nonnull final IPMode aPMode)
   {
     if (m_aPModeConsumer != null)
@@ -231,8 +259,20 @@ public class SoapHeaderElementProcessorExtractEbms3Messaging implements ISoapHea
     final Locale aLocale = aIncomingState.getLocale ();
 
     // Parse EBMS3 Messaging object
+    Ebms3Messaging aMessaging = null;
+    final ICommonsSet <String> aSkipXSDSenders = AS4Configuration.getIncomingXSDValidationSkipSenders ();
+    if (aSkipXSDSenders.isNotEmpty ())
+    {
+      // Errors are reported by the validating read below
+      final Ebms3Messaging aUnvalidated = new Ebms3MessagingMarshaller ().setValidationEventHandler (new CollectingValidationEventHandler ())
+                                                                         .setUseSchema (false)
+                                                                         .read (aElement);
+      if (aUnvalidated != null && _isSkipXSDValidation (aUnvalidated, aSkipXSDSenders))
+        aMessaging = aUnvalidated;
+    }
     final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
-    final Ebms3Messaging aMessaging = new Ebms3MessagingMarshaller ().setValidationEventHandler (aCVEH).read (aElement);
+    if (aMessaging == null)
+      aMessaging = new Ebms3MessagingMarshaller ().setValidationEventHandler (aCVEH).read (aElement);
 
     // If the ebms3reader above fails aMessaging will be null => invalid/not
     // wellformed
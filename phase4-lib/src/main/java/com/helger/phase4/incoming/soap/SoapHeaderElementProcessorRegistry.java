@@ -33,6 +33,7 @@ import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsLinkedHashMap;
 import com.helger.commons.collection.impl.ICommonsOrderedMap;
 import com.helger.commons.equals.EqualsHelper;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
 import com.helger.phase4.crypto.AS4SigningParams;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.crypto.IAS4DecryptParameterModifier;
@@ -100,6 +101,47 @@ public class SoapHeaderElementProcessorRegistry
                                                                   @Nullable final IPMode aFallbackPMode,
                                                                   @Nonnull final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration,
                                                                   @Nonnull final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration)
+  {
+    return createDefault (aPModeResolver,
+                          aCryptoFactorySign,
+                          aCryptoFactoryCrypt,
+                          aFallbackPMode,
+                          aIncomingSecurityConfiguration,
+                          aIncomingReceiverConfiguration,
+                          IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE);
+  }
+
+  /**
+   * Create the default registry with the Ebms3Messaging and the WSS4J
+   * processors.
+   *
+   * @param aPModeResolver
+   *        PMode resolver. May not be <code>null</code>.
+   * @param aCryptoFactorySign
+   *        Crypto factory for signature verification. May not be
+   *        <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        Crypto factory for decryption. May not be <code>null</code>.
+   * @param aFallbackPMode
+   *        Fallback PMode. May be <code>null</code>.
+   * @param aIncomingSecurityConfiguration
+   *        Incoming security configuration. May not be <code>null</code>.
+   * @param aIncomingReceiverConfiguration
+   *        Incoming receiver configuration. May not be <code>null</code>.
+   * @param aIAF
+   *        The incoming attachment factory that also handles decrypted
+   *        attachments. May not be <code>null</code>.
+   * @return The new registry and never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static SoapHeaderElementProcessorRegistry createDefault (@Nonnull final IPModeResolver aPModeResolver,
+                                                                  @Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                                                  @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                                                  @Nullable final IPMode aFallbackPMode,
+                                                                  @Nonnull final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration,
+                                                                  @Nonnull final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration,
+                                                                  @Nonnull final IAS4IncomingAttachmentFactory aIAF)
   {
     // Register all SOAP header element processors
     // Registration order matches execution order!
@@ -138,7 +180,9 @@ public class SoapHeaderElementProcessorRegistry
                                                                              aCryptoFactoryCrypt,
                                                                              aSecurityProviderSignVerify,
                                                                              aFallbackPModeProvider,
-                                                                             aDecryptParameterModifier));
+                                                                             aDecryptParameterModifier,
+                                                                             aIAF,
+                                                                             aIncomingSecurityConfiguration.getSigningCertificateRevocationChecker ()));
     return ret;
   }
 }
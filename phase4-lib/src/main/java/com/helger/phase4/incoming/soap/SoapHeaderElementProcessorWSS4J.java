@@ -16,7 +16,6 @@
  */
 package com.helger.phase4.incoming.soap;
 
-import java.io.File;
 import java.io.IOException;
 import java.security.Provider;
 import java.security.cert.X509Certificate;
@@ -47,19 +46,19 @@ import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.CommonsHashSet;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsSet;
-import com.helger.commons.io.file.FileHelper;
-import com.helger.commons.io.stream.HasInputStream;
-import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.regex.RegExCache;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
 import com.helger.phase4.CAS4;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.attachment.WSS4JAttachmentCallbackHandler;
 import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.crypto.AS4CertificateRevocationCache;
 import com.helger.phase4.crypto.ECryptoAlgorithmSign;
 import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.phase4.crypto.ECryptoMode;
+import com.helger.phase4.crypto.IAS4CertificateRevocationChecker;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.crypto.IAS4DecryptParameterModifier;
 import com.helger.phase4.ebms3header.Ebms3Error;
@@ -90,21 +89,102 @@ public class SoapHeaderElementProcessorWSS4J implements ISoapHeaderElementProces
   private final Provider m_aSecurityProviderSignVerify;
   private final Supplier <? extends IPMode> m_aFallbackPModeProvider;
   private final IAS4DecryptParameterModifier m_aDecryptParameterModifier;
+  private final IAS4IncomingAttachmentFactory m_aIAF;
+  private final IAS4CertificateRevocationChecker m_aSigningCertRevocationChecker;
 
   public SoapHeaderElementProcessorWSS4J (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
                                           @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
                                           @Nullable final Provider aSecurityProviderSignVerify,
                                           @Nonnull final Supplier <? extends IPMode> aFallbackPModeProvider,
                                           @Nullable final IAS4DecryptParameterModifier aDecryptParameterModifier)
+  {
+    this (aCryptoFactorySign,
+          aCryptoFactoryCrypt,
+          aSecurityProviderSignVerify,
+          aFallbackPModeProvider,
+          aDecryptParameterModifier,
+          IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aCryptoFactorySign
+   *        The crypto factory for signature verification. May not be
+   *        <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        The crypto factory for decryption. May not be <code>null</code>.
+   * @param aSecurityProviderSignVerify
+   *        The security provider for signature verification. May be
+   *        <code>null</code>.
+   * @param aFallbackPModeProvider
+   *        The fallback PMode provider. May not be <code>null</code>.
+   * @param aDecryptParameterModifier
+   *        The optional decrypt parameter modifier. May be <code>null</code>.
+   * @param aIAF
+   *        The incoming attachment factory that decides how decrypted
+   *        attachments are stored. May not be <code>null</code>.
+   * @since 3.0.0
+   */
+  public SoapHeaderElementProcessorWSS4J (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                          @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                          @Nullable final Provider aSecurityProviderSignVerify,
+                                          @Nonnull final Supplier <? extends IPMode> aFallbackPModeProvider,
+                                          @Nullable final IAS4DecryptParameterModifier aDecryptParameterModifier,
+                                          @Nonnull final IAS4IncomingAttachmentFactory aIAF)
+  {
+    this (aCryptoFactorySign,
+          aCryptoFactoryCrypt,
+          aSecurityProviderSignVerify,
+          aFallbackPModeProvider,
+          aDecryptParameterModifier,
+          aIAF,
+          null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aCryptoFactorySign
+   *        The crypto factory for signature verification. May not be
+   *        <code>null</code>.
+   * @param aCryptoFactoryCrypt
+   *        The crypto factory for decryption. May not be <code>null</code>.
+   * @param aSecurityProviderSignVerify
+   *        The security provider for signature verification. May be
+   *        <code>null</code>.
+   * @param aFallbackPModeProvider
+   *        The fallback PMode provider. May not be <code>null</code>.
+   * @param aDecryptParameterModifier
+   *        The optional decrypt parameter modifier. May be <code>null</code>.
+   * @param aIAF
+   *        The incoming attachment factory that decides how decrypted
+   *        attachments are stored. May not be <code>null</code>.
+   * @param aSigningCertRevocationChecker
+   *        The optional revocation checker for the signing certificate. If
+   *        present, it is invoked via the shared
+   *        {@link AS4CertificateRevocationCache}. May be <code>null</code>.
+   * @since 3.0.0
+   */
+  public SoapHeaderElementProcessorWSS4J (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                          @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                          @Nullable final Provider aSecurityProviderSignVerify,
+                                          @Nonnull final Supplier <? extends IPMode> aFallbackPModeProvider,
+                                          @Nullable final IAS4DecryptParameterModifier aDecryptParameterModifier,
+                                          @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                          @Nullable final IAS4CertificateRevocationChecker aSigningCertRevocationChecker)
   {
     ValueEnforcer.notNull (aCryptoFactorySign, "CryptoFactorySign");
     ValueEnforcer.notNull (aCryptoFactoryCrypt, "CryptoFactoryCrypt");
     ValueEnforcer.notNull (aFallbackPModeProvider, "FallbackPModeProvider");
+    ValueEnforcer.notNull (aIAF, "IAF");
     m_aCryptoFactorySign = aCryptoFactorySign;
     m_aCryptoFactoryCrypt = aCryptoFactoryCrypt;
     m_aSecurityProviderSignVerify = aSecurityProviderSignVerify;
     m_aFallbackPModeProvider = aFallbackPModeProvider;
     m_aDecryptParameterModifier = aDecryptParameterModifier;
+    m_aIAF = aIAF;
+    m_aSigningCertRevocationChecker = aSigningCertRevocationChecker;
   }
 
   @Nonnull
@@ -229,6 +309,22 @@ public class SoapHeaderElementProcessorWSS4J implements ISoapHeaderElementProces
           aUsedCert = null;
       }
 
+      // Check the revocation of the signing certificate via the shared cache
+      if (m_aSigningCertRevocationChecker != null &&
+          aUsedCert != null &&
+          (nWSS4JSecurityActions & WSConstants.SIGN) == WSConstants.SIGN)
+      {
+        if (AS4CertificateRevocationCache.getDefaultInstance ().isRevoked (aUsedCert, m_aSigningCertRevocationChecker))
+        {
+          final String sDetails = "The signing certificate of the incoming message is revoked";
+          LOGGER.error (sDetails);
+          aProcessingErrorMessagesTarget.add (EEbmsError.EBMS_FAILED_AUTHENTICATION.errorBuilder (aLocale)
+                                                                                   .errorDetail (sDetails)
+                                                                                   .build ());
+          return ESuccess.FAILURE;
+        }
+      }
+
       // Remember in State
       aIncomingState.setUsedCertificate (aUsedCert);
       aIncomingState.setDecryptedSoapDocument (aSOAPDoc);
@@ -239,21 +335,9 @@ public class SoapHeaderElementProcessorWSS4J implements ISoapHeaderElementProces
       final ICommonsList <WSS4JAttachment> aResponseAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
       for (final WSS4JAttachment aResponseAttachment : aResponseAttachments)
       {
-        // Always copy to a temporary file, so that decrypted content can be
-        // read more than once. By default the stream can only be read once
-        // Not nice, but working :)
-        final File aTempFile = aIncomingState.getResourceHelper ().createTempFile ();
-        if (StreamHelper.copyByteStream ()
-                        .from (aResponseAttachment.getSourceStream ())
-                        .closeFrom (true)
-                        .to (FileHelper.getBufferedOutputStream (aTempFile))
-                        .closeTo (true)
-                        .build ()
-                        .isFailure ())
-        {
-          LOGGER.error ("Failed to write response attachment to temporary file '" + aTempFile.getAbsolutePath () + "'");
-        }
-        aResponseAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
+        // By default the decrypted stream can only be read once - let the
+        // attachment factory decide where the decrypted content goes
+        m_aIAF.handleDecryptedAttachment (aResponseAttachment, aIncomingState.getResourceHelper ());
       }
 
       // Remember in State
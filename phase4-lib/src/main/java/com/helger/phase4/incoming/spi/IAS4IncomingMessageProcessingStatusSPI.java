@@ -26,7 +26,10 @@ import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
  * Specific callback interface to inform interested entities about the end of
  * processing of an incoming message.<br>
  * Note: this interface is NOT called for outgoing messages, as for sending it
- * is clean and deterministic when it is done.
+ * is clean and deterministic when it is done.<br>
+ * Since 3.0.0 the implementations are discovered only once via
+ * {@link com.helger.phase4.mgr.AS4SPIRegistry} and shared between all incoming
+ * messages, so they must be thread-safe.
  *
  * @author Philip Helger
  * @since 2.5.0
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.HttpClientSettings;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.util.AS4ExecutorHelper;
+
+/**
+ * The non-blocking counterpart of {@link AS4HttpClientPool}. It is based on the
+ * asynchronous Apache HttpClient 5 client, so that no thread is blocked while
+ * waiting for the response of the receiver. The number of concurrent
+ * connections per destination is bounded by the pool - additional requests to
+ * the same destination are queued until a connection becomes available.<br>
+ * All the HTTP client settings (TLS, proxy, timeouts etc.) are taken from the
+ * provided {@link HttpClientFactory}. An instance of this class should be
+ * created once and shared between all senders using the same settings. It must
+ * be closed explicitly when no longer needed.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4AsyncHttpClientPool implements AutoCloseable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncHttpClientPool.class);
+
+  private final PoolingAsyncClientConnectionManager m_aConnMgr;
+  private final CloseableHttpAsyncClient m_aHttpClient;
+  private final ExecutorService m_aEntityExecutor;
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+  /**
+   * Constructor using the default pool sizes of {@link AS4HttpClientPool}.
+   *
+   * @param aHttpClientFactory
+   *        The HTTP client factory providing the settings. May not be
+   *        <code>null</code>.
+   */
+  public AS4AsyncHttpClientPool (@Nonnull final HttpClientFactory aHttpClientFactory)
+  {
+    this (aHttpClientFactory,
+          AS4HttpClientPool.DEFAULT_MAX_TOTAL,
+          AS4HttpClientPool.DEFAULT_MAX_PER_ROUTE,
+          AS4HttpClientPool.DEFAULT_MAX_IDLE_TIME);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aHttpClientFactory
+   *        The HTTP client factory providing the settings. May not be
+   *        <code>null</code>.
+   * @param nMaxTotal
+   *        The maximum number of connections overall. Must be &gt; 0.
+   * @param nDefaultMaxPerRoute
+   *        The default maximum number of concurrent connections per route
+   *        (receiver). Must be &gt; 0.
+   * @param aMaxIdleTime
+   *        The duration after which idle connections are closed. May not be
+   *        <code>null</code>.
+   */
+  public AS4AsyncHttpClientPool (@Nonnull final HttpClientFactory aHttpClientFactory,
+                                 @Nonnegative final int nMaxTotal,
+                                 @Nonnegative final int nDefaultMaxPerRoute,
+                                 @Nonnull final Duration aMaxIdleTime)
+  {
+    ValueEnforcer.notNull (aHttpClientFactory, "HttpClientFactory");
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    ValueEnforcer.isGT0 (nDefaultMaxPerRoute, "DefaultMaxPerRoute");
+    ValueEnforcer.notNull (aMaxIdleTime, "MaxIdleTime");
+
+    final HttpClientSettings aSettings = aHttpClientFactory.httpClientSettings ();
+
+    final PoolingAsyncClientConnectionManagerBuilder aCMBuilder = PoolingAsyncClientConnectionManagerBuilder.create ()
+                                                                                                             .setDnsResolver (aHttpClientFactory.createDNSResolver ())
+                                                                                                             .setDefaultConnectionConfig (aHttpClientFactory.createConnectionConfig ())
+                                                                                                             // AS4 is always
+                                                                                                             // HTTP/1.1
+                                                                                                             .setDefaultTlsConfig (TlsConfig.custom ()
+                                                                                                                                            .setVersionPolicy (HttpVersionPolicy.FORCE_HTTP_1)
+                                                                                                                                            .build ())
+                                                                                                             .setPoolConcurrencyPolicy (PoolConcurrencyPolicy.STRICT)
+                                                                                                             .setMaxConnTotal (nMaxTotal)
+                                                                                                             .setMaxConnPerRoute (nDefaultMaxPerRoute);
+    final SSLContext aSSLContext = aSettings.getSSLContext ();
+    if (aSSLContext != null)
+    {
+      // The same SSL context is used for all connections, so TLS sessions can
+      // be resumed
+      final ClientTlsStrategyBuilder aTlsBuilder = ClientTlsStrategyBuilder.create ().setSslContext (aSSLContext);
+      if (aSettings.getHostnameVerifier () != null)
+        aTlsBuilder.setHostnameVerifier (aSettings.getHostnameVerifier ());
+      aCMBuilder.setTlsStrategy (aTlsBuilder.build ());
+    }
+    m_aConnMgr = aCMBuilder.build ();
+
+    final HttpAsyncClientBuilder aClientBuilder = HttpAsyncClients.custom ()
+                                                                  .setConnectionManager (m_aConnMgr)
+                                                                  .setConnectionManagerShared (false)
+                                                                  .setDefaultRequestConfig (aHttpClientFactory.createRequestConfig ())
+                                                                  .setDefaultCredentialsProvider (aHttpClientFactory.createCredentialsProvider ())
+                                                                  // Don't bind connections to a TLS client
+                                                                  // principal - otherwise they would not
+                                                                  // be reused
+                                                                  .disableConnectionState ()
+                                                                  .disableCookieManagement ()
+                                                                  .evictExpiredConnections ()
+                                                                  .evictIdleConnections (TimeValue.of (aMaxIdleTime));
+    if (aSettings.getRetryCount () > 0)
+      aClientBuilder.setRetryStrategy (aHttpClientFactory.createRequestRetryStrategy (aSettings.getRetryCount (),
+                                                                                     aSettings.getRetryIntervalAsTimeValue (),
+                                                                                     aSettings.isRetryAlways ()));
+    else
+    {
+      // Retries are handled by phase4
+      aClientBuilder.disableAutomaticRetries ();
+    }
+    if (aSettings.getProxyHost () != null)
+      aClientBuilder.setProxy (aSettings.getProxyHost ());
+    if (StringHelper.hasText (aSettings.getUserAgent ()))
+      aClientBuilder.setUserAgent (aSettings.getUserAgent ());
+    m_aHttpClient = aClientBuilder.build ();
+
+    // Start the I/O reactor
+    m_aHttpClient.start ();
+
+    // Writing classic entities may block until the I/O reactor consumed the
+    // data, so it must not happen on the I/O reactor threads
+    final ThreadFactory aThreadFactory = AS4ExecutorHelper.isUseVirtualThreads () ? AS4ExecutorHelper.getVirtualThreadFactory ()
+                                                                                   : new BasicThreadFactory.Builder ().namingPattern (CAS4.LIB_NAME +
+                                                                                                                                      "-async-entity-%d")
+                                                                                                                      .daemon (true)
+                                                                                                                      .build ();
+    m_aEntityExecutor = Executors.newCachedThreadPool (aThreadFactory);
+
+    LOGGER.info ("Created new AS4 async HTTP client pool with max " +
+                 nMaxTotal +
+                 " connections and max " +
+                 nDefaultMaxPerRoute +
+                 " connections per route");
+  }
+
+  @Nonnull
+  private static HttpRoute _getRoute (@Nonnull final HttpHost aTarget)
+  {
+    return new HttpRoute (aTarget, null, "https".equalsIgnoreCase (aTarget.getSchemeName ()));
+  }
+
+  /**
+   * Set a custom maximum number of concurrent connections for a single target
+   * host.
+   *
+   * @param aTarget
+   *        The target host, including scheme and port. May not be
+   *        <code>null</code>.
+   * @param nMaxPerRoute
+   *        The maximum number of connections to that host. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4AsyncHttpClientPool setMaxPerRoute (@Nonnull final HttpHost aTarget,
+                                                      @Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.notNull (aTarget, "Target");
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aConnMgr.setMaxPerRoute (_getRoute (aTarget), nMaxPerRoute);
+    return this;
+  }
+
+  /**
+   * @return The overall pool statistics, containing the number of leased,
+   *         available and pending connections. Never <code>null</code>.
+   */
+  @Nonnull
+  public final PoolStats getTotalStats ()
+  {
+    return m_aConnMgr.getTotalStats ();
+  }
+
+  /**
+   * Get the pool statistics for a single target host.
+   *
+   * @param aTarget
+   *        The target host, including scheme and port. May not be
+   *        <code>null</code>.
+   * @return The pool statistics of that host. Never <code>null</code>.
+   */
+  @Nonnull
+  public final PoolStats getStats (@Nonnull final HttpHost aTarget)
+  {
+    ValueEnforcer.notNull (aTarget, "Target");
+    return m_aConnMgr.getStats (_getRoute (aTarget));
+  }
+
+  /**
+   * @return The pool statistics of all routes currently known to the pool.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public final ICommonsMap <HttpRoute, PoolStats> getAllRouteStats ()
+  {
+    final ICommonsMap <HttpRoute, PoolStats> ret = new CommonsHashMap <> ();
+    for (final HttpRoute aRoute : m_aConnMgr.getRoutes ())
+      ret.put (aRoute, m_aConnMgr.getStats (aRoute));
+    return ret;
+  }
+
+  /**
+   * @return The executor on which outgoing classic HTTP entities are streamed
+   *         to the I/O reactor. It is shut down when this pool is closed.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final Executor getEntityExecutor ()
+  {
+    return m_aEntityExecutor;
+  }
+
+  /**
+   * @return <code>true</code> if this pool was already closed.
+   */
+  public final boolean isClosed ()
+  {
+    return m_aClosed.get ();
+  }
+
+  /**
+   * Execute the provided request using a pooled connection. This method
+   * returns immediately. The response body is fully buffered in memory.
+   *
+   * @param aRequest
+   *        The request to be executed. May not be <code>null</code>.
+   * @return The future that is completed with the HTTP response or
+   *         exceptionally in case of a transport error. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         If the pool was already closed
+   */
+  @Nonnull
+  public CompletableFuture <SimpleHttpResponse> execute (@Nonnull final SimpleHttpRequest aRequest)
+  {
+    ValueEnforcer.notNull (aRequest, "Request");
+    return execute (SimpleRequestProducer.create (aRequest), SimpleResponseConsumer.create ());
+  }
+
+  /**
+   * Execute the provided request using a pooled connection. This method
+   * returns immediately. The request body is streamed by the provided
+   * producer and the response is handled by the provided consumer.
+   *
+   * @param <T>
+   *        Response type
+   * @param aRequestProducer
+   *        The request producer to be used. May not be <code>null</code>.
+   * @param aResponseConsumer
+   *        The response consumer to be used. May not be <code>null</code>.
+   * @return The future that is completed with the consumed response or
+   *         exceptionally in case of a transport error. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         If the pool was already closed
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> execute (@Nonnull final AsyncRequestProducer aRequestProducer,
+                                            @Nonnull final AsyncResponseConsumer <T> aResponseConsumer)
+  {
+    ValueEnforcer.notNull (aRequestProducer, "RequestProducer");
+    ValueEnforcer.notNull (aResponseConsumer, "ResponseConsumer");
+    if (m_aClosed.get ())
+      throw new IllegalStateException ("This AS4 async HTTP client pool was already closed");
+
+    final CompletableFuture <T> ret = new CompletableFuture <> ();
+    m_aHttpClient.execute (aRequestProducer, aResponseConsumer, new FutureCallback <T> ()
+    {
+      public void completed (final T aResponse)
+      {
+        ret.complete (aResponse);
+      }
+
+      public void failed (final Exception ex)
+      {
+        ret.completeExceptionally (ex);
+      }
+
+      public void cancelled ()
+      {
+        ret.cancel (false);
+      }
+    });
+    return ret;
+  }
+
+  public void close ()
+  {
+    if (m_aClosed.compareAndSet (false, true))
+    {
+      LOGGER.info ("Closing AS4 async HTTP client pool");
+      m_aHttpClient.close (CloseMode.GRACEFUL);
+      m_aEntityExecutor.shutdown ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("TotalStats", m_aConnMgr.getTotalStats ())
+                                       .append ("Closed", m_aClosed.get ())
+                                       .getToString ();
+  }
+}
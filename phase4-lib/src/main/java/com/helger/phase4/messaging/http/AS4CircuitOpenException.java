@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * Special exception thrown if a message is not sent, because the circuit of
+ * the destination endpoint is open. See {@link AS4EndpointHealthRegistry}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class AS4CircuitOpenException extends IOException
+{
+  private final String m_sURL;
+  private final long m_nRetryAfterMillis;
+
+  public AS4CircuitOpenException (@Nonnull @Nonempty final String sURL, @Nonnegative final long nRetryAfterMillis)
+  {
+    super ("The circuit for endpoint '" +
+           sURL +
+           "' is open - not sending the message. Next try possible in " +
+           nRetryAfterMillis +
+           " ms");
+    m_sURL = sURL;
+    m_nRetryAfterMillis = nRetryAfterMillis;
+  }
+
+  /**
+   * @return The URL of the endpoint with the open circuit.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getURL ()
+  {
+    return m_sURL;
+  }
+
+  /**
+   * @return The milliseconds after which the next probe message may be sent.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public final long getRetryAfterMillis ()
+  {
+    return m_nRetryAfterMillis;
+  }
+}
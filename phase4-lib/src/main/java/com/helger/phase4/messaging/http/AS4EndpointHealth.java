@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The health of a single endpoint, identified by its URL, including the state
+ * of its circuit breaker:
+ * <ul>
+ * <li>{@link EAS4CircuitState#CLOSED}: all messages are sent. After the
+ * configured number of consecutive failures, the circuit is opened.</li>
+ * <li>{@link EAS4CircuitState#OPEN}: no message is sent, until the configured
+ * open duration elapsed.</li>
+ * <li>{@link EAS4CircuitState#HALF_OPEN}: exactly one probe message is sent. If
+ * it succeeds the circuit is closed, otherwise it is opened again.</li>
+ * </ul>
+ * Additionally the outcome and the latency of the last
+ * {@link AS4EndpointHealthRegistry#getWindowSize()} calls are kept, to provide
+ * a failure rate and latency percentiles.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4EndpointHealth
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EndpointHealth.class);
+
+  private final AS4EndpointHealthRegistry m_aRegistry;
+  private final String m_sURL;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private EAS4CircuitState m_eState = EAS4CircuitState.CLOSED;
+  @GuardedBy ("m_aLock")
+  private int m_nConsecutiveFailures = 0;
+  @GuardedBy ("m_aLock")
+  private long m_nOpenedMillis = 0;
+  @GuardedBy ("m_aLock")
+  private boolean m_bProbeInFlight = false;
+  @GuardedBy ("m_aLock")
+  private long m_nTotalSuccesses = 0;
+  @GuardedBy ("m_aLock")
+  private long m_nTotalFailures = 0;
+  @GuardedBy ("m_aLock")
+  private long m_nTotalRejected = 0;
+  @GuardedBy ("m_aLock")
+  private String m_sLastError;
+  // Ring buffer of the last calls
+  @GuardedBy ("m_aLock")
+  private final long [] m_aWindowLatencies;
+  @GuardedBy ("m_aLock")
+  private final boolean [] m_aWindowFailures;
+  @GuardedBy ("m_aLock")
+  private int m_nWindowPos = 0;
+  @GuardedBy ("m_aLock")
+  private int m_nWindowCount = 0;
+
+  AS4EndpointHealth (@Nonnull final AS4EndpointHealthRegistry aRegistry, @Nonnull @Nonempty final String sURL)
+  {
+    m_aRegistry = aRegistry;
+    m_sURL = sURL;
+    m_aWindowLatencies = new long [aRegistry.getWindowSize ()];
+    m_aWindowFailures = new boolean [aRegistry.getWindowSize ()];
+  }
+
+  /**
+   * @return The URL of the endpoint. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getURL ()
+  {
+    return m_sURL;
+  }
+
+  @GuardedBy ("m_aLock")
+  private long _getMillisUntilHalfOpen (final long nNow)
+  {
+    return Math.max (0, m_nOpenedMillis + m_aRegistry.getOpenDuration ().toMillis () - nNow);
+  }
+
+  /**
+   * @return The current state of the circuit. An open circuit whose open
+   *         duration elapsed is reported as {@link EAS4CircuitState#HALF_OPEN}.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public EAS4CircuitState getState ()
+  {
+    final long nNow = m_aRegistry.getClock ().getAsLong ();
+    return m_aLock.lockedGet ( () -> {
+      if (m_eState == EAS4CircuitState.OPEN && _getMillisUntilHalfOpen (nNow) == 0)
+        return EAS4CircuitState.HALF_OPEN;
+      return m_eState;
+    });
+  }
+
+  /**
+   * Check without side effects, if a call would currently be permitted.
+   *
+   * @return <code>true</code> if the circuit is closed, or if a probe message
+   *         may be sent.
+   */
+  public boolean isCallPermitted ()
+  {
+    final long nNow = m_aRegistry.getClock ().getAsLong ();
+    return m_aLock.lockedBoolean ( () -> {
+      switch (m_eState)
+      {
+        case CLOSED:
+          return true;
+        case OPEN:
+          return _getMillisUntilHalfOpen (nNow) == 0;
+        default:
+          return !m_bProbeInFlight;
+      }
+    });
+  }
+
+  /**
+   * Acquire the permission to send a message to this endpoint. If the open
+   * duration elapsed, the caller becomes the single half-open probe. Each
+   * successful call must be followed by exactly one call to
+   * {@link #onSuccess(long)}, {@link #onFailure(long, Exception)} or
+   * {@link #onUnrated()}.
+   *
+   * @throws AS4CircuitOpenException
+   *         if the circuit is open, or if another probe is already in flight
+   */
+  public void acquirePermission () throws AS4CircuitOpenException
+  {
+    final long nNow = m_aRegistry.getClock ().getAsLong ();
+    // -1 means permitted, -2 means permitted as the probe
+    final long nRetryAfter = m_aLock.lockedLong ( () -> {
+      if (m_eState == EAS4CircuitState.OPEN && _getMillisUntilHalfOpen (nNow) == 0)
+      {
+        m_eState = EAS4CircuitState.HALF_OPEN;
+        m_bProbeInFlight = false;
+      }
+      switch (m_eState)
+      {
+        case CLOSED:
+          return -1;
+        case OPEN:
+          m_nTotalRejected++;
+          return _getMillisUntilHalfOpen (nNow);
+        default:
+          if (m_bProbeInFlight)
+          {
+            m_nTotalRejected++;
+            return 0;
+          }
+          m_bProbeInFlight = true;
+          return -2;
+      }
+    });
+
+    if (nRetryAfter >= 0)
+      throw new AS4CircuitOpenException (m_sURL, nRetryAfter);
+    if (nRetryAfter == -2)
+      LOGGER.info ("Sending a probe message to endpoint '" + m_sURL + "' with a half-open circuit");
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _addToWindow (final long nLatencyMillis, final boolean bFailure)
+  {
+    m_aWindowLatencies[m_nWindowPos] = nLatencyMillis;
+    m_aWindowFailures[m_nWindowPos] = bFailure;
+    m_nWindowPos = (m_nWindowPos + 1) % m_aWindowLatencies.length;
+    if (m_nWindowCount < m_aWindowLatencies.length)
+      m_nWindowCount++;
+  }
+
+  /**
+   * Record a successful call. Closes the circuit.
+   *
+   * @param nLatencyMillis
+   *        The duration of the call in milliseconds.
+   */
+  public void onSuccess (@Nonnegative final long nLatencyMillis)
+  {
+    final EAS4CircuitState eOldState = m_aLock.lockedGet ( () -> {
+      final EAS4CircuitState ret = m_eState;
+      m_eState = EAS4CircuitState.CLOSED;
+      m_bProbeInFlight = false;
+      m_nConsecutiveFailures = 0;
+      m_nTotalSuccesses++;
+      _addToWindow (nLatencyMillis, false);
+      return ret;
+    });
+    if (eOldState != EAS4CircuitState.CLOSED)
+      LOGGER.info ("Closing the circuit for endpoint '" + m_sURL + "' after a successful call");
+  }
+
+  /**
+   * Record a call, whose outcome says nothing about the health of the endpoint
+   * (e.g. because of a local error). Only releases the permission, so that
+   * another probe may be sent if the circuit is half-open.
+   */
+  public void onUnrated ()
+  {
+    m_aLock.locked ( () -> m_bProbeInFlight = false);
+  }
+
+  /**
+   * Record a failed call. Opens the circuit if the failure threshold is
+   * reached or if the failed call was the half-open probe.
+   *
+   * @param nLatencyMillis
+   *        The duration of the call in milliseconds.
+   * @param ex
+   *        The exception that occurred. May be <code>null</code>.
+   */
+  public void onFailure (@Nonnegative final long nLatencyMillis, @Nullable final Exception ex)
+  {
+    final long nNow = m_aRegistry.getClock ().getAsLong ();
+    final int nThreshold = m_aRegistry.getFailureThreshold ();
+    final int nOpened = m_aLock.lockedInt ( () -> {
+      m_nConsecutiveFailures++;
+      m_nTotalFailures++;
+      m_sLastError = ex == null ? null : ex.getClass ().getSimpleName () + " - " + ex.getMessage ();
+      _addToWindow (nLatencyMillis, true);
+      if (m_eState == EAS4CircuitState.HALF_OPEN ||
+          (m_eState == EAS4CircuitState.CLOSED && m_nConsecutiveFailures >= nThreshold))
+      {
+        m_eState = EAS4CircuitState.OPEN;
+        m_bProbeInFlight = false;
+        m_nOpenedMillis = nNow;
+        return m_nConsecutiveFailures;
+      }
+      return 0;
+    });
+    if (nOpened > 0)
+      LOGGER.warn ("Opening the circuit for endpoint '" +
+                   m_sURL +
+                   "' after " +
+                   nOpened +
+                   " consecutive failures - not sending for " +
+                   m_aRegistry.getOpenDuration ().toMillis () +
+                   " ms");
+  }
+
+  /**
+   * Close the circuit and reset the consecutive failure count. The statistics
+   * are kept.
+   */
+  public void reset ()
+  {
+    m_aLock.locked ( () -> {
+      m_eState = EAS4CircuitState.CLOSED;
+      m_bProbeInFlight = false;
+      m_nConsecutiveFailures = 0;
+    });
+  }
+
+  @Nonnegative
+  public int getConsecutiveFailures ()
+  {
+    return m_aLock.lockedInt ( () -> m_nConsecutiveFailures);
+  }
+
+  @Nonnegative
+  public long getTotalSuccesses ()
+  {
+    return m_aLock.lockedLong ( () -> m_nTotalSuccesses);
+  }
+
+  @Nonnegative
+  public long getTotalFailures ()
+  {
+    return m_aLock.lockedLong ( () -> m_nTotalFailures);
+  }
+
+  /**
+   * @return The number of calls that were not made, because the circuit was
+   *         open.
+   */
+  @Nonnegative
+  public long getTotalRejected ()
+  {
+    return m_aLock.lockedLong ( () -> m_nTotalRejected);
+  }
+
+  /**
+   * @return The class name and message of the exception of the last failed
+   *         call. May be <code>null</code>.
+   */
+  @Nullable
+  public String getLastError ()
+  {
+    return m_aLock.lockedGet ( () -> m_sLastError);
+  }
+
+  /**
+   * @return The milliseconds until an open circuit becomes half-open. 0 if the
+   *         circuit is not open.
+   */
+  @Nonnegative
+  public long getMillisUntilHalfOpen ()
+  {
+    final long nNow = m_aRegistry.getClock ().getAsLong ();
+    return m_aLock.lockedLong ( () -> m_eState == EAS4CircuitState.OPEN ? _getMillisUntilHalfOpen (nNow) : 0);
+  }
+
+  /**
+   * @return The percentage of failed calls within the window, between 0 and
+   *         100. 0 if no call was recorded.
+   */
+  public double getFailureRate ()
+  {
+    return m_aLock.lockedDouble ( () -> {
+      if (m_nWindowCount == 0)
+        return 0;
+      int nFailures = 0;
+      for (int i = 0; i < m_nWindowCount; ++i)
+        if (m_aWindowFailures[i])
+          nFailures++;
+      return nFailures * 100d / m_nWindowCount;
+    });
+  }
+
+  /**
+   * Get a latency percentile of the calls within the window.
+   *
+   * @param dPercentile
+   *        The percentile to get, e.g. 50 for the median or 99. Must be
+   *        between 0 and 100.
+   * @return The latency in milliseconds or -1 if no call was recorded.
+   */
+  public long getLatencyPercentile (final double dPercentile)
+  {
+    ValueEnforcer.isBetweenInclusive (dPercentile, "Percentile", 0, 100);
+    final long [] aLatencies = m_aLock.lockedGet ( () -> Arrays.copyOf (m_aWindowLatencies, m_nWindowCount));
+    if (aLatencies.length == 0)
+      return -1;
+    Arrays.sort (aLatencies);
+    final int nIndex = (int) Math.ceil (dPercentile / 100 * aLatencies.length) - 1;
+    return aLatencies[Math.max (nIndex, 0)];
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("URL", m_sURL)
+                                       .append ("State", getState ())
+                                       .append ("ConsecutiveFailures", getConsecutiveFailures ())
+                                       .append ("TotalSuccesses", getTotalSuccesses ())
+                                       .append ("TotalFailures", getTotalFailures ())
+                                       .append ("TotalRejected", getTotalRejected ())
+                                       .getToString ();
+  }
+}
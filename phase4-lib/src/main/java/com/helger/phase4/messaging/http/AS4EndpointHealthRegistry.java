@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.core5.http.NoHttpResponseException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.util.AS4BoundedCache;
+
+/**
+ * A registry of the {@link AS4EndpointHealth} of all endpoints, keyed by the
+ * receiver URL. If a registry is set on a {@link BasicHttpPoster}, every HTTP
+ * call is recorded and calls to endpoints with an open circuit fail fast with
+ * an {@link AS4CircuitOpenException} - before the message is signed and
+ * encrypted. If a {@link AS4RetryOutbox} is used as well, messages for
+ * endpoints with an open circuit are deferred in the outbox instead.<br>
+ * Only connection problems, timeouts and HTTP 5xx responses count as failures
+ * (see {@link #isEndpointFailure(Exception)}) - an endpoint answering with a
+ * 4xx status code is alive. At most {@link #getMaxEndpoints()} endpoints are
+ * tracked - if more endpoints are called, the least recently used one is
+ * forgotten (and its circuit is implicitly closed).<br>
+ * One registry instance is meant to be shared by all posters of an
+ * application.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4EndpointHealthRegistry
+{
+  /** The default number of consecutive failures that open the circuit */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  /** The default duration a circuit stays open before a probe is sent */
+  public static final Duration DEFAULT_OPEN_DURATION = Duration.ofMinutes (1);
+  /** The default number of calls used for failure rate and latencies */
+  public static final int DEFAULT_WINDOW_SIZE = 128;
+  /** The default maximum number of endpoints tracked */
+  public static final int DEFAULT_MAX_ENDPOINTS = 10_000;
+
+  private final int m_nFailureThreshold;
+  private final Duration m_aOpenDuration;
+  private final int m_nWindowSize;
+  private final LongSupplier m_aClock;
+  private final AS4BoundedCache <String, AS4EndpointHealth> m_aMap;
+
+  public AS4EndpointHealthRegistry ()
+  {
+    this (DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, DEFAULT_WINDOW_SIZE, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nFailureThreshold
+   *        The number of consecutive failures after which the circuit is
+   *        opened. Must be &gt; 0.
+   * @param aOpenDuration
+   *        The duration for which the circuit stays open before a probe
+   *        message is sent. May not be <code>null</code>.
+   * @param nWindowSize
+   *        The number of most recent calls used for the failure rate and the
+   *        latency percentiles. Must be &gt; 0.
+   * @param aClock
+   *        The clock that returns the current time in milliseconds since the
+   *        epoch. May not be <code>null</code>.
+   */
+  public AS4EndpointHealthRegistry (@Nonnegative final int nFailureThreshold,
+                                    @Nonnull final Duration aOpenDuration,
+                                    @Nonnegative final int nWindowSize,
+                                    @Nonnull final LongSupplier aClock)
+  {
+    this (nFailureThreshold, aOpenDuration, nWindowSize, aClock, DEFAULT_MAX_ENDPOINTS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nFailureThreshold
+   *        The number of consecutive failures after which the circuit is
+   *        opened. Must be &gt; 0.
+   * @param aOpenDuration
+   *        The duration for which the circuit stays open before a probe
+   *        message is sent. May not be <code>null</code>.
+   * @param nWindowSize
+   *        The number of most recent calls used for the failure rate and the
+   *        latency percentiles. Must be &gt; 0.
+   * @param aClock
+   *        The clock that returns the current time in milliseconds since the
+   *        epoch. May not be <code>null</code>.
+   * @param nMaxEndpoints
+   *        The maximum number of endpoints to track. If exceeded, the least
+   *        recently used endpoint is forgotten. Must be &gt; 0.
+   */
+  public AS4EndpointHealthRegistry (@Nonnegative final int nFailureThreshold,
+                                    @Nonnull final Duration aOpenDuration,
+                                    @Nonnegative final int nWindowSize,
+                                    @Nonnull final LongSupplier aClock,
+                                    @Nonnegative final int nMaxEndpoints)
+  {
+    ValueEnforcer.isGT0 (nFailureThreshold, "FailureThreshold");
+    ValueEnforcer.notNull (aOpenDuration, "OpenDuration");
+    ValueEnforcer.isFalse (aOpenDuration.isNegative (), "OpenDuration may not be negative");
+    ValueEnforcer.isGT0 (nWindowSize, "WindowSize");
+    ValueEnforcer.notNull (aClock, "Clock");
+    m_nFailureThreshold = nFailureThreshold;
+    m_aOpenDuration = aOpenDuration;
+    m_nWindowSize = nWindowSize;
+    m_aClock = aClock;
+    m_aMap = new AS4BoundedCache <> (nMaxEndpoints);
+  }
+
+  @Nonnegative
+  public final int getFailureThreshold ()
+  {
+    return m_nFailureThreshold;
+  }
+
+  @Nonnull
+  public final Duration getOpenDuration ()
+  {
+    return m_aOpenDuration;
+  }
+
+  @Nonnegative
+  public final int getWindowSize ()
+  {
+    return m_nWindowSize;
+  }
+
+  @Nonnegative
+  public final int getMaxEndpoints ()
+  {
+    return m_aMap.getMaxSize ();
+  }
+
+  @Nonnull
+  final LongSupplier getClock ()
+  {
+    return m_aClock;
+  }
+
+  /**
+   * Get the health of the provided endpoint, creating it if needed.
+   *
+   * @param sURL
+   *        The endpoint URL. May neither be <code>null</code> nor empty.
+   * @return The endpoint health. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4EndpointHealth getOrCreateHealth (@Nonnull @Nonempty final String sURL)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    final AS4EndpointHealth ret = m_aMap.get (sURL);
+    if (ret != null)
+      return ret;
+    return m_aMap.putIfAbsent (sURL, new AS4EndpointHealth (this, sURL));
+  }
+
+  /**
+   * @param sURL
+   *        The endpoint URL. May be <code>null</code>.
+   * @return The endpoint health or <code>null</code> if no call to the
+   *         endpoint was made yet.
+   */
+  @Nullable
+  public AS4EndpointHealth getHealth (@Nullable final String sURL)
+  {
+    return m_aMap.get (sURL);
+  }
+
+  /**
+   * Decide if the exception of a failed HTTP call indicates an unhealthy
+   * endpoint. By default this is the case for HTTP 5xx responses, timeouts,
+   * connection problems and unknown hosts. Other HTTP responses (like 4xx)
+   * prove that the endpoint is alive, and all other exceptions are considered
+   * local problems that don't affect the endpoint health.
+   *
+   * @param ex
+   *        The exception of the HTTP call. May not be <code>null</code>.
+   * @return <code>true</code> if the call should be recorded as a failure of
+   *         the endpoint.
+   */
+  @OverrideOnDemand
+  public boolean isEndpointFailure (@Nonnull final Exception ex)
+  {
+    if (ex instanceof HttpResponseException)
+      return ((HttpResponseException) ex).getStatusCode () >= CHttp.HTTP_INTERNAL_SERVER_ERROR;
+
+    // Includes connect and socket timeouts
+    return ex instanceof InterruptedIOException ||
+           ex instanceof SocketException ||
+           ex instanceof UnknownHostException ||
+           ex instanceof NoHttpResponseException;
+  }
+
+  /**
+   * Check without side effects, if a call to the provided endpoint would
+   * currently be permitted.
+   *
+   * @param sURL
+   *        The endpoint URL. May be <code>null</code>.
+   * @return <code>true</code> if the endpoint is unknown, its circuit is closed
+   *         or a probe may be sent.
+   */
+  public boolean isCallPermitted (@Nullable final String sURL)
+  {
+    final AS4EndpointHealth aHealth = getHealth (sURL);
+    return aHealth == null || aHealth.isCallPermitted ();
+  }
+
+  /**
+   * @return The health of all endpoints that were called so far. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4EndpointHealth> getAllHealths ()
+  {
+    return m_aMap.getAllValues ();
+  }
+
+  /**
+   * @return The health of all endpoints with an open or half-open circuit.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4EndpointHealth> getAllUnhealthy ()
+  {
+    return getAllHealths ().getAll (x -> x.getState () != EAS4CircuitState.CLOSED);
+  }
+
+  /**
+   * Remove all recorded endpoints, closing all circuits.
+   */
+  public void clear ()
+  {
+    m_aMap.clear ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("FailureThreshold", m_nFailureThreshold)
+                                       .append ("OpenDuration", m_aOpenDuration)
+                                       .append ("WindowSize", m_nWindowSize)
+                                       .append ("Endpoints", m_aMap)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.StringHelper;
+import com.helger.phase4.ebms3header.Ebms3Error;
+
+/**
+ * Special exception thrown if the receiver answered a message parked in an
+ * {@link AS4RetryOutbox} with an ebMS Error signal. This is a final failure -
+ * the message is not retried.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class AS4ErrorSignalException extends IOException
+{
+  private final String m_sMessageID;
+  private final ICommonsList <Ebms3Error> m_aErrors;
+
+  public AS4ErrorSignalException (@Nonnull @Nonempty final String sMessageID,
+                                  @Nonnull @Nonempty final ICommonsList <Ebms3Error> aErrors)
+  {
+    super ("Message '" +
+           sMessageID +
+           "' was rejected with an ebMS Error: " +
+           aErrors.getAllMapped (x -> StringHelper.getConcatenatedOnDemand (x.getErrorCode (),
+                                                                            " / ",
+                                                                            StringHelper.getConcatenatedOnDemand (x.getShortDescription (),
+                                                                                                                  " / ",
+                                                                                                                  x.getErrorDetail ()))));
+    m_sMessageID = sMessageID;
+    m_aErrors = aErrors.getClone ();
+  }
+
+  /**
+   * @return The AS4 message ID of the rejected message.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The errors contained in the ebMS Error signal. Never
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  @ReturnsMutableCopy
+  public final ICommonsList <Ebms3Error> getAllErrors ()
+  {
+    return m_aErrors.getClone ();
+  }
+}
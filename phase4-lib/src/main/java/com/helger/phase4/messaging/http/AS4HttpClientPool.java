@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.SchemePortResolver;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequest;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.routing.DefaultProxyRoutePlanner;
+import org.apache.hc.client5.http.impl.routing.DefaultRoutePlanner;
+import org.apache.hc.client5.http.impl.routing.SystemDefaultRoutePlanner;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.routing.HttpRoutePlanner;
+import org.apache.hc.client5.http.socket.LayeredConnectionSocketFactory;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.HttpClientSettings;
+
+/**
+ * A long-lived, thread-safe HTTP client with a connection pool. In contrast to
+ * the default behaviour of {@link BasicHttpPoster}, that creates a new HTTP
+ * client for every message, an instance of this class keeps the connections
+ * open (keep-alive) and reuses them for subsequent messages to the same
+ * destination, so that the TCP connect and the TLS handshake are only needed
+ * once per connection.<br>
+ * All the HTTP client settings (TLS, proxy, timeouts etc.) are taken from the
+ * provided {@link HttpClientFactory}. An instance of this class should be
+ * created once and shared between all senders using the same settings. It must
+ * be closed explicitly when no longer needed.<br>
+ * If the settings of the factory contain no retries, the automatic retries of
+ * the HTTP client are disabled, so that each call is a single HTTP exchange.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4HttpClientPool implements AutoCloseable
+{
+  /** The default maximum number of connections overall */
+  public static final int DEFAULT_MAX_TOTAL = 200;
+  /** The default maximum number of connections per route */
+  public static final int DEFAULT_MAX_PER_ROUTE = 20;
+  /** The default time after which idle connections are closed */
+  public static final Duration DEFAULT_MAX_IDLE_TIME = Duration.ofMinutes (1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4HttpClientPool.class);
+
+  private final PoolingHttpClientConnectionManager m_aConnMgr;
+  private final HttpRoutePlanner m_aRoutePlanner;
+  private final CloseableHttpClient m_aHttpClient;
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+  /**
+   * Constructor using the default pool sizes.
+   *
+   * @param aHttpClientFactory
+   *        The HTTP client factory providing the settings. May not be
+   *        <code>null</code>.
+   */
+  public AS4HttpClientPool (@Nonnull final HttpClientFactory aHttpClientFactory)
+  {
+    this (aHttpClientFactory, DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_IDLE_TIME);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aHttpClientFactory
+   *        The HTTP client factory providing the settings. May not be
+   *        <code>null</code>.
+   * @param nMaxTotal
+   *        The maximum number of connections overall. Must be &gt; 0.
+   * @param nDefaultMaxPerRoute
+   *        The default maximum number of connections per route (receiver).
+   *        Must be &gt; 0.
+   * @param aMaxIdleTime
+   *        The duration after which idle connections are closed. May not be
+   *        <code>null</code>.
+   */
+  public AS4HttpClientPool (@Nonnull final HttpClientFactory aHttpClientFactory,
+                            @Nonnegative final int nMaxTotal,
+                            @Nonnegative final int nDefaultMaxPerRoute,
+                            @Nonnull final Duration aMaxIdleTime)
+  {
+    ValueEnforcer.notNull (aHttpClientFactory, "HttpClientFactory");
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    ValueEnforcer.isGT0 (nDefaultMaxPerRoute, "DefaultMaxPerRoute");
+    ValueEnforcer.notNull (aMaxIdleTime, "MaxIdleTime");
+
+    final PoolingHttpClientConnectionManagerBuilder aCMBuilder = PoolingHttpClientConnectionManagerBuilder.create ()
+                                                                                                           .setDnsResolver (aHttpClientFactory.createDNSResolver ())
+                                                                                                           .setDefaultConnectionConfig (aHttpClientFactory.createConnectionConfig ())
+                                                                                                           .setDefaultSocketConfig (aHttpClientFactory.createSocketConfig ())
+                                                                                                           .setPoolConcurrencyPolicy (PoolConcurrencyPolicy.STRICT)
+                                                                                                           .setMaxConnTotal (nMaxTotal)
+                                                                                                           .setMaxConnPerRoute (nDefaultMaxPerRoute);
+    final LayeredConnectionSocketFactory aSSLFactory = aHttpClientFactory.createSSLFactory ();
+    if (aSSLFactory != null)
+    {
+      // The same SSL context is used for all connections, so TLS sessions can
+      // be resumed
+      aCMBuilder.setSSLSocketFactory (aSSLFactory);
+    }
+    m_aConnMgr = aCMBuilder.build ();
+
+    final HttpClientSettings aSettings = aHttpClientFactory.httpClientSettings ();
+    m_aRoutePlanner = _createRoutePlanner (aHttpClientFactory);
+
+    // Not via HttpClientFactory.createHttpClientBuilder, because that would
+    // create another connection manager that is never closed
+    final HttpClientBuilder aClientBuilder = HttpClients.custom ()
+                                                        .setSchemePortResolver (aHttpClientFactory.createSchemePortResolver ())
+                                                        .setConnectionManager (m_aConnMgr)
+                                                        .setConnectionManagerShared (false)
+                                                        .setConnectionReuseStrategy (aHttpClientFactory.createConnectionReuseStrategy ())
+                                                        .setDefaultRequestConfig (aHttpClientFactory.createRequestConfig ())
+                                                        .setDefaultCredentialsProvider (aHttpClientFactory.createCredentialsProvider ())
+                                                        .setRoutePlanner (m_aRoutePlanner)
+                                                        // Don't bind connections to a TLS client
+                                                        // principal - otherwise they would not be
+                                                        // reused
+                                                        .disableConnectionState ()
+                                                        .evictExpiredConnections ()
+                                                        .evictIdleConnections (TimeValue.of (aMaxIdleTime));
+    if (aSettings.isUseSystemProperties ())
+      aClientBuilder.useSystemProperties ();
+    if (aSettings.hasRetries ())
+      aClientBuilder.setRetryStrategy (aHttpClientFactory.createRequestRetryStrategy (aSettings.getRetryCount (),
+                                                                                     aSettings.getRetryIntervalAsTimeValue (),
+                                                                                     aSettings.isRetryAlways ()));
+    else
+    {
+      // Otherwise the HttpClient would still retry HTTP 503 responses and
+      // block the calling thread - retries are up to the caller
+      aClientBuilder.disableAutomaticRetries ();
+    }
+    if (aSettings.hasUserAgent ())
+      aClientBuilder.setUserAgent (aSettings.getUserAgent ());
+    m_aHttpClient = aClientBuilder.build ();
+    LOGGER.info ("Created new AS4 HTTP client pool with max " +
+                 nMaxTotal +
+                 " connections and max " +
+                 nDefaultMaxPerRoute +
+                 " connections per route");
+  }
+
+  /**
+   * Create the same route planner as
+   * {@link HttpClientFactory#createHttpClientBuilder()}, so that the routes of
+   * the pool statistics and limits match the routes actually used.
+   */
+  @Nonnull
+  private static HttpRoutePlanner _createRoutePlanner (@Nonnull final HttpClientFactory aHttpClientFactory)
+  {
+    final HttpClientSettings aSettings = aHttpClientFactory.httpClientSettings ();
+    final SchemePortResolver aSchemePortResolver = aHttpClientFactory.createSchemePortResolver ();
+    final HttpHost aProxyHost = aSettings.getProxyHost ();
+    if (aProxyHost == null)
+    {
+      if (aSettings.isUseSystemProperties ())
+        return new SystemDefaultRoutePlanner (aSchemePortResolver, ProxySelector.getDefault ());
+      return new DefaultRoutePlanner (aSchemePortResolver);
+    }
+
+    if (aSettings.nonProxyHosts ().isEmpty ())
+      return new DefaultProxyRoutePlanner (aProxyHost, aSchemePortResolver);
+
+    final ICommonsSet <String> aNonProxyHosts = aSettings.nonProxyHosts ().getClone ();
+    return new DefaultRoutePlanner (aSchemePortResolver)
+    {
+      @Override
+      protected HttpHost determineProxy (@Nonnull final HttpHost aTarget, @Nullable final HttpContext aContext)
+      {
+        return aNonProxyHosts.contains (aTarget.getHostName ()) ? null : aProxyHost;
+      }
+    };
+  }
+
+  @Nonnull
+  private HttpRoute _getRoute (@Nonnull final HttpHost aTarget)
+  {
+    try
+    {
+      return m_aRoutePlanner.determineRoute (aTarget, HttpClientContext.create ());
+    }
+    catch (final HttpException ex)
+    {
+      throw new IllegalArgumentException ("Failed to determine the route to " + aTarget, ex);
+    }
+  }
+
+  /**
+   * Set a custom maximum number of connections for a single target host.
+   *
+   * @param aTarget
+   *        The target host, including scheme and port. May not be
+   *        <code>null</code>.
+   * @param nMaxPerRoute
+   *        The maximum number of connections to that host. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4HttpClientPool setMaxPerRoute (@Nonnull final HttpHost aTarget, @Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.notNull (aTarget, "Target");
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aConnMgr.setMaxPerRoute (_getRoute (aTarget), nMaxPerRoute);
+    return this;
+  }
+
+  /**
+   * @return The overall pool statistics, containing the number of leased,
+   *         available and pending connections. Never <code>null</code>.
+   */
+  @Nonnull
+  public final PoolStats getTotalStats ()
+  {
+    return m_aConnMgr.getTotalStats ();
+  }
+
+  /**
+   * Get the pool statistics for a single target host.
+   *
+   * @param aTarget
+   *        The target host, including scheme and port. May not be
+   *        <code>null</code>.
+   * @return The pool statistics of that host. Never <code>null</code>.
+   */
+  @Nonnull
+  public final PoolStats getStats (@Nonnull final HttpHost aTarget)
+  {
+    ValueEnforcer.notNull (aTarget, "Target");
+    return m_aConnMgr.getStats (_getRoute (aTarget));
+  }
+
+  /**
+   * @return The pool statistics of all routes currently known to the pool.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public final ICommonsMap <HttpRoute, PoolStats> getAllRouteStats ()
+  {
+    final ICommonsMap <HttpRoute, PoolStats> ret = new CommonsHashMap <> ();
+    for (final HttpRoute aRoute : m_aConnMgr.getRoutes ())
+      ret.put (aRoute, m_aConnMgr.getStats (aRoute));
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if this pool was already closed.
+   */
+  public final boolean isClosed ()
+  {
+    return m_aClosed.get ();
+  }
+
+  /**
+   * Execute the provided request using a pooled connection.
+   *
+   * @param <T>
+   *        Response data type
+   * @param aRequest
+   *        The request to be executed. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The response handler to be used. May not be <code>null</code>.
+   * @return The result of the response handler. May be <code>null</code>.
+   * @throws IOException
+   *         In case of IO error
+   * @throws IllegalStateException
+   *         If the pool was already closed
+   */
+  @Nullable
+  public <T> T execute (@Nonnull final HttpUriRequest aRequest,
+                        @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler) throws IOException
+  {
+    if (m_aClosed.get ())
+      throw new IllegalStateException ("This AS4 HTTP client pool was already closed");
+    return m_aHttpClient.execute (aRequest, aResponseHandler);
+  }
+
+  public void close ()
+  {
+    if (m_aClosed.compareAndSet (false, true))
+    {
+      LOGGER.info ("Closing AS4 HTTP client pool");
+      m_aHttpClient.close (CloseMode.GRACEFUL);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("TotalStats", m_aConnMgr.getTotalStats ())
+                                       .append ("Closed", m_aClosed.get ())
+                                       .getToString ();
+  }
+}
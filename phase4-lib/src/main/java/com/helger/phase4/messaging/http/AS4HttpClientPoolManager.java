@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * Global singleton holding the default {@link AS4HttpClientPool}, that is used
+ * if no specific pool is configured (e.g. for asynchronous responses). The
+ * default pool uses {@link BasicHttpPoster#createDefaultHttpClientFactory()}
+ * and is closed, when the global scope ends.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4HttpClientPoolManager extends AbstractGlobalSingleton
+{
+  private AS4HttpClientPool m_aDefaultPool;
+
+  @Deprecated (forRemoval = false)
+  @UsedViaReflection
+  public AS4HttpClientPoolManager ()
+  {}
+
+  @Nonnull
+  public static AS4HttpClientPoolManager getInstance ()
+  {
+    return getGlobalSingleton (AS4HttpClientPoolManager.class);
+  }
+
+  /**
+   * @return The default HTTP client pool. Created on demand. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AS4HttpClientPool getDefaultPool ()
+  {
+    AS4HttpClientPool ret = m_aRWLock.readLockedGet ( () -> m_aDefaultPool);
+    if (ret == null)
+    {
+      ret = m_aRWLock.writeLockedGet ( () -> {
+        // Try again in write lock
+        if (m_aDefaultPool == null)
+          m_aDefaultPool = new AS4HttpClientPool (BasicHttpPoster.createDefaultHttpClientFactory ());
+        return m_aDefaultPool;
+      });
+    }
+    return ret;
+  }
+
+  @Override
+  protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
+  {
+    final AS4HttpClientPool aPool = m_aRWLock.writeLockedGet ( () -> {
+      final AS4HttpClientPool ret = m_aDefaultPool;
+      m_aDefaultPool = null;
+      return ret;
+    });
+    if (aPool != null)
+      aPool.close ();
+  }
+}
@@ -0,0 +1,1023 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ArrayHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.EMimeContentType;
+import com.helger.commons.mime.IMimeType;
+import com.helger.commons.mime.MimeTypeParser;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.dump.AS4DumpManager;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.model.error.EEbmsErrorSeverity;
+import com.helger.phase4.util.AS4ExecutorHelper;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * A durable outbox for messages of which the first sending attempt failed.
+ * Instead of sleeping in the sending thread, {@link BasicHttpPoster} parks the
+ * already built (and signed/encrypted) HTTP entity in this outbox and returns
+ * immediately with an {@link AS4RetryScheduledException}:
+ * <ul>
+ * <li>Each parked message is a single file in the outbox directory, containing
+ * the destination URL, the SOAP version, the HTTP headers, the entity bytes and
+ * the retry state. The retry state is updated in place after each failed try,
+ * so parked messages survive a restart of the application.</li>
+ * <li>Due times are kept in a hashed timer wheel, that is advanced by a single
+ * timer thread. Only the actual HTTP calls are executed on a separate worker
+ * pool, so no thread ever blocks for a backoff period.</li>
+ * <li>The delay before each retry grows exponentially, starting from
+ * {@link HttpRetrySettings#getDurationBeforeRetry()}. The multiplier is the
+ * retry increase factor of the settings but at least
+ * {@link #getMinBackoffMultiplier()}. Each delay is capped at
+ * {@link #getMaxBackoff()} and reduced by a random jitter of up to
+ * {@link #getJitterPercentage()} percent, so that many messages for the same
+ * receiver don't retry in lock step.</li>
+ * </ul>
+ * If the HTTP poster uses an {@link AS4EndpointHealthRegistry}, retries for
+ * endpoints with an open circuit are deferred until the circuit becomes
+ * half-open, without counting as a try.<br>
+ * A retry only counts as delivered, if the response is an ebMS Receipt for the
+ * parked message (see {@link #verifyResponse(String, ESoapVersion, byte[])}).
+ * If the receiver answers with an ebMS Error, the message finally failed with
+ * an {@link AS4ErrorSignalException}.<br>
+ * The {@link IAS4RetryCallback} provided when parking is invoked before each
+ * retry as before, as long as the application is not restarted. The final
+ * outcome of each parked message is reported to the
+ * {@link IAS4RetryOutboxListener}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4RetryOutbox implements AutoCloseable
+{
+  /** The file extension of the parked messages */
+  public static final String FILE_EXTENSION = ".as4retry";
+  /** The default tick duration of the timer wheel */
+  public static final Duration DEFAULT_TICK_DURATION = Duration.ofMillis (100);
+  /** The default number of slots in the timer wheel */
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+  /** The default number of threads performing the retries */
+  public static final int DEFAULT_WORKER_THREADS = 4;
+  public static final double DEFAULT_MIN_BACKOFF_MULTIPLIER = 2;
+  public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofHours (1);
+  public static final int DEFAULT_JITTER_PERCENTAGE = 20;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4RetryOutbox.class);
+
+  // File layout: magic, next try and due time at a fixed offset (updated in
+  // place), then the immutable message data
+  private static final int FILE_MAGIC = 0x41533452;
+  private static final int FILE_VERSION = 2;
+  private static final long OFFSET_RETRY_STATE = 8;
+
+  /**
+   * The in-memory representation of a parked message. The entity bytes are
+   * only read from disk when the message is re-sent.
+   */
+  private static final class Entry
+  {
+    private final File m_aFile;
+    private final String m_sMessageID;
+    private final String m_sURL;
+    private final int m_nMaxTries;
+    private final long m_nBaseDelayMillis;
+    private final double m_dMultiplier;
+    private final ESoapVersion m_eSoapVersion;
+    private int m_nNextTry;
+    private long m_nDueMillis;
+    // Only used by the timer wheel
+    private long m_nDueTick;
+
+    Entry (@Nonnull final File aFile,
+           @Nonnull final String sMessageID,
+           @Nonnull final String sURL,
+           final int nMaxTries,
+           final long nBaseDelayMillis,
+           final double dMultiplier,
+           @Nullable final ESoapVersion eSoapVersion,
+           final int nNextTry,
+           final long nDueMillis)
+    {
+      m_aFile = aFile;
+      m_sMessageID = sMessageID;
+      m_sURL = sURL;
+      m_nMaxTries = nMaxTries;
+      m_nBaseDelayMillis = nBaseDelayMillis;
+      m_dMultiplier = dMultiplier;
+      m_eSoapVersion = eSoapVersion;
+      m_nNextTry = nNextTry;
+      m_nDueMillis = nDueMillis;
+    }
+
+    @Nonnull
+    String getKey ()
+    {
+      return m_aFile.getName ();
+    }
+  }
+
+  private final File m_aDirectory;
+  private final BasicHttpPoster m_aHttpPoster;
+  private final LongSupplier m_aClock;
+  private final long m_nTickMillis;
+  private final SimpleLock m_aWheelLock = new SimpleLock ();
+  @GuardedBy ("m_aWheelLock")
+  private final ICommonsList <ICommonsList <Entry>> m_aWheel;
+  @GuardedBy ("m_aWheelLock")
+  private long m_nCurrentTick = 0;
+  private long m_nStartMillis;
+  private final Map <String, Entry> m_aEntries = new ConcurrentHashMap <> ();
+  private final Map <String, IAS4RetryCallback> m_aCallbacks = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aNextFileID;
+  private volatile ScheduledExecutorService m_aTimer;
+  private volatile ExecutorService m_aWorkers;
+  private int m_nWorkerThreads = DEFAULT_WORKER_THREADS;
+  private double m_dMinBackoffMultiplier = DEFAULT_MIN_BACKOFF_MULTIPLIER;
+  private Duration m_aMaxBackoff = DEFAULT_MAX_BACKOFF;
+  private int m_nJitterPercentage = DEFAULT_JITTER_PERCENTAGE;
+  private IAS4RetryOutboxListener m_aListener;
+
+  public AS4RetryOutbox (@Nonnull final File aDirectory, @Nonnull final BasicHttpPoster aHttpPoster) throws IOException
+  {
+    this (aDirectory, aHttpPoster, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructor. Call {@link #start()} afterwards to begin retrying.
+   *
+   * @param aDirectory
+   *        The directory to store the parked messages in. Will be created if it
+   *        does not exist. May not be <code>null</code>.
+   * @param aHttpPoster
+   *        The HTTP poster used to re-send the parked messages. Only
+   *        {@link BasicHttpPoster#sendGenericMessage(String, HttpHeaderMap, HttpEntity, org.apache.hc.core5.http.io.HttpClientResponseHandler)}
+   *        is used. May not be <code>null</code>.
+   * @param aTickDuration
+   *        The resolution of the timer wheel. May not be <code>null</code>.
+   * @param nWheelSize
+   *        The number of slots of the timer wheel. Must be &gt; 0.
+   * @param aClock
+   *        The clock that returns the current time in milliseconds since the
+   *        epoch. May not be <code>null</code>.
+   * @throws IOException
+   *         If the directory cannot be created
+   */
+  public AS4RetryOutbox (@Nonnull final File aDirectory,
+                         @Nonnull final BasicHttpPoster aHttpPoster,
+                         @Nonnull final Duration aTickDuration,
+                         @Nonnegative final int nWheelSize,
+                         @Nonnull final LongSupplier aClock) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.notNull (aHttpPoster, "HttpPoster");
+    ValueEnforcer.notNull (aTickDuration, "TickDuration");
+    ValueEnforcer.isTrue ( () -> aTickDuration.toMillis () > 0, "TickDuration must be positive");
+    ValueEnforcer.isGT0 (nWheelSize, "WheelSize");
+    ValueEnforcer.notNull (aClock, "Clock");
+    m_aDirectory = aDirectory;
+    m_aHttpPoster = aHttpPoster;
+    m_aClock = aClock;
+    m_nTickMillis = aTickDuration.toMillis ();
+    m_aWheel = new CommonsArrayList <> (nWheelSize);
+    for (int i = 0; i < nWheelSize; ++i)
+      m_aWheel.add (new CommonsArrayList <> ());
+    m_aNextFileID = new AtomicLong (aClock.getAsLong ());
+
+    if (FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aDirectory).isFailure ())
+      throw new IOException ("Failed to create retry outbox directory " + aDirectory.getAbsolutePath ());
+  }
+
+  /**
+   * @return The directory in which the parked messages are stored. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return The number of threads used to perform the retries. Default is
+   *         {@value #DEFAULT_WORKER_THREADS}.
+   */
+  @Nonnegative
+  public final int getWorkerThreads ()
+  {
+    return m_nWorkerThreads;
+  }
+
+  /**
+   * @param nWorkerThreads
+   *        The number of threads used to perform the retries. Must be &gt; 0.
+   *        Only has an effect if called before {@link #start()}.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4RetryOutbox setWorkerThreads (@Nonnegative final int nWorkerThreads)
+  {
+    ValueEnforcer.isGT0 (nWorkerThreads, "WorkerThreads");
+    m_nWorkerThreads = nWorkerThreads;
+    return this;
+  }
+
+  /**
+   * @return The minimum factor by which the delay grows from retry to retry.
+   *         Default is {@value #DEFAULT_MIN_BACKOFF_MULTIPLIER}.
+   */
+  public final double getMinBackoffMultiplier ()
+  {
+    return m_dMinBackoffMultiplier;
+  }
+
+  @Nonnull
+  public final AS4RetryOutbox setMinBackoffMultiplier (final double dMinBackoffMultiplier)
+  {
+    ValueEnforcer.isTrue (dMinBackoffMultiplier >= 1, "MinBackoffMultiplier must be >= 1");
+    m_dMinBackoffMultiplier = dMinBackoffMultiplier;
+    return this;
+  }
+
+  /**
+   * @return The maximum delay between two tries. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getMaxBackoff ()
+  {
+    return m_aMaxBackoff;
+  }
+
+  @Nonnull
+  public final AS4RetryOutbox setMaxBackoff (@Nonnull final Duration aMaxBackoff)
+  {
+    ValueEnforcer.notNull (aMaxBackoff, "MaxBackoff");
+    ValueEnforcer.isFalse (aMaxBackoff.isNegative (), "MaxBackoff may not be negative");
+    m_aMaxBackoff = aMaxBackoff;
+    return this;
+  }
+
+  /**
+   * @return The maximum percentage by which each delay is randomly reduced.
+   *         Default is {@value #DEFAULT_JITTER_PERCENTAGE}.
+   */
+  @Nonnegative
+  public final int getJitterPercentage ()
+  {
+    return m_nJitterPercentage;
+  }
+
+  @Nonnull
+  public final AS4RetryOutbox setJitterPercentage (@Nonnegative final int nJitterPercentage)
+  {
+    ValueEnforcer.isBetweenInclusive (nJitterPercentage, "JitterPercentage", 0, 100);
+    m_nJitterPercentage = nJitterPercentage;
+    return this;
+  }
+
+  @Nullable
+  public final IAS4RetryOutboxListener getListener ()
+  {
+    return m_aListener;
+  }
+
+  @Nonnull
+  public final AS4RetryOutbox setListener (@Nullable final IAS4RetryOutboxListener aListener)
+  {
+    m_aListener = aListener;
+    return this;
+  }
+
+  /**
+   * @return The number of messages currently parked in the outbox, including
+   *         the ones currently being re-sent.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aEntries.size ();
+  }
+
+  /**
+   * @return The AS4 message IDs of all messages currently parked in the
+   *         outbox. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <String> getAllPendingMessageIDs ()
+  {
+    return new CommonsArrayList <> (m_aEntries.values (), x -> x.m_sMessageID);
+  }
+
+  /**
+   * Calculate the delay before the provided retry.
+   *
+   * @param nBaseDelayMillis
+   *        The delay before the first retry.
+   * @param dMultiplier
+   *        The factor by which the delay grows.
+   * @param nRetry
+   *        The 1-based retry number.
+   * @return The delay in milliseconds, including jitter.
+   */
+  protected long getDelayMillis (final long nBaseDelayMillis, final double dMultiplier, @Nonnegative final int nRetry)
+  {
+    final double dDelay = Math.min (nBaseDelayMillis * Math.pow (dMultiplier, nRetry - 1.0),
+                                    m_aMaxBackoff.toMillis ());
+    final double dJitter = m_nJitterPercentage == 0 ? 0 : ThreadLocalRandom.current ().nextDouble () *
+                                                          m_nJitterPercentage /
+                                                          100;
+    return Math.max (0, (long) (dDelay * (1 - dJitter)));
+  }
+
+  /**
+   * Load all parked messages from the directory and start the timer. Messages
+   * that were due while the application was down, are retried immediately.
+   *
+   * @throws IllegalStateException
+   *         if the outbox was already started
+   */
+  public void start ()
+  {
+    if (m_aTimer != null)
+      throw new IllegalStateException ("The retry outbox was already started");
+
+    m_nStartMillis = m_aClock.getAsLong ();
+    m_aTimer = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().namingPattern (CAS4.LIB_NAME +
+                                                                                                             "-retry-timer-%d")
+                                                                                            .daemon (true)
+                                                                                            .build ());
+    final ThreadFactory aWorkerThreadFactory = AS4ExecutorHelper.isUseVirtualThreads () ? AS4ExecutorHelper.getVirtualThreadFactory ()
+                                                                                         : new BasicThreadFactory.Builder ().namingPattern (CAS4.LIB_NAME +
+                                                                                                                                            "-retry-%d")
+                                                                                                                            .daemon (true)
+                                                                                                                            .build ();
+    m_aWorkers = Executors.newFixedThreadPool (m_nWorkerThreads, aWorkerThreadFactory);
+
+    int nLoaded = 0;
+    for (final File aFile : new FileSystemIterator (m_aDirectory))
+      if (aFile.isFile () && aFile.getName ().endsWith (FILE_EXTENSION))
+      {
+        try
+        {
+          final Entry aEntry = _readEntry (aFile);
+          m_aEntries.put (aEntry.getKey (), aEntry);
+          _schedule (aEntry);
+          nLoaded++;
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to read parked message from " + aFile.getAbsolutePath () + " - ignoring it", ex);
+        }
+      }
+
+    m_aTimer.scheduleAtFixedRate (this::_onTick, m_nTickMillis, m_nTickMillis, TimeUnit.MILLISECONDS);
+    LOGGER.info ("Started AS4 retry outbox in '" +
+                 m_aDirectory.getAbsolutePath () +
+                 "' with " +
+                 nLoaded +
+                 " parked messages");
+  }
+
+  /**
+   * Park a message after its first try failed. The retry callback is invoked
+   * before each retry - also before the first one that is scheduled here.
+   *
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param aCustomHttpHeaders
+   *        The HTTP headers to send. May be <code>null</code>.
+   * @param aHttpEntity
+   *        The HTTP entity to send. Must be repeatable. May not be
+   *        <code>null</code>.
+   * @param sMessageID
+   *        The AS4 message ID. May neither be <code>null</code> nor empty.
+   * @param aRetrySettings
+   *        The retry settings to use. Must have retries enabled. May not be
+   *        <code>null</code>.
+   * @param aRetryCallback
+   *        The optional retry callback. May be <code>null</code>.
+   * @param aFirstException
+   *        The exception of the first try. May not be <code>null</code>.
+   * @return <code>true</code> if the message was parked, <code>false</code> if
+   *         the retry callback asked to stop retrying.
+   * @throws IOException
+   *         If the message could not be written to disk
+   * @throws IllegalStateException
+   *         if the outbox is not started
+   */
+  public boolean park (@Nonnull @Nonempty final String sURL,
+                       @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                       @Nonnull final HttpEntity aHttpEntity,
+                       @Nonnull @Nonempty final String sMessageID,
+                       @Nonnull final HttpRetrySettings aRetrySettings,
+                       @Nullable final IAS4RetryCallback aRetryCallback,
+                       @Nonnull final Exception aFirstException) throws IOException
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notNull (aRetrySettings, "RetrySettings");
+    ValueEnforcer.isTrue (aRetrySettings.isRetryEnabled (), "Retries must be enabled");
+    ValueEnforcer.notNull (aFirstException, "FirstException");
+    if (m_aTimer == null || m_aTimer.isShutdown ())
+      throw new IllegalStateException ("The retry outbox is not started");
+
+    final int nMaxTries = 1 + aRetrySettings.getMaxRetries ();
+    final long nBaseDelayMillis = aRetrySettings.getDurationBeforeRetry ().toMillis ();
+    final double dMultiplier = Math.max (aRetrySettings.getRetryIncreaseFactor ().doubleValue (),
+                                         m_dMinBackoffMultiplier);
+    final long nDelayMillis = getDelayMillis (nBaseDelayMillis, dMultiplier, 1);
+
+    if (aRetryCallback != null &&
+        aRetryCallback.onBeforeRetry (sMessageID, sURL, 0, nMaxTries, nDelayMillis, aFirstException).isBreak ())
+    {
+      LOGGER.warn ("Error sending message '" +
+                   sMessageID +
+                   "' to '" +
+                   sURL +
+                   "' - retrying was explicitly stopped by the RetryCallback");
+      return false;
+    }
+
+    final File aFile = new File (m_aDirectory, Long.toHexString (m_aNextFileID.getAndIncrement ()) + FILE_EXTENSION);
+    final Entry aEntry = new Entry (aFile,
+                                    sMessageID,
+                                    sURL,
+                                    nMaxTries,
+                                    nBaseDelayMillis,
+                                    dMultiplier,
+                                    _getSoapVersion (aHttpEntity.getContentType ()),
+                                    1,
+                                    m_aClock.getAsLong () + nDelayMillis);
+    _writeEntry (aEntry, aCustomHttpHeaders, aHttpEntity);
+
+    m_aEntries.put (aEntry.getKey (), aEntry);
+    if (aRetryCallback != null)
+      m_aCallbacks.put (aEntry.getKey (), aRetryCallback);
+    _schedule (aEntry);
+
+    LOGGER.warn ("Error sending message '" +
+                 sMessageID +
+                 "' to '" +
+                 sURL +
+                 "': " +
+                 aFirstException.getClass ().getSimpleName () +
+                 " - " +
+                 aFirstException.getMessage () +
+                 " - parked in the retry outbox, retrying in " +
+                 nDelayMillis +
+                 " ms");
+    return true;
+  }
+
+  /**
+   * Determine the SOAP version of a message from its content type, so that the
+   * response can be verified later.
+   */
+  @Nullable
+  private static ESoapVersion _getSoapVersion (@Nullable final String sContentType)
+  {
+    IMimeType aMimeType = MimeTypeParser.safeParseMimeType (sContentType);
+    if (aMimeType != null && aMimeType.getContentType () == EMimeContentType.MULTIPART)
+    {
+      // The SOAP envelope is the root part of a MIME message
+      aMimeType = MimeTypeParser.safeParseMimeType (aMimeType.getParameterValueWithName ("type"));
+    }
+    return aMimeType == null ? null : ESoapVersion.getFromMimeTypeOrNull (aMimeType.getCopyWithoutParameters ());
+  }
+
+  private static void _writeUTF (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    aDOS.writeBoolean (s != null);
+    if (s != null)
+      aDOS.writeUTF (s);
+  }
+
+  @Nullable
+  private static String _readUTF (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    return aDIS.readBoolean () ? aDIS.readUTF () : null;
+  }
+
+  private void _writeEntry (@Nonnull final Entry aEntry,
+                            @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                            @Nonnull final HttpEntity aHttpEntity) throws IOException
+  {
+    final byte [] aBody;
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aHttpEntity.writeTo (aBAOS);
+      aBody = aBAOS.toByteArray ();
+    }
+
+    final ICommonsList <String> aHeaders = new CommonsArrayList <> ();
+    if (aCustomHttpHeaders != null)
+      aCustomHttpHeaders.forEachSingleHeader ( (n, v) -> {
+        aHeaders.add (n);
+        aHeaders.add (v);
+      }, false, false);
+
+    // Write to a temporary file first, so that a crash never leaves a partial
+    // entry behind
+    final File aTmpFile = new File (m_aDirectory, aEntry.m_aFile.getName () + ".tmp");
+    try (final DataOutputStream aDOS = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (aTmpFile.toPath ()))))
+    {
+      aDOS.writeInt (FILE_MAGIC);
+      aDOS.writeInt (FILE_VERSION);
+      // Offset OFFSET_RETRY_STATE
+      aDOS.writeInt (aEntry.m_nNextTry);
+      aDOS.writeLong (aEntry.m_nDueMillis);
+      aDOS.writeUTF (aEntry.m_sMessageID);
+      aDOS.writeUTF (aEntry.m_sURL);
+      aDOS.writeInt (aEntry.m_nMaxTries);
+      aDOS.writeLong (aEntry.m_nBaseDelayMillis);
+      aDOS.writeDouble (aEntry.m_dMultiplier);
+      _writeUTF (aDOS, aEntry.m_eSoapVersion == null ? null : aEntry.m_eSoapVersion.getVersion ());
+      aDOS.writeInt (aHeaders.size () / 2);
+      for (final String s : aHeaders)
+        aDOS.writeUTF (s);
+      _writeUTF (aDOS, aHttpEntity.getContentType ());
+      _writeUTF (aDOS, aHttpEntity.getContentEncoding ());
+      aDOS.writeBoolean (aHttpEntity.isChunked ());
+      aDOS.writeInt (aBody.length);
+      aDOS.write (aBody);
+    }
+    Files.move (aTmpFile.toPath (),
+                aEntry.m_aFile.toPath (),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Nonnull
+  private static DataInputStream _openEntry (@Nonnull final File aFile) throws IOException
+  {
+    final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (Files.newInputStream (aFile.toPath ())));
+    if (aDIS.readInt () != FILE_MAGIC || aDIS.readInt () != FILE_VERSION)
+    {
+      StreamHelper.close (aDIS);
+      throw new IOException ("Unsupported retry outbox file format");
+    }
+    return aDIS;
+  }
+
+  @Nonnull
+  private static Entry _readEntry (@Nonnull final File aFile) throws IOException
+  {
+    try (final DataInputStream aDIS = _openEntry (aFile))
+    {
+      final int nNextTry = aDIS.readInt ();
+      final long nDueMillis = aDIS.readLong ();
+      final String sMessageID = aDIS.readUTF ();
+      final String sURL = aDIS.readUTF ();
+      final int nMaxTries = aDIS.readInt ();
+      final long nBaseDelayMillis = aDIS.readLong ();
+      final double dMultiplier = aDIS.readDouble ();
+      final ESoapVersion eSoapVersion = ESoapVersion.getFromVersionOrNull (_readUTF (aDIS));
+      return new Entry (aFile,
+                        sMessageID,
+                        sURL,
+                        nMaxTries,
+                        nBaseDelayMillis,
+                        dMultiplier,
+                        eSoapVersion,
+                        nNextTry,
+                        nDueMillis);
+    }
+  }
+
+  private void _updateRetryState (@Nonnull final Entry aEntry) throws IOException
+  {
+    try (final RandomAccessFile aRAF = new RandomAccessFile (aEntry.m_aFile, "rw"))
+    {
+      aRAF.seek (OFFSET_RETRY_STATE);
+      aRAF.writeInt (aEntry.m_nNextTry);
+      aRAF.writeLong (aEntry.m_nDueMillis);
+    }
+  }
+
+  private void _remove (@Nonnull final Entry aEntry)
+  {
+    m_aEntries.remove (aEntry.getKey ());
+    m_aCallbacks.remove (aEntry.getKey ());
+    try
+    {
+      Files.deleteIfExists (aEntry.m_aFile.toPath ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to delete parked message file " + aEntry.m_aFile.getAbsolutePath (), ex);
+    }
+  }
+
+  private void _schedule (@Nonnull final Entry aEntry)
+  {
+    m_aWheelLock.locked ( () -> {
+      // Ticks are relative to the start time - round up
+      final long nDueTick = Math.max ((aEntry.m_nDueMillis - m_nStartMillis + m_nTickMillis - 1) / m_nTickMillis,
+                                      m_nCurrentTick + 1);
+      aEntry.m_nDueTick = nDueTick;
+      m_aWheel.get ((int) (nDueTick % m_aWheel.size ())).add (aEntry);
+    });
+  }
+
+  private void _onTick ()
+  {
+    final long nTargetTick = (m_aClock.getAsLong () - m_nStartMillis) / m_nTickMillis;
+    final ICommonsList <Entry> aDue = new CommonsArrayList <> ();
+    m_aWheelLock.locked ( () -> {
+      // Catch up, in case the timer thread was delayed
+      while (m_nCurrentTick < nTargetTick)
+      {
+        m_nCurrentTick++;
+        final ICommonsList <Entry> aSlot = m_aWheel.get ((int) (m_nCurrentTick % m_aWheel.size ()));
+        aSlot.removeIf (x -> {
+          if (x.m_nDueTick > m_nCurrentTick)
+            return false;
+          aDue.add (x);
+          return true;
+        });
+      }
+    });
+
+    for (final Entry aEntry : aDue)
+      m_aWorkers.execute ( () -> _retry (aEntry));
+  }
+
+  @Nonnull
+  private HttpEntity _readEntity (@Nonnull final Entry aEntry, @Nonnull final HttpHeaderMap aHeaders) throws IOException
+  {
+    try (final DataInputStream aDIS = _openEntry (aEntry.m_aFile))
+    {
+      // Skip retry state and the fields already known
+      aDIS.readInt ();
+      aDIS.readLong ();
+      aDIS.readUTF ();
+      aDIS.readUTF ();
+      aDIS.readInt ();
+      aDIS.readLong ();
+      aDIS.readDouble ();
+      _readUTF (aDIS);
+      final int nHeaders = aDIS.readInt ();
+      for (int i = 0; i < nHeaders; ++i)
+        aHeaders.addHeader (aDIS.readUTF (), aDIS.readUTF ());
+      final String sContentType = _readUTF (aDIS);
+      final String sContentEncoding = _readUTF (aDIS);
+      final boolean bChunked = aDIS.readBoolean ();
+      final byte [] aBody = new byte [aDIS.readInt ()];
+      aDIS.readFully (aBody);
+      return new ByteArrayEntity (aBody,
+                                  StringHelper.hasText (sContentType) ? ContentType.parse (sContentType) : null,
+                                  sContentEncoding,
+                                  bChunked);
+    }
+  }
+
+  private void _retry (@Nonnull final Entry aEntry)
+  {
+    final int nTry = aEntry.m_nNextTry;
+    final int nMaxRetries = aEntry.m_nMaxTries - 1;
+    LOGGER.info ("Retry #" + nTry + "/" + nMaxRetries + " for sending message with ID '" + aEntry.m_sMessageID + "'");
+
+    Exception aCaughtException = null;
+    byte [] aResponse = null;
+    try
+    {
+      final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+      final HttpEntity aHttpEntity = _readEntity (aEntry, aHeaders);
+      aResponse = _send (aEntry, aHeaders, aHttpEntity, nTry);
+    }
+    catch (final Exception ex)
+    {
+      aCaughtException = ex;
+    }
+
+    final IAS4RetryOutboxListener aListener = m_aListener;
+    if (aCaughtException == null)
+    {
+      LOGGER.info ("Successfully delivered parked message '" + aEntry.m_sMessageID + "' with try #" + nTry);
+      _remove (aEntry);
+      if (aListener != null)
+        aListener.onDelivered (aEntry.m_sMessageID, aEntry.m_sURL, nTry, aResponse);
+      return;
+    }
+
+    if (aCaughtException instanceof AS4CircuitOpenException)
+    {
+      // The endpoint is known to be down - defer without using up a try
+      final long nDelayMillis = Math.max (((AS4CircuitOpenException) aCaughtException).getRetryAfterMillis (),
+                                          m_nTickMillis);
+      aEntry.m_nDueMillis = m_aClock.getAsLong () + nDelayMillis;
+      try
+      {
+        _updateRetryState (aEntry);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to update the retry state of parked message '" + aEntry.m_sMessageID + "'", ex);
+      }
+      LOGGER.info ("Deferring parked message '" +
+                   aEntry.m_sMessageID +
+                   "' by " +
+                   nDelayMillis +
+                   " ms, because the circuit of '" +
+                   aEntry.m_sURL +
+                   "' is open");
+      _schedule (aEntry);
+      return;
+    }
+
+    // An ebMS Error is the answer of the receiver - retrying won't help
+    if (nTry < nMaxRetries && !(aCaughtException instanceof AS4ErrorSignalException))
+    {
+      final long nDelayMillis = getDelayMillis (aEntry.m_nBaseDelayMillis, aEntry.m_dMultiplier, nTry + 1);
+      final IAS4RetryCallback aRetryCallback = m_aCallbacks.get (aEntry.getKey ());
+      if (aRetryCallback == null ||
+          aRetryCallback.onBeforeRetry (aEntry.m_sMessageID,
+                                        aEntry.m_sURL,
+                                        nTry,
+                                        aEntry.m_nMaxTries,
+                                        nDelayMillis,
+                                        aCaughtException)
+                        .isContinue ())
+      {
+        aEntry.m_nNextTry = nTry + 1;
+        aEntry.m_nDueMillis = m_aClock.getAsLong () + nDelayMillis;
+        try
+        {
+          _updateRetryState (aEntry);
+          LOGGER.warn ("Error sending message '" +
+                       aEntry.m_sMessageID +
+                       "' to '" +
+                       aEntry.m_sURL +
+                       "': " +
+                       aCaughtException.getClass ().getSimpleName () +
+                       " - " +
+                       aCaughtException.getMessage () +
+                       " - retrying in " +
+                       nDelayMillis +
+                       " ms");
+          _schedule (aEntry);
+          return;
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to update the retry state of parked message '" + aEntry.m_sMessageID + "'", ex);
+          aCaughtException.addSuppressed (ex);
+        }
+      }
+      else
+        LOGGER.warn ("Retrying parked message '" +
+                     aEntry.m_sMessageID +
+                     "' was explicitly stopped by the RetryCallback");
+    }
+
+    LOGGER.error ("Finally failed to send parked message '" +
+                  aEntry.m_sMessageID +
+                  "' to '" +
+                  aEntry.m_sURL +
+                  "' after try #" +
+                  nTry,
+                  aCaughtException);
+    _remove (aEntry);
+    if (aListener != null)
+      aListener.onFailed (aEntry.m_sMessageID, aEntry.m_sURL, nTry, aCaughtException);
+  }
+
+  @Nonnull
+  private byte [] _send (@Nonnull final Entry aEntry,
+                         @Nonnull final HttpHeaderMap aHeaders,
+                         @Nonnull final HttpEntity aHttpEntity,
+                         @Nonnegative final int nTry) throws IOException
+  {
+    // Don't even create a dump for an endpoint known to be down
+    final AS4EndpointHealthRegistry aRegistry = m_aHttpPoster.getEndpointHealthRegistry ();
+    final AS4EndpointHealth aHealth = aRegistry == null ? null : aRegistry.getHealth (aEntry.m_sURL);
+    if (aHealth != null && !aHealth.isCallPermitted ())
+      throw new AS4CircuitOpenException (aEntry.m_sURL, aHealth.getMillisUntilHalfOpen ());
+
+    // The dumper of the original call is not persisted - use the global one
+    final IAS4OutgoingDumper aOutgoingDumper = AS4DumpManager.getOutgoingDumper ();
+    final Wrapper <OutputStream> aDumpOSHolder = new Wrapper <> ();
+    IOException aCaughtException = null;
+    try
+    {
+      final HttpEntity aDumpingEntity = BasicHttpPoster.createDumpingHttpEntity (aOutgoingDumper,
+                                                                                 aHttpEntity,
+                                                                                 aEntry.m_sMessageID,
+                                                                                 aHeaders,
+                                                                                 nTry,
+                                                                                 aDumpOSHolder);
+      final byte [] aResponseBytes = m_aHttpPoster.sendGenericMessage (aEntry.m_sURL,
+                                                                       aHeaders,
+                                                                       aDumpingEntity,
+                                                                       new ResponseHandlerByteArray ());
+      verifyResponse (aEntry.m_sMessageID, aEntry.m_eSoapVersion, aResponseBytes);
+      return aResponseBytes;
+    }
+    catch (final IOException ex)
+    {
+      aCaughtException = ex;
+      throw ex;
+    }
+    finally
+    {
+      StreamHelper.close (aDumpOSHolder.get ());
+      if (aOutgoingDumper != null && aDumpOSHolder.isSet ())
+        try
+        {
+          aOutgoingDumper.onEndRequest (EAS4MessageMode.REQUEST, null, null, aEntry.m_sMessageID, aCaughtException);
+        }
+        catch (final Exception ex)
+        {
+          LOGGER.error ("OutgoingDumper.onEndRequest failed. Dumper=" +
+                        aOutgoingDumper +
+                        "; MessageID=" +
+                        aEntry.m_sMessageID,
+                        ex);
+        }
+    }
+  }
+
+  /**
+   * Verify the HTTP response of a retry. Only an ebMS Receipt for the parked
+   * message counts as delivered. Override this method to additionally verify
+   * e.g. the signature of the receipt.
+   *
+   * @param sMessageID
+   *        The AS4 message ID of the parked message. Never <code>null</code>.
+   * @param eSoapVersion
+   *        The SOAP version of the parked message. May be <code>null</code> if
+   *        it could not be determined.
+   * @param aResponseBytes
+   *        The HTTP response body. May be <code>null</code>.
+   * @throws AS4ErrorSignalException
+   *         If the response is an ebMS Error signal. The message is not retried.
+   * @throws IOException
+   *         If the response is no receipt for the parked message. The message
+   *         is retried.
+   */
+  @OverrideOnDemand
+  protected void verifyResponse (@Nonnull @Nonempty final String sMessageID,
+                                 @Nullable final ESoapVersion eSoapVersion,
+                                 @Nullable final byte [] aResponseBytes) throws IOException
+  {
+    final Document aDoc = ArrayHelper.isEmpty (aResponseBytes) ? null : DOMReader.readXMLDOM (aResponseBytes);
+    if (aDoc == null)
+      throw new IOException ("The response to message '" + sMessageID + "' is no XML document");
+
+    final Element aEnvelope = aDoc.getDocumentElement ();
+    final ESoapVersion eResponseSoapVersion = ESoapVersion.getFromNamespaceURIOrNull (aEnvelope.getNamespaceURI ());
+    if (eResponseSoapVersion == null)
+      throw new IOException ("The response to message '" + sMessageID + "' is no SOAP message");
+    if (eSoapVersion != null && eResponseSoapVersion != eSoapVersion)
+      throw new IOException ("The response to message '" +
+                             sMessageID +
+                             "' uses " +
+                             eResponseSoapVersion +
+                             " instead of " +
+                             eSoapVersion);
+
+    final Element aHeader = XMLHelper.getFirstChildElementOfName (aEnvelope,
+                                                                  eResponseSoapVersion.getNamespaceURI (),
+                                                                  eResponseSoapVersion.getHeaderElementName ());
+    final Element aMessagingElement = aHeader == null ? null : XMLHelper.getFirstChildElementOfName (aHeader,
+                                                                                                      CAS4.EBMS_NS,
+                                                                                                      "Messaging");
+    // Receipts without non-repudiation information are not XSD compliant
+    final Ebms3Messaging aMessaging = aMessagingElement == null ? null
+                                                                : new Ebms3MessagingMarshaller ().setUseSchema (false)
+                                                                                                 .read (aMessagingElement);
+    if (aMessaging == null)
+      throw new IOException ("The response to message '" + sMessageID + "' contains no ebMS Messaging header");
+
+    final ICommonsList <Ebms3Error> aErrors = new CommonsArrayList <> ();
+    boolean bReceipt = false;
+    for (final Ebms3SignalMessage aSignalMessage : aMessaging.getSignalMessage ())
+    {
+      for (final Ebms3Error aError : aSignalMessage.getError ())
+        if (!EEbmsErrorSeverity.WARNING.getSeverity ().equals (aError.getSeverity ()))
+          aErrors.add (aError);
+      if (aSignalMessage.getReceipt () != null &&
+          aSignalMessage.getMessageInfo () != null &&
+          sMessageID.equals (aSignalMessage.getMessageInfo ().getRefToMessageId ()))
+        bReceipt = true;
+    }
+    if (aErrors.isNotEmpty ())
+      throw new AS4ErrorSignalException (sMessageID, aErrors);
+    if (!bReceipt)
+      throw new IOException ("The response to message '" + sMessageID + "' contains no receipt for it");
+  }
+
+  /**
+   * Stop the timer and wait until all running retries are finished. Pending
+   * messages stay on disk and are picked up by the next {@link #start()}.
+   */
+  @Override
+  public void close ()
+  {
+    if (m_aTimer != null)
+    {
+      LOGGER.info ("Closing AS4 retry outbox with " + m_aEntries.size () + " parked messages");
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aTimer);
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aWorkers);
+      m_aWheelLock.locked ( () -> {
+        m_aWheel.forEach (ICommonsList::clear);
+        m_nCurrentTick = 0;
+      });
+      m_aEntries.clear ();
+      m_aTimer = null;
+      m_aWorkers = null;
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Directory", m_aDirectory)
+                                       .append ("TickMillis", m_nTickMillis)
+                                       .append ("WheelSize", m_aWheel.size ())
+                                       .append ("WorkerThreads", m_nWorkerThreads)
+                                       .append ("MinBackoffMultiplier", m_dMinBackoffMultiplier)
+                                       .append ("MaxBackoff", m_aMaxBackoff)
+                                       .append ("JitterPercentage", m_nJitterPercentage)
+                                       .getToString ();
+  }
+}
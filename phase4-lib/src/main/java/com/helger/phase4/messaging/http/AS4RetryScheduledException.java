@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * Special exception thrown by
+ * {@link BasicHttpPoster#sendGenericMessageWithRetries(String, com.helger.commons.http.HttpHeaderMap, org.apache.hc.core5.http.HttpEntity, String, HttpRetrySettings, org.apache.hc.core5.http.io.HttpClientResponseHandler, com.helger.phase4.dump.IAS4OutgoingDumper, com.helger.phase4.client.IAS4RetryCallback)}
+ * if the first try failed and the message was parked in an
+ * {@link AS4RetryOutbox}. The final outcome is reported to the
+ * {@link IAS4RetryOutboxListener} of the outbox.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class AS4RetryScheduledException extends IOException
+{
+  private final String m_sMessageID;
+
+  public AS4RetryScheduledException (@Nonnull @Nonempty final String sMessageID, @Nullable final IOException aCause)
+  {
+    super ("Sending message '" + sMessageID + "' failed - the retries are scheduled", aCause);
+    m_sMessageID = sMessageID;
+  }
+
+  /**
+   * @return The AS4 message ID of the parked message.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * Check if the provided exception or one of its causes is an
+   * {@link AS4RetryScheduledException}.
+   *
+   * @param t
+   *        The exception to check. May be <code>null</code>.
+   * @return <code>true</code> if the retries of the message are scheduled.
+   */
+  public static boolean isRetryScheduled (@Nullable final Throwable t)
+  {
+    Throwable aCur = t;
+    while (aCur != null)
+    {
+      if (aCur instanceof AS4RetryScheduledException)
+        return true;
+      aCur = aCur.getCause ();
+    }
+    return false;
+  }
+}
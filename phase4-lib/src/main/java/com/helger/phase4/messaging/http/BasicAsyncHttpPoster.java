@@ -0,0 +1,624 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hc.core5.http.ContentTooLongException;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.entity.AbstractBinAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.hc.core5.http.nio.support.BasicResponseConsumer;
+import org.apache.hc.core5.http.nio.support.classic.AbstractClassicEntityProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.lang.StackTraceHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.dump.AS4DumpManager;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.messaging.EAS4MessageMode;
+
+/**
+ * The default implementation of {@link IAsyncHttpPoster} based on an
+ * {@link AS4AsyncHttpClientPool}. The outgoing entity is streamed to the
+ * connection via {@link HttpEntity#writeTo(OutputStream)} on the entity
+ * executor of the pool, without copying it into memory first. The content
+ * length of the entity is retained. The response is buffered up to a
+ * configurable maximum size (see {@link #setMaxResponseSize(long)}) before the
+ * response handler is invoked, so that the same
+ * {@link HttpClientResponseHandler} implementations as for
+ * {@link BasicHttpPoster} can be used.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class BasicAsyncHttpPoster implements IAsyncHttpPoster
+{
+  /** The default maximum size of a response body in bytes: 100 MB */
+  public static final long DEFAULT_MAX_RESPONSE_SIZE = 100 * CGlobal.BYTES_PER_MEGABYTE;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (BasicAsyncHttpPoster.class);
+  private static final int ENTITY_BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
+  /**
+   * Streams a classic {@link HttpEntity} to the I/O reactor. The entity is
+   * written on the provided executor, as writing blocks until the I/O reactor
+   * consumed the data. In contrast to {@link AbstractClassicEntityProducer}
+   * the content length of the entity is retained.
+   */
+  private static final class ClassicEntityProducer implements AsyncEntityProducer
+  {
+    private final HttpEntity m_aEntity;
+    private final AbstractClassicEntityProducer m_aDelegate;
+
+    ClassicEntityProducer (@Nonnull final HttpEntity aEntity, @Nonnull final Executor aExecutor)
+    {
+      m_aEntity = aEntity;
+      final String sContentType = aEntity.getContentType ();
+      m_aDelegate = new AbstractClassicEntityProducer (ENTITY_BUFFER_SIZE,
+                                                       sContentType == null ? null : ContentType.parse (sContentType),
+                                                       aExecutor)
+      {
+        @Override
+        protected void produceData (final ContentType aContentType, final OutputStream aOS) throws IOException
+        {
+          aEntity.writeTo (aOS);
+        }
+      };
+    }
+
+    public boolean isRepeatable ()
+    {
+      // A new producer is created for every try
+      return false;
+    }
+
+    public long getContentLength ()
+    {
+      return m_aEntity.getContentLength ();
+    }
+
+    public String getContentType ()
+    {
+      return m_aEntity.getContentType ();
+    }
+
+    public String getContentEncoding ()
+    {
+      return m_aEntity.getContentEncoding ();
+    }
+
+    public boolean isChunked ()
+    {
+      return m_aEntity.isChunked ();
+    }
+
+    public Set <String> getTrailerNames ()
+    {
+      return m_aEntity.getTrailerNames ();
+    }
+
+    public int available ()
+    {
+      return m_aDelegate.available ();
+    }
+
+    public void produce (final DataStreamChannel aChannel) throws IOException
+    {
+      m_aDelegate.produce (aChannel);
+    }
+
+    public void failed (final Exception ex)
+    {
+      m_aDelegate.failed (ex);
+    }
+
+    public void releaseResources ()
+    {
+      m_aDelegate.releaseResources ();
+    }
+  }
+
+  /**
+   * Buffers the response body up to a maximum size.
+   */
+  private static final class BoundedByteArrayConsumer extends AbstractBinAsyncEntityConsumer <byte []>
+  {
+    private final long m_nMaxSize;
+    private final NonBlockingByteArrayOutputStream m_aBAOS = new NonBlockingByteArrayOutputStream ();
+
+    BoundedByteArrayConsumer (final long nMaxSize)
+    {
+      m_nMaxSize = nMaxSize;
+    }
+
+    @Override
+    protected void streamStart (final ContentType aContentType)
+    {}
+
+    @Override
+    protected int capacityIncrement ()
+    {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected void data (final ByteBuffer aSrc, final boolean bEndOfStream) throws IOException
+    {
+      final int nLen = aSrc.remaining ();
+      if (m_aBAOS.size () + (long) nLen > m_nMaxSize)
+        throw new ContentTooLongException ("The response body exceeds the maximum size of " + m_nMaxSize + " bytes");
+      final byte [] aBytes = new byte [nLen];
+      aSrc.get (aBytes);
+      m_aBAOS.write (aBytes);
+    }
+
+    @Override
+    protected byte [] generateContent ()
+    {
+      return m_aBAOS.toByteArray ();
+    }
+
+    @Override
+    public void releaseResources ()
+    {
+      m_aBAOS.reset ();
+    }
+  }
+
+  private final AS4AsyncHttpClientPool m_aHttpClientPool;
+  private boolean m_bQuoteHttpHeaders = BasicHttpPoster.DEFAULT_QUOTE_HTTP_HEADERS;
+  private long m_nMaxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+  /**
+   * Constructor
+   *
+   * @param aHttpClientPool
+   *        The asynchronous HTTP client pool to be used. May not be
+   *        <code>null</code>. The pool is not closed by this class.
+   */
+  public BasicAsyncHttpPoster (@Nonnull final AS4AsyncHttpClientPool aHttpClientPool)
+  {
+    ValueEnforcer.notNull (aHttpClientPool, "HttpClientPool");
+    m_aHttpClientPool = aHttpClientPool;
+  }
+
+  @Nonnull
+  public final AS4AsyncHttpClientPool getHttpClientPool ()
+  {
+    return m_aHttpClientPool;
+  }
+
+  public final boolean isQuoteHttpHeaders ()
+  {
+    return m_bQuoteHttpHeaders;
+  }
+
+  @Nonnull
+  public final BasicAsyncHttpPoster setQuoteHttpHeaders (final boolean bQuoteHttpHeaders)
+  {
+    m_bQuoteHttpHeaders = bQuoteHttpHeaders;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of response body bytes that are buffered.
+   *         Larger responses fail with a {@link ContentTooLongException} and
+   *         are not retried. Always &gt; 0.
+   */
+  public final long getMaxResponseSize ()
+  {
+    return m_nMaxResponseSize;
+  }
+
+  /**
+   * Set the maximum number of response body bytes that are buffered.
+   *
+   * @param nMaxResponseSize
+   *        The maximum size in bytes. Must be &gt; 0.
+   * @return this for chaining
+   * @see #DEFAULT_MAX_RESPONSE_SIZE
+   */
+  @Nonnull
+  public final BasicAsyncHttpPoster setMaxResponseSize (final long nMaxResponseSize)
+  {
+    ValueEnforcer.isGT0 (nMaxResponseSize, "MaxResponseSize");
+    m_nMaxResponseSize = nMaxResponseSize;
+    return this;
+  }
+
+  /**
+   * Convert the buffered asynchronous response into a classic response, so
+   * that the existing response handlers can be reused.
+   *
+   * @param aResponse
+   *        The asynchronous response head. May not be <code>null</code>.
+   * @param aBody
+   *        The buffered response body. May be <code>null</code>.
+   * @return The classic response. Never <code>null</code>.
+   */
+  @Nonnull
+  protected static BasicClassicHttpResponse createClassicResponse (@Nonnull final HttpResponse aResponse,
+                                                                   @Nullable final byte [] aBody)
+  {
+    final BasicClassicHttpResponse ret = new BasicClassicHttpResponse (aResponse.getCode (),
+                                                                       aResponse.getReasonPhrase ());
+    ret.setVersion (aResponse.getVersion ());
+    ret.setHeaders (aResponse.getHeaders ());
+    if (aBody != null)
+    {
+      final Header aContentType = aResponse.getFirstHeader (CHttpHeader.CONTENT_TYPE);
+      ret.setEntity (new ByteArrayEntity (aBody,
+                                          aContentType == null ? null
+                                                               : ContentType.parseLenient (aContentType.getValue ())));
+    }
+    return ret;
+  }
+
+  @Nonnull
+  public <T> CompletableFuture <T> sendGenericMessageAsync (@Nonnull @Nonempty final String sURL,
+                                                            @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                                                            @Nonnull final HttpEntity aHttpEntity,
+                                                            @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+
+    final StopWatch aSW = StopWatch.createdStarted ();
+    LOGGER.info ("Starting to asynchronously transmit AS4 Message to '" + sURL + "'");
+
+    final AsyncRequestProducer aRequestProducer;
+    try
+    {
+      final AsyncRequestBuilder aBuilder = AsyncRequestBuilder.post (new URI (sURL));
+      if (aCustomHttpHeaders != null)
+      {
+        // Always unify line endings
+        // By default quoting is disabled
+        aCustomHttpHeaders.forEachSingleHeader (aBuilder::addHeader, true, m_bQuoteHttpHeaders);
+      }
+
+      // Debug sending
+      AS4HttpDebug.debug ( () -> {
+        final StringBuilder ret = new StringBuilder ("SEND-START to ").append (sURL).append ("\n");
+        try
+        {
+          if (aCustomHttpHeaders != null)
+            aCustomHttpHeaders.forEachSingleHeader ( (k, v) -> ret.append (k).append (": ").append (v).append (CHttp.EOL),
+                                                     true,
+                                                     m_bQuoteHttpHeaders);
+          ret.append (CHttp.EOL);
+          if (aHttpEntity.isRepeatable ())
+            ret.append (EntityUtils.toString (aHttpEntity));
+          else
+            ret.append ("## The payload is marked as 'not repeatable' and is the therefore not printed in debugging");
+        }
+        catch (final Exception ex)
+        {
+          ret.append ("## Exception listing payload: " + ex.getClass ().getName () + " -- " + ex.getMessage ())
+             .append (CHttp.EOL);
+          ret.append ("## ").append (StackTraceHelper.getStackAsString (ex));
+        }
+        return ret.toString ();
+      });
+
+      // The entity is streamed on the entity executor
+      aRequestProducer = aBuilder.setEntity (new ClassicEntityProducer (aHttpEntity,
+                                                                        m_aHttpClientPool.getEntityExecutor ()))
+                                 .build ();
+    }
+    catch (final Exception ex)
+    {
+      aSW.stop ();
+      LOGGER.info ("Failed preparing AS4 Message for '" + sURL + "' after " + aSW.getMillis () + " ms");
+      return CompletableFuture.failedFuture (ex);
+    }
+
+    final CompletableFuture <Message <HttpResponse, byte []>> aResponseFuture;
+    try
+    {
+      aResponseFuture = m_aHttpClientPool.execute (aRequestProducer,
+                                                   new BasicResponseConsumer <> (new BoundedByteArrayConsumer (m_nMaxResponseSize)));
+    }
+    catch (final IllegalStateException ex)
+    {
+      // Pool already closed
+      aSW.stop ();
+      return CompletableFuture.failedFuture (ex);
+    }
+
+    return aResponseFuture.<T> thenApply (aResponse -> {
+      try
+      {
+        return aResponseHandler.handleResponse (createClassicResponse (aResponse.getHead (), aResponse.getBody ()));
+      }
+      catch (final IOException | HttpException ex)
+      {
+        throw new CompletionException (ex);
+      }
+    }).whenComplete ( (aResult, aEx) -> {
+      aSW.stop ();
+      LOGGER.info ((aEx != null ? "Failed" : "Finished") +
+                   " asynchronously transmitting AS4 Message to '" +
+                   sURL +
+                   "' after " +
+                   aSW.getMillis () +
+                   " ms");
+    });
+  }
+
+  @Nonnull
+  private static Throwable _unwrap (@Nonnull final Throwable t)
+  {
+    Throwable ret = t;
+    while (ret instanceof CompletionException && ret.getCause () != null)
+      ret = ret.getCause ();
+    return ret;
+  }
+
+  /**
+   * Internal class that holds the state of a single message exchange including
+   * all its retries.
+   *
+   * @param <T>
+   *        Response data type
+   */
+  private final class RetryingExchange <T>
+  {
+    private final String m_sURL;
+    private final HttpHeaderMap m_aCustomHttpHeaders;
+    private final HttpEntity m_aHttpEntity;
+    private final String m_sMessageID;
+    private final HttpRetrySettings m_aRetrySettings;
+    private final HttpClientResponseHandler <? extends T> m_aResponseHandler;
+    private final IAS4OutgoingDumper m_aOutgoingDumper;
+    private final IAS4RetryCallback m_aRetryCallback;
+    private final int m_nMaxTries;
+    private final AtomicBoolean m_aDumped = new AtomicBoolean (false);
+    private final CompletableFuture <T> m_aResult = new CompletableFuture <> ();
+
+    RetryingExchange (@Nonnull final String sURL,
+                      @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                      @Nonnull final HttpEntity aHttpEntity,
+                      @Nonnull final String sMessageID,
+                      @Nonnull final HttpRetrySettings aRetrySettings,
+                      @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler,
+                      @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                      @Nullable final IAS4RetryCallback aRetryCallback)
+    {
+      m_sURL = sURL;
+      m_aCustomHttpHeaders = aCustomHttpHeaders;
+      m_aHttpEntity = aHttpEntity;
+      m_sMessageID = sMessageID;
+      m_aRetrySettings = aRetrySettings;
+      m_aResponseHandler = aResponseHandler;
+      m_aOutgoingDumper = aOutgoingDumper;
+      m_aRetryCallback = aRetryCallback;
+      m_nMaxTries = aRetrySettings.isRetryEnabled () ? 1 + aRetrySettings.getMaxRetries () : 1;
+    }
+
+    private void _finish (@Nullable final T aResult, @Nullable final Throwable aEx)
+    {
+      // Add the possibility to close open resources
+      if (m_aOutgoingDumper != null && m_aDumped.get ())
+        try
+        {
+          m_aOutgoingDumper.onEndRequest (EAS4MessageMode.REQUEST,
+                                          null,
+                                          null,
+                                          m_sMessageID,
+                                          aEx instanceof Exception ? (Exception) aEx : null);
+        }
+        catch (final Exception ex)
+        {
+          LOGGER.error ("OutgoingDumper.onEndRequest failed. Dumper=" +
+                        m_aOutgoingDumper +
+                        "; MessageID=" +
+                        m_sMessageID,
+                        ex);
+        }
+
+      if (aEx != null)
+        m_aResult.completeExceptionally (aEx);
+      else
+        m_aResult.complete (aResult);
+    }
+
+    void sendTry (@Nonnegative final int nTry, @Nonnull final Duration aDurationBeforeRetry)
+    {
+      if (nTry > 0)
+        LOGGER.info ("Retry #" +
+                     nTry +
+                     "/" +
+                     m_aRetrySettings.getMaxRetries () +
+                     " for sending message with ID '" +
+                     m_sMessageID +
+                     "'");
+
+      // This class holds the effective OutputStream to which the dump is
+      // written
+      final Wrapper <OutputStream> aDumpOSHolder = new Wrapper <> ();
+      CompletableFuture <T> aTryFuture;
+      try
+      {
+        // Create a new one every time (for new filename, new timestamp, etc.)
+        final HttpEntity aDumpingEntity = BasicHttpPoster.createDumpingHttpEntity (m_aOutgoingDumper,
+                                                                                   m_aHttpEntity,
+                                                                                   m_sMessageID,
+                                                                                   m_aCustomHttpHeaders,
+                                                                                   nTry,
+                                                                                   aDumpOSHolder);
+        if (aDumpOSHolder.isSet ())
+          m_aDumped.set (true);
+
+        // The entity is streamed asynchronously
+        aTryFuture = sendGenericMessageAsync (m_sURL, m_aCustomHttpHeaders, aDumpingEntity, m_aResponseHandler);
+      }
+      catch (final IOException ex)
+      {
+        aTryFuture = CompletableFuture.failedFuture (ex);
+      }
+
+      aTryFuture.whenComplete ( (aResult, aEx) -> {
+        // Flush and close the dump output stream (if any) - the entity was
+        // completely written at this point
+        StreamHelper.close (aDumpOSHolder.get ());
+
+        if (aEx == null)
+        {
+          _finish (aResult, null);
+          return;
+        }
+
+        final Throwable aCause = _unwrap (aEx);
+        // Only IO errors are retried - and only if tries are left
+        // An oversized response would be oversized on every try
+        if (!(aCause instanceof IOException) || aCause instanceof ContentTooLongException || nTry == m_nMaxTries - 1)
+        {
+          _finish (null, aCause);
+          return;
+        }
+
+        // After the first retry, increase the waiting time
+        final Duration aNextDuration = nTry > 1 ? HttpRetrySettings.getIncreased (aDurationBeforeRetry,
+                                                                                   m_aRetrySettings.getRetryIncreaseFactor ())
+                                                : aDurationBeforeRetry;
+
+        if (m_aRetryCallback != null)
+          if (m_aRetryCallback.onBeforeRetry (m_sMessageID,
+                                              m_sURL,
+                                              nTry,
+                                              m_nMaxTries,
+                                              aNextDuration.toMillis (),
+                                              (Exception) aCause)
+                              .isBreak ())
+          {
+            // Explicitly interrupt retry
+            LOGGER.warn ("Error sending message '" +
+                         m_sMessageID +
+                         "' to '" +
+                         m_sURL +
+                         ": " +
+                         aCause.getClass ().getSimpleName () +
+                         " - " +
+                         aCause.getMessage () +
+                         " - retrying was explicitly stopped by the RetryCallback");
+
+            // Propagate Exception as if it would be the last retry
+            _finish (null, aCause);
+            return;
+          }
+
+        LOGGER.warn ("Error sending message '" +
+                     m_sMessageID +
+                     "' to '" +
+                     m_sURL +
+                     "': " +
+                     aCause.getClass ().getSimpleName () +
+                     " - " +
+                     aCause.getMessage () +
+                     " - waiting " +
+                     aNextDuration.toMillis () +
+                     " ms, than retrying");
+
+        // Don't block a thread while waiting
+        CompletableFuture.delayedExecutor (aNextDuration.toMillis (), TimeUnit.MILLISECONDS)
+                         .execute ( () -> sendTry (nTry + 1, aNextDuration));
+      });
+    }
+  }
+
+  @Nonnull
+  public <T> CompletableFuture <T> sendGenericMessageWithRetriesAsync (@Nonnull final String sURL,
+                                                                       @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                                                                       @Nonnull final HttpEntity aHttpEntity,
+                                                                       @Nonnull final String sMessageID,
+                                                                       @Nonnull final HttpRetrySettings aRetrySettings,
+                                                                       @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler,
+                                                                       @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                                       @Nullable final IAS4RetryCallback aRetryCallback)
+  {
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+    ValueEnforcer.notNull (aRetrySettings, "RetrySettings");
+
+    if (aRetrySettings.isRetryEnabled () && !aHttpEntity.isRepeatable ())
+      return CompletableFuture.failedFuture (new IllegalStateException ("If retry is enabled, a repeatable entity must be provided"));
+
+    // Parameter or global one - may still be null
+    final IAS4OutgoingDumper aRealOutgoingDumper = aOutgoingDumper != null ? aOutgoingDumper : AS4DumpManager
+                                                                                                             .getOutgoingDumper ();
+
+    final RetryingExchange <T> aExchange = new RetryingExchange <> (sURL,
+                                                                    aCustomHttpHeaders,
+                                                                    aHttpEntity,
+                                                                    sMessageID,
+                                                                    aRetrySettings,
+                                                                    aResponseHandler,
+                                                                    aRealOutgoingDumper,
+                                                                    aRetryCallback);
+    aExchange.sendTry (0, aRetrySettings.getDurationBeforeRetry ());
+    return aExchange.m_aResult;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("HttpClientPool", m_aHttpClientPool)
+                                       .append ("QuoteHttpHeaders", m_bQuoteHttpHeaders)
+                                       .append ("MaxResponseSize", m_nMaxResponseSize)
+                                       .getToString ();
+  }
+}
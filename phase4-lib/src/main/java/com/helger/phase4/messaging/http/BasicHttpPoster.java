@@ -26,6 +26,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.WillNotClose;
 
+import org.apache.hc.client5.http.HttpResponseException;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpEntity;
@@ -79,8 +80,11 @@ public class BasicHttpPoster implements IHttpPoster
 
   // By default no special SSL context present
   private HttpClientFactory m_aHttpClientFactory = createDefaultHttpClientFactory ();
+  private AS4HttpClientPool m_aHttpClientPool;
   private Consumer <? super HttpPost> m_aHttpCustomizer;
   private boolean m_bQuoteHttpHeaders = DEFAULT_QUOTE_HTTP_HEADERS;
+  private AS4RetryOutbox m_aRetryOutbox;
+  private AS4EndpointHealthRegistry m_aEndpointHealthRegistry;
 
   public BasicHttpPoster ()
   {}
@@ -99,6 +103,19 @@ public class BasicHttpPoster implements IHttpPoster
     return this;
   }
 
+  @Nullable
+  public final AS4HttpClientPool getHttpClientPool ()
+  {
+    return m_aHttpClientPool;
+  }
+
+  @Nonnull
+  public final BasicHttpPoster setHttpClientPool (@Nullable final AS4HttpClientPool aHttpClientPool)
+  {
+    m_aHttpClientPool = aHttpClientPool;
+    return this;
+  }
+
   @Nullable
   public final Consumer <? super HttpPost> getHttpCustomizer ()
   {
@@ -124,10 +141,93 @@ public class BasicHttpPoster implements IHttpPoster
     return this;
   }
 
+  /**
+   * @return The retry outbox in which messages are parked if the first try
+   *         failed. May be <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4RetryOutbox getRetryOutbox ()
+  {
+    return m_aRetryOutbox;
+  }
+
+  /**
+   * Set the retry outbox to be used. If an outbox is set, a failed first try
+   * does not block the sending thread for the retry duration. Instead the
+   * message is parked in the outbox and an {@link AS4RetryScheduledException}
+   * is thrown. If no outbox is set, the retries happen in the sending thread.
+   *
+   * @param aRetryOutbox
+   *        The started retry outbox to use. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final BasicHttpPoster setRetryOutbox (@Nullable final AS4RetryOutbox aRetryOutbox)
+  {
+    m_aRetryOutbox = aRetryOutbox;
+    return this;
+  }
+
+  /**
+   * @return The endpoint health registry in which all calls are recorded. May
+   *         be <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4EndpointHealthRegistry getEndpointHealthRegistry ()
+  {
+    return m_aEndpointHealthRegistry;
+  }
+
+  /**
+   * Set the endpoint health registry to be used. If a registry is set, the
+   * outcome of every call is recorded and no calls are made to endpoints with
+   * an open circuit. Automatic retries of the underlying HttpClient (e.g. for
+   * HTTP 503) happen within a single call and are therefore not recorded
+   * separately.
+   *
+   * @param aEndpointHealthRegistry
+   *        The registry to use. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final BasicHttpPoster setEndpointHealthRegistry (@Nullable final AS4EndpointHealthRegistry aEndpointHealthRegistry)
+  {
+    m_aEndpointHealthRegistry = aEndpointHealthRegistry;
+    return this;
+  }
+
+  /**
+   * Check if a message may be sent to the provided URL, before it is built.
+   * This allows to skip signing and encryption for endpoints with an open
+   * circuit. If a retry outbox is set, this check always passes, because the
+   * message is deferred in the outbox instead.
+   *
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @throws AS4CircuitOpenException
+   *         if the circuit of the endpoint is open
+   * @since 3.0.0
+   */
+  public void checkEndpointAvailable (@Nonnull @Nonempty final String sURL) throws AS4CircuitOpenException
+  {
+    final AS4EndpointHealthRegistry aRegistry = m_aEndpointHealthRegistry;
+    if (aRegistry != null && m_aRetryOutbox == null)
+    {
+      final AS4EndpointHealth aHealth = aRegistry.getHealth (sURL);
+      if (aHealth != null && !aHealth.isCallPermitted ())
+        throw new AS4CircuitOpenException (sURL, aHealth.getMillisUntilHalfOpen ());
+    }
+  }
+
   /**
    * Send an arbitrary HTTP POST message to the provided URL, using the
-   * contained HttpClientFactory as well as the customizer. Additionally the AS4
-   * HTTP debugging is invoked in here.<br>
+   * contained HttpClientPool or HttpClientFactory as well as the customizer.
+   * Additionally the AS4 HTTP debugging is invoked in here. If an endpoint
+   * health registry is set, the call is recorded there.<br>
    * This method does NOT retry
    *
    * @param <T>
@@ -145,6 +245,8 @@ public class BasicHttpPoster implements IHttpPoster
    * @return The HTTP response. May be <code>null</code>.
    * @throws IOException
    *         In case of IO error
+   * @throws AS4CircuitOpenException
+   *         if the circuit of the endpoint is open
    */
   @Nullable
   public <T> T sendGenericMessage (@Nonnull @Nonempty final String sURL,
@@ -155,11 +257,16 @@ public class BasicHttpPoster implements IHttpPoster
     ValueEnforcer.notEmpty (sURL, "URL");
     ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
 
+    final AS4EndpointHealthRegistry aRegistry = m_aEndpointHealthRegistry;
+    final AS4EndpointHealth aHealth = aRegistry == null ? null : aRegistry.getOrCreateHealth (sURL);
+    if (aHealth != null)
+      aHealth.acquirePermission ();
+
     final StopWatch aSW = StopWatch.createdStarted ();
     LOGGER.info ("Starting to transmit AS4 Message to '" + sURL + "'");
 
-    IOException aCaughtException = null;
-    try (final HttpClientManager aClientMgr = new HttpClientManager (m_aHttpClientFactory))
+    Exception aCaughtException = null;
+    try
     {
       final HttpPost aPost = new HttpPost (sURL);
 
@@ -198,9 +305,18 @@ public class BasicHttpPoster implements IHttpPoster
         return ret.toString ();
       });
 
-      return aClientMgr.execute (aPost, aResponseHandler);
+      if (m_aHttpClientPool != null)
+      {
+        // Reuse the pooled connections
+        return m_aHttpClientPool.execute (aPost, aResponseHandler);
+      }
+
+      try (final HttpClientManager aClientMgr = new HttpClientManager (m_aHttpClientFactory))
+      {
+        return aClientMgr.execute (aPost, aResponseHandler);
+      }
     }
-    catch (final IOException ex)
+    catch (final IOException | RuntimeException ex)
     {
       aCaughtException = ex;
       throw ex;
@@ -208,6 +324,25 @@ public class BasicHttpPoster implements IHttpPoster
     finally
     {
       aSW.stop ();
+      if (aHealth != null)
+      {
+        if (aCaughtException == null)
+          aHealth.onSuccess (aSW.getMillis ());
+        else
+          if (aRegistry.isEndpointFailure (aCaughtException))
+            aHealth.onFailure (aSW.getMillis (), aCaughtException);
+          else
+            if (aCaughtException instanceof HttpResponseException)
+            {
+              // The endpoint answered, so it is alive
+              aHealth.onSuccess (aSW.getMillis ());
+            }
+            else
+            {
+              // Local problem - says nothing about the endpoint
+              aHealth.onUnrated ();
+            }
+      }
       LOGGER.info ((aCaughtException != null ? "Failed" : "Finished") +
                    " transmitting AS4 Message to '" +
                    sURL +
@@ -295,6 +430,49 @@ public class BasicHttpPoster implements IHttpPoster
         if (!aHttpEntity.isRepeatable ())
           throw new IllegalStateException ("If retry is enabled, a repeatable entity must be provided");
 
+        final AS4RetryOutbox aRetryOutbox = m_aRetryOutbox;
+        if (aRetryOutbox != null)
+        {
+          // Try once and park the message on error
+          try
+          {
+            final HttpEntity aDumpingEntity = createDumpingHttpEntity (aRealOutgoingDumper,
+                                                                       aHttpEntity,
+                                                                       sMessageID,
+                                                                       aCustomHttpHeaders,
+                                                                       0,
+                                                                       aDumpOSHolder);
+            return sendGenericMessage (sURL, aCustomHttpHeaders, aDumpingEntity, aResponseHandler);
+          }
+          catch (final IOException ex)
+          {
+            final boolean bParked;
+            try
+            {
+              bParked = aRetryOutbox.park (sURL,
+                                           aCustomHttpHeaders,
+                                           aHttpEntity,
+                                           sMessageID,
+                                           aRetrySettings,
+                                           aRetryCallback,
+                                           ex);
+            }
+            catch (final IOException ex2)
+            {
+              LOGGER.error ("Failed to park message '" + sMessageID + "' in the retry outbox", ex2);
+              ex.addSuppressed (ex2);
+              throw ex;
+            }
+            if (!bParked)
+              throw ex;
+            throw new AS4RetryScheduledException (sMessageID, ex);
+          }
+          finally
+          {
+            StreamHelper.close (aDumpOSHolder.get ());
+          }
+        }
+
         final int nMaxRetries = aRetrySettings.getMaxRetries ();
         final int nMaxTries = 1 + nMaxRetries;
         Duration aDurationBeforeRetry = aRetrySettings.getDurationBeforeRetry ();
@@ -323,6 +501,10 @@ public class BasicHttpPoster implements IHttpPoster
             if (nTry == nMaxTries - 1)
               throw ex;
 
+            // Don't wait for an endpoint known to be down
+            if (ex instanceof AS4CircuitOpenException)
+              throw ex;
+
             // After the first retry, increase the waiting time
             if (nTry > 1)
               aDurationBeforeRetry = HttpRetrySettings.getIncreased (aDurationBeforeRetry,
@@ -360,6 +542,7 @@ public class BasicHttpPoster implements IHttpPoster
                          " ms, than retrying");
 
             // Sleep and try again afterwards
+            // On a virtual thread this does not block the carrier thread
             ThreadHelper.sleep (aDurationBeforeRetry.toMillis ());
           }
           finally
@@ -419,8 +602,11 @@ public class BasicHttpPoster implements IHttpPoster
   public String toString ()
   {
     return new ToStringGenerator (this).append ("HttpClientFactory", m_aHttpClientFactory)
+                                       .append ("HttpClientPool", m_aHttpClientPool)
                                        .append ("HttpCustomizer", m_aHttpCustomizer)
                                        .append ("QuoteHttpHeaders", m_bQuoteHttpHeaders)
+                                       .append ("RetryOutbox", m_aRetryOutbox)
+                                       .append ("EndpointHealthRegistry", m_aEndpointHealthRegistry)
                                        .getToString ();
   }
 }
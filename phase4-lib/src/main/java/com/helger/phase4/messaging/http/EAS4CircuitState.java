@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The state of the circuit breaker of a single endpoint.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ * @see AS4EndpointHealth
+ */
+public enum EAS4CircuitState implements IHasID <String>
+{
+  /** The endpoint is healthy and all messages are sent. */
+  CLOSED ("closed"),
+  /**
+   * The endpoint failed too often in a row. Messages are not sent until the
+   * open duration elapsed.
+   */
+  OPEN ("open"),
+  /**
+   * The open duration elapsed and a single probe message is sent to check if
+   * the endpoint is available again.
+   */
+  HALF_OPEN ("halfopen");
+
+  private final String m_sID;
+
+  EAS4CircuitState (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4CircuitState getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4CircuitState.class, sID);
+  }
+}
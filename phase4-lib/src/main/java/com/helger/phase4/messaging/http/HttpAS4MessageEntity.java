@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.w3c.dom.Node;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.mime.IMimeType;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.model.message.IAS4Message;
+import com.helger.phase4.util.AS4XMLHelper;
+
+/**
+ * Special HttpClient HTTP POST entity that writes the SOAP envelope of an
+ * unsigned and unencrypted {@link IAS4Message} as UTF-8 bytes, without creating
+ * a DOM document or a String first. The envelope is serialized only once, on
+ * first access, so that the real content length is known and no chunked
+ * transfer encoding is needed. This entity is repeatable. Serialization errors
+ * are reported as {@link IOException} from {@link #writeTo(OutputStream)} and
+ * {@link #getContent()}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class HttpAS4MessageEntity extends AbstractHttpEntity
+{
+  private final IAS4Message m_aMsg;
+  private final Node m_aSoapBodyPayload;
+  @GuardedBy ("this")
+  private byte [] m_aBytes;
+
+  public HttpAS4MessageEntity (@Nonnull final IAS4Message aMsg,
+                               @Nullable final Node aSoapBodyPayload,
+                               @Nonnull final IMimeType aMimeType)
+  {
+    // ContentType Required for AS4.NET
+    super (ContentType.parse (aMimeType.getAsString ()).withCharset (AS4XMLHelper.XWS.getCharset ()), null);
+    ValueEnforcer.notNull (aMsg, "Msg");
+    m_aMsg = aMsg;
+    m_aSoapBodyPayload = aSoapBodyPayload;
+  }
+
+  @Override
+  public final void close () throws IOException
+  {
+    // nothing to do
+  }
+
+  /**
+   * @return The AS4 message passed in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4Message getAS4Message ()
+  {
+    return m_aMsg;
+  }
+
+  @Override
+  public boolean isRepeatable ()
+  {
+    return true;
+  }
+
+  @Nonnull
+  private synchronized byte [] _getSerializedBytes () throws IOException
+  {
+    byte [] ret = m_aBytes;
+    if (ret == null)
+    {
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        m_aMsg.writeSoapEnvelope (m_aSoapBodyPayload, aBAOS);
+        ret = aBAOS.toByteArray ();
+      }
+      m_aBytes = ret;
+    }
+    return ret;
+  }
+
+  public long getContentLength ()
+  {
+    try
+    {
+      return _getSerializedBytes ().length;
+    }
+    catch (final IOException ex)
+    {
+      // length unknown - negative number; the error is re-thrown by writeTo
+      return -1;
+    }
+  }
+
+  public boolean isStreaming ()
+  {
+    return false;
+  }
+
+  public InputStream getContent () throws IOException
+  {
+    return new NonBlockingByteArrayInputStream (_getSerializedBytes ());
+  }
+
+  @Override
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    aOS.write (_getSerializedBytes ());
+    aOS.flush ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ())
+                            .append ("Msg", m_aMsg)
+                            .append ("SoapBodyPayload", m_aSoapBodyPayload)
+                            .getToString ();
+  }
+}
@@ -16,27 +16,173 @@
  */
 package com.helger.phase4.messaging.http;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
 
 import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
 import org.w3c.dom.Node;
 
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.mime.IMimeType;
+import com.helger.commons.string.ToStringGenerator;
 import com.helger.phase4.util.AS4XMLHelper;
 
 /**
- * Special HttpClient HTTP POST entity that contains a DOM Node as a serialized
- * String. This entity is repeatable.
+ * Special HttpClient HTTP POST entity that contains a DOM Node. By default the
+ * node is serialized once, without creating an intermediate String, and the
+ * serialized bytes are cached (see {@link #getSerializedBytes()}), so that the
+ * real content length is reported and the message is not sent with chunked
+ * transfer encoding. Only if chunking is explicitly enabled in the
+ * constructor, the node is serialized directly to the output stream in
+ * {@link #writeTo(OutputStream)} and the content length is unknown, unless
+ * {@link #getSerializedBytes()} was called before. This entity is repeatable.
  *
  * @author Philip Helger
  */
-public class HttpXMLEntity extends StringEntity
+@NotThreadSafe
+public class HttpXMLEntity extends AbstractHttpEntity
 {
+  private final Node m_aNode;
+  private byte [] m_aSerializedBytes;
+
   public HttpXMLEntity (@Nonnull final Node aNode, @Nonnull final IMimeType aMimeType)
+  {
+    this (aNode, aMimeType, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aNode
+   *        The DOM node to be sent. May not be <code>null</code>.
+   * @param aMimeType
+   *        The MIME type to use. May not be <code>null</code>.
+   * @param bChunked
+   *        <code>true</code> to stream the node directly to the output stream
+   *        with an unknown content length (chunked transfer encoding),
+   *        <code>false</code> to serialize it once and send it with the real
+   *        content length.
+   * @since 3.0.0
+   */
+  public HttpXMLEntity (@Nonnull final Node aNode, @Nonnull final IMimeType aMimeType, final boolean bChunked)
   {
     // ContentType Required for AS4.NET
-    super (AS4XMLHelper.serializeXML (aNode),
-           ContentType.parse (aMimeType.getAsString ()).withCharset (AS4XMLHelper.XWS.getCharset ()));
+    super (ContentType.parse (aMimeType.getAsString ()).withCharset (AS4XMLHelper.XWS.getCharset ()), null, bChunked);
+    ValueEnforcer.notNull (aNode, "Node");
+    m_aNode = aNode;
+  }
+
+  @Override
+  public final void close () throws IOException
+  {
+    // nothing to do
+  }
+
+  /**
+   * @return The DOM node passed in the constructor. Never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final Node getNode ()
+  {
+    return m_aNode;
+  }
+
+  /**
+   * @return <code>true</code> if the serialized bytes are cached and the
+   *         content length is known, <code>false</code> if the node is
+   *         serialized on every write.
+   * @since 3.0.0
+   */
+  public final boolean isSerializedBytesCached ()
+  {
+    return m_aSerializedBytes != null;
+  }
+
+  /**
+   * Get the serialized bytes of the contained node. The node is serialized on
+   * the first call only and the result is cached, so that all subsequent
+   * writes use the cached bytes and the content length is known. For
+   * non-chunked entities this is implicitly called by
+   * {@link #getContentLength()}.
+   *
+   * @return The serialized bytes. Never <code>null</code>. Don't modify.
+   * @since 3.0.0
+   */
+  @Nonnull
+  @ReturnsMutableObject
+  public final byte [] getSerializedBytes ()
+  {
+    byte [] ret = m_aSerializedBytes;
+    if (ret == null)
+    {
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        AS4XMLHelper.serializeXML (m_aNode, aBAOS, false);
+        ret = aBAOS.getBufferOrCopy ();
+      }
+      m_aSerializedBytes = ret;
+    }
+    return ret;
+  }
+
+  @Override
+  public boolean isRepeatable ()
+  {
+    return true;
+  }
+
+  public long getContentLength ()
+  {
+    if (!isChunked ())
+      return getSerializedBytes ().length;
+
+    final byte [] aBytes = m_aSerializedBytes;
+    // length unknown - negative number
+    return aBytes != null ? aBytes.length : -1;
+  }
+
+  public boolean isStreaming ()
+  {
+    return false;
+  }
+
+  public InputStream getContent () throws IOException
+  {
+    return new NonBlockingByteArrayInputStream (getSerializedBytes ());
+  }
+
+  @Override
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    final byte [] aBytes = m_aSerializedBytes;
+    if (aBytes != null)
+      aOS.write (aBytes);
+    else
+      if (isChunked ())
+      {
+        // Stream directly
+        AS4XMLHelper.serializeXML (m_aNode, aOS, false);
+      }
+      else
+        aOS.write (getSerializedBytes ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ())
+                            .append ("Node", m_aNode)
+                            .append ("SerializedBytesCached", isSerializedBytesCached ())
+                            .getToString ();
   }
 }
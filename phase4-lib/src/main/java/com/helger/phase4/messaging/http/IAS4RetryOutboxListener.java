@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Listener for the final outcome of messages that were parked in an
+ * {@link AS4RetryOutbox}. As the outcome may only be known after a restart of
+ * the application, this listener is set on the outbox and not per message.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public interface IAS4RetryOutboxListener
+{
+  /**
+   * Invoked after a parked message was successfully delivered, meaning that
+   * the receiver answered with an ebMS Receipt for it.
+   *
+   * @param sMessageID
+   *        The AS4 message ID. Never <code>null</code>.
+   * @param sURL
+   *        The destination URL. Never <code>null</code>.
+   * @param nTry
+   *        The successful try, 0-based.
+   * @param aResponseBytes
+   *        The HTTP response body containing the receipt. Never
+   *        <code>null</code>.
+   */
+  default void onDelivered (@Nonnull final String sMessageID,
+                            @Nonnull final String sURL,
+                            @Nonnegative final int nTry,
+                            @Nonnull final byte [] aResponseBytes)
+  {}
+
+  /**
+   * Invoked after a parked message could not be delivered and no more retries
+   * will happen. The message is removed from the outbox.
+   *
+   * @param sMessageID
+   *        The AS4 message ID. Never <code>null</code>.
+   * @param sURL
+   *        The destination URL. Never <code>null</code>.
+   * @param nTry
+   *        The last try, 0-based.
+   * @param ex
+   *        The exception of the last try. Never <code>null</code>. If the
+   *        receiver answered with an ebMS Error, this is an
+   *        {@link AS4ErrorSignalException}.
+   */
+  default void onFailed (@Nonnull final String sMessageID,
+                         @Nonnull final String sURL,
+                         @Nonnegative final int nTry,
+                         @Nonnull final Exception ex)
+  {}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+
+/**
+ * The non-blocking counterpart of {@link IHttpPoster}. All sending methods
+ * return immediately and the result is provided via a
+ * {@link CompletableFuture}.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public interface IAsyncHttpPoster
+{
+  /**
+   * @return The asynchronous HTTP client pool used for http sending. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  AS4AsyncHttpClientPool getHttpClientPool ();
+
+  /**
+   * @return <code>true</code> if HTTP header values should be quoted if they
+   *         contain forbidden characters, <code>false</code> if not.
+   */
+  boolean isQuoteHttpHeaders ();
+
+  /**
+   * Send an arbitrary HTTP POST message to the provided URL, without retry.
+   * The HTTP entity is serialized before this method returns, so it may be
+   * released afterwards.
+   *
+   * @param <T>
+   *        Response data type
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aCustomHttpHeaders
+   *        An optional http header map that should be applied. May be
+   *        <code>null</code>.
+   * @param aHttpEntity
+   *        The HTTP entity to be send. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The Http response handler that should be used to convert the HTTP
+   *        response to a domain object.
+   * @return The future that is completed with the result of the response
+   *         handler, or exceptionally in case of error. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  <T> CompletableFuture <T> sendGenericMessageAsync (@Nonnull @Nonempty String sURL,
+                                                     @Nullable HttpHeaderMap aCustomHttpHeaders,
+                                                     @Nonnull HttpEntity aHttpEntity,
+                                                     @Nonnull HttpClientResponseHandler <? extends T> aResponseHandler);
+
+  /**
+   * Send an arbitrary HTTP POST message to the provided URL, with the provided
+   * retry settings. In contrast to
+   * {@link IHttpPoster#sendGenericMessageWithRetries(String, HttpHeaderMap, HttpEntity, String, HttpRetrySettings, HttpClientResponseHandler, IAS4OutgoingDumper, IAS4RetryCallback)}
+   * no thread is blocked while waiting between the retries.
+   *
+   * @param <T>
+   *        Response data type
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aCustomHttpHeaders
+   *        An optional http header map that should be applied. May be
+   *        <code>null</code>.
+   * @param aHttpEntity
+   *        The HTTP entity to be send. May not be <code>null</code>. If retry
+   *        is enabled, the entity must be repeatable.
+   * @param sMessageID
+   *        The AS4 message ID used for logging and dumping. May not be
+   *        <code>null</code>.
+   * @param aRetrySettings
+   *        The retry settings to use. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The Http response handler that should be used to convert the HTTP
+   *        response to a domain object.
+   * @param aOutgoingDumper
+   *        An optional outgoing dumper for this message. May be
+   *        <code>null</code> to use the global one.
+   * @param aRetryCallback
+   *        An optional retry callback. May be <code>null</code>.
+   * @return The future that is completed with the result of the response
+   *         handler, or exceptionally with the exception of the last try.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  <T> CompletableFuture <T> sendGenericMessageWithRetriesAsync (@Nonnull String sURL,
+                                                                @Nullable HttpHeaderMap aCustomHttpHeaders,
+                                                                @Nonnull HttpEntity aHttpEntity,
+                                                                @Nonnull String sMessageID,
+                                                                @Nonnull HttpRetrySettings aRetrySettings,
+                                                                @Nonnull HttpClientResponseHandler <? extends T> aResponseHandler,
+                                                                @Nullable IAS4OutgoingDumper aOutgoingDumper,
+                                                                @Nullable IAS4RetryCallback aRetryCallback);
+}
@@ -62,6 +62,41 @@ public interface IHttpPoster
   @Nonnull
   IHttpPoster setHttpClientFactory (@Nonnull HttpClientFactory aHttpClientFactory);
 
+  /**
+   * @return The shared HTTP client pool used for http sending. If this is
+   *         <code>null</code> a new HTTP client is created from
+   *         {@link #getHttpClientFactory()} for each message. The default
+   *         implementation always returns <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  default AS4HttpClientPool getHttpClientPool ()
+  {
+    return null;
+  }
+
+  /**
+   * Set the shared HTTP client pool to be used. If a pool is set, it takes
+   * precedence over the HTTP client factory, and the connections are reused
+   * across messages.
+   *
+   * @param aHttpClientPool
+   *        The HTTP client pool to be used. May be <code>null</code> to create
+   *        a new HTTP client for every message.
+   * @return this for chaining
+   * @throws UnsupportedOperationException
+   *         In the default implementation, if a pool is provided. Implementations
+   *         supporting pools must override this method.
+   * @since 3.0.0
+   */
+  @Nonnull
+  default IHttpPoster setHttpClientPool (@Nullable final AS4HttpClientPool aHttpClientPool)
+  {
+    if (aHttpClientPool != null)
+      throw new UnsupportedOperationException (getClass ().getName () + " does not support HTTP client pools");
+    return this;
+  }
+
   /**
    * @return The HTTP Post customizer to be used. May be <code>null</code>.
    */
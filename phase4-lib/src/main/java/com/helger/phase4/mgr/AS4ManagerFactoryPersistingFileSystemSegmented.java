@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.mgr;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import com.helger.phase4.duplicate.AS4DuplicateManagerSegmentedFile;
+import com.helger.phase4.duplicate.IAS4DuplicateManager;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.photon.io.WebFileIO;
+
+/**
+ * Implementation of {@link IAS4ManagerFactory} creating managers that are
+ * persisting to disk. In contrast to
+ * {@link AS4ManagerFactoryPersistingFileSystem} the incoming duplicate manager
+ * uses the append-only {@link AS4DuplicateManagerSegmentedFile} instead of an
+ * XML file.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public class AS4ManagerFactoryPersistingFileSystemSegmented extends AS4ManagerFactoryPersistingFileSystem
+{
+  private static final String INCOMING_DUPLICATE_DIR = "as4-duplicate-incoming";
+
+  @Override
+  @Nonnull
+  public IAS4DuplicateManager createDuplicateManager () throws Phase4Exception
+  {
+    try
+    {
+      return new AS4DuplicateManagerSegmentedFile (WebFileIO.getDataIO ().getFile (INCOMING_DUPLICATE_DIR));
+    }
+    catch (final IOException ex)
+    {
+      throw new Phase4Exception ("Error creating AS4DuplicateManagerSegmentedFile", ex);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.mgr;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsImmutableObject;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.lang.ServiceLoaderHelper;
+import com.helger.commons.state.EChange;
+
+/**
+ * Central registry for SPI implementations. The implementations of each SPI
+ * interface are discovered via the {@link java.util.ServiceLoader} only once,
+ * when they are first requested. Additionally implementations can be registered
+ * programmatically. The result is handed out as an immutable snapshot list,
+ * that can be iterated without any locking. Because the same SPI instances are
+ * reused for all callers, SPI implementations must be thread-safe.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public final class AS4SPIRegistry
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4SPIRegistry.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  // Explicitly registered implementations per SPI interface
+  @GuardedBy ("RW_LOCK")
+  private static final ICommonsMap <Class <?>, ICommonsList <Object>> REGISTERED = new CommonsHashMap <> ();
+  // Incremented on every change that invalidates snapshots
+  @GuardedBy ("RW_LOCK")
+  private static long s_nGeneration = 0;
+  // The immutable snapshots of discovered and registered implementations. Only
+  // modified while holding the write lock, so that no outdated snapshot is
+  // published after an invalidation.
+  private static final Map <Class <?>, List <?>> SNAPSHOTS = new ConcurrentHashMap <> ();
+
+  private AS4SPIRegistry ()
+  {}
+
+  @Nonnull
+  @ReturnsImmutableObject
+  private static <T> List <T> _createSnapshot (@Nonnull final Class <T> aSPIClass)
+  {
+    final ICommonsList <T> ret = ServiceLoaderHelper.getAllSPIImplementations (aSPIClass);
+    RW_LOCK.readLocked ( () -> {
+      final ICommonsList <Object> aRegistered = REGISTERED.get (aSPIClass);
+      if (aRegistered != null)
+        for (final Object aItem : aRegistered)
+          ret.add (aSPIClass.cast (aItem));
+    });
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Found " + ret.size () + " implementation(s) of SPI " + aSPIClass.getName ());
+    return ret.getAsUnmodifiable ();
+  }
+
+  @GuardedBy ("RW_LOCK")
+  private static void _invalidate (@Nonnull final Class <?> aSPIClass)
+  {
+    s_nGeneration++;
+    SNAPSHOTS.remove (aSPIClass);
+  }
+
+  /**
+   * Get all implementations of the provided SPI interface. On the first call
+   * for an SPI interface, the implementations are discovered via the
+   * {@link java.util.ServiceLoader}. Subsequent calls return the same snapshot
+   * until {@link #reload(Class)} is called or the registrations of that SPI
+   * interface change.
+   *
+   * @param <T>
+   *        The SPI interface type
+   * @param aSPIClass
+   *        The SPI interface class. May not be <code>null</code>.
+   * @return An immutable list of all implementations. Never <code>null</code>
+   *         but maybe empty.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  @SuppressWarnings ("unchecked")
+  public static <T> List <T> getAll (@Nonnull final Class <T> aSPIClass)
+  {
+    ValueEnforcer.notNull (aSPIClass, "SPIClass");
+    final List <?> ret = SNAPSHOTS.get (aSPIClass);
+    if (ret != null)
+      return (List <T>) ret;
+
+    // Don't use computeIfAbsent and don't hold the lock while creating,
+    // because SPI implementations may themselves query this registry in their
+    // constructor
+    final long nGeneration = RW_LOCK.readLockedLong ( () -> s_nGeneration);
+    final List <T> aNew = _createSnapshot (aSPIClass);
+    return (List <T>) RW_LOCK.writeLockedGet ( () -> {
+      if (s_nGeneration != nGeneration)
+      {
+        // Registrations changed in the meantime - the new snapshot may be
+        // outdated, so don't publish it
+        return aNew;
+      }
+      final List <?> aExisting = SNAPSHOTS.putIfAbsent (aSPIClass, aNew);
+      return aExisting != null ? aExisting : aNew;
+    });
+  }
+
+  /**
+   * Programmatically register an additional implementation of the provided SPI
+   * interface. It is contained in all snapshots created afterwards.
+   *
+   * @param <T>
+   *        The SPI interface type
+   * @param aSPIClass
+   *        The SPI interface class. May not be <code>null</code>.
+   * @param aImpl
+   *        The implementation to register. May not be <code>null</code>.
+   */
+  public static <T> void register (@Nonnull final Class <T> aSPIClass, @Nonnull final T aImpl)
+  {
+    ValueEnforcer.notNull (aSPIClass, "SPIClass");
+    ValueEnforcer.notNull (aImpl, "Impl");
+    RW_LOCK.writeLocked ( () -> {
+      REGISTERED.computeIfAbsent (aSPIClass, k -> new CommonsArrayList <> ()).add (aImpl);
+      _invalidate (aSPIClass);
+    });
+    LOGGER.info ("Registered SPI implementation " + aImpl + " for " + aSPIClass.getName ());
+  }
+
+  /**
+   * Unregister a programmatically registered implementation of the provided SPI
+   * interface.
+   *
+   * @param <T>
+   *        The SPI interface type
+   * @param aSPIClass
+   *        The SPI interface class. May not be <code>null</code>.
+   * @param aImpl
+   *        The implementation to unregister. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public static <T> EChange unregister (@Nonnull final Class <T> aSPIClass, @Nullable final T aImpl)
+  {
+    ValueEnforcer.notNull (aSPIClass, "SPIClass");
+    if (aImpl == null)
+      return EChange.UNCHANGED;
+
+    return RW_LOCK.writeLockedGet ( () -> {
+      final ICommonsList <Object> aRegistered = REGISTERED.get (aSPIClass);
+      final EChange ret = aRegistered == null ? EChange.UNCHANGED : aRegistered.removeObject (aImpl);
+      if (ret.isChanged ())
+        _invalidate (aSPIClass);
+      return ret;
+    });
+  }
+
+  /**
+   * Discard the snapshot of the provided SPI interface, so that the
+   * implementations are discovered again upon the next call to
+   * {@link #getAll(Class)}. Programmatically registered implementations are
+   * retained.
+   *
+   * @param aSPIClass
+   *        The SPI interface class. May not be <code>null</code>.
+   */
+  public static void reload (@Nonnull final Class <?> aSPIClass)
+  {
+    ValueEnforcer.notNull (aSPIClass, "SPIClass");
+    RW_LOCK.writeLocked ( () -> _invalidate (aSPIClass));
+  }
+
+  /**
+   * Discard all snapshots, so that all implementations are discovered again
+   * upon the next call to {@link #getAll(Class)}. Programmatically registered
+   * implementations are retained.
+   */
+  public static void reloadAll ()
+  {
+    RW_LOCK.writeLocked ( () -> {
+      s_nGeneration++;
+      SNAPSHOTS.clear ();
+    });
+  }
+}
@@ -27,6 +27,7 @@ import org.w3c.dom.Node;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.ebms3header.Ebms3Receipt;
 import com.helger.phase4.ebms3header.Ebms3SignalMessage;
 import com.helger.phase4.ebms3header.Ebms3UserMessage;
@@ -116,7 +117,8 @@ public class AS4ReceiptMessage extends AbstractAS4Message <AS4ReceiptMessage>
         aNonRepudiationInformation.addMessagePartNRInformation (aMessagePartNRInformation);
       }
 
-      final Element aNRIElement = new NonRepudiationInformationMarshaller ().getAsElement (aNonRepudiationInformation);
+      final Element aNRIElement = new NonRepudiationInformationMarshaller ().setUseSchema (AS4Configuration.isOutgoingXSDValidation ())
+                                                                          .getAsElement (aNonRepudiationInformation);
       if (aNRIElement == null)
         LOGGER.error ("Failed to serialize NonRepudiationInformation object");
       else
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.model.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.NonClosingOutputStream;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
+import com.helger.phase4.marshaller.Soap11EnvelopeMarshaller;
+import com.helger.phase4.marshaller.Soap12EnvelopeMarshaller;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.util.AS4XMLHelper;
+import com.helger.xml.XMLFactory;
+import com.helger.xml.schema.XMLSchemaCache;
+
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.PropertyException;
+
+/**
+ * Single-pass writer for the SOAP envelope of outgoing AS4 messages. The
+ * {@link Ebms3Messaging} header is marshalled directly into the final SOAP
+ * envelope, instead of marshalling it into a separate DOM document first and
+ * marshalling the JAXB SOAP envelope afterwards.<br>
+ * For messages that are neither signed nor encrypted, the envelope can be
+ * streamed directly as UTF-8 bytes to an output stream, without creating a
+ * DOM document or a String.<br>
+ * If XSD validation is enabled, the Ebms3 Messaging header is validated while
+ * marshalling and the complete envelope is validated against the SOAP XSD
+ * afterwards, as it was done when the JAXB SOAP envelope was marshalled.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@Immutable
+public final class AS4SoapEnvelopeWriter
+{
+  /**
+   * Special marshaller that writes the Ebms3 Messaging as a fragment without an
+   * XML declaration.
+   */
+  private static final class Ebms3MessagingFragmentMarshaller extends Ebms3MessagingMarshaller
+  {
+    @Override
+    protected void customizeMarshaller (@Nonnull final Marshaller aMarshaller)
+    {
+      super.customizeMarshaller (aMarshaller);
+      try
+      {
+        aMarshaller.setProperty (Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+      }
+      catch (final PropertyException ex)
+      {
+        throw new IllegalStateException ("Failed to set JAXB fragment mode", ex);
+      }
+    }
+  }
+
+  private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+  private AS4SoapEnvelopeWriter ()
+  {}
+
+  @Nonnull
+  private static String _getQName (@Nonnull final ESoapVersion eSoapVersion, @Nonnull final String sLocalName)
+  {
+    return eSoapVersion.getNamespacePrefix () + ":" + sLocalName;
+  }
+
+  @Nullable
+  private static Node _getRealPayload (@Nullable final Node aSoapBodyPayload)
+  {
+    return aSoapBodyPayload instanceof Document ? ((Document) aSoapBodyPayload).getDocumentElement ()
+                                                : aSoapBodyPayload;
+  }
+
+  @Nonnull
+  private static List <ClassPathResource> _getSoapXSDs (@Nonnull final ESoapVersion eSoapVersion)
+  {
+    switch (eSoapVersion)
+    {
+      case SOAP_11:
+        return Soap11EnvelopeMarshaller.XSDS;
+      case SOAP_12:
+        return Soap12EnvelopeMarshaller.XSDS;
+      default:
+        throw new IllegalStateException ("Unsupported SOAP version " + eSoapVersion);
+    }
+  }
+
+  private static void _validateEnvelope (@Nonnull final ESoapVersion eSoapVersion,
+                                         @Nonnull final Source aSource) throws IOException
+  {
+    try
+    {
+      XMLSchemaCache.getInstance ().getSchema (_getSoapXSDs (eSoapVersion)).newValidator ().validate (aSource);
+    }
+    catch (final SAXException ex)
+    {
+      throw new IOException ("The created SOAP " + eSoapVersion.getVersion () + " envelope is invalid", ex);
+    }
+  }
+
+  /**
+   * Create the SOAP document for the provided Ebms3 Messaging header in a
+   * single pass.
+   *
+   * @param eSoapVersion
+   *        The SOAP version to use. May not be <code>null</code>.
+   * @param aMessaging
+   *        The Ebms3 Messaging header to be placed in the SOAP header. May not
+   *        be <code>null</code>.
+   * @param aSoapBodyPayload
+   *        The payload to be copied into the SOAP body. May be
+   *        <code>null</code>.
+   * @param bXSDValidation
+   *        <code>true</code> to validate the Ebms3 Messaging header and the
+   *        SOAP envelope against the XSDs.
+   * @return The created DOM document. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the Ebms3 Messaging header could not be marshalled or if the
+   *         validation failed
+   */
+  @Nonnull
+  public static Document createSoapDocument (@Nonnull final ESoapVersion eSoapVersion,
+                                             @Nonnull final Ebms3Messaging aMessaging,
+                                             @Nullable final Node aSoapBodyPayload,
+                                             final boolean bXSDValidation)
+  {
+    ValueEnforcer.notNull (eSoapVersion, "SoapVersion");
+    ValueEnforcer.notNull (aMessaging, "Messaging");
+
+    final String sNamespaceURI = eSoapVersion.getNamespaceURI ();
+    final Document aDoc = XMLFactory.newDocument ();
+
+    final Element eEnvelope = aDoc.createElementNS (sNamespaceURI, _getQName (eSoapVersion, "Envelope"));
+    // Explicitly declare the namespace, as e.g. canonicalization relies on it
+    eEnvelope.setAttributeNS (XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                              XMLConstants.XMLNS_ATTRIBUTE + ":" + eSoapVersion.getNamespacePrefix (),
+                              sNamespaceURI);
+    aDoc.appendChild (eEnvelope);
+
+    final Element eHeader = aDoc.createElementNS (sNamespaceURI,
+                                                  _getQName (eSoapVersion, eSoapVersion.getHeaderElementName ()));
+    eEnvelope.appendChild (eHeader);
+
+    final Element eBody = aDoc.createElementNS (sNamespaceURI,
+                                                _getQName (eSoapVersion, eSoapVersion.getBodyElementName ()));
+    eEnvelope.appendChild (eBody);
+
+    // Marshal the Ebms3 Messaging directly into the SOAP header
+    if (new Ebms3MessagingMarshaller ().setUseSchema (bXSDValidation)
+                                       .write (aMessaging, new DOMResult (eHeader))
+                                       .isFailure ())
+      throw new IllegalStateException ("Failed to write EBMS3 Messaging to XML");
+
+    final Node aRealSoapBodyPayload = _getRealPayload (aSoapBodyPayload);
+    if (aRealSoapBodyPayload != null)
+      eBody.appendChild (aDoc.importNode (aRealSoapBodyPayload, true));
+
+    if (bXSDValidation)
+      try
+      {
+        _validateEnvelope (eSoapVersion, new DOMSource (aDoc));
+      }
+      catch (final IOException ex)
+      {
+        throw new IllegalStateException ("Failed to serialize SOAP " + eSoapVersion.getVersion () + " document", ex);
+      }
+
+    return aDoc;
+  }
+
+  private static void _writeSoapEnvelope (@Nonnull final ESoapVersion eSoapVersion,
+                                          @Nonnull final Ebms3Messaging aMessaging,
+                                          @Nullable final Node aSoapBodyPayload,
+                                          final boolean bXSDValidation,
+                                          @Nonnull final OutputStream aOS) throws IOException
+  {
+    final String sEnvelope = _getQName (eSoapVersion, "Envelope");
+    final String sHeader = _getQName (eSoapVersion, eSoapVersion.getHeaderElementName ());
+    final String sBody = _getQName (eSoapVersion, eSoapVersion.getBodyElementName ());
+
+    // The SOAP namespace URIs and prefixes don't need escaping
+    aOS.write ((XML_DECLARATION +
+                "<" +
+                sEnvelope +
+                " " +
+                XMLConstants.XMLNS_ATTRIBUTE +
+                ":" +
+                eSoapVersion.getNamespacePrefix () +
+                "=\"" +
+                eSoapVersion.getNamespaceURI () +
+                "\"><" +
+                sHeader +
+                ">").getBytes (StandardCharsets.UTF_8));
+
+    // The JAXB marshaller must not close the stream
+    final boolean bFailure;
+    try
+    {
+      bFailure = new Ebms3MessagingFragmentMarshaller ().setUseSchema (bXSDValidation)
+                                                        .write (aMessaging,
+                                                                new StreamResult (new NonClosingOutputStream (aOS)))
+                                                        .isFailure ();
+    }
+    catch (final RuntimeException ex)
+    {
+      throw new IOException ("Failed to write EBMS3 Messaging to XML", ex);
+    }
+    if (bFailure)
+      throw new IOException ("Failed to write EBMS3 Messaging to XML");
+
+    aOS.write (("</" + sHeader + "><" + sBody + ">").getBytes (StandardCharsets.UTF_8));
+
+    final Node aRealSoapBodyPayload = _getRealPayload (aSoapBodyPayload);
+    if (aRealSoapBodyPayload != null)
+      AS4XMLHelper.serializeXML (aRealSoapBodyPayload, aOS, true);
+
+    aOS.write (("</" + sBody + "></" + sEnvelope + ">").getBytes (StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Write the SOAP envelope for the provided Ebms3 Messaging header directly as
+   * UTF-8 bytes to the provided output stream. This is only applicable for
+   * messages that are neither signed nor encrypted, as those require the DOM
+   * representation. The output stream is not closed.
+   *
+   * @param eSoapVersion
+   *        The SOAP version to use. May not be <code>null</code>.
+   * @param aMessaging
+   *        The Ebms3 Messaging header to be placed in the SOAP header. May not
+   *        be <code>null</code>.
+   * @param aSoapBodyPayload
+   *        The payload to be written into the SOAP body. May be
+   *        <code>null</code>.
+   * @param bXSDValidation
+   *        <code>true</code> to validate the Ebms3 Messaging header and the
+   *        SOAP envelope against the XSDs. In that case the envelope is
+   *        buffered and only written to the output stream if it is valid.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   * @throws IOException
+   *         In case marshalling, validation or writing fails
+   */
+  public static void writeSoapEnvelope (@Nonnull final ESoapVersion eSoapVersion,
+                                        @Nonnull final Ebms3Messaging aMessaging,
+                                        @Nullable final Node aSoapBodyPayload,
+                                        final boolean bXSDValidation,
+                                        @Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (eSoapVersion, "SoapVersion");
+    ValueEnforcer.notNull (aMessaging, "Messaging");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    if (bXSDValidation)
+    {
+      // Validate before anything is written to the output stream
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        _writeSoapEnvelope (eSoapVersion, aMessaging, aSoapBodyPayload, true, aBAOS);
+        _validateEnvelope (eSoapVersion, new StreamSource (aBAOS.getAsInputStream ()));
+        aBAOS.writeTo (aOS);
+      }
+    }
+    else
+      _writeSoapEnvelope (eSoapVersion, aMessaging, aSoapBodyPayload, false, aOS);
+    aOS.flush ();
+  }
+}
@@ -16,6 +16,9 @@
  */
 package com.helger.phase4.model.message;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.namespace.QName;
@@ -28,17 +31,9 @@ import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.string.ToStringGenerator;
 import com.helger.commons.traits.IGenericImplTrait;
 import com.helger.phase4.CAS4;
+import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.ebms3header.Ebms3Messaging;
-import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
-import com.helger.phase4.marshaller.Soap11EnvelopeMarshaller;
-import com.helger.phase4.marshaller.Soap12EnvelopeMarshaller;
 import com.helger.phase4.model.ESoapVersion;
-import com.helger.phase4.soap11.Soap11Body;
-import com.helger.phase4.soap11.Soap11Envelope;
-import com.helger.phase4.soap11.Soap11Header;
-import com.helger.phase4.soap12.Soap12Body;
-import com.helger.phase4.soap12.Soap12Envelope;
-import com.helger.phase4.soap12.Soap12Header;
 
 /**
  * Abstract AS4 message implementation
@@ -107,47 +102,20 @@ public abstract class AbstractAS4Message <IMPLTYPE extends AbstractAS4Message <I
   @Nonnull
   public final Document getAsSoapDocument (@Nullable final Node aSoapBodyPayload)
   {
-    // Convert to DOM Node
-    final Document aEbms3Document = new Ebms3MessagingMarshaller ().getAsDocument (m_aMessaging);
-    if (aEbms3Document == null)
-      throw new IllegalStateException ("Failed to write EBMS3 Messaging to XML");
-
-    final Node aRealSoapBodyPayload = aSoapBodyPayload instanceof Document ? ((Document) aSoapBodyPayload).getDocumentElement ()
-                                                                           : aSoapBodyPayload;
+    return AS4SoapEnvelopeWriter.createSoapDocument (m_eSoapVersion,
+                                                     m_aMessaging,
+                                                     aSoapBodyPayload,
+                                                     AS4Configuration.isOutgoingXSDValidation ());
+  }
 
-    switch (m_eSoapVersion)
-    {
-      case SOAP_11:
-      {
-        // Creating SOAP 11 Envelope
-        final Soap11Envelope aSoapEnv = new Soap11Envelope ();
-        aSoapEnv.setHeader (new Soap11Header ());
-        aSoapEnv.setBody (new Soap11Body ());
-        aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
-        if (aRealSoapBodyPayload != null)
-          aSoapEnv.getBody ().addAny (aRealSoapBodyPayload);
-        final Document ret = new Soap11EnvelopeMarshaller ().getAsDocument (aSoapEnv);
-        if (ret == null)
-          throw new IllegalStateException ("Failed to serialize SOAP 1.1 document");
-        return ret;
-      }
-      case SOAP_12:
-      {
-        // Creating SOAP 12 Envelope
-        final Soap12Envelope aSoapEnv = new Soap12Envelope ();
-        aSoapEnv.setHeader (new Soap12Header ());
-        aSoapEnv.setBody (new Soap12Body ());
-        aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
-        if (aRealSoapBodyPayload != null)
-          aSoapEnv.getBody ().addAny (aRealSoapBodyPayload);
-        final Document ret = new Soap12EnvelopeMarshaller ().getAsDocument (aSoapEnv);
-        if (ret == null)
-          throw new IllegalStateException ("Failed to serialize SOAP 1.2 document");
-        return ret;
-      }
-      default:
-        throw new IllegalStateException ("Unsupported SOAP version " + m_eSoapVersion);
-    }
+  public final void writeSoapEnvelope (@Nullable final Node aSoapBodyPayload,
+                                       @Nonnull final OutputStream aOS) throws IOException
+  {
+    AS4SoapEnvelopeWriter.writeSoapEnvelope (m_eSoapVersion,
+                                             m_aMessaging,
+                                             aSoapBodyPayload,
+                                             AS4Configuration.isOutgoingXSDValidation (),
+                                             aOS);
   }
 
   @Override
@@ -16,6 +16,9 @@
  */
 package com.helger.phase4.model.message;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -87,4 +90,22 @@ public interface IAS4Message
    */
   @Nonnull
   Document getAsSoapDocument (@Nullable Node aSoapBodyPayload);
+
+  /**
+   * Write the SOAP envelope of this message with the specified optional
+   * payload directly to the provided output stream, without creating a DOM
+   * document. This is only applicable for messages that are neither signed
+   * nor encrypted. Attachments are not handled by this method.
+   *
+   * @param aSoapBodyPayload
+   *        The payload to be added into the SOAP body. May be
+   *        <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>. The
+   *        stream is not closed.
+   * @throws IOException
+   *         In case writing fails
+   * @since 3.0.0
+   */
+  void writeSoapEnvelope (@Nullable Node aSoapBodyPayload, @Nonnull OutputStream aOS) throws IOException;
 }
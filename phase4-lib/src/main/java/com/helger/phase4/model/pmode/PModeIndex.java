@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.model.pmode;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.phase4.model.pmode.leg.PModeLeg;
+import com.helger.phase4.model.pmode.leg.PModeLegBusinessInformation;
+
+/**
+ * Secondary indexes for PModes, used by the {@link IPModeManager}
+ * implementations. The index is keyed by the Leg 1 service and action and by
+ * the initiator and responder party. The index keys are computed when a PMode
+ * is added and remembered per PMode ID, so removing a PMode also works if it
+ * was modified in place in the meantime. This class is not thread-safe and
+ * must be guarded by the lock of the owning manager.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@NotThreadSafe
+final class PModeIndex
+{
+  private static final class Key
+  {
+    private final Object m_aFirst;
+    private final Object m_aSecond;
+    // Status vars
+    private final int m_nHashCode;
+
+    Key (@Nullable final Object aFirst, @Nullable final Object aSecond)
+    {
+      m_aFirst = aFirst;
+      m_aSecond = aSecond;
+      m_nHashCode = new HashCodeGenerator (this).append (aFirst).append (aSecond).getHashCode ();
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final Key rhs = (Key) o;
+      return EqualsHelper.equals (m_aFirst, rhs.m_aFirst) && EqualsHelper.equals (m_aSecond, rhs.m_aSecond);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return m_nHashCode;
+    }
+  }
+
+  /**
+   * The keys a single PMode was indexed under.
+   */
+  private static final class IndexedKeys
+  {
+    private final IPMode m_aPMode;
+    private final Key m_aServiceAndActionKey;
+    private final Key m_aPartiesKey;
+
+    IndexedKeys (@Nonnull final IPMode aPMode,
+                 @Nullable final Key aServiceAndActionKey,
+                 @Nonnull final Key aPartiesKey)
+    {
+      m_aPMode = aPMode;
+      m_aServiceAndActionKey = aServiceAndActionKey;
+      m_aPartiesKey = aPartiesKey;
+    }
+  }
+
+  private final ICommonsMap <Key, ICommonsList <IPMode>> m_aByServiceAndAction = new CommonsHashMap <> ();
+  private final ICommonsMap <Key, ICommonsList <IPMode>> m_aByParties = new CommonsHashMap <> ();
+  private final ICommonsMap <String, IndexedKeys> m_aKeysByID = new CommonsHashMap <> ();
+
+  PModeIndex ()
+  {}
+
+  @Nullable
+  private static PModeParty _getPartySnapshot (@Nullable final PModeParty aParty)
+  {
+    // PModeParty is mutable - copy it so that the key stays stable
+    if (aParty == null)
+      return null;
+    return new PModeParty (aParty.getIDType (),
+                           aParty.getIDValue (),
+                           aParty.getRole (),
+                           aParty.getUserName (),
+                           aParty.getPassword ());
+  }
+
+  @Nullable
+  private static Key _getServiceAndActionKey (@Nonnull final IPMode aPMode)
+  {
+    final PModeLeg aLeg = aPMode.getLeg1 ();
+    if (aLeg != null)
+    {
+      final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
+      if (aBI != null)
+        return new Key (aBI.getService (), aBI.getAction ());
+    }
+    return null;
+  }
+
+  @Nonnull
+  private static Key _getPartiesKey (@Nullable final PModeParty aInitiator, @Nullable final PModeParty aResponder)
+  {
+    return new Key (_getPartySnapshot (aInitiator), _getPartySnapshot (aResponder));
+  }
+
+  private static void _add (@Nonnull final ICommonsMap <Key, ICommonsList <IPMode>> aMap,
+                            @Nullable final Key aKey,
+                            @Nonnull final IPMode aPMode)
+  {
+    if (aKey != null)
+      aMap.computeIfAbsent (aKey, k -> new CommonsArrayList <> (1)).add (aPMode);
+  }
+
+  private static void _remove (@Nonnull final ICommonsMap <Key, ICommonsList <IPMode>> aMap,
+                               @Nullable final Key aKey,
+                               @Nonnull final IPMode aPMode)
+  {
+    if (aKey != null)
+    {
+      final ICommonsList <IPMode> aList = aMap.get (aKey);
+      if (aList != null && aList.removeIf (x -> x == aPMode) && aList.isEmpty ())
+        aMap.remove (aKey);
+    }
+  }
+
+  void add (@Nonnull final IPMode aPMode)
+  {
+    // Don't keep stale keys if the same ID is added twice
+    remove (aPMode);
+
+    final IndexedKeys aKeys = new IndexedKeys (aPMode,
+                                               _getServiceAndActionKey (aPMode),
+                                               _getPartiesKey (aPMode.getInitiator (), aPMode.getResponder ()));
+    _add (m_aByServiceAndAction, aKeys.m_aServiceAndActionKey, aPMode);
+    _add (m_aByParties, aKeys.m_aPartiesKey, aPMode);
+    m_aKeysByID.put (aPMode.getID (), aKeys);
+  }
+
+  void remove (@Nonnull final IPMode aPMode)
+  {
+    // Use the keys from the time the PMode was added, as the PMode may have
+    // been modified in place since then
+    final IndexedKeys aKeys = m_aKeysByID.remove (aPMode.getID ());
+    if (aKeys != null)
+    {
+      _remove (m_aByServiceAndAction, aKeys.m_aServiceAndActionKey, aKeys.m_aPMode);
+      _remove (m_aByParties, aKeys.m_aPartiesKey, aKeys.m_aPMode);
+    }
+  }
+
+  void clear ()
+  {
+    m_aByServiceAndAction.clear ();
+    m_aByParties.clear ();
+    m_aKeysByID.clear ();
+  }
+
+  @Nullable
+  IPMode getOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
+  {
+    final ICommonsList <IPMode> aList = m_aByServiceAndAction.get (new Key (sService, sAction));
+    return aList == null ? null : aList.getFirstOrNull ();
+  }
+
+  @Nullable
+  IPMode getOfInitiatorAndResponder (@Nullable final PModeParty aInitiator, @Nullable final PModeParty aResponder)
+  {
+    // No need to copy the parties for a lookup
+    final ICommonsList <IPMode> aList = m_aByParties.get (new Key (aInitiator, aResponder));
+    return aList == null ? null : aList.getFirstOrNull ();
+  }
+}
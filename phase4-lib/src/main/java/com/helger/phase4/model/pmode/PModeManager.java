@@ -16,10 +16,9 @@
  */
 package com.helger.phase4.model.pmode;
 
-import java.util.function.Predicate;
-
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -44,9 +43,14 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode> i
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (PModeManager.class);
 
+  @GuardedBy ("m_aRWLock")
+  private final PModeIndex m_aIndex = new PModeIndex ();
+
   public PModeManager (@Nullable final String sFilename) throws DAOException
   {
     super (PMode.class, sFilename);
+    // The initial read happens in the super constructor
+    m_aRWLock.writeLocked ( () -> internalDirectGetAll ().forEach (m_aIndex::add));
   }
 
   private void _validatePMode (@Nonnull final IPMode aPMode)
@@ -65,6 +69,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode> i
   private void _createPModeLocked (@Nonnull final PMode aPMode)
   {
     internalCreateItem (aPMode);
+    m_aIndex.add (aPMode);
     AuditHelper.onAuditCreateSuccess (PMode.OT, aPMode.getID ());
 
     if (LOGGER.isDebugEnabled ())
@@ -100,16 +105,25 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode> i
     m_aRWLock.writeLock ().lock ();
     try
     {
+      // The index keys may change
+      m_aIndex.remove (aExistingPMode);
       EChange eChange = EChange.UNCHANGED;
-      eChange = eChange.or (aExistingPMode.setInitiator (aPMode.getInitiator ()));
-      eChange = eChange.or (aExistingPMode.setResponder (aPMode.getResponder ()));
-      eChange = eChange.or (aExistingPMode.setAgreement (aPMode.getAgreement ()));
-      eChange = eChange.or (aExistingPMode.setMEP (aPMode.getMEP ()));
-      eChange = eChange.or (aExistingPMode.setMEPBinding (aPMode.getMEPBinding ()));
-      eChange = eChange.or (aExistingPMode.setLeg1 (aPMode.getLeg1 ()));
-      eChange = eChange.or (aExistingPMode.setLeg2 (aPMode.getLeg2 ()));
-      eChange = eChange.or (aExistingPMode.setPayloadService (aPMode.getPayloadService ()));
-      eChange = eChange.or (aExistingPMode.setReceptionAwareness (aPMode.getReceptionAwareness ()));
+      try
+      {
+        eChange = eChange.or (aExistingPMode.setInitiator (aPMode.getInitiator ()));
+        eChange = eChange.or (aExistingPMode.setResponder (aPMode.getResponder ()));
+        eChange = eChange.or (aExistingPMode.setAgreement (aPMode.getAgreement ()));
+        eChange = eChange.or (aExistingPMode.setMEP (aPMode.getMEP ()));
+        eChange = eChange.or (aExistingPMode.setMEPBinding (aPMode.getMEPBinding ()));
+        eChange = eChange.or (aExistingPMode.setLeg1 (aPMode.getLeg1 ()));
+        eChange = eChange.or (aExistingPMode.setLeg2 (aPMode.getLeg2 ()));
+        eChange = eChange.or (aExistingPMode.setPayloadService (aPMode.getPayloadService ()));
+        eChange = eChange.or (aExistingPMode.setReceptionAwareness (aPMode.getReceptionAwareness ()));
+      }
+      finally
+      {
+        m_aIndex.add (aExistingPMode);
+      }
       if (eChange.isUnchanged ())
         return EChange.UNCHANGED;
 
@@ -128,23 +142,32 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode> i
     return EChange.CHANGED;
   }
 
+  @MustBeLocked (ELockType.READ)
+  @Nullable
+  private IPMode _findExistingLocked (@Nonnull final IPMode aPMode)
+  {
+    // The same PMode exists either if the ID is identical or if Initiator and
+    // Responder are identical
+    final IPMode ret = internalGetOfID (aPMode.getID ());
+    if (ret != null)
+      return ret;
+    return m_aIndex.getOfInitiatorAndResponder (aPMode.getInitiator (), aPMode.getResponder ());
+  }
+
   public void createOrUpdatePMode (@Nonnull final PMode aPMode)
   {
     ValueEnforcer.notNull (aPMode, "PMode");
     _validatePMode (aPMode);
 
     // Try in read-lock
-    final Predicate <IPMode> aFilter = IPModeManager.getPModeFilter (aPMode.getID (),
-                                                                     aPMode.getInitiator (),
-                                                                     aPMode.getResponder ());
-    IPMode aExisting = findFirst (aFilter);
+    IPMode aExisting = m_aRWLock.readLockedGet ( () -> _findExistingLocked (aPMode));
     if (aExisting == null)
     {
       m_aRWLock.writeLock ().lock ();
       try
       {
         // Try again in write lock
-        aExisting = findFirst (aFilter);
+        aExisting = _findExistingLocked (aPMode);
         if (aExisting == null)
         {
           // Create a new one
@@ -208,6 +231,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode> i
     try
     {
       internalDeleteItem (sPModeID);
+      m_aIndex.remove (aDeletedPMode);
     }
     finally
     {
@@ -223,4 +247,17 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode> i
   {
     return getOfID (sID);
   }
+
+  @Nullable
+  public IPMode getPModeOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aIndex.getOfServiceAndAction (sService, sAction));
+  }
+
+  @Nullable
+  public IPMode getPModeOfInitiatorAndResponder (@Nullable final PModeParty aInitiator,
+                                                 @Nullable final PModeParty aResponder)
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aIndex.getOfInitiatorAndResponder (aInitiator, aResponder));
+  }
 }
@@ -54,6 +54,8 @@ public class PModeManagerInMemory implements IPModeManager
   private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
   @GuardedBy ("m_aRWLock")
   private final ICommonsMap <String, PMode> m_aMap = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final PModeIndex m_aIndex = new PModeIndex ();
 
   public PModeManagerInMemory ()
   {}
@@ -77,6 +79,7 @@ public class PModeManagerInMemory implements IPModeManager
     if (m_aMap.containsKey (sID))
       throw new IllegalArgumentException ("An object with ID '" + sID + "' is already contained!");
     m_aMap.put (sID, aPMode);
+    m_aIndex.add (aPMode);
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Created PMode with ID '" + aPMode.getID () + "'");
@@ -103,16 +106,25 @@ public class PModeManagerInMemory implements IPModeManager
     m_aRWLock.writeLock ().lock ();
     try
     {
+      // The index keys may change
+      m_aIndex.remove (aExistingPMode);
       EChange eChange = EChange.UNCHANGED;
-      eChange = eChange.or (aExistingPMode.setInitiator (aNewPMode.getInitiator ()));
-      eChange = eChange.or (aExistingPMode.setResponder (aNewPMode.getResponder ()));
-      eChange = eChange.or (aExistingPMode.setAgreement (aNewPMode.getAgreement ()));
-      eChange = eChange.or (aExistingPMode.setMEP (aNewPMode.getMEP ()));
-      eChange = eChange.or (aExistingPMode.setMEPBinding (aNewPMode.getMEPBinding ()));
-      eChange = eChange.or (aExistingPMode.setLeg1 (aNewPMode.getLeg1 ()));
-      eChange = eChange.or (aExistingPMode.setLeg2 (aNewPMode.getLeg2 ()));
-      eChange = eChange.or (aExistingPMode.setPayloadService (aNewPMode.getPayloadService ()));
-      eChange = eChange.or (aExistingPMode.setReceptionAwareness (aNewPMode.getReceptionAwareness ()));
+      try
+      {
+        eChange = eChange.or (aExistingPMode.setInitiator (aNewPMode.getInitiator ()));
+        eChange = eChange.or (aExistingPMode.setResponder (aNewPMode.getResponder ()));
+        eChange = eChange.or (aExistingPMode.setAgreement (aNewPMode.getAgreement ()));
+        eChange = eChange.or (aExistingPMode.setMEP (aNewPMode.getMEP ()));
+        eChange = eChange.or (aExistingPMode.setMEPBinding (aNewPMode.getMEPBinding ()));
+        eChange = eChange.or (aExistingPMode.setLeg1 (aNewPMode.getLeg1 ()));
+        eChange = eChange.or (aExistingPMode.setLeg2 (aNewPMode.getLeg2 ()));
+        eChange = eChange.or (aExistingPMode.setPayloadService (aNewPMode.getPayloadService ()));
+        eChange = eChange.or (aExistingPMode.setReceptionAwareness (aNewPMode.getReceptionAwareness ()));
+      }
+      finally
+      {
+        m_aIndex.add (aExistingPMode);
+      }
       if (eChange.isUnchanged ())
         return EChange.UNCHANGED;
 
@@ -129,23 +141,32 @@ public class PModeManagerInMemory implements IPModeManager
     return EChange.CHANGED;
   }
 
+  @MustBeLocked (ELockType.READ)
+  @Nullable
+  private IPMode _findExistingLocked (@Nonnull final IPMode aPMode)
+  {
+    // The same PMode exists either if the ID is identical or if Initiator and
+    // Responder are identical
+    final IPMode ret = m_aMap.get (aPMode.getID ());
+    if (ret != null)
+      return ret;
+    return m_aIndex.getOfInitiatorAndResponder (aPMode.getInitiator (), aPMode.getResponder ());
+  }
+
   public void createOrUpdatePMode (@Nonnull final PMode aPMode)
   {
     ValueEnforcer.notNull (aPMode, "PMode");
     _validatePMode (aPMode);
 
     // Try in read-lock
-    final Predicate <IPMode> aFilter = IPModeManager.getPModeFilter (aPMode.getID (),
-                                                                     aPMode.getInitiator (),
-                                                                     aPMode.getResponder ());
-    IPMode aExisting = findFirst (aFilter);
+    IPMode aExisting = m_aRWLock.readLockedGet ( () -> _findExistingLocked (aPMode));
     if (aExisting == null)
     {
       m_aRWLock.writeLock ().lock ();
       try
       {
         // Try again in write lock
-        aExisting = findFirst (aFilter);
+        aExisting = _findExistingLocked (aPMode);
         if (aExisting == null)
         {
           // Create a new one
@@ -203,6 +224,7 @@ public class PModeManagerInMemory implements IPModeManager
     try
     {
       m_aMap.remove (sPModeID);
+      m_aIndex.remove (aDeletedPMode);
     }
     finally
     {
@@ -232,6 +254,19 @@ public class PModeManagerInMemory implements IPModeManager
     return m_aRWLock.readLockedGet ( () -> CollectionHelper.findFirst (m_aMap.values (), aFilter));
   }
 
+  @Nullable
+  public IPMode getPModeOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aIndex.getOfServiceAndAction (sService, sAction));
+  }
+
+  @Nullable
+  public IPMode getPModeOfInitiatorAndResponder (@Nullable final PModeParty aInitiator,
+                                                 @Nullable final PModeParty aResponder)
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aIndex.getOfInitiatorAndResponder (aInitiator, aResponder));
+  }
+
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <IPMode> getAll ()
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.model.pmode.resolve;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.state.EChange;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerCache;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.model.pmode.DefaultPMode;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.profile.IAS4Profile;
+import com.helger.phase4.util.AS4BoundedCache;
+
+/**
+ * A special {@link DefaultPModeResolver} that keeps the dynamically created
+ * PModes in a size-bounded LRU cache, keyed by AS4 profile, initiator,
+ * responder and address. The dynamically created PModes are never persisted in
+ * the PMode manager, so this resolver may be used with many different
+ * counterparties without growing the PMode manager. Explicitly configured
+ * PModes (by ID or by service and action) are still resolved via the PMode
+ * manager.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class CachingPModeResolver extends DefaultPModeResolver
+{
+  /** The default maximum number of cached PModes */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+
+  private static final IMutableStatisticsHandlerCache STATS_CACHE = StatisticsManager.getCacheHandler (CachingPModeResolver.class.getName () +
+                                                                                                       "$cache");
+  private static final IMutableStatisticsHandlerCounter STATS_EVICTIONS = StatisticsManager.getCounterHandler (CachingPModeResolver.class.getName () +
+                                                                                                               "$evictions");
+
+  private static final class CacheKey
+  {
+    private final String m_sProfileID;
+    private final String m_sInitiatorID;
+    private final String m_sResponderID;
+    private final String m_sAddress;
+    // Status vars
+    private final int m_nHashCode;
+
+    CacheKey (@Nullable final String sProfileID,
+              @Nonnull final String sInitiatorID,
+              @Nonnull final String sResponderID,
+              @Nullable final String sAddress)
+    {
+      m_sProfileID = sProfileID;
+      m_sInitiatorID = sInitiatorID;
+      m_sResponderID = sResponderID;
+      m_sAddress = sAddress;
+      m_nHashCode = new HashCodeGenerator (this).append (sProfileID)
+                                                .append (sInitiatorID)
+                                                .append (sResponderID)
+                                                .append (sAddress)
+                                                .getHashCode ();
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final CacheKey rhs = (CacheKey) o;
+      return EqualsHelper.equals (m_sProfileID, rhs.m_sProfileID) &&
+             m_sInitiatorID.equals (rhs.m_sInitiatorID) &&
+             m_sResponderID.equals (rhs.m_sResponderID) &&
+             EqualsHelper.equals (m_sAddress, rhs.m_sAddress);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return m_nHashCode;
+    }
+  }
+
+  private final AS4BoundedCache <CacheKey, IPMode> m_aCache;
+
+  public CachingPModeResolver (@Nullable final String sAS4ProfileID, final boolean bUseDefaultAsFallback)
+  {
+    this (sAS4ProfileID, bUseDefaultAsFallback, DEFAULT_MAX_SIZE);
+  }
+
+  public CachingPModeResolver (@Nullable final String sAS4ProfileID,
+                               final boolean bUseDefaultAsFallback,
+                               @Nonnegative final int nMaxSize)
+  {
+    super (sAS4ProfileID, bUseDefaultAsFallback);
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aCache = new AS4BoundedCache <> (nMaxSize, k -> STATS_EVICTIONS.increment ());
+  }
+
+  /**
+   * @return The cache hit and miss statistics of all instances. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCacheStatistics ()
+  {
+    return STATS_CACHE;
+  }
+
+  /**
+   * @return The number of PModes evicted from the caches of all instances,
+   *         because the maximum size was reached. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getEvictionStatistics ()
+  {
+    return STATS_EVICTIONS;
+  }
+
+  /**
+   * @return The maximum number of cached PModes. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_aCache.getMaxSize ();
+  }
+
+  /**
+   * @return The number of currently cached PModes. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCachedCount ()
+  {
+    return m_aCache.size ();
+  }
+
+  /**
+   * Remove all cached PModes.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return m_aCache.clear ();
+  }
+
+  @Override
+  @Nullable
+  protected IPMode createDefaultPMode (@Nonnull @Nonempty final String sInitiatorID,
+                                       @Nonnull @Nonempty final String sResponderID,
+                                       @Nullable final String sAddress)
+  {
+    final IAS4Profile aProfile = getAS4Profile ();
+    if (aProfile == null && !isUseDefaultAsFallback ())
+    {
+      // Not found and no default -> null
+      return null;
+    }
+
+    final CacheKey aKey = new CacheKey (aProfile == null ? null : aProfile.getID (),
+                                        sInitiatorID,
+                                        sResponderID,
+                                        sAddress);
+    final IPMode aCached = m_aCache.get (aKey);
+    if (aCached != null)
+    {
+      STATS_CACHE.cacheHit ();
+      return aCached;
+    }
+    STATS_CACHE.cacheMiss ();
+
+    // Create outside of the lock and never persist
+    final IPMode aNewPMode = aProfile != null ? aProfile.createPModeTemplate (sInitiatorID,
+                                                                              sResponderID,
+                                                                              sAddress,
+                                                                              false)
+                                              : DefaultPMode.getOrCreateDefaultPMode (sInitiatorID,
+                                                                                      sResponderID,
+                                                                                      sAddress,
+                                                                                      false);
+    // Another thread may have been faster
+    return m_aCache.putIfAbsent (aKey, aNewPMode);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ()).append ("MaxSize", getMaxSize ()).getToString ();
+  }
+}
@@ -73,13 +73,15 @@ public class DefaultPModeResolver implements IPModeResolver
     return m_bUseDefaultAsFallback;
   }
 
+  /**
+   * @return The AS4 profile to be used to create the default PMode. This is
+   *         either the profile with the ID provided in the constructor or the
+   *         default profile. May be <code>null</code>.
+   * @since 3.0.0
+   */
   @Nullable
-  @OverrideOnDemand
-  protected IPMode createDefaultPMode (@Nonnull @Nonempty final String sInitiatorID,
-                                       @Nonnull @Nonempty final String sResponderID,
-                                       @Nullable final String sAddress)
+  protected IAS4Profile getAS4Profile ()
   {
-    // Use default pmode based on profile
     final IAS4ProfileManager aProfileMgr = MetaAS4Manager.getProfileMgr ();
     IAS4Profile aProfile = null;
     if (StringHelper.hasText (m_sAS4ProfileID))
@@ -92,6 +94,17 @@ public class DefaultPModeResolver implements IPModeResolver
       // ID not provided or non-existing - use default
       aProfile = aProfileMgr.getDefaultProfileOrNull ();
     }
+    return aProfile;
+  }
+
+  @Nullable
+  @OverrideOnDemand
+  protected IPMode createDefaultPMode (@Nonnull @Nonempty final String sInitiatorID,
+                                       @Nonnull @Nonempty final String sResponderID,
+                                       @Nullable final String sAddress)
+  {
+    // Use default pmode based on profile
+    final IAS4Profile aProfile = getAS4Profile ();
     if (aProfile != null)
       return aProfile.createPModeTemplate (sInitiatorID, sResponderID, sAddress);
 
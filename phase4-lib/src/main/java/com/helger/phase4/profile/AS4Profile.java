@@ -116,6 +116,16 @@ public class AS4Profile implements IAS4Profile
     return m_aDefaultPModeProvider.getOrCreatePMode (sInitiatorID, sResponderID, sAddress);
   }
 
+  @Nonnull
+  @Override
+  public PMode createPModeTemplate (@Nonnull @Nonempty final String sInitiatorID,
+                                    @Nonnull @Nonempty final String sResponderID,
+                                    @Nullable final String sAddress,
+                                    final boolean bPersist)
+  {
+    return m_aDefaultPModeProvider.getOrCreatePMode (sInitiatorID, sResponderID, sAddress, bPersist);
+  }
+
   @Nonnull
   public IPModeIDProvider getPModeIDProvider ()
   {
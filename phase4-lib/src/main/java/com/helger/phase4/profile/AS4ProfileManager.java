@@ -32,10 +32,10 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsMap;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.equals.EqualsHelper;
-import com.helger.commons.lang.ServiceLoaderHelper;
 import com.helger.commons.state.EChange;
 import com.helger.commons.string.StringHelper;
 import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.mgr.AS4SPIRegistry;
 
 /**
  * AS4 profile manager. All profiles are registered by SPI -
@@ -60,7 +60,7 @@ public class AS4ProfileManager implements IAS4ProfileManager
       m_aMap.clear ();
       m_aDefaultProfile = null;
     });
-    for (final IAS4ProfileRegistrarSPI aSPI : ServiceLoaderHelper.getAllSPIImplementations (IAS4ProfileRegistrarSPI.class))
+    for (final IAS4ProfileRegistrarSPI aSPI : AS4SPIRegistry.getAll (IAS4ProfileRegistrarSPI.class))
       aSPI.registerAS4Profile (this);
 
     final int nCount = getProfileCount ();
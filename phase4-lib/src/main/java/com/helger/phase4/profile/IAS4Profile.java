@@ -59,6 +59,33 @@ public interface IAS4Profile extends IHasID <String>, IHasDisplayName
                              @Nonnull @Nonempty String sResponderID,
                              @Nullable String sAddress);
 
+  /**
+   * Create a PMode for the provided parameters. The default implementation
+   * ignores the persist flag and calls
+   * {@link #createPModeTemplate(String, String, String)}.
+   *
+   * @param sInitiatorID
+   *        Initiator ID
+   * @param sResponderID
+   *        Responder ID
+   * @param sAddress
+   *        Address string
+   * @param bPersist
+   *        <code>true</code> to allow the profile to store the PMode in the
+   *        PMode manager, <code>false</code> to never store it.
+   * @return A PMode that is not complete! The following information is most
+   *         likely not contained: URLs, certificates.
+   * @since 3.0.0
+   */
+  @Nonnull
+  default PMode createPModeTemplate (@Nonnull @Nonempty final String sInitiatorID,
+                                     @Nonnull @Nonempty final String sResponderID,
+                                     @Nullable final String sAddress,
+                                     final boolean bPersist)
+  {
+    return createPModeTemplate (sInitiatorID, sResponderID, sAddress);
+  }
+
   /**
    * @return The PMode ID provider to be used for this profile. May not be
    *         <code>null</code>.
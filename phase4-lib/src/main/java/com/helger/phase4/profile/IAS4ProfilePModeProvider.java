@@ -19,6 +19,7 @@ package com.helger.phase4.profile;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.phase4.model.pmode.PMode;
 
@@ -45,4 +46,82 @@ public interface IAS4ProfilePModeProvider
   PMode getOrCreatePMode (@Nonnull @Nonempty String sInitiatorID,
                           @Nonnull @Nonempty String sResponderID,
                           @Nullable String sAddress);
+
+  /**
+   * Get an existing or create a new PMode with explicit control whether it may
+   * be stored in the PMode manager. The default implementation ignores the
+   * flag and calls {@link #getOrCreatePMode(String, String, String)}, so
+   * providers that persist their PModes should override it - see
+   * {@link #create(IPModeCreator)}.
+   *
+   * @param sInitiatorID
+   *        The initiator ID. May neither be <code>null</code> nor empty.
+   * @param sResponderID
+   *        The responder ID. May neither be <code>null</code> nor empty.
+   * @param sAddress
+   *        The endpoint URL address. May be <code>null</code>.
+   * @param bPersist
+   *        <code>true</code> to allow storing the PMode in the PMode manager,
+   *        <code>false</code> to never store it.
+   * @return The PMode matching the params or <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  default PMode getOrCreatePMode (@Nonnull @Nonempty final String sInitiatorID,
+                                  @Nonnull @Nonempty final String sResponderID,
+                                  @Nullable final String sAddress,
+                                  final boolean bPersist)
+  {
+    return getOrCreatePMode (sInitiatorID, sResponderID, sAddress);
+  }
+
+  /**
+   * Callback to create a PMode, that honours the persist flag.
+   *
+   * @since 3.0.0
+   */
+  @FunctionalInterface
+  interface IPModeCreator
+  {
+    @Nullable
+    PMode createPMode (@Nonnull @Nonempty String sInitiatorID,
+                       @Nonnull @Nonempty String sResponderID,
+                       @Nullable String sAddress,
+                       boolean bPersist);
+  }
+
+  /**
+   * Create a PMode provider that persists by default and forwards the persist
+   * flag if explicitly provided.
+   *
+   * @param aCreator
+   *        The PMode creator to use. May not be <code>null</code>.
+   * @return A new provider and never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  static IAS4ProfilePModeProvider create (@Nonnull final IPModeCreator aCreator)
+  {
+    ValueEnforcer.notNull (aCreator, "Creator");
+    return new IAS4ProfilePModeProvider ()
+    {
+      @Nullable
+      public PMode getOrCreatePMode (@Nonnull @Nonempty final String sInitiatorID,
+                                     @Nonnull @Nonempty final String sResponderID,
+                                     @Nullable final String sAddress)
+      {
+        return aCreator.createPMode (sInitiatorID, sResponderID, sAddress, true);
+      }
+
+      @Override
+      @Nullable
+      public PMode getOrCreatePMode (@Nonnull @Nonempty final String sInitiatorID,
+                                     @Nonnull @Nonempty final String sResponderID,
+                                     @Nullable final String sAddress,
+                                     final boolean bPersist)
+      {
+        return aCreator.createPMode (sInitiatorID, sResponderID, sAddress, bPersist);
+      }
+    };
+  }
 }
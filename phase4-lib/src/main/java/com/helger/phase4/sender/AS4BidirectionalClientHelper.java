@@ -18,6 +18,9 @@ package com.helger.phase4.sender;
 
 import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -51,6 +54,7 @@ import com.helger.phase4.incoming.IAS4IncomingReceiverConfiguration;
 import com.helger.phase4.incoming.IAS4SignalMessageConsumer;
 import com.helger.phase4.incoming.IAS4UserMessageConsumer;
 import com.helger.phase4.incoming.crypto.IAS4IncomingSecurityConfiguration;
+import com.helger.phase4.messaging.http.IAsyncHttpPoster;
 import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.resolve.IPModeResolver;
 import com.helger.phase4.util.Phase4Exception;
@@ -69,25 +73,8 @@ public final class AS4BidirectionalClientHelper
   private AS4BidirectionalClientHelper ()
   {}
 
-  public static void sendAS4UserMessageAndReceiveAS4SignalMessage (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
-                                                                   @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
-                                                                   @Nonnull final IPModeResolver aPModeResolver,
-                                                                   @Nonnull final IAS4IncomingAttachmentFactory aIAF,
-                                                                   @Nonnull final IAS4IncomingProfileSelector aIncomingProfileSelector,
-                                                                   @Nonnull final AS4ClientUserMessage aClientUserMsg,
-                                                                   @Nonnull final Locale aLocale,
-                                                                   @Nonnull final String sURL,
-                                                                   @Nullable final IAS4ClientBuildMessageCallback aBuildMessageCallback,
-                                                                   @Nullable final IAS4OutgoingDumper aOutgoingDumper,
-                                                                   @Nullable final IAS4IncomingDumper aIncomingDumper,
-                                                                   @Nonnull final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration,
-                                                                   @Nonnull final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration,
-                                                                   @Nullable final IAS4RetryCallback aRetryCallback,
-                                                                   @Nullable final IAS4RawResponseConsumer aRawResponseConsumer,
-                                                                   @Nullable final IAS4SignalMessageConsumer aSignalMsgConsumer) throws IOException,
-                                                                                                                                 Phase4Exception,
-                                                                                                                                 WSSecurityException,
-                                                                                                                                 MessagingException
+  private static void _logUserMessage (@Nonnull final AS4ClientUserMessage aClientUserMsg,
+                                       @Nonnull final String sURL)
   {
     LOGGER.info ("Sending AS4 UserMessage to '" +
                  sURL +
@@ -120,9 +107,12 @@ public final class AS4BidirectionalClientHelper
                       "]");
       }
     }
+  }
 
-    final Wrapper <HttpResponse> aWrappedHttpResponse = new Wrapper <> ();
-    final HttpClientResponseHandler <byte []> aHttpResponseHdl = aHttpResponse -> {
+  @Nonnull
+  private static HttpClientResponseHandler <byte []> _createResponseHandler (@Nonnull final Wrapper <HttpResponse> aWrappedHttpResponse)
+  {
+    return aHttpResponse -> {
       // throws an ExtendedHttpResponseException on exception
       final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
       if (aEntity == null)
@@ -134,13 +124,25 @@ public final class AS4BidirectionalClientHelper
       // Read response payload
       return EntityUtils.toByteArray (aEntity);
     };
+  }
 
-    // Main HTTP sending
-    final AS4ClientSentMessage <byte []> aResponseEntity = aClientUserMsg.sendMessageWithRetries (sURL,
-                                                                                                  aHttpResponseHdl,
-                                                                                                  aBuildMessageCallback,
-                                                                                                  aOutgoingDumper,
-                                                                                                  aRetryCallback);
+  private static void _handleSignalMessageResponse (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                                    @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                                    @Nonnull final IPModeResolver aPModeResolver,
+                                                    @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                    @Nonnull final IAS4IncomingProfileSelector aIncomingProfileSelector,
+                                                    @Nonnull final AS4ClientUserMessage aClientUserMsg,
+                                                    @Nonnull final Locale aLocale,
+                                                    @Nonnull final String sURL,
+                                                    @Nullable final IAS4IncomingDumper aIncomingDumper,
+                                                    @Nonnull final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration,
+                                                    @Nonnull final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration,
+                                                    @Nullable final IAS4RawResponseConsumer aRawResponseConsumer,
+                                                    @Nullable final IAS4SignalMessageConsumer aSignalMsgConsumer,
+                                                    @Nonnull final AS4ClientSentMessage <byte []> aResponseEntity,
+                                                    @Nullable final HttpResponse aHttpResponse) throws IOException,
+                                                                                                Phase4Exception
+  {
     final String sRequestMessageID = aResponseEntity.getMessageID ();
     LOGGER.info ("Successfully transmitted AS4 UserMessage with message ID '" +
                  sRequestMessageID +
@@ -168,7 +170,7 @@ public final class AS4BidirectionalClientHelper
                                              aClientUserMsg.getPMode (),
                                              aLocale,
                                              aMessageMetadata,
-                                             aWrappedHttpResponse.get (),
+                                             aHttpResponse,
                                              aResponseEntity.getResponseContent (),
                                              aIncomingDumper,
                                              aIncomingSecurityConfiguration,
@@ -179,6 +181,124 @@ public final class AS4BidirectionalClientHelper
       LOGGER.info ("AS4 ResponseEntity is empty");
   }
 
+  public static void sendAS4UserMessageAndReceiveAS4SignalMessage (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                                                   @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                                                   @Nonnull final IPModeResolver aPModeResolver,
+                                                                   @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                                   @Nonnull final IAS4IncomingProfileSelector aIncomingProfileSelector,
+                                                                   @Nonnull final AS4ClientUserMessage aClientUserMsg,
+                                                                   @Nonnull final Locale aLocale,
+                                                                   @Nonnull final String sURL,
+                                                                   @Nullable final IAS4ClientBuildMessageCallback aBuildMessageCallback,
+                                                                   @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                                   @Nullable final IAS4IncomingDumper aIncomingDumper,
+                                                                   @Nonnull final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration,
+                                                                   @Nonnull final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration,
+                                                                   @Nullable final IAS4RetryCallback aRetryCallback,
+                                                                   @Nullable final IAS4RawResponseConsumer aRawResponseConsumer,
+                                                                   @Nullable final IAS4SignalMessageConsumer aSignalMsgConsumer) throws IOException,
+                                                                                                                                 Phase4Exception,
+                                                                                                                                 WSSecurityException,
+                                                                                                                                 MessagingException
+  {
+    _logUserMessage (aClientUserMsg, sURL);
+
+    final Wrapper <HttpResponse> aWrappedHttpResponse = new Wrapper <> ();
+    final HttpClientResponseHandler <byte []> aHttpResponseHdl = _createResponseHandler (aWrappedHttpResponse);
+
+    // Main HTTP sending
+    final AS4ClientSentMessage <byte []> aResponseEntity = aClientUserMsg.sendMessageWithRetries (sURL,
+                                                                                                  aHttpResponseHdl,
+                                                                                                  aBuildMessageCallback,
+                                                                                                  aOutgoingDumper,
+                                                                                                  aRetryCallback);
+    _handleSignalMessageResponse (aCryptoFactorySign,
+                                  aCryptoFactoryCrypt,
+                                  aPModeResolver,
+                                  aIAF,
+                                  aIncomingProfileSelector,
+                                  aClientUserMsg,
+                                  aLocale,
+                                  sURL,
+                                  aIncomingDumper,
+                                  aIncomingSecurityConfiguration,
+                                  aIncomingReceiverConfiguration,
+                                  aRawResponseConsumer,
+                                  aSignalMsgConsumer,
+                                  aResponseEntity,
+                                  aWrappedHttpResponse.get ());
+  }
+
+  /**
+   * The non-blocking counterpart of
+   * {@link #sendAS4UserMessageAndReceiveAS4SignalMessage(IAS4CryptoFactory, IAS4CryptoFactory, IPModeResolver, IAS4IncomingAttachmentFactory, IAS4IncomingProfileSelector, AS4ClientUserMessage, Locale, String, IAS4ClientBuildMessageCallback, IAS4OutgoingDumper, IAS4IncomingDumper, IAS4IncomingSecurityConfiguration, IAS4IncomingReceiverConfiguration, IAS4RetryCallback, IAS4RawResponseConsumer, IAS4SignalMessageConsumer)}.
+   * Building the message and parsing the response are performed on the
+   * provided executor, the HTTP exchange is performed by the provided
+   * asynchronous HTTP poster.
+   *
+   * @return The future that is completed after the response was handled, or
+   *         exceptionally in case of error. Never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static CompletableFuture <Void> sendAS4UserMessageAndReceiveAS4SignalMessageAsync (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
+                                                                                           @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
+                                                                                           @Nonnull final IPModeResolver aPModeResolver,
+                                                                                           @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                                                           @Nonnull final IAS4IncomingProfileSelector aIncomingProfileSelector,
+                                                                                           @Nonnull final AS4ClientUserMessage aClientUserMsg,
+                                                                                           @Nonnull final Locale aLocale,
+                                                                                           @Nonnull final String sURL,
+                                                                                           @Nullable final IAS4ClientBuildMessageCallback aBuildMessageCallback,
+                                                                                           @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                                                           @Nullable final IAS4IncomingDumper aIncomingDumper,
+                                                                                           @Nonnull final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration,
+                                                                                           @Nonnull final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration,
+                                                                                           @Nullable final IAS4RetryCallback aRetryCallback,
+                                                                                           @Nullable final IAS4RawResponseConsumer aRawResponseConsumer,
+                                                                                           @Nullable final IAS4SignalMessageConsumer aSignalMsgConsumer,
+                                                                                           @Nonnull final IAsyncHttpPoster aAsyncHttpPoster,
+                                                                                           @Nonnull final Executor aExecutor)
+  {
+    _logUserMessage (aClientUserMsg, sURL);
+
+    final Wrapper <HttpResponse> aWrappedHttpResponse = new Wrapper <> ();
+    final HttpClientResponseHandler <byte []> aHttpResponseHdl = _createResponseHandler (aWrappedHttpResponse);
+
+    // Main HTTP sending
+    return aClientUserMsg.sendMessageWithRetriesAsync (sURL,
+                                                       aHttpResponseHdl,
+                                                       aBuildMessageCallback,
+                                                       aOutgoingDumper,
+                                                       aRetryCallback,
+                                                       aAsyncHttpPoster,
+                                                       aExecutor)
+                         .thenAcceptAsync (aResponseEntity -> {
+                           try
+                           {
+                             _handleSignalMessageResponse (aCryptoFactorySign,
+                                                           aCryptoFactoryCrypt,
+                                                           aPModeResolver,
+                                                           aIAF,
+                                                           aIncomingProfileSelector,
+                                                           aClientUserMsg,
+                                                           aLocale,
+                                                           sURL,
+                                                           aIncomingDumper,
+                                                           aIncomingSecurityConfiguration,
+                                                           aIncomingReceiverConfiguration,
+                                                           aRawResponseConsumer,
+                                                           aSignalMsgConsumer,
+                                                           aResponseEntity,
+                                                           aWrappedHttpResponse.get ());
+                           }
+                           catch (final IOException | Phase4Exception ex)
+                           {
+                             throw new CompletionException (ex);
+                           }
+                         }, aExecutor);
+  }
+
   public static void sendAS4PullRequestAndReceiveAS4UserMessage (@Nonnull final IAS4CryptoFactory aCryptoFactorySign,
                                                                  @Nonnull final IAS4CryptoFactory aCryptoFactoryCrypt,
                                                                  @Nonnull final IPModeResolver aPModeResolver,
@@ -18,6 +18,8 @@ package com.helger.phase4.sender;
 
 import java.time.OffsetDateTime;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
@@ -36,6 +38,7 @@ import com.helger.commons.string.StringHelper;
 import com.helger.commons.traits.IGenericImplTrait;
 import com.helger.httpclient.HttpClientFactory;
 import com.helger.httpclient.HttpClientSettings;
+import com.helger.phase4.CAS4;
 import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
 import com.helger.phase4.client.IAS4ClientBuildMessageCallback;
 import com.helger.phase4.client.IAS4RetryCallback;
@@ -48,11 +51,16 @@ import com.helger.phase4.dump.IAS4IncomingDumper;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.incoming.AS4IncomingProfileSelectorFromGlobal;
 import com.helger.phase4.incoming.IAS4IncomingProfileSelector;
+import com.helger.phase4.messaging.http.AS4CircuitOpenException;
+import com.helger.phase4.messaging.http.AS4EndpointHealthRegistry;
+import com.helger.phase4.messaging.http.AS4HttpClientPool;
 import com.helger.phase4.messaging.http.HttpRetrySettings;
+import com.helger.phase4.messaging.http.IAsyncHttpPoster;
 import com.helger.phase4.messaging.http.IHttpPoster;
 import com.helger.phase4.model.ESoapVersion;
 import com.helger.phase4.model.pmode.resolve.DefaultPModeResolver;
 import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+import com.helger.phase4.util.AS4ExecutorHelper;
 import com.helger.phase4.util.Phase4Exception;
 
 /**
@@ -73,6 +81,10 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
 
   protected IHttpPoster m_aCustomHttpPoster;
   protected HttpClientFactory m_aHttpClientFactory;
+  protected AS4HttpClientPool m_aHttpClientPool;
+  protected AS4EndpointHealthRegistry m_aEndpointHealthRegistry;
+  protected IAsyncHttpPoster m_aAsyncHttpPoster;
+  protected Executor m_aAsyncExecutor;
   protected IAS4CryptoFactory m_aCryptoFactorySign;
   protected IAS4CryptoFactory m_aCryptoFactoryCrypt;
   protected final AS4SigningParams m_aSigningParams = new AS4SigningParams ();
@@ -197,6 +209,123 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
     return thisAsT ();
   }
 
+  /**
+   * @return The currently set {@link AS4HttpClientPool}. May be
+   *         <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4HttpClientPool httpClientPool ()
+  {
+    return m_aHttpClientPool;
+  }
+
+  /**
+   * Set the shared HTTP client pool to be used. If a pool is set, it takes
+   * precedence over {@link #httpClientFactory()} and the HTTP connections are
+   * reused across all messages sent via the same pool. The pool must be created
+   * and closed by the caller.
+   *
+   * @param aHttpClientPool
+   *        The HTTP client pool to be used. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final IMPLTYPE httpClientPool (@Nullable final AS4HttpClientPool aHttpClientPool)
+  {
+    m_aHttpClientPool = aHttpClientPool;
+    return thisAsT ();
+  }
+
+  /**
+   * @return The currently set {@link AS4EndpointHealthRegistry}. May be
+   *         <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4EndpointHealthRegistry endpointHealthRegistry ()
+  {
+    return m_aEndpointHealthRegistry;
+  }
+
+  /**
+   * Set the endpoint health registry to be used. If a registry is set, the
+   * outcome of every HTTP call is recorded per endpoint URL. After too many
+   * consecutive failures the circuit of the endpoint is opened and sending
+   * fails fast with an {@link AS4CircuitOpenException}, without signing and
+   * encrypting the message. The same registry should be used for all builders.
+   * This only has an effect if no custom HTTP poster is used.
+   *
+   * @param aEndpointHealthRegistry
+   *        The registry to be used. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final IMPLTYPE endpointHealthRegistry (@Nullable final AS4EndpointHealthRegistry aEndpointHealthRegistry)
+  {
+    m_aEndpointHealthRegistry = aEndpointHealthRegistry;
+    return thisAsT ();
+  }
+
+  /**
+   * @return The currently set {@link IAsyncHttpPoster}. May be
+   *         <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final IAsyncHttpPoster asyncHttpPoster ()
+  {
+    return m_aAsyncHttpPoster;
+  }
+
+  /**
+   * Set the asynchronous HTTP poster to be used by {@link #sendMessageAsync()}.
+   * If none is set, the asynchronous sending falls back to the synchronous
+   * HTTP client, executed on the {@link #asyncExecutor()}.
+   *
+   * @param aAsyncHttpPoster
+   *        The asynchronous HTTP poster to be used. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final IMPLTYPE asyncHttpPoster (@Nullable final IAsyncHttpPoster aAsyncHttpPoster)
+  {
+    m_aAsyncHttpPoster = aAsyncHttpPoster;
+    return thisAsT ();
+  }
+
+  /**
+   * @return The currently set executor for asynchronous sending. May be
+   *         <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final Executor asyncExecutor ()
+  {
+    return m_aAsyncExecutor;
+  }
+
+  /**
+   * Set the executor on which the CPU intensive parts of
+   * {@link #sendMessageAsync()} (building, signing, encrypting and parsing of
+   * the response) are executed. If none is set, the executor from
+   * {@link AS4ExecutorHelper#getAsyncExecutor(String)} is used.
+   *
+   * @param aAsyncExecutor
+   *        The executor to be used. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final IMPLTYPE asyncExecutor (@Nullable final Executor aAsyncExecutor)
+  {
+    m_aAsyncExecutor = aAsyncExecutor;
+    return thisAsT ();
+  }
+
   /**
    * @return The currently set {@link IAS4CryptoFactory} for signing. May be
    *         <code>null</code>.
@@ -861,9 +990,9 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
   @OverridingMethodsMustInvokeSuper
   public boolean isEveryRequiredFieldSet ()
   {
-    if (m_aHttpClientFactory == null)
+    if (m_aHttpClientFactory == null && m_aHttpClientPool == null)
     {
-      LOGGER.warn ("The field 'httpClientFactory' is not set");
+      LOGGER.warn ("Neither the field 'httpClientFactory' nor the field 'httpClientPool' is set");
       return false;
     }
     // m_aCryptoFactorySign may be null
@@ -931,6 +1060,31 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
    */
   protected abstract void mainSendMessage () throws Phase4Exception;
 
+  /**
+   * Asynchronously send the AS4 message. This method is called after
+   * {@link #customizeBeforeSending()} on the calling thread and must take all
+   * the information it needs from the builder before returning. This method
+   * may only be called by {@link #sendMessageAsync()}. The default
+   * implementation simply invokes {@link #mainSendMessage()} on the calling
+   * thread and returns a completed future - implementations supporting
+   * non-blocking sending should override it.
+   *
+   * @param aExecutor
+   *        The executor for CPU intensive tasks. Never <code>null</code>.
+   * @return The future that is completed after sending. Never
+   *         <code>null</code>.
+   * @throws Phase4Exception
+   *         In case of any error
+   * @since 3.0.0
+   */
+  @Nonnull
+  @OverrideOnDemand
+  protected CompletableFuture <Void> mainSendMessageAsync (@Nonnull final Executor aExecutor) throws Phase4Exception
+  {
+    mainSendMessage ();
+    return CompletableFuture.completedFuture (null);
+  }
+
   /**
    * Internal method that is invoked after successful sending took place. This
    * can e.g. be used to fulfill reporting requirements etc. This method must
@@ -943,6 +1097,37 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
   protected void afterSuccessfulSending ()
   {}
 
+  @Nonnull
+  private ESuccess _prepareSending () throws Phase4Exception
+  {
+    // Pre required field check
+    if (finishFields ().isFailure ())
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("finishFields() prevented the AS4 message to be send");
+
+      return ESuccess.FAILURE;
+    }
+
+    if (!isEveryRequiredFieldSet ())
+    {
+      LOGGER.error ("At least one mandatory field is not set and therefore the AS4 message cannot be send.");
+      return ESuccess.FAILURE;
+    }
+
+    // Post required field check
+    customizeBeforeSending ();
+
+    if (m_aSenderInterrupt != null)
+      if (m_aSenderInterrupt.canSendDocument ().isBreak ())
+      {
+        LOGGER.warn ("The AS4 sender interrupt disabled the sending of the message.");
+        return ESuccess.FAILURE;
+      }
+
+    return ESuccess.SUCCESS;
+  }
+
   /**
    * Synchronously send the AS4 message. First the internal "finishFields"
    * method is called, to ensure all dynamic fields are filled - on failure this
@@ -971,30 +1156,8 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("About to send the AS4 message");
 
-    // Pre required field check
-    if (finishFields ().isFailure ())
-    {
-      if (LOGGER.isDebugEnabled ())
-        LOGGER.debug ("finishFields() prevented the AS4 message to be send");
-
-      return ESuccess.FAILURE;
-    }
-
-    if (!isEveryRequiredFieldSet ())
-    {
-      LOGGER.error ("At least one mandatory field is not set and therefore the AS4 message cannot be send.");
+    if (_prepareSending ().isFailure ())
       return ESuccess.FAILURE;
-    }
-
-    // Post required field check
-    customizeBeforeSending ();
-
-    if (m_aSenderInterrupt != null)
-      if (m_aSenderInterrupt.canSendDocument ().isBreak ())
-      {
-        LOGGER.warn ("The AS4 sender interrupt disabled the sending of the message.");
-        return ESuccess.FAILURE;
-      }
 
     // Main sending
     mainSendMessage ();
@@ -1007,4 +1170,53 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
 
     return ESuccess.SUCCESS;
   }
+
+  /**
+   * Asynchronously send the AS4 message. The same steps as in
+   * {@link #sendMessage()} are performed, but the main sending is handed over
+   * to {@link #mainSendMessageAsync(Executor)}. "finishFields",
+   * "customizeBeforeSending" and the sender interrupt are still invoked on the
+   * calling thread. After this method returned, the builder may be modified or
+   * reused for the next message.
+   *
+   * @return The future that is completed with {@link ESuccess#FAILURE} if not
+   *         all mandatory parameters are set, with {@link ESuccess#SUCCESS}
+   *         upon success or exceptionally in case of an error. Never
+   *         <code>null</code>.
+   * @see #sendMessage()
+   * @see #asyncHttpPoster(IAsyncHttpPoster)
+   * @see #asyncExecutor(Executor)
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final CompletableFuture <ESuccess> sendMessageAsync ()
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("About to asynchronously send the AS4 message");
+
+    try
+    {
+      if (_prepareSending ().isFailure ())
+        return CompletableFuture.completedFuture (ESuccess.FAILURE);
+
+      final Executor aExecutor = m_aAsyncExecutor != null ? m_aAsyncExecutor
+                                                          : AS4ExecutorHelper.getAsyncExecutor (CAS4.LIB_NAME +
+                                                                                                " async sending");
+
+      // Main sending
+      return mainSendMessageAsync (aExecutor).thenApply (x -> {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Finished main asynchronous AS4 message sending without exception");
+
+        // Post sending callback
+        afterSuccessfulSending ();
+
+        return ESuccess.SUCCESS;
+      });
+    }
+    catch (final Phase4Exception ex)
+    {
+      return CompletableFuture.failedFuture (ex);
+    }
+  }
 }
@@ -33,6 +33,7 @@ import com.helger.phase4.incoming.IAS4SignalMessageConsumer;
 import com.helger.phase4.incoming.IAS4UserMessageConsumer;
 import com.helger.phase4.incoming.crypto.AS4IncomingSecurityConfiguration;
 import com.helger.phase4.incoming.crypto.IAS4IncomingSecurityConfiguration;
+import com.helger.phase4.messaging.http.BasicHttpPoster;
 import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.leg.PModeLeg;
 import com.helger.phase4.util.AS4ResourceHelper;
@@ -282,7 +283,11 @@ public abstract class AbstractAS4PullRequestBuilder <IMPLTYPE extends AbstractAS
     }
     else
     {
-      aPullRequestMsg.getHttpPoster ().setHttpClientFactory (m_aHttpClientFactory);
+      if (m_aHttpClientFactory != null)
+        aPullRequestMsg.getHttpPoster ().setHttpClientFactory (m_aHttpClientFactory);
+      aPullRequestMsg.getHttpPoster ().setHttpClientPool (m_aHttpClientPool);
+      if (aPullRequestMsg.getHttpPoster () instanceof BasicHttpPoster)
+        ((BasicHttpPoster) aPullRequestMsg.getHttpPoster ()).setEndpointHealthRegistry (m_aEndpointHealthRegistry);
       // Otherwise Oxalis dies
       aPullRequestMsg.getHttpPoster ().setQuoteHttpHeaders (false);
     }
@@ -17,6 +17,8 @@
 package com.helger.phase4.sender;
 
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
@@ -39,6 +41,9 @@ import com.helger.phase4.client.AS4ClientUserMessage;
 import com.helger.phase4.ebms3header.Ebms3Property;
 import com.helger.phase4.ebms3header.Ebms3SignalMessage;
 import com.helger.phase4.incoming.IAS4SignalMessageConsumer;
+import com.helger.phase4.messaging.http.AS4RetryOutbox;
+import com.helger.phase4.messaging.http.AS4RetryScheduledException;
+import com.helger.phase4.messaging.http.BasicHttpPoster;
 import com.helger.phase4.model.MessageProperty;
 import com.helger.phase4.model.message.MessageHelperMethods;
 import com.helger.phase4.model.pmode.IPMode;
@@ -85,6 +90,7 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
   protected boolean m_bForceMimeMessage = AS4ClientUserMessage.DEFAULT_FORCE_MIME_MESSAGE;
 
   protected IAS4SignalMessageConsumer m_aSignalMsgConsumer;
+  protected AS4RetryOutbox m_aRetryOutbox;
 
   /**
    * Create a new builder
@@ -731,6 +737,37 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
     return thisAsT ();
   }
 
+  /**
+   * @return The retry outbox to be used. May be <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nullable
+  public final AS4RetryOutbox retryOutbox ()
+  {
+    return m_aRetryOutbox;
+  }
+
+  /**
+   * Set the retry outbox to be used. If an outbox is set and the first try of
+   * sending the message fails, the message is parked in the outbox instead of
+   * retrying in the current thread. The sending then fails with an exception
+   * for which {@link AS4RetryScheduledException#isRetryScheduled(Throwable)}
+   * returns <code>true</code>, and the final outcome is reported to the
+   * listener of the outbox. This only has an effect if no custom HTTP poster is
+   * used.
+   *
+   * @param aRetryOutbox
+   *        The started retry outbox to use. May be <code>null</code>.
+   * @return this for chaining
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final IMPLTYPE retryOutbox (@Nullable final AS4RetryOutbox aRetryOutbox)
+  {
+    m_aRetryOutbox = aRetryOutbox;
+    return thisAsT ();
+  }
+
   @Override
   @Nonnull
   @OverridingMethodsMustInvokeSuper
@@ -833,7 +870,14 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
     else
     {
       // Default HTTP poster
-      aUserMsg.getHttpPoster ().setHttpClientFactory (m_aHttpClientFactory);
+      if (m_aHttpClientFactory != null)
+        aUserMsg.getHttpPoster ().setHttpClientFactory (m_aHttpClientFactory);
+      aUserMsg.getHttpPoster ().setHttpClientPool (m_aHttpClientPool);
+      if (aUserMsg.getHttpPoster () instanceof BasicHttpPoster)
+      {
+        ((BasicHttpPoster) aUserMsg.getHttpPoster ()).setRetryOutbox (m_aRetryOutbox)
+                                                     .setEndpointHealthRegistry (m_aEndpointHealthRegistry);
+      }
       // Otherwise Oxalis dies
       aUserMsg.getHttpPoster ().setQuoteHttpHeaders (false);
     }
@@ -885,6 +929,53 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
     aUserMsg.setForceMimeMessage (m_bForceMimeMessage);
   }
 
+  @Nonnull
+  private static IAS4SignalMessageConsumer _createKeepingSignalMsgConsumer (@Nullable final IAS4SignalMessageConsumer aOld,
+                                                                           @Nonnull final Wrapper <Ebms3SignalMessage> aSignalMsgKeeper)
+  {
+    if (aOld == null)
+      return (aSignalMsg, aMMD, aIncomingState) -> aSignalMsgKeeper.set (aSignalMsg);
+    return (aSignalMsg, aMMD, aIncomingState) -> {
+      aSignalMsgKeeper.set (aSignalMsg);
+      aOld.handleSignalMessage (aSignalMsg, aMMD, aIncomingState);
+    };
+  }
+
+  @Nonnull
+  private static EAS4UserMessageSendResult _getSendResult (@Nullable final Ebms3SignalMessage aSignalMsg)
+  {
+    if (aSignalMsg == null)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to get a SignalMessage as the response");
+
+      // Unexpected response - invalid XML or at least no Ebms3 signal message
+      return EAS4UserMessageSendResult.NO_SIGNAL_MESSAGE_RECEIVED;
+    }
+
+    if (aSignalMsg.hasErrorEntries ())
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("The received SignalMessage contains at least one error");
+
+      // An error was returned from the other side
+      // Errors have precedence over receipts
+      return EAS4UserMessageSendResult.AS4_ERROR_MESSAGE_RECEIVED;
+    }
+
+    if (aSignalMsg.getReceipt () != null)
+    {
+      // A receipt was returned - this is deemed success
+      return EAS4UserMessageSendResult.SUCCESS;
+    }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("The SignalMessage contains neither Errors nor a Receipt - unexpected SignalMessage layout.");
+
+    // Neither an error nor a receipt was returned - this is weird
+    return EAS4UserMessageSendResult.INVALID_SIGNAL_MESSAGE_RECEIVED;
+  }
+
   /**
    * This is a sanity method that encapsulates all the sending checks that are
    * necessary to determine overall sending success or error.<br>
@@ -925,13 +1016,7 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
     {
       // Store the received signal message
       final Wrapper <Ebms3SignalMessage> aSignalMsgKeeper = new Wrapper <> ();
-      m_aSignalMsgConsumer = aOld == null ? (aSignalMsg, aMMD, aIncomingState) -> aSignalMsgKeeper.set (aSignalMsg) : (
-                                                                                                                       aSignalMsg,
-                                                                                                                       aMMD,
-                                                                                                                       aIncomingState) -> {
-        aSignalMsgKeeper.set (aSignalMsg);
-        aOld.handleSignalMessage (aSignalMsg, aMMD, aIncomingState);
-      };
+      m_aSignalMsgConsumer = _createKeepingSignalMsgConsumer (aOld, aSignalMsgKeeper);
 
       // Main sending
       if (sendMessage ().isFailure ())
@@ -940,37 +1025,7 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
         return EAS4UserMessageSendResult.INVALID_PARAMETERS;
       }
 
-      final Ebms3SignalMessage aSignalMsg = aSignalMsgKeeper.get ();
-      if (aSignalMsg == null)
-      {
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("Failed to get a SignalMessage as the response");
-
-        // Unexpected response - invalid XML or at least no Ebms3 signal message
-        return EAS4UserMessageSendResult.NO_SIGNAL_MESSAGE_RECEIVED;
-      }
-
-      if (aSignalMsg.hasErrorEntries ())
-      {
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("The received SignalMessage contains at least one error");
-
-        // An error was returned from the other side
-        // Errors have precedence over receipts
-        return EAS4UserMessageSendResult.AS4_ERROR_MESSAGE_RECEIVED;
-      }
-
-      if (aSignalMsg.getReceipt () != null)
-      {
-        // A receipt was returned - this is deemed success
-        return EAS4UserMessageSendResult.SUCCESS;
-      }
-
-      if (LOGGER.isDebugEnabled ())
-        LOGGER.debug ("The SignalMessage contains neither Errors nor a Receipt - unexpected SignalMessage layout.");
-
-      // Neither an error nor a receipt was returned - this is weird
-      return EAS4UserMessageSendResult.INVALID_SIGNAL_MESSAGE_RECEIVED;
+      return _getSendResult (aSignalMsgKeeper.get ());
     }
     catch (final Phase4Exception ex)
     {
@@ -988,4 +1043,91 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
       m_aSignalMsgConsumer = aOld;
     }
   }
+
+  /**
+   * The asynchronous counterpart of
+   * {@link #sendMessageAndCheckForReceipt(Consumer)}. The HTTP exchange is
+   * performed without blocking a thread, if an
+   * {@link #asyncHttpPoster(com.helger.phase4.messaging.http.IAsyncHttpPoster)}
+   * is set. As in the synchronous version, only a {@link Phase4Exception} is
+   * passed to the exception consumer and reported as
+   * {@link EAS4UserMessageSendResult#TRANSPORT_ERROR} - any other exception
+   * completes the returned future exceptionally.<br>
+   * Note: this method is not thread-safe, because it changes the signal message
+   * consumer internally. After this method returned, the builder may be
+   * modified or reused for the next message.
+   *
+   * @param aExceptionConsumer
+   *        An optional Consumer that takes an eventually thrown
+   *        {@link Phase4Exception}. May be <code>null</code>.
+   * @return The future that is completed with
+   *         {@link EAS4UserMessageSendResult#SUCCESS} only if all parameters
+   *         are correct, HTTP transmission was successful and if a positive AS4
+   *         Receipt was returned. Never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final CompletableFuture <EAS4UserMessageSendResult> sendMessageAndCheckForReceiptAsync (@Nullable final Consumer <? super Phase4Exception> aExceptionConsumer)
+  {
+    final IAS4SignalMessageConsumer aOld = m_aSignalMsgConsumer;
+    final CompletableFuture <ESuccess> aFuture;
+    // Store the received signal message
+    final Wrapper <Ebms3SignalMessage> aSignalMsgKeeper = new Wrapper <> ();
+    try
+    {
+      m_aSignalMsgConsumer = _createKeepingSignalMsgConsumer (aOld, aSignalMsgKeeper);
+
+      // The signal message consumer is taken before this method returns
+      aFuture = sendMessageAsync ();
+    }
+    finally
+    {
+      // Restore the original value
+      m_aSignalMsgConsumer = aOld;
+    }
+
+    return aFuture.handle ( (eSuccess, aEx) -> {
+      if (aEx != null)
+      {
+        final Throwable aCause = aEx instanceof CompletionException && aEx.getCause () != null ? aEx.getCause () : aEx;
+        if (!(aCause instanceof Phase4Exception))
+        {
+          // Same as in the synchronous version - propagate
+          throw aEx instanceof CompletionException ? (CompletionException) aEx : new CompletionException (aEx);
+        }
+
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("An exception occurred sending out the AS4 message", aCause);
+
+        if (aExceptionConsumer != null)
+          aExceptionConsumer.accept ((Phase4Exception) aCause);
+        // Something went wrong - see the logs
+        return EAS4UserMessageSendResult.TRANSPORT_ERROR;
+      }
+
+      if (eSuccess.isFailure ())
+      {
+        // Parameters are missing/incorrect
+        return EAS4UserMessageSendResult.INVALID_PARAMETERS;
+      }
+
+      return _getSendResult (aSignalMsgKeeper.get ());
+    });
+  }
+
+  /**
+   * The asynchronous counterpart of {@link #sendMessageAndCheckForReceipt()}.
+   * A {@link Phase4Exception} is logged.
+   *
+   * @return The future that is completed with the send result. Never
+   *         <code>null</code>.
+   * @see #sendMessageAndCheckForReceiptAsync(Consumer)
+   * @since 3.0.0
+   */
+  @Nonnull
+  public final CompletableFuture <EAS4UserMessageSendResult> sendMessageAndCheckForReceiptAsync ()
+  {
+    // This information might be crucial to determine what went wrong
+    return sendMessageAndCheckForReceiptAsync (ex -> LOGGER.error ("Exception sending AS4 user message", ex));
+  }
 }
@@ -17,6 +17,10 @@
 package com.helger.phase4.sender;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
@@ -29,12 +33,21 @@ import org.slf4j.LoggerFactory;
 
 import com.helger.commons.annotation.OverrideOnDemand;
 import com.helger.phase4.attachment.AS4OutgoingAttachment;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.client.IAS4ClientBuildMessageCallback;
+import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.dump.IAS4IncomingDumper;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.incoming.AS4IncomingReceiverConfiguration;
+import com.helger.phase4.incoming.IAS4IncomingProfileSelector;
 import com.helger.phase4.incoming.IAS4IncomingReceiverConfiguration;
+import com.helger.phase4.incoming.IAS4SignalMessageConsumer;
 import com.helger.phase4.incoming.crypto.AS4IncomingSecurityConfiguration;
 import com.helger.phase4.incoming.crypto.IAS4IncomingSecurityConfiguration;
+import com.helger.phase4.model.pmode.resolve.IPModeResolver;
 import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.phase4.util.Phase4Exception;
 
@@ -158,57 +171,71 @@ public abstract class AbstractAS4UserMessageBuilderMIMEPayload <IMPLTYPE extends
     return WSS4JAttachment.createOutgoingFileAttachment (aPayload, aResHelper);
   }
 
-  @Override
-  protected final void mainSendMessage () throws Phase4Exception
+  @Nonnull
+  private AS4ClientUserMessage _createUserMessage (@Nonnull final AS4ResourceHelper aResHelper) throws IOException
   {
-    // Temporary file manager
-    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
-    {
-      // Start building AS4 User Message
-      final AS4ClientUserMessage aUserMsg = new AS4ClientUserMessage (aResHelper);
-      applyToUserMessage (aUserMsg);
+    // Start building AS4 User Message
+    final AS4ClientUserMessage aUserMsg = new AS4ClientUserMessage (aResHelper);
+    applyToUserMessage (aUserMsg);
 
-      if (m_aSendingDTConsumer != null)
+    if (m_aSendingDTConsumer != null)
+    {
+      try
       {
-        try
-        {
-          // Eventually this call will determine the sendingDateTime if none is
-          // set yet
-          m_aSendingDTConsumer.onEffectiveSendingDateTime (aUserMsg.ensureSendingDateTime ().getSendingDateTime ());
-        }
-        catch (final Exception ex)
-        {
-          LOGGER.error ("Failed to invoke IAS4SendingDateTimeConsumer", ex);
-        }
+        // Eventually this call will determine the sendingDateTime if none is
+        // set yet
+        m_aSendingDTConsumer.onEffectiveSendingDateTime (aUserMsg.ensureSendingDateTime ().getSendingDateTime ());
       }
-
-      // No payload - only one attachment
-      aUserMsg.setPayload (null);
-
-      // Add main attachment
-      if (m_aPayload != null)
+      catch (final Exception ex)
       {
-        final WSS4JAttachment aMainAttachment = createMainAttachment (m_aPayload, aResHelper);
-        if (aMainAttachment != null)
-          aUserMsg.addAttachment (aMainAttachment);
+        LOGGER.error ("Failed to invoke IAS4SendingDateTimeConsumer", ex);
       }
+    }
+
+    // No payload - only one attachment
+    aUserMsg.setPayload (null);
+
+    // Add main attachment
+    if (m_aPayload != null)
+    {
+      final WSS4JAttachment aMainAttachment = createMainAttachment (m_aPayload, aResHelper);
+      if (aMainAttachment != null)
+        aUserMsg.addAttachment (aMainAttachment);
+    }
 
-      // Add other attachments
+    // Add other attachments
+    {
+      int nIndex = 0;
+      for (final AS4OutgoingAttachment aAttachment : m_aAttachments)
       {
-        int nIndex = 0;
-        for (final AS4OutgoingAttachment aAttachment : m_aAttachments)
-        {
-          final WSS4JAttachment aOtherAttachment = createOtherAttachment (aAttachment, aResHelper, nIndex);
-          if (aOtherAttachment != null)
-            aUserMsg.addAttachment (aOtherAttachment);
-          nIndex++;
-        }
+        final WSS4JAttachment aOtherAttachment = createOtherAttachment (aAttachment, aResHelper, nIndex);
+        if (aOtherAttachment != null)
+          aUserMsg.addAttachment (aOtherAttachment);
+        nIndex++;
       }
+    }
+    return aUserMsg;
+  }
+
+  @Nonnull
+  private IAS4IncomingSecurityConfiguration _createIncomingSecurityConfiguration ()
+  {
+    // Create on demand with all necessary parameters
+    return new AS4IncomingSecurityConfiguration ().setSigningParams (m_aSigningParams.getClone ())
+                                                  .setCryptParams (m_aCryptParams.getClone ())
+                                                  .setDecryptParameterModifier (m_aDecryptParameterModifier);
+  }
+
+  @Override
+  protected final void mainSendMessage () throws Phase4Exception
+  {
+    // Temporary file manager
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4ClientUserMessage aUserMsg = _createUserMessage (aResHelper);
 
       // Create on demand with all necessary parameters
-      final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration = new AS4IncomingSecurityConfiguration ().setSigningParams (m_aSigningParams.getClone ())
-                                                                                                                      .setCryptParams (m_aCryptParams.getClone ())
-                                                                                                                      .setDecryptParameterModifier (m_aDecryptParameterModifier);
+      final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration = _createIncomingSecurityConfiguration ();
 
       // Use defaults
       final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration = new AS4IncomingReceiverConfiguration ();
@@ -244,4 +271,104 @@ public abstract class AbstractAS4UserMessageBuilderMIMEPayload <IMPLTYPE extends
       throw new Phase4Exception ("Wrapped Phase4Exception", ex);
     }
   }
+
+  @Override
+  @Nonnull
+  protected final CompletableFuture <Void> mainSendMessageAsync (@Nonnull final Executor aExecutor) throws Phase4Exception
+  {
+    // Temporary file manager - closed when sending is done
+    final AS4ResourceHelper aResHelper = new AS4ResourceHelper ();
+    final AS4ClientUserMessage aUserMsg;
+    try
+    {
+      aUserMsg = _createUserMessage (aResHelper);
+    }
+    catch (final IOException ex)
+    {
+      aResHelper.close ();
+      throw new Phase4Exception ("Wrapped Phase4Exception", ex);
+    }
+
+    // Take all values from the builder before returning
+    final IAS4CryptoFactory aCryptoFactorySign = m_aCryptoFactorySign;
+    final IAS4CryptoFactory aCryptoFactoryCrypt = m_aCryptoFactoryCrypt;
+    final IPModeResolver aPModeResolver = pmodeResolver ();
+    final IAS4IncomingAttachmentFactory aIAF = incomingAttachmentFactory ();
+    final IAS4IncomingProfileSelector aIncomingProfileSelector = incomingProfileSelector ();
+    final Locale aLocale = m_aLocale;
+    final String sEndpointURL = m_sEndpointURL;
+    final IAS4ClientBuildMessageCallback aBuildMessageCallback = m_aBuildMessageCallback;
+    final IAS4OutgoingDumper aOutgoingDumper = m_aOutgoingDumper;
+    final IAS4IncomingDumper aIncomingDumper = m_aIncomingDumper;
+    final IAS4IncomingSecurityConfiguration aIncomingSecurityConfiguration = _createIncomingSecurityConfiguration ();
+    final IAS4IncomingReceiverConfiguration aIncomingReceiverConfiguration = new AS4IncomingReceiverConfiguration ();
+    final IAS4RetryCallback aRetryCallback = m_aRetryCallback;
+    final IAS4RawResponseConsumer aResponseConsumer = m_aResponseConsumer;
+    final IAS4SignalMessageConsumer aSignalMsgConsumer = m_aSignalMsgConsumer;
+
+    final CompletableFuture <Void> ret;
+    if (m_aAsyncHttpPoster != null)
+    {
+      // Main non-blocking sending
+      ret = AS4BidirectionalClientHelper.sendAS4UserMessageAndReceiveAS4SignalMessageAsync (aCryptoFactorySign,
+                                                                                          aCryptoFactoryCrypt,
+                                                                                          aPModeResolver,
+                                                                                          aIAF,
+                                                                                          aIncomingProfileSelector,
+                                                                                          aUserMsg,
+                                                                                          aLocale,
+                                                                                          sEndpointURL,
+                                                                                          aBuildMessageCallback,
+                                                                                          aOutgoingDumper,
+                                                                                          aIncomingDumper,
+                                                                                          aIncomingSecurityConfiguration,
+                                                                                          aIncomingReceiverConfiguration,
+                                                                                          aRetryCallback,
+                                                                                          aResponseConsumer,
+                                                                                          aSignalMsgConsumer,
+                                                                                          m_aAsyncHttpPoster,
+                                                                                          aExecutor);
+    }
+    else
+    {
+      // No asynchronous HTTP poster - use the synchronous one on the executor
+      ret = CompletableFuture.runAsync ( () -> {
+        try
+        {
+          AS4BidirectionalClientHelper.sendAS4UserMessageAndReceiveAS4SignalMessage (aCryptoFactorySign,
+                                                                                     aCryptoFactoryCrypt,
+                                                                                     aPModeResolver,
+                                                                                     aIAF,
+                                                                                     aIncomingProfileSelector,
+                                                                                     aUserMsg,
+                                                                                     aLocale,
+                                                                                     sEndpointURL,
+                                                                                     aBuildMessageCallback,
+                                                                                     aOutgoingDumper,
+                                                                                     aIncomingDumper,
+                                                                                     aIncomingSecurityConfiguration,
+                                                                                     aIncomingReceiverConfiguration,
+                                                                                     aRetryCallback,
+                                                                                     aResponseConsumer,
+                                                                                     aSignalMsgConsumer);
+        }
+        catch (final Exception ex)
+        {
+          throw new CompletionException (ex);
+        }
+      }, aExecutor);
+    }
+    return ret.handle ( (x, ex) -> {
+      aResHelper.close ();
+      if (ex != null)
+      {
+        final Throwable aCause = ex instanceof CompletionException && ex.getCause () != null ? ex.getCause () : ex;
+        // Same as in mainSendMessage - wrap all exceptions
+        if (aCause instanceof Exception && !(aCause instanceof Phase4Exception))
+          throw new CompletionException (new Phase4Exception ("Wrapped Phase4Exception", aCause));
+        throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException (ex);
+      }
+      return x;
+    });
+  }
 }
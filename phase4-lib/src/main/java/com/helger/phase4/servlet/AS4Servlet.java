@@ -16,8 +16,27 @@
  */
 package com.helger.phase4.servlet;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.helger.commons.http.EHttpMethod;
+import com.helger.phase4.util.AS4ExecutorHelper;
+import com.helger.servlet.async.IAsyncServletRunner;
+import com.helger.servlet.async.ServletAsyncSpec;
 import com.helger.xservlet.AbstractXServlet;
+import com.helger.xservlet.handler.XServletAsyncHandler;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletRegistration;
+import jakarta.servlet.http.HttpServletMapping;
+import jakarta.servlet.http.HttpServletRequest;
 
 /**
  * AS4 receiving servlet.<br>
@@ -35,16 +54,100 @@ import com.helger.xservlet.AbstractXServlet;
 &lt;/servlet-mapping&gt;
  * </pre>
  *
+ * If virtual threads are enabled (see
+ * {@link com.helger.phase4.config.AS4Configuration#isVirtualThreadsEnabled()})
+ * and supported by the JVM, incoming messages are processed asynchronously on
+ * a virtual thread, and the servlet container thread is released immediately.
+ * In that case the servlet must be configured with
+ * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code> - otherwise
+ * the servlet container rejects every incoming message.<br>
+ * Note: the runner of the {@link XServletAsyncHandler} is shared by all
+ * servlets of the class loader. Therefore a delegating runner is installed
+ * once, that only runs requests mapped to an {@link AS4Servlet} (or a subclass)
+ * on virtual threads, and passes all other asynchronous requests to the
+ * previously installed runner.
+ *
  * @author Martin Bayerl
  * @author Philip Helger
  */
 public class AS4Servlet extends AbstractXServlet
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4Servlet.class);
+  private static final AtomicBoolean VIRTUAL_THREAD_RUNNER_INSTALLED = new AtomicBoolean (false);
+  // Key is the context path and the servlet name
+  private static final Map <String, Boolean> IS_AS4_SERVLET = new ConcurrentHashMap <> ();
+
+  private static boolean _isAS4ServletClass (@Nonnull final ServletContext aServletContext,
+                                             @Nonnull final String sServletName)
+  {
+    final ServletRegistration aRegistration = aServletContext.getServletRegistration (sServletName);
+    if (aRegistration == null || aRegistration.getClassName () == null)
+      return false;
+    try
+    {
+      return AS4Servlet.class.isAssignableFrom (Class.forName (aRegistration.getClassName (),
+                                                               false,
+                                                               AS4Servlet.class.getClassLoader ()));
+    }
+    catch (final ClassNotFoundException | LinkageError ex)
+    {
+      // Not loadable from here - so not an AS4Servlet
+      return false;
+    }
+  }
+
+  /**
+   * Check if the provided request is mapped to an {@link AS4Servlet}.
+   *
+   * @param aHttpRequest
+   *        The original HTTP request. May not be <code>null</code>.
+   * @return <code>true</code> if it is an AS4 request, <code>false</code> if
+   *         not or if it cannot be determined.
+   */
+  static boolean isAS4ServletRequest (@Nonnull final HttpServletRequest aHttpRequest)
+  {
+    final HttpServletMapping aMapping = aHttpRequest.getHttpServletMapping ();
+    final String sServletName = aMapping == null ? null : aMapping.getServletName ();
+    if (sServletName == null)
+      return false;
+    final ServletContext aServletContext = aHttpRequest.getServletContext ();
+    return IS_AS4_SERVLET.computeIfAbsent (aServletContext.getContextPath () + "/" + sServletName,
+                                           k -> Boolean.valueOf (_isAS4ServletClass (aServletContext, sServletName)))
+                         .booleanValue ();
+  }
+
+  private static void _installVirtualThreadRunner ()
+  {
+    if (VIRTUAL_THREAD_RUNNER_INSTALLED.compareAndSet (false, true))
+    {
+      final ExecutorService aExecutor = AS4ExecutorHelper.getVirtualThreadExecutor ();
+      final IAsyncServletRunner aPrevRunner = XServletAsyncHandler.getAsyncServletRunner ();
+      XServletAsyncHandler.setAsyncServletRunner ( (aRequest, aResponse, aAsyncContext, aRunnable) -> {
+        if (isAS4ServletRequest (aRequest))
+        {
+          // Process each AS4 message on a new virtual thread
+          aExecutor.execute (aRunnable);
+        }
+        else
+          aPrevRunner.runAsync (aRequest, aResponse, aAsyncContext, aRunnable);
+      });
+      LOGGER.info ("Installed the asynchronous servlet runner that processes AS4 messages on virtual threads");
+    }
+  }
+
   public AS4Servlet ()
   {
     // Multipart is handled specifically inside
     settings ().setMultipartEnabled (false);
     // HTTP POST only
-    handlerRegistry ().registerHandler (EHttpMethod.POST, new AS4XServletHandler ());
+    if (AS4ExecutorHelper.isUseVirtualThreads ())
+    {
+      _installVirtualThreadRunner ();
+      handlerRegistry ().registerHandler (EHttpMethod.POST,
+                                          ServletAsyncSpec.createAsyncDefault (),
+                                          new AS4XServletHandler ());
+    }
+    else
+      handlerRegistry ().registerHandler (EHttpMethod.POST, new AS4XServletHandler ());
   }
 }
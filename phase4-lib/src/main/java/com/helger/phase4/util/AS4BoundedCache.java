@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A thread-safe, size-bounded cache that evicts the least recently used entry
+ * if the maximum size is reached. This is the common storage of the different
+ * phase4 lookup caches (PModes, endpoint details, SMP service metadata,
+ * revocation verdicts). Expiration handling is up to the caller.<br>
+ * Lookups take no lock - they only record the access in the entry, so the LRU
+ * order is approximate under concurrent access. Finding the entry to evict
+ * requires a scan over all entries, which only happens if a new entry is added
+ * to a full cache.
+ *
+ * @author Philip Helger
+ * @param <K>
+ *        Key type
+ * @param <V>
+ *        Value type
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class AS4BoundedCache <K, V>
+{
+  /**
+   * A single value together with its last access.
+   *
+   * @param <V>
+   *        Value type
+   */
+  private static final class Entry <V>
+  {
+    private final V m_aValue;
+    private volatile long m_nLastAccess;
+
+    Entry (@Nonnull final V aValue, final long nLastAccess)
+    {
+      m_aValue = aValue;
+      m_nLastAccess = nLastAccess;
+    }
+  }
+
+  private final int m_nMaxSize;
+  private final Consumer <? super K> m_aEvictionCallback;
+  private final ConcurrentHashMap <K, Entry <V>> m_aMap = new ConcurrentHashMap <> ();
+  // The source of the access order
+  private final AtomicLong m_aAccessCounter = new AtomicLong (0);
+  // Only one thread at a time evicts
+  private final Lock m_aEvictionLock = new ReentrantLock ();
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. Must be &gt; 0.
+   */
+  public AS4BoundedCache (@Nonnegative final int nMaxSize)
+  {
+    this (nMaxSize, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. Must be &gt; 0.
+   * @param aEvictionCallback
+   *        An optional callback that is invoked with the key of each entry
+   *        that is evicted because the maximum size was reached. It is invoked
+   *        while the eviction lock is held and must therefore be fast. May be
+   *        <code>null</code>.
+   */
+  public AS4BoundedCache (@Nonnegative final int nMaxSize, @Nullable final Consumer <? super K> aEvictionCallback)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_nMaxSize = nMaxSize;
+    m_aEvictionCallback = aEvictionCallback;
+  }
+
+  /**
+   * @return The maximum number of entries. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  /**
+   * @return The number of currently contained entries. Always &ge; 0.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aMap.size ();
+  }
+
+  private long _nextAccess ()
+  {
+    return m_aAccessCounter.incrementAndGet ();
+  }
+
+  /**
+   * Get the value of the provided key and mark it as recently used.
+   *
+   * @param aKey
+   *        The key to search. May be <code>null</code>.
+   * @return <code>null</code> if no such entry is contained.
+   */
+  @Nullable
+  public V get (@Nullable final K aKey)
+  {
+    if (aKey == null)
+      return null;
+    final Entry <V> aEntry = m_aMap.get (aKey);
+    if (aEntry == null)
+      return null;
+    aEntry.m_nLastAccess = _nextAccess ();
+    return aEntry.m_aValue;
+  }
+
+  /**
+   * @return A copy of all contained values, without changing the usage order.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <V> getAllValues ()
+  {
+    final ICommonsList <V> ret = new CommonsArrayList <> (m_aMap.size ());
+    for (final Entry <V> aEntry : m_aMap.values ())
+      ret.add (aEntry.m_aValue);
+    return ret;
+  }
+
+  /**
+   * Evict the least recently used entries until the maximum size is no longer
+   * exceeded.
+   */
+  private void _evictIfNecessary ()
+  {
+    if (m_aMap.size () <= m_nMaxSize)
+      return;
+
+    m_aEvictionLock.lock ();
+    try
+    {
+      while (m_aMap.size () > m_nMaxSize)
+      {
+        Map.Entry <K, Entry <V>> aEldest = null;
+        for (final Map.Entry <K, Entry <V>> aCur : m_aMap.entrySet ())
+          if (aEldest == null || aCur.getValue ().m_nLastAccess < aEldest.getValue ().m_nLastAccess)
+            aEldest = aCur;
+        if (aEldest == null)
+          break;
+        if (m_aMap.remove (aEldest.getKey (), aEldest.getValue ()) && m_aEvictionCallback != null)
+          m_aEvictionCallback.accept (aEldest.getKey ());
+      }
+    }
+    finally
+    {
+      m_aEvictionLock.unlock ();
+    }
+  }
+
+  /**
+   * Add or replace an entry. This may evict the least recently used entry.
+   *
+   * @param aKey
+   *        The key to use. May not be <code>null</code>.
+   * @param aValue
+   *        The value to use. May not be <code>null</code>.
+   */
+  public void put (@Nonnull final K aKey, @Nonnull final V aValue)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aValue, "Value");
+    m_aMap.put (aKey, new Entry <> (aValue, _nextAccess ()));
+    _evictIfNecessary ();
+  }
+
+  /**
+   * Add an entry, if no entry for the key is present.
+   *
+   * @param aKey
+   *        The key to use. May not be <code>null</code>.
+   * @param aValue
+   *        The value to use. May not be <code>null</code>.
+   * @return The value contained in the cache after this call. Either the
+   *         already present value or the provided value. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public V putIfAbsent (@Nonnull final K aKey, @Nonnull final V aValue)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aValue, "Value");
+    final Entry <V> aExisting = m_aMap.putIfAbsent (aKey, new Entry <> (aValue, _nextAccess ()));
+    if (aExisting != null)
+    {
+      aExisting.m_nLastAccess = _nextAccess ();
+      return aExisting.m_aValue;
+    }
+    _evictIfNecessary ();
+    return aValue;
+  }
+
+  /**
+   * Remove a single entry.
+   *
+   * @param aKey
+   *        The key to remove. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange remove (@Nullable final K aKey)
+  {
+    if (aKey == null)
+      return EChange.UNCHANGED;
+    return EChange.valueOf (m_aMap.remove (aKey) != null);
+  }
+
+  /**
+   * Remove all entries with a key matching the provided filter.
+   *
+   * @param aKeyFilter
+   *        The key filter to use. May not be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange removeIf (@Nonnull final Predicate <? super K> aKeyFilter)
+  {
+    ValueEnforcer.notNull (aKeyFilter, "KeyFilter");
+    return EChange.valueOf (m_aMap.keySet ().removeIf (aKeyFilter));
+  }
+
+  /**
+   * Remove all entries.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange clear ()
+  {
+    if (m_aMap.isEmpty ())
+      return EChange.UNCHANGED;
+    m_aMap.clear ();
+    return EChange.CHANGED;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxSize", m_nMaxSize).getToString ();
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.photon.io.PhotonWorkerPool;
+
+/**
+ * Helper class to decide on which threads asynchronous work is executed. By
+ * default the {@link PhotonWorkerPool} is used. If
+ * {@link AS4Configuration#isVirtualThreadsEnabled()} is <code>true</code> and
+ * the JVM supports virtual threads (Java 21+), a virtual thread is started per
+ * task instead. As phase4 is compiled for Java 17, virtual threads are
+ * accessed via reflection.<br>
+ * Note: phase4 itself uses no <code>synchronized</code> blocks on the message
+ * processing path (e.g. the {@link com.helger.phase4.wss.WSSSynchronizer} is
+ * based on {@link java.util.concurrent.locks.ReentrantLock}), so virtual
+ * threads are not pinned to their carrier threads by phase4.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public final class AS4ExecutorHelper
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4ExecutorHelper.class);
+  private static final AtomicBoolean UNSUPPORTED_WARNED = new AtomicBoolean (false);
+
+  private static final class VirtualHolder
+  {
+    // null if not supported
+    static final ThreadFactory FACTORY = _createVirtualThreadFactory (CAS4.LIB_NAME + "-virtual-");
+    static final ExecutorService EXECUTOR = FACTORY == null ? null : _createThreadPerTaskExecutor (FACTORY);
+  }
+
+  private AS4ExecutorHelper ()
+  {}
+
+  @Nullable
+  private static ThreadFactory _createVirtualThreadFactory (@Nonnull final String sNamePrefix)
+  {
+    try
+    {
+      // Thread.ofVirtual ().name (sNamePrefix, 0).factory ()
+      final Object aBuilder = Thread.class.getMethod ("ofVirtual").invoke (null);
+      final Class <?> aBuilderClass = Class.forName ("java.lang.Thread$Builder");
+      final Method aName = aBuilderClass.getMethod ("name", String.class, long.class);
+      final Object aNamedBuilder = aName.invoke (aBuilder, sNamePrefix, Long.valueOf (0));
+      return (ThreadFactory) aBuilderClass.getMethod ("factory").invoke (aNamedBuilder);
+    }
+    catch (final ReflectiveOperationException | RuntimeException ex)
+    {
+      // Java < 21 or preview feature not enabled
+      return null;
+    }
+  }
+
+  @Nullable
+  private static ExecutorService _createThreadPerTaskExecutor (@Nonnull final ThreadFactory aThreadFactory)
+  {
+    try
+    {
+      // Executors.newThreadPerTaskExecutor (aThreadFactory)
+      return (ExecutorService) Executors.class.getMethod ("newThreadPerTaskExecutor", ThreadFactory.class)
+                                              .invoke (null, aThreadFactory);
+    }
+    catch (final ReflectiveOperationException | RuntimeException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the current JVM supports virtual threads,
+   *         <code>false</code> if not.
+   */
+  public static boolean isVirtualThreadSupported ()
+  {
+    return VirtualHolder.EXECUTOR != null;
+  }
+
+  /**
+   * @return <code>true</code> if virtual threads are enabled in the
+   *         configuration and supported by the JVM.
+   * @see AS4Configuration#isVirtualThreadsEnabled()
+   */
+  public static boolean isUseVirtualThreads ()
+  {
+    if (!AS4Configuration.isVirtualThreadsEnabled ())
+      return false;
+    if (isVirtualThreadSupported ())
+      return true;
+    if (UNSUPPORTED_WARNED.compareAndSet (false, true))
+      LOGGER.warn ("Virtual threads are enabled in the configuration, but the JVM does not support them - using platform threads");
+    return false;
+  }
+
+  /**
+   * @return A thread factory creating virtual threads or <code>null</code> if
+   *         the JVM does not support virtual threads.
+   */
+  @Nullable
+  public static ThreadFactory getVirtualThreadFactory ()
+  {
+    return VirtualHolder.FACTORY;
+  }
+
+  /**
+   * @return The shared executor that starts a new virtual thread for every
+   *         task, or <code>null</code> if the JVM does not support virtual
+   *         threads.
+   */
+  @Nullable
+  public static ExecutorService getVirtualThreadExecutor ()
+  {
+    return VirtualHolder.EXECUTOR;
+  }
+
+  /**
+   * Get the executor to be used for asynchronous tasks.
+   *
+   * @param sTaskName
+   *        The name of the task used for logging in the
+   *        {@link PhotonWorkerPool}. May neither be <code>null</code> nor
+   *        empty.
+   * @return The shared virtual thread executor if virtual threads are used,
+   *         an executor delegating to the {@link PhotonWorkerPool} otherwise.
+   *         Never <code>null</code>.
+   * @see #isUseVirtualThreads()
+   */
+  @Nonnull
+  public static Executor getAsyncExecutor (@Nonnull @Nonempty final String sTaskName)
+  {
+    ValueEnforcer.notEmpty (sTaskName, "TaskName");
+    if (isUseVirtualThreads ())
+      return VirtualHolder.EXECUTOR;
+    return r -> PhotonWorkerPool.getInstance ().run (sTaskName, r);
+  }
+
+  /**
+   * Run the provided task asynchronously. Exceptions are logged and not
+   * propagated, in the same way as in
+   * {@link PhotonWorkerPool#runThrowing(String, IThrowingRunnable)}.
+   *
+   * @param sTaskName
+   *        The name of the task used for logging. May neither be
+   *        <code>null</code> nor empty.
+   * @param aRunnable
+   *        The task to be run. May not be <code>null</code>.
+   * @return The future that is completed after the task finished. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static CompletableFuture <Void> runThrowing (@Nonnull @Nonempty final String sTaskName,
+                                                      @Nonnull final IThrowingRunnable <? extends Exception> aRunnable)
+  {
+    ValueEnforcer.notEmpty (sTaskName, "TaskName");
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    if (!isUseVirtualThreads ())
+      return PhotonWorkerPool.getInstance ().runThrowing (sTaskName, aRunnable);
+
+    return CompletableFuture.runAsync ( () -> {
+      try
+      {
+        aRunnable.run ();
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Error running virtual thread job '" + sTaskName + "'", ex);
+      }
+    }, VirtualHolder.EXECUTOR);
+  }
+}
@@ -16,8 +16,11 @@
  */
 package com.helger.phase4.util;
 
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
 import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -58,8 +61,9 @@ public final class AS4XMLHelper
     return XMLWriter.getNodeAsString (aNode, XWS);
   }
 
-  @Nonnull
-  private static String _serializeRT (@Nonnull final Node aNode)
+  private static void _serializeRT (@Nonnull final Node aNode,
+                                   @Nonnull final StreamResult aResult,
+                                   final boolean bOmitXMLDeclaration)
   {
     try
     {
@@ -67,12 +71,10 @@ public final class AS4XMLHelper
       tf.setAttribute (XMLConstants.ACCESS_EXTERNAL_DTD, "");
       tf.setAttribute (XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
       final Transformer aTransformer = tf.newTransformer ();
-
-      try (final NonBlockingStringWriter aSW = new NonBlockingStringWriter ())
-      {
-        aTransformer.transform (new DOMSource (aNode), new StreamResult (aSW));
-        return aSW.getAsString ();
-      }
+      if (bOmitXMLDeclaration)
+        aTransformer.setOutputProperty (OutputKeys.OMIT_XML_DECLARATION, "yes");
+      aTransformer.setOutputProperty (OutputKeys.ENCODING, XWS.getCharset ().name ());
+      aTransformer.transform (new DOMSource (aNode), aResult);
     }
     catch (final TransformerException ex)
     {
@@ -80,6 +82,16 @@ public final class AS4XMLHelper
     }
   }
 
+  @Nonnull
+  private static String _serializeRT (@Nonnull final Node aNode)
+  {
+    try (final NonBlockingStringWriter aSW = new NonBlockingStringWriter ())
+    {
+      _serializeRT (aNode, new StreamResult (aSW), false);
+      return aSW.getAsString ();
+    }
+  }
+
   @Nonnull
   public static String serializeXML (@Nonnull final Node aNode)
   {
@@ -89,4 +101,28 @@ public final class AS4XMLHelper
       return _serializeRT (aNode);
     return _serializePh (aNode);
   }
+
+  /**
+   * Serialize the provided node directly as bytes in the charset of
+   * {@link #XWS} to the provided output stream, without creating an
+   * intermediate String. The output stream is not closed.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   * @param bOmitXMLDeclaration
+   *        <code>true</code> to not emit the XML declaration, e.g. because
+   *        the node is written as a fragment of a bigger document.
+   * @since 3.0.0
+   */
+  public static void serializeXML (@Nonnull final Node aNode,
+                                   @Nonnull final OutputStream aOS,
+                                   final boolean bOmitXMLDeclaration)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    // Use runtime serialization otherwise XMLDsig signature wont work
+    _serializeRT (aNode, new StreamResult (aOS), bOmitXMLDeclaration);
+  }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.wss;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how {@link WSSSynchronizer} serializes the WSS4J actions.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public enum EWSSSynchronizerMode implements IHasID <String>
+{
+  /**
+   * All WSS4J actions are run one after another using a single global lock.
+   * This is the classical and default behaviour.
+   */
+  GLOBAL_LOCK ("global"),
+  /**
+   * WSS4J actions are run in parallel up to a configurable limit. The WSS4J
+   * security providers are installed when the first action starts and removed
+   * when the last parallel action finished.
+   */
+  CONCURRENT ("concurrent");
+
+  private final String m_sID;
+
+  EWSSSynchronizerMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EWSSSynchronizerMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EWSSSynchronizerMode.class, sID);
+  }
+
+  @Nullable
+  public static EWSSSynchronizerMode getFromIDOrDefault (@Nullable final String sID,
+                                                         @Nullable final EWSSSynchronizerMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EWSSSynchronizerMode.class, sID, eDefault);
+  }
+}
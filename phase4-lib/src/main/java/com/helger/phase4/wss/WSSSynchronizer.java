@@ -16,22 +16,41 @@
  */
 package com.helger.phase4.wss;
 
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.apache.wss4j.dom.engine.WSSConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
 import com.helger.phase4.config.AS4Configuration;
 
 /**
- * A helper class to run all WSS stuff in a lock. {@link WSSConfig#init()} and
- * {@link WSSConfig#cleanUp()} is called for every invocation.<br>
+ * A helper class to run all WSS stuff in a controlled way.
+ * {@link WSSConfig#init()} is called before the first concurrently running
+ * invocation and {@link WSSConfig#cleanUp()} is called after the last
+ * concurrently running invocation finished. Depending on the
+ * {@link EWSSSynchronizerMode} (configuration item
+ * <code>phase4.wss4j.syncsecurity.mode</code>) either all invocations are
+ * serialized using a global lock (the default), or up to a configurable number
+ * of invocations (configuration item
+ * <code>phase4.wss4j.syncsecurity.maxconcurrent</code>) may run in
+ * parallel.<br>
  * Note: this class may only be invoked if
  * {@link AS4Configuration#isWSS4JSynchronizedSecurity()} returns
  * <code>true</code>.
@@ -42,11 +61,170 @@ import com.helger.phase4.config.AS4Configuration;
 @ThreadSafe
 public final class WSSSynchronizer
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger (WSSSynchronizer.class);
+
+  private static final IMutableStatisticsHandlerCounter STATS_INVOCATIONS = StatisticsManager.getCounterHandler (WSSSynchronizer.class.getName () +
+                                                                                                                  "$invocations");
+  private static final IMutableStatisticsHandlerCounter STATS_CONTENDED = StatisticsManager.getCounterHandler (WSSSynchronizer.class.getName () +
+                                                                                                                "$contended");
+  private static final IMutableStatisticsHandlerTimer STATS_WAIT_TIME = StatisticsManager.getTimerHandler (WSSSynchronizer.class.getName () +
+                                                                                                           "$wait");
+
   private static final Lock LOCK = new ReentrantLock ();
 
+  // Protects the reference counter of WSSConfig.init/cleanUp
+  private static final Lock RC_LOCK = new ReentrantLock ();
+  @GuardedBy ("RC_LOCK")
+  private static int s_nActiveCount = 0;
+
+  // Nesting depth per thread, to avoid that nested calls block on permits
+  private static final ThreadLocal <int []> NESTING = ThreadLocal.withInitial ( () -> new int [1]);
+
+  // The configuration is read only once, so that mode and permits match
+  private static final class ConfigHolder
+  {
+    static final EWSSSynchronizerMode MODE;
+    static final Semaphore PERMITS;
+    static
+    {
+      final String sMode = AS4Configuration.getWSS4JSynchronizedSecurityMode ();
+      final EWSSSynchronizerMode eMode = EWSSSynchronizerMode.getFromIDOrNull (sMode);
+      if (eMode == null)
+      {
+        LOGGER.warn ("Unsupported WSS4J synchronization mode '" + sMode + "' configured - using the default");
+        MODE = EWSSSynchronizerMode.GLOBAL_LOCK;
+      }
+      else
+        MODE = eMode;
+
+      final int nMaxConcurrent = AS4Configuration.getWSS4JSynchronizedSecurityMaxConcurrent ();
+      PERMITS = new Semaphore (nMaxConcurrent, true);
+      if (MODE == EWSSSynchronizerMode.CONCURRENT)
+        LOGGER.info ("Allowing up to " + nMaxConcurrent + " concurrent WSS4J actions");
+    }
+  }
+
   private WSSSynchronizer ()
   {}
 
+  /**
+   * @return The synchronization mode configured. It is read from the
+   *         configuration upon the first invocation only. Never
+   *         <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static EWSSSynchronizerMode getConfiguredMode ()
+  {
+    return ConfigHolder.MODE;
+  }
+
+  /**
+   * @return The total number of synchronized invocations. Never
+   *         <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getInvocationStatistics ()
+  {
+    return STATS_INVOCATIONS;
+  }
+
+  /**
+   * @return The number of synchronized invocations that had to wait for
+   *         another invocation to finish. Never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getContendedStatistics ()
+  {
+    return STATS_CONTENDED;
+  }
+
+  /**
+   * @return The time in milliseconds that contended invocations had to wait.
+   *         Never <code>null</code>.
+   * @since 3.0.0
+   */
+  @Nonnull
+  public static IStatisticsHandlerTimer getWaitTimeStatistics ()
+  {
+    return STATS_WAIT_TIME;
+  }
+
+  /**
+   * @return The number of WSS4J actions currently running. Always &ge; 0.
+   * @since 3.0.0
+   */
+  @Nonnegative
+  public static int getActiveCount ()
+  {
+    RC_LOCK.lock ();
+    try
+    {
+      return s_nActiveCount;
+    }
+    finally
+    {
+      RC_LOCK.unlock ();
+    }
+  }
+
+  private static void _onBeginAction ()
+  {
+    RC_LOCK.lock ();
+    try
+    {
+      if (s_nActiveCount == 0)
+      {
+        // Register
+        WSSConfig.init ();
+      }
+      s_nActiveCount++;
+    }
+    finally
+    {
+      RC_LOCK.unlock ();
+    }
+  }
+
+  private static void _onEndAction ()
+  {
+    RC_LOCK.lock ();
+    try
+    {
+      s_nActiveCount--;
+      if (s_nActiveCount == 0)
+      {
+        // Unregister
+        WSSConfig.cleanUp ();
+      }
+    }
+    finally
+    {
+      RC_LOCK.unlock ();
+    }
+  }
+
+  @Nullable
+  private static <T, EX extends Exception> T _invoke (@Nonnull final IThrowingSupplier <T, EX> aSupplier) throws EX
+  {
+    // If this fails, nothing needs to be undone
+    _onBeginAction ();
+    final int [] aNesting = NESTING.get ();
+    aNesting[0]++;
+    try
+    {
+      // Perform
+      return aSupplier.get ();
+    }
+    finally
+    {
+      aNesting[0]--;
+      _onEndAction ();
+    }
+  }
+
   /**
    * A wrapper around {@link #call(IThrowingSupplier)} swallowing the return
    * value
@@ -70,27 +248,56 @@ public final class WSSSynchronizer
   {
     ValueEnforcer.notNull (aSupplier, "Supplier");
 
-    // Lock
-    LOCK.lock ();
-    try
+    STATS_INVOCATIONS.increment ();
+
+    if (NESTING.get ()[0] > 0)
+    {
+      // Nested call - the surrounding call already holds the lock or a permit
+      return _invoke (aSupplier);
+    }
+
+    switch (getConfiguredMode ())
     {
-      // Register
-      WSSConfig.init ();
-      try
+      case CONCURRENT:
       {
-        // Perform
-        return aSupplier.get ();
+        final Semaphore aPermits = ConfigHolder.PERMITS;
+        if (!aPermits.tryAcquire ())
+        {
+          STATS_CONTENDED.increment ();
+          final long nStart = System.nanoTime ();
+          aPermits.acquireUninterruptibly ();
+          STATS_WAIT_TIME.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+        }
+        try
+        {
+          return _invoke (aSupplier);
+        }
+        finally
+        {
+          aPermits.release ();
+        }
       }
-      finally
+      case GLOBAL_LOCK:
+      default:
       {
-        // Unregister
-        WSSConfig.cleanUp ();
+        // Lock
+        if (!LOCK.tryLock ())
+        {
+          STATS_CONTENDED.increment ();
+          final long nStart = System.nanoTime ();
+          LOCK.lock ();
+          STATS_WAIT_TIME.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+        }
+        try
+        {
+          return _invoke (aSupplier);
+        }
+        finally
+        {
+          // Unlock
+          LOCK.unlock ();
+        }
       }
     }
-    finally
-    {
-      // Unlock
-      LOCK.unlock ();
-    }
   }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+import jakarta.mail.internet.InternetHeaders;
+
+/**
+ * Test class for class {@link AS4IncomingStreamingAttachmentFactory}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4IncomingStreamingAttachmentFactoryTest
+{
+  @Nonnull
+  private static byte [] _createPayload (final int nSize)
+  {
+    final byte [] ret = new byte [nSize];
+    for (int i = 0; i < nSize; ++i)
+      ret[i] = (byte) (i % 251);
+    return ret;
+  }
+
+  @Nonnull
+  private static InternetHeaders _createHeaders (@Nonnull final String sCTE)
+  {
+    final InternetHeaders ret = new InternetHeaders ();
+    ret.addHeader (CHttpHeader.CONTENT_TYPE, "application/octet-stream");
+    ret.addHeader (CHttpHeader.CONTENT_ID, "<att1@phase4>");
+    ret.addHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, sCTE);
+    return ret;
+  }
+
+  private static void _testRead (@Nonnull final AS4IncomingStreamingAttachmentFactory aFactory,
+                                 @Nonnull final byte [] aPayload,
+                                 @Nonnull final byte [] aEncoded,
+                                 @Nonnull final String sCTE) throws Exception
+  {
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final WSS4JAttachment aAttachment = aFactory.createAttachment (_createHeaders (sCTE),
+                                                                     new NonBlockingByteArrayInputStream (aEncoded),
+                                                                     aResHelper);
+      assertNotNull (aAttachment);
+      assertEquals ("att1@phase4", aAttachment.getId ());
+      assertEquals ("application/octet-stream", aAttachment.getMimeType ());
+
+      // Must be readable more than once
+      for (int i = 0; i < 2; ++i)
+        assertArrayEquals (aPayload, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+
+      if (aFactory.getAllDigestAlgorithms ().isEmpty ())
+      {
+        // Digests are opt-in
+        assertTrue (aAttachment.incomingDigests ().isEmpty ());
+      }
+      else
+      {
+        final byte [] aExpectedDigest = MessageDigest.getInstance ("SHA-256").digest (aPayload);
+        assertArrayEquals (aExpectedDigest,
+                           aAttachment.incomingDigests ()
+                                      .get (AS4IncomingStreamingAttachmentFactory.DIGEST_ALGORITHM_SHA256));
+      }
+    }
+  }
+
+  @Test
+  public void testSmallInMemory () throws Exception
+  {
+    final AS4IncomingStreamingAttachmentFactory aFactory = new AS4IncomingStreamingAttachmentFactory ();
+    final byte [] aPayload = "Hello phase4".getBytes (StandardCharsets.UTF_8);
+    _testRead (aFactory, aPayload, aPayload, "binary");
+  }
+
+  @Test
+  public void testLargeTempFile () throws Exception
+  {
+    final AS4IncomingStreamingAttachmentFactory aFactory = new AS4IncomingStreamingAttachmentFactory (1024,
+                                                                                                      AS4IncomingStreamingAttachmentFactory.DIGEST_ALGORITHM_SHA256);
+    final byte [] aPayload = _createPayload (100_000);
+    _testRead (aFactory, aPayload, aPayload, "binary");
+  }
+
+  @Test
+  public void testBase64Decoding () throws Exception
+  {
+    final AS4IncomingStreamingAttachmentFactory aFactory = new AS4IncomingStreamingAttachmentFactory (1024,
+                                                                                                      AS4IncomingStreamingAttachmentFactory.DIGEST_ALGORITHM_SHA256);
+    final byte [] aPayload = _createPayload (50_000);
+    final byte [] aEncoded = Base64.getMimeEncoder ().encode (aPayload);
+    _testRead (aFactory, aPayload, aEncoded, "base64");
+  }
+
+  @Test
+  public void testExactBufferSize () throws Exception
+  {
+    final AS4IncomingStreamingAttachmentFactory aFactory = new AS4IncomingStreamingAttachmentFactory (1024,
+                                                                                                      AS4IncomingStreamingAttachmentFactory.DIGEST_ALGORITHM_SHA256);
+    for (final int nSize : new int [] { 0, 1023, 1024, 1025 })
+    {
+      final byte [] aPayload = _createPayload (nSize);
+      _testRead (aFactory, aPayload, aPayload, "binary");
+    }
+  }
+
+  @Test
+  public void testHandleDecryptedAttachment () throws Exception
+  {
+    final AS4IncomingStreamingAttachmentFactory aFactory = new AS4IncomingStreamingAttachmentFactory (1024);
+    for (final int nSize : new int [] { 10, 100_000 })
+    {
+      final byte [] aPayload = _createPayload (nSize);
+      try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+      {
+        final WSS4JAttachment aAttachment = new WSS4JAttachment (aResHelper, "application/octet-stream");
+        aAttachment.setSourceStreamProvider (HasInputStream.once ( () -> new NonBlockingByteArrayInputStream (aPayload)));
+        aFactory.handleDecryptedAttachment (aAttachment, aResHelper);
+
+        // Must be readable more than once
+        for (int i = 0; i < 2; ++i)
+          assertArrayEquals (aPayload, StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+      }
+    }
+
+    // Lazy decryption keeps the original stream
+    aFactory.setLazyDecryption (true);
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final WSS4JAttachment aAttachment = new WSS4JAttachment (aResHelper, "application/octet-stream");
+      final IHasInputStream aISP = HasInputStream.once ( () -> new NonBlockingByteArrayInputStream (new byte [5]));
+      aAttachment.setSourceStreamProvider (aISP);
+      aFactory.handleDecryptedAttachment (aAttachment, aResHelper);
+      assertSame (aISP, aAttachment.getInputStreamProvider ());
+    }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testInvalidDigestAlgorithm ()
+  {
+    new AS4IncomingStreamingAttachmentFactory (1024, "foo-bar");
+  }
+}
@@ -38,6 +38,8 @@ public final class AS4ConfigurationTest
   {
     assertTrue (AS4Configuration.isUseInMemoryManagers ());
     assertTrue (AS4Configuration.isWSS4JSynchronizedSecurity ());
+    // Incoming messages of all senders are validated by default
+    assertTrue (AS4Configuration.getIncomingXSDValidationSkipSenders ().isEmpty ());
 
     final ConfiguredValue aCV = AS4Configuration.getConfig ().getConfiguredValue (AS4Configuration.PROPERTY_PHASE4_WSS4J_SYNCSECURITY);
     assertNotNull (aCV);
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link AS4CertificateRevocationCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CertificateRevocationCacheTest
+{
+  private static final class MockCache extends AS4CertificateRevocationCache
+  {
+    private final AtomicLong m_aNow = new AtomicLong (1_000_000);
+
+    MockCache (final ICommonsList <Runnable> aTasks)
+    {
+      super (Duration.ofMinutes (10), Duration.ofMinutes (60), Duration.ofMinutes (2), 100, aTasks::add);
+    }
+
+    @Override
+    protected long getCurrentTimeMillis ()
+    {
+      return m_aNow.get ();
+    }
+  }
+
+  private static X509Certificate _createCert (final String sCN) throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (2048);
+    final KeyPair aKP = aKPG.generateKeyPair ();
+    final X500Name aName = new X500Name ("CN=" + sCN);
+    final Date aNow = new Date ();
+    final JcaX509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (aName,
+                                                                                  BigInteger.ONE,
+                                                                                  aNow,
+                                                                                  new Date (aNow.getTime () +
+                                                                                            86_400_000L),
+                                                                                  aName,
+                                                                                  aKP.getPublic ());
+    return new JcaX509CertificateConverter ().getCertificate (aBuilder.build (new JcaContentSignerBuilder ("SHA256withRSA").build (aKP.getPrivate ())));
+  }
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    final X509Certificate aCert1 = _createCert ("cert1");
+    final X509Certificate aCert2 = _createCert ("cert2");
+    assertEquals (64, AS4CertificateRevocationCache.getFingerprint (aCert1).length ());
+    assertNotEquals (AS4CertificateRevocationCache.getFingerprint (aCert1),
+                     AS4CertificateRevocationCache.getFingerprint (aCert2));
+
+    final ICommonsList <Runnable> aTasks = new CommonsArrayList <> ();
+    final MockCache aCache = new MockCache (aTasks);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final IAS4CertificateRevocationChecker aChecker = (x, d) -> {
+      aCount.incrementAndGet ();
+      return x == aCert2;
+    };
+
+    // Miss
+    assertFalse (aCache.isRevoked (aCert1, aChecker));
+    assertTrue (aCache.isRevoked (aCert2, aChecker));
+    assertEquals (2, aCount.get ());
+    assertEquals (2, aCache.getCachedCount ());
+
+    // Hits
+    assertFalse (aCache.isRevoked (aCert1, aChecker));
+    assertTrue (aCache.isRevoked (aCert2, aChecker));
+    assertEquals (2, aCount.get ());
+
+    // Within the refresh window of the "not revoked" verdict
+    aCache.m_aNow.addAndGet (Duration.ofMinutes (9).toMillis ());
+    assertFalse (aCache.isRevoked (aCert1, aChecker));
+    assertFalse (aCache.isRevoked (aCert1, aChecker));
+    // Only one refresh scheduled
+    assertEquals (1, aTasks.size ());
+    // The "revoked" verdict has a longer TTL
+    assertTrue (aCache.isRevoked (aCert2, aChecker));
+    assertEquals (1, aTasks.size ());
+    aTasks.remove (0).run ();
+    assertEquals (3, aCount.get ());
+
+    // Refreshed - no new task
+    assertFalse (aCache.isRevoked (aCert1, aChecker));
+    assertTrue (aTasks.isEmpty ());
+
+    // Expired
+    aCache.m_aNow.addAndGet (Duration.ofMinutes (11).toMillis ());
+    assertFalse (aCache.isRevoked (aCert1, aChecker));
+    assertEquals (4, aCount.get ());
+
+    aCache.removeFromCache (aCert1);
+    assertEquals (1, aCache.getCachedCount ());
+    aCache.clearCache ();
+    assertEquals (0, aCache.getCachedCount ());
+  }
+
+  @Test
+  public void testCheckerAndCheckDate () throws Exception
+  {
+    final X509Certificate aCert = _createCert ("cert");
+    final MockCache aCache = new MockCache (new CommonsArrayList <> ());
+    final ICommonsList <OffsetDateTime> aCheckDates = new CommonsArrayList <> ();
+    final IAS4CertificateRevocationChecker aChecker1 = new IAS4CertificateRevocationChecker ()
+    {
+      public String getCheckerID ()
+      {
+        return "checker1";
+      }
+
+      public boolean isRevoked (final X509Certificate aCert2, final OffsetDateTime aCheckDate)
+      {
+        aCheckDates.add (aCheckDate);
+        return false;
+      }
+    };
+    final IAS4CertificateRevocationChecker aChecker2 = new IAS4CertificateRevocationChecker ()
+    {
+      public String getCheckerID ()
+      {
+        return "checker2";
+      }
+
+      public boolean isRevoked (final X509Certificate aCert2, final OffsetDateTime aCheckDate)
+      {
+        return true;
+      }
+    };
+
+    // Different checkers don't share verdicts
+    assertFalse (aCache.isRevoked (aCert, aChecker1));
+    assertTrue (aCache.isRevoked (aCert, aChecker2));
+    assertFalse (aCache.isRevoked (aCert, aChecker1));
+    assertEquals (2, aCache.getCachedCount ());
+
+    // The check date is passed to the checker and is part of the key
+    final OffsetDateTime aDT1 = OffsetDateTime.of (2024, 1, 1, 10, 5, 0, 0, ZoneOffset.UTC);
+    assertFalse (aCache.isRevoked (aCert, aDT1, aChecker1));
+    assertFalse (aCache.isRevoked (aCert, aDT1.plusMinutes (10), aChecker1));
+    assertFalse (aCache.isRevoked (aCert, aDT1.minusYears (1), aChecker1));
+    assertEquals (3, aCheckDates.size ());
+    assertNull (aCheckDates.get (0));
+    assertEquals (aDT1, aCheckDates.get (1));
+    assertEquals (aDT1.minusYears (1), aCheckDates.get (2));
+    assertEquals (4, aCache.getCachedCount ());
+
+    // Removes the verdicts of all checkers and check dates
+    aCache.removeFromCache (aCert);
+    assertEquals (0, aCache.getCachedCount ());
+  }
+
+  @Test
+  public void testConcurrentMissIsDeduplicated () throws Exception
+  {
+    final X509Certificate aCert = _createCert ("cert");
+    final MockCache aCache = new MockCache (new CommonsArrayList <> ());
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final IAS4CertificateRevocationChecker aChecker = (x, d) -> {
+      aCount.incrementAndGet ();
+      aStarted.countDown ();
+      try
+      {
+        aRelease.await ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      return true;
+    };
+
+    final CompletableFuture <Boolean> aFirst = CompletableFuture.supplyAsync ( () -> Boolean.valueOf (aCache.isRevoked (aCert,
+                                                                                                                      aChecker)));
+    assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+    final CompletableFuture <Boolean> aSecond = CompletableFuture.supplyAsync ( () -> Boolean.valueOf (aCache.isRevoked (aCert,
+                                                                                                                       aChecker)));
+    // Give the second lookup the chance to wait for the first one
+    Thread.sleep (100);
+    aRelease.countDown ();
+    assertTrue (aFirst.get (10, TimeUnit.SECONDS).booleanValue ());
+    assertTrue (aSecond.get (10, TimeUnit.SECONDS).booleanValue ());
+    assertEquals (1, aCount.get ());
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.system.SystemProperties;
+
+/**
+ * Test class for class {@link AS4AsyncDumpWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncDumpWriterTest
+{
+  @Nonnull
+  private static byte [] _createData (final int nLength)
+  {
+    final byte [] ret = new byte [nLength];
+    for (int i = 0; i < nLength; ++i)
+      ret[i] = (byte) ('a' + i % 26);
+    return ret;
+  }
+
+  @Test
+  public void testWrite () throws Exception
+  {
+    final byte [] aData = _createData (10_000);
+    for (final boolean bCompress : new boolean [] { false, true })
+    {
+      final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+      try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (2,
+                                                                      4,
+                                                                      100,
+                                                                      EAS4DumpOverflowPolicy.BLOCK,
+                                                                      bCompress,
+                                                                      new File (SystemProperties.getTmpDir ())))
+      {
+        try (final OutputStream aOS = aWriter.createOutputStream ("test", () -> aTarget))
+        {
+          aOS.write (aData, 0, 1_234);
+          aOS.write (aData[1_234]);
+          aOS.write (aData, 1_235, aData.length - 1_235);
+        }
+      }
+
+      byte [] aWritten = aTarget.toByteArray ();
+      if (bCompress)
+        aWritten = StreamHelper.getAllBytes (new GZIPInputStream (new NonBlockingByteArrayInputStream (aWritten)));
+      assertArrayEquals (aData, aWritten);
+    }
+  }
+
+  private static void _writeWithBlockedTarget (@Nonnull final EAS4DumpOverflowPolicy ePolicy,
+                                               @Nonnull final byte [] aData,
+                                               @Nonnull final NonBlockingByteArrayOutputStream aTarget,
+                                               @Nonnull final AtomicBoolean aIncomplete) throws Exception
+  {
+    final CountDownLatch aBlock = new CountDownLatch (1);
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (1,
+                                                                    1,
+                                                                    10,
+                                                                    ePolicy,
+                                                                    false,
+                                                                    new File (SystemProperties.getTmpDir ())))
+    {
+      final OutputStream aOS = aWriter.createOutputStream ("test", () -> {
+        // Simulate a slow disk
+        while (aBlock.getCount () > 0)
+          ThreadHelper.sleep (10);
+        return aTarget;
+      }, () -> aIncomplete.set (true));
+      aOS.write (aData);
+      aBlock.countDown ();
+      aOS.close ();
+    }
+  }
+
+  @Test
+  public void testDrop () throws Exception
+  {
+    final byte [] aData = _createData (1_000);
+    final long nDropped = AS4AsyncDumpWriter.getDroppedStatistics ().getCount ();
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final AtomicBoolean aIncomplete = new AtomicBoolean (false);
+    _writeWithBlockedTarget (EAS4DumpOverflowPolicy.DROP, aData, aTarget, aIncomplete);
+
+    assertEquals (nDropped + 1, AS4AsyncDumpWriter.getDroppedStatistics ().getCount ());
+    assertTrue (aIncomplete.get ());
+    final byte [] aWritten = aTarget.toByteArray ();
+    assertTrue (aWritten.length < aData.length);
+    for (int i = 0; i < aWritten.length; ++i)
+      assertEquals (aData[i], aWritten[i]);
+  }
+
+  @Test
+  public void testSpill () throws Exception
+  {
+    final byte [] aData = _createData (1_000);
+    final long nSpilled = AS4AsyncDumpWriter.getSpilledStatistics ().getCount ();
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final AtomicBoolean aIncomplete = new AtomicBoolean (false);
+    _writeWithBlockedTarget (EAS4DumpOverflowPolicy.SPILL, aData, aTarget, aIncomplete);
+
+    assertEquals (nSpilled + 1, AS4AsyncDumpWriter.getSpilledStatistics ().getCount ());
+    assertArrayEquals (aData, aTarget.toByteArray ());
+    assertFalse (aIncomplete.get ());
+  }
+
+  @Test
+  public void testWriteAfterClose () throws Exception
+  {
+    final byte [] aData = _createData (100);
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final AtomicBoolean aIncomplete = new AtomicBoolean (false);
+    final OutputStream aOS;
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (1,
+                                                                    1,
+                                                                    10,
+                                                                    EAS4DumpOverflowPolicy.BLOCK,
+                                                                    false,
+                                                                    new File (SystemProperties.getTmpDir ())))
+    {
+      aOS = aWriter.createOutputStream ("test", () -> aTarget, () -> aIncomplete.set (true));
+      aOS.write (aData, 0, 50);
+    }
+
+    // Must fail instead of blocking forever
+    try
+    {
+      aOS.write (aData, 50, 50);
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    // Closes the target in the calling thread
+    aOS.close ();
+    assertTrue (aIncomplete.get ());
+    // The data queued before closing the writer was written
+    final byte [] aWritten = aTarget.toByteArray ();
+    assertTrue (aWritten.length > 0);
+    assertTrue (aWritten.length < aData.length);
+  }
+
+  @Test
+  public void testIncompleteFile () throws Exception
+  {
+    final File aFile = new File ("target/test-async-dump/incomplete.as4in");
+    final File aIncompleteFile = new File (aFile.getPath () + AS4AsyncDumpWriter.INCOMPLETE_FILE_EXTENSION);
+    aFile.getParentFile ().mkdirs ();
+    aFile.delete ();
+    aIncompleteFile.delete ();
+
+    final OutputStream aOS;
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (1,
+                                                                    1,
+                                                                    10,
+                                                                    EAS4DumpOverflowPolicy.BLOCK,
+                                                                    false,
+                                                                    new File (SystemProperties.getTmpDir ())))
+    {
+      aOS = aWriter.createFileOutputStream (aFile);
+      aOS.write (_createData (50));
+    }
+    try
+    {
+      aOS.write (1);
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    aOS.close ();
+
+    assertFalse (aFile.exists ());
+    assertTrue (aIncompleteFile.exists ());
+  }
+}
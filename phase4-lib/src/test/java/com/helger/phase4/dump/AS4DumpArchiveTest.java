@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.system.SystemProperties;
+
+/**
+ * Test class for class {@link AS4DumpArchive}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DumpArchiveTest
+{
+  @Nonnull
+  private static byte [] _createDump (final int nIndex)
+  {
+    return ("Content-Type: application/soap+xml\r\n\r\n" +
+            "<S12:Envelope><S12:Header><eb:Messaging><eb:UserMessage><eb:MessageInfo>" +
+            "<eb:Timestamp>2024-01-01T00:00:00Z</eb:Timestamp>" +
+            "<eb:MessageId>msg-" +
+            nIndex +
+            "@phase4</eb:MessageId>" +
+            "</eb:MessageInfo></eb:UserMessage></eb:Messaging></S12:Header>" +
+            "<S12:Body>Payload " +
+            nIndex +
+            "</S12:Body></S12:Envelope>").getBytes (StandardCharsets.UTF_8);
+  }
+
+  private static void _assertDump (@Nonnull final AS4DumpArchive aArchive,
+                                   @Nonnull final String sID,
+                                   final int nIndex) throws Exception
+  {
+    try (final InputStream aIS = aArchive.openDump (sID))
+    {
+      assertArrayEquals (_createDump (nIndex), StreamHelper.getAllBytes (aIS));
+    }
+  }
+
+  @Test
+  public void testFindMessageID ()
+  {
+    final byte [] aDump = _createDump (5);
+    assertEquals ("msg-5@phase4", AS4DumpArchive.findMessageID (aDump, aDump.length));
+    final byte [] aRef = "<eb:RefToMessageId>ref</eb:RefToMessageId><MessageId> a&amp;b </MessageId>".getBytes (StandardCharsets.UTF_8);
+    assertEquals ("a&b", AS4DumpArchive.findMessageID (aRef, aRef.length));
+    assertNull (AS4DumpArchive.findMessageID (aDump, 10));
+  }
+
+  @Test
+  public void testWriteAndRead () throws Exception
+  {
+    final File aDir = new File (SystemProperties.getTmpDir (), "phase4-dump-archive-" + System.nanoTime ());
+    try
+    {
+      final int nCount = 500;
+      try (final AS4DumpArchive aArchive = new AS4DumpArchive (aDir, 10_000))
+      {
+        for (int i = 0; i < nCount; ++i)
+          try (final OutputStream aOS = aArchive.createOutputStream ("in-" + i))
+          {
+            aOS.write (_createDump (i));
+          }
+
+        // Small segments - must have rolled over
+        assertTrue (aArchive.getCurrentSegment () > 1);
+        for (int i = 0; i < nCount; ++i)
+        {
+          _assertDump (aArchive, "in-" + i, i);
+          _assertDump (aArchive, "msg-" + i + "@phase4", i);
+        }
+        assertFalse (aArchive.containsDump ("in-" + nCount));
+        assertFalse (aArchive.containsDump (null));
+      }
+
+      // Reopen with the persisted index
+      try (final AS4DumpArchive aArchive = new AS4DumpArchive (aDir, 10_000))
+      {
+        _assertDump (aArchive, "in-17", 17);
+        try (final OutputStream aOS = aArchive.createOutputStream ("in-new"))
+        {
+          aOS.write (_createDump (nCount));
+        }
+        _assertDump (aArchive, "msg-" + nCount + "@phase4", nCount);
+      }
+
+      // Parallel dumps use different segments
+      try (final AS4DumpArchive aArchive = new AS4DumpArchive (aDir, 10_000))
+      {
+        final int nSegment = aArchive.getCurrentSegment ();
+        final OutputStream aOS1 = aArchive.createOutputStream ("in-parallel-1");
+        final OutputStream aOS2 = aArchive.createOutputStream ("in-parallel-2");
+        aOS1.write (_createDump (nCount + 1));
+        aOS2.write (_createDump (nCount + 2));
+        // Not yet complete
+        assertFalse (aArchive.containsDump ("in-parallel-2"));
+        aOS2.close ();
+        aOS1.close ();
+        assertTrue (aArchive.getCurrentSegment () > nSegment);
+        _assertDump (aArchive, "in-parallel-1", nCount + 1);
+        _assertDump (aArchive, "in-parallel-2", nCount + 2);
+
+        // The latest record wins
+        try (final OutputStream aOS = aArchive.createOutputStream ("in-0"))
+        {
+          aOS.write (_createDump (nCount + 3));
+        }
+        _assertDump (aArchive, "in-0", nCount + 3);
+        _assertDump (aArchive, "msg-0@phase4", 0);
+      }
+
+      // Rebuild the index from the segments
+      assertTrue (FileOperationManager.INSTANCE.deleteFile (new File (aDir, AS4DumpArchive.INDEX_FILENAME))
+                                                .isSuccess ());
+      try (final AS4DumpArchive aArchive = new AS4DumpArchive (aDir, 10_000))
+      {
+        _assertDump (aArchive, "msg-0@phase4", 0);
+        _assertDump (aArchive, "msg-499@phase4", 499);
+        _assertDump (aArchive, "in-parallel-2", nCount + 2);
+        _assertDump (aArchive, "in-new", nCount);
+      }
+    }
+    finally
+    {
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.w3c.dom.Document;
+
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.system.SystemProperties;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.crypto.AS4CryptoFactoryProperties;
+import com.helger.phase4.crypto.AS4CryptoProperties;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.model.message.AS4UserMessage;
+import com.helger.phase4.model.message.MessageHelperMethods;
+import com.helger.phase4.model.pmode.DefaultPMode;
+import com.helger.phase4.model.pmode.PMode;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Test class for class {@link AS4DumpReplayer}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DumpReplayerTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  /** Misses the ebMS Messaging header, so the handler creates an error */
+  private static final byte [] BAD_DUMP = ("Content-Type: application/soap+xml\r\n\r\n" +
+                                           "<S12:Envelope xmlns:S12=\"http://www.w3.org/2003/05/soap-envelope\">" +
+                                           "<S12:Header/><S12:Body/></S12:Envelope>").getBytes (StandardCharsets.ISO_8859_1);
+
+  /**
+   * @return A dump of a valid, unsigned user message that is accepted with the
+   *         persisted default PMode
+   *         that sends no Receipt. Always the same message ID is used.
+   */
+  @Nonnull
+  private static byte [] _createGoodDump ()
+  {
+    final PMode aPMode = (PMode) DefaultPMode.getOrCreateDefaultPMode ("initiator", "responder", null, false);
+    // The Receipt of an unsigned message is empty and therefore not XSD valid
+    aPMode.getLeg1 ().getSecurity ().setSendReceipt (false);
+    MetaAS4Manager.getPModeMgr ().createOrUpdatePMode (aPMode);
+    final AS4UserMessage aMsg = AS4UserMessage.create (MessageHelperMethods.createEbms3MessageInfo (),
+                                                       MessageHelperMethods.createEbms3PayloadInfo (true, null),
+                                                       MessageHelperMethods.createEbms3CollaborationInfo (aPMode.getID (),
+                                                                                                          aPMode.getAgreement (),
+                                                                                                          null,
+                                                                                                          null,
+                                                                                                          "urn:phase4:test:service",
+                                                                                                          "urn:phase4:test:action",
+                                                                                                          "conv"),
+                                                       MessageHelperMethods.createEbms3PartyInfo (CAS4.DEFAULT_INITIATOR_URL,
+                                                                                                  "initiator",
+                                                                                                  CAS4.DEFAULT_RESPONDER_URL,
+                                                                                                  "responder"),
+                                                       null,
+                                                       null,
+                                                       ESoapVersion.SOAP_12);
+    final Document aDoc = aMsg.getAsSoapDocument (DOMReader.readXMLDOM ("<test xmlns=\"urn:phase4:test\"/>")
+                                                    .getDocumentElement ());
+    return ("Content-Type: " +
+            ESoapVersion.SOAP_12.getMimeType ().getAsString () +
+            "\r\n\r\n" +
+            XMLWriter.getNodeAsString (aDoc)).getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private static AS4DumpReplayer _createReplayer (@Nonnull final File aCheckpointFile)
+  {
+    final IAS4CryptoFactory aCF = new AS4CryptoFactoryProperties (new AS4CryptoProperties ());
+    return new AS4DumpReplayer (aCF, aCF, (sDumpID, nIndex, aPayload) -> {}).setThreads (4)
+                                                                             .setCheckpointFile (aCheckpointFile);
+  }
+
+  @Test
+  public void testReplayDirectory () throws Exception
+  {
+    final File aDir = new File (SystemProperties.getTmpDir (), "phase4-dump-replay-" + System.nanoTime ());
+    try
+    {
+      final byte [] aGoodDump = _createGoodDump ();
+      final int nDuplicates = MetaAS4Manager.getIncomingDuplicateMgr ().size ();
+      final File aDumpDir = new File (aDir, "dumps/sub");
+      FileOperationManager.INSTANCE.createDirRecursive (aDumpDir);
+      for (int i = 0; i < 20; ++i)
+        SimpleFileIO.writeFile (new File (aDumpDir, "dump" + i + ".as4in"), aGoodDump);
+      for (int i = 0; i < 5; ++i)
+        try (final OutputStream aOS = new GZIPOutputStream (FileHelper.getOutputStream (new File (aDumpDir,
+                                                                                                   "dump" +
+                                                                                                             i +
+                                                                                                             ".as4in.gz"))))
+        {
+          aOS.write (BAD_DUMP);
+        }
+      // Not a dump
+      SimpleFileIO.writeFile (new File (aDumpDir, "other.txt"), aGoodDump);
+
+      // All good dumps share the same message ID - no duplicate check
+      final File aCheckpointFile = new File (aDir, "checkpoint.txt");
+      AS4DumpReplayResult aResult = _createReplayer (aCheckpointFile).replayDirectory (new File (aDir, "dumps"));
+      assertEquals (20, aResult.getProcessedCount ());
+      assertEquals (5, aResult.getFailedCount ());
+      assertEquals (0, aResult.getSkippedCount ());
+      assertEquals (0, aResult.getPayloadCount ());
+      assertEquals (20, aResult.getWithoutPayloadCount ());
+      assertEquals (20, SimpleFileIO.getAllFileLines (aCheckpointFile, StandardCharsets.UTF_8).size ());
+      assertEquals (nDuplicates, MetaAS4Manager.getIncomingDuplicateMgr ().size ());
+
+      // Restart - the processed ones are skipped, the failed ones are retried
+      aResult = _createReplayer (aCheckpointFile).replayDirectory (new File (aDir, "dumps"));
+      assertEquals (0, aResult.getProcessedCount ());
+      assertEquals (5, aResult.getFailedCount ());
+      assertEquals (20, aResult.getSkippedCount ());
+      assertEquals (20, SimpleFileIO.getAllFileLines (aCheckpointFile, StandardCharsets.UTF_8).size ());
+    }
+    finally
+    {
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+    }
+  }
+
+  @Test
+  public void testReplayArchive () throws Exception
+  {
+    final File aDir = new File (SystemProperties.getTmpDir (), "phase4-dump-replay-" + System.nanoTime ());
+    try
+    {
+      final byte [] aGoodDump = _createGoodDump ();
+      final int nDuplicates = MetaAS4Manager.getIncomingDuplicateMgr ().size ();
+      try (final AS4DumpArchive aArchive = new AS4DumpArchive (aDir))
+      {
+        for (int i = 0; i < 10; ++i)
+          try (final OutputStream aOS = aArchive.createOutputStream ("in-" + i))
+          {
+            aOS.write ((i % 2) == 0 ? aGoodDump : BAD_DUMP);
+          }
+
+        // Replaying twice works as well
+        for (int i = 0; i < 2; ++i)
+        {
+          final AS4DumpReplayResult aResult = _createReplayer (null).replayArchive (aArchive);
+          assertEquals (5, aResult.getProcessedCount ());
+          assertEquals (5, aResult.getFailedCount ());
+          assertEquals (0, aResult.getSkippedCount ());
+        }
+        assertEquals (nDuplicates, MetaAS4Manager.getIncomingDuplicateMgr ().size ());
+      }
+    }
+    finally
+    {
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+    }
+  }
+}
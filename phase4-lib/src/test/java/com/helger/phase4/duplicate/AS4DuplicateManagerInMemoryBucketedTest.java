@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EContinue;
+
+/**
+ * Test class for class {@link AS4DuplicateManagerInMemoryBucketed}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DuplicateManagerInMemoryBucketedTest
+{
+  @Test
+  public void testBasic ()
+  {
+    final AtomicLong aNow = new AtomicLong (1_000_000_000L);
+    final AS4DuplicateManagerInMemoryBucketed aMgr = new AS4DuplicateManagerInMemoryBucketed (aNow::get, 1000);
+    assertTrue (aMgr.isEmpty ());
+
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck (null, "profile", "pmode"));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", "profile", "pmode"));
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck ("a", "profile2", "pmode2"));
+    aNow.addAndGet (500);
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("b", null, null));
+    aNow.addAndGet (1000);
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("c", null, null));
+    assertEquals (3, aMgr.size ());
+    assertEquals (3, aMgr.getAll ().size ());
+    assertEquals (2, aMgr.getBucketCount ());
+
+    final IAS4DuplicateItem aItem = aMgr.getItemOfMessageID ("a");
+    assertNotNull (aItem);
+    assertEquals ("profile", aItem.getProfileID ());
+    assertEquals ("pmode", aItem.getPModeID ());
+    assertEquals (1_000_000_000L, aItem.getDateTime ().toInstant ().toEpochMilli ());
+    assertNull (aMgr.getItemOfMessageID ("x"));
+
+    // Partially evicts the first bucket
+    ICommonsList <String> aEvicted = aMgr.evictAllItemsBefore (PDTFactory.createOffsetDateTime (1_000_000_100L));
+    assertEquals (1, aEvicted.size ());
+    assertEquals ("a", aEvicted.getFirstOrNull ());
+    assertEquals (2, aMgr.size ());
+
+    // Evicts the rest of the first bucket
+    aEvicted = aMgr.evictAllItemsBefore (PDTFactory.createOffsetDateTime (1_000_001_000L));
+    assertEquals (1, aEvicted.size ());
+    assertEquals ("b", aEvicted.getFirstOrNull ());
+    assertEquals (1, aMgr.getBucketCount ());
+
+    // Re-registration after eviction is possible
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", null, null));
+    assertEquals (2, aMgr.size ());
+
+    assertTrue (aMgr.clearCache ().isChanged ());
+    assertFalse (aMgr.clearCache ().isChanged ());
+    assertTrue (aMgr.isEmpty ());
+    assertEquals (0, aMgr.getBucketCount ());
+  }
+}
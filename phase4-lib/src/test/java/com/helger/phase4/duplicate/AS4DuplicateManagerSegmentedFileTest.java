@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.state.EContinue;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Test class for class {@link AS4DuplicateManagerSegmentedFile}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DuplicateManagerSegmentedFileTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    final File aDir = new File ("target/test-duplicate-segments");
+    FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+
+    final AtomicLong aNow = new AtomicLong (1_000_000_000L);
+    AS4DuplicateManagerSegmentedFile aMgr = new AS4DuplicateManagerSegmentedFile (aDir,
+                                                                                  Duration.ofSeconds (1),
+                                                                                  4,
+                                                                                  aNow::get);
+    assertTrue (aMgr.isEmpty ());
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck (null, "profile", "pmode"));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", "profile", "pmode"));
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck ("a", "profile2", "pmode2"));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("b", null, null));
+    aNow.addAndGet (1500);
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("c", null, null));
+    // Too long to be stored as is
+    final String sLongID = StringHelper.getRepeated ('x', 1000);
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck (sLongID, "profile", null));
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck (sLongID, null, null));
+    assertEquals (4, aMgr.size ());
+    assertEquals (2, aMgr.getSegmentCount ());
+
+    IAS4DuplicateItem aItem = aMgr.getItemOfMessageID ("a");
+    assertNotNull (aItem);
+    assertEquals ("profile", aItem.getProfileID ());
+    assertEquals ("pmode", aItem.getPModeID ());
+    assertEquals (1_000_000_000L, aItem.getDateTime ().toInstant ().toEpochMilli ());
+    assertNull (aMgr.getItemOfMessageID ("x"));
+    assertEquals (sLongID, aMgr.getItemOfMessageID (sLongID).getMessageID ());
+
+    // Re-open and rebuild the index
+    aMgr = new AS4DuplicateManagerSegmentedFile (aDir, Duration.ofSeconds (1), 4, aNow::get);
+    assertEquals (4, aMgr.size ());
+    assertEquals (4, aMgr.getAll ().size ());
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck ("b", null, null));
+    aItem = aMgr.getItemOfMessageID ("b");
+    assertNotNull (aItem);
+    assertNull (aItem.getProfileID ());
+    // The original long ID survives the restart
+    assertEquals (sLongID, aMgr.getItemOfMessageID (sLongID).getMessageID ());
+
+    // Only the first segment is completely expired
+    assertEquals (2, aMgr.evictAllItemsBefore (PDTFactory.createOffsetDateTime (1_000_001_000L)).size ());
+    assertEquals (1, aMgr.getSegmentCount ());
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", null, null));
+    aNow.addAndGet (1500);
+    assertTrue (aMgr.evictAllItemsBefore (PDTFactory.createOffsetDateTime (aNow.get ())).contains (sLongID));
+    assertEquals (0, aMgr.getSegmentCount ());
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a", null, null));
+
+    assertTrue (aMgr.clearCache ().isChanged ());
+    assertFalse (aMgr.clearCache ().isChanged ());
+    assertTrue (aMgr.isEmpty ());
+    assertEquals (0, new AS4DuplicateManagerSegmentedFile (aDir).size ());
+  }
+
+  @Test
+  public void testConcurrentRegistration () throws Exception
+  {
+    final File aDir = new File ("target/test-duplicate-segments-concurrent");
+    FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+
+    // Small segments, so that new segments are added while registering
+    final AS4DuplicateManagerSegmentedFile aMgr = new AS4DuplicateManagerSegmentedFile (aDir,
+                                                                                        Duration.ofMinutes (1),
+                                                                                        16,
+                                                                                        System::currentTimeMillis);
+    final int nThreads = 8;
+    final int nIDs = 500;
+    final AtomicInteger aContinues = new AtomicInteger ();
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    try
+    {
+      final ICommonsList <Future <?>> aFutures = new CommonsArrayList <> ();
+      for (int t = 0; t < nThreads; ++t)
+        aFutures.add (aES.submit ( () -> {
+          // Every thread tries to register every ID
+          for (int i = 0; i < nIDs; ++i)
+            if (aMgr.registerAndCheck ("id" + i, null, null).isContinue ())
+              aContinues.incrementAndGet ();
+        }));
+      for (final Future <?> aFuture : aFutures)
+        aFuture.get ();
+    }
+    finally
+    {
+      aES.shutdown ();
+    }
+
+    // Each ID was accepted exactly once
+    assertEquals (nIDs, aContinues.get ());
+    assertEquals (nIDs, aMgr.size ());
+    assertEquals (nIDs, new AS4DuplicateManagerSegmentedFile (aDir).size ());
+    aMgr.clearCache ();
+  }
+}
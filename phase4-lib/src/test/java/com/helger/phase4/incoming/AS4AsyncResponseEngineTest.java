@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.incoming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.junit.Test;
+
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+import com.helger.phase4.messaging.http.AS4HttpClientPool;
+import com.helger.phase4.messaging.http.HttpRetrySettings;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4AsyncResponseEngine}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncResponseEngineTest
+{
+  private static void _fillQueue (@Nonnull final AS4AsyncResponseEngine aEngine,
+                                  @Nonnull final CountDownLatch aBlock) throws InterruptedException
+  {
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    // Occupy the only thread
+    aEngine.submit ("blocker", () -> {
+      aStarted.countDown ();
+      aBlock.await ();
+    });
+    aStarted.await ();
+    // Occupy the only queue entry
+    aEngine.submit ("queued", () -> aBlock.await ());
+    assertEquals (1, aEngine.getQueueSize ());
+  }
+
+  @Nonnull
+  private static HttpServer _createServer (@Nonnull final AtomicInteger aFailingCalls) throws IOException
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    // Echo the request body - "/failing" fails the first call
+    aServer.createContext ("/", aExchange -> {
+      final byte [] aBody;
+      try (final InputStream aIS = aExchange.getRequestBody ())
+      {
+        aBody = StreamHelper.getAllBytes (aIS);
+      }
+      final boolean bFail = aExchange.getRequestURI ().getPath ().equals ("/failing") &&
+                            aFailingCalls.incrementAndGet () == 1;
+      aExchange.sendResponseHeaders (bFail ? 503 : 200, aBody.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aBody);
+      }
+    });
+    aServer.start ();
+    return aServer;
+  }
+
+  @Test
+  public void testAbort () throws Exception
+  {
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (new HttpClientFactory ());
+         final AS4AsyncResponseEngine aEngine = new AS4AsyncResponseEngine (1,
+                                                                            1,
+                                                                            1,
+                                                                            EAS4AsyncResponseRejectionPolicy.ABORT,
+                                                                            aPool,
+                                                                            new HttpRetrySettings ()))
+    {
+      final CountDownLatch aBlock = new CountDownLatch (1);
+      _fillQueue (aEngine, aBlock);
+
+      final long nRejected = AS4AsyncResponseEngine.getRejectedStatistics ().getCount ();
+      try
+      {
+        aEngine.submit ("rejected", () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+      assertEquals (nRejected + 1, AS4AsyncResponseEngine.getRejectedStatistics ().getCount ());
+      aBlock.countDown ();
+    }
+  }
+
+  @Test
+  public void testCallerRuns () throws Exception
+  {
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (new HttpClientFactory ());
+         final AS4AsyncResponseEngine aEngine = new AS4AsyncResponseEngine (1,
+                                                                            1,
+                                                                            1,
+                                                                            EAS4AsyncResponseRejectionPolicy.CALLER_RUNS,
+                                                                            aPool,
+                                                                            new HttpRetrySettings ()))
+    {
+      final CountDownLatch aBlock = new CountDownLatch (1);
+      _fillQueue (aEngine, aBlock);
+
+      final AtomicReference <Thread> aThread = new AtomicReference <> ();
+      final CompletableFuture <Void> aFuture = aEngine.submit ("caller", () -> aThread.set (Thread.currentThread ()));
+      aFuture.get (1, TimeUnit.SECONDS);
+      assertSame (Thread.currentThread (), aThread.get ());
+      aBlock.countDown ();
+    }
+  }
+
+  @Test
+  public void testRetryDoesNotBlockDestination () throws Exception
+  {
+    final AtomicInteger aFailingCalls = new AtomicInteger (0);
+    final HttpServer aServer = _createServer (aFailingCalls);
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (new HttpClientFactory ());
+         final AS4AsyncResponseEngine aEngine = new AS4AsyncResponseEngine (1,
+                                                                            2,
+                                                                            1,
+                                                                            EAS4AsyncResponseRejectionPolicy.ABORT,
+                                                                            aPool,
+                                                                            new HttpRetrySettings ().setMaxRetries (1)
+                                                                                                    .setDurationBeforeRetry (Duration.ofSeconds (2))))
+    {
+      final String sBaseURL = "http://localhost:" + aServer.getAddress ().getPort ();
+      final byte [] aPayload = "<test/>".getBytes (StandardCharsets.UTF_8);
+
+      final CompletableFuture <byte []> aFailing = aEngine.sendGenericMessageAsync (sBaseURL + "/failing",
+                                                                                    null,
+                                                                                    new ByteArrayEntity (aPayload,
+                                                                                                         ContentType.APPLICATION_XML),
+                                                                                    "msg1",
+                                                                                    new ResponseHandlerByteArray (),
+                                                                                    null,
+                                                                                    null);
+      // Wait until the first try failed
+      while (aFailingCalls.get () == 0)
+        Thread.sleep (10);
+
+      // The only permit and the only thread are free during the backoff
+      final CompletableFuture <byte []> aOther = aEngine.sendGenericMessageAsync (sBaseURL + "/other",
+                                                                                  null,
+                                                                                  new ByteArrayEntity (aPayload,
+                                                                                                       ContentType.APPLICATION_XML),
+                                                                                  "msg2",
+                                                                                  new ResponseHandlerByteArray (),
+                                                                                  null,
+                                                                                  null);
+      assertArrayEquals (aPayload, aOther.get (1, TimeUnit.SECONDS));
+      assertFalse (aFailing.isDone ());
+
+      assertArrayEquals (aPayload, aFailing.get (10, TimeUnit.SECONDS));
+      assertEquals (2, aFailingCalls.get ());
+
+      // Idle destinations are evicted
+      assertEquals (0, aEngine.getActiveDestinationCount ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testQueuedPerDestination () throws Exception
+  {
+    final AtomicInteger aFailingCalls = new AtomicInteger (0);
+    final HttpServer aServer = _createServer (aFailingCalls);
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (new HttpClientFactory ());
+         final AS4AsyncResponseEngine aEngine = new AS4AsyncResponseEngine (2,
+                                                                            10,
+                                                                            1,
+                                                                            EAS4AsyncResponseRejectionPolicy.ABORT,
+                                                                            aPool,
+                                                                            new HttpRetrySettings ()))
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final CompletableFuture <?> [] aFutures = new CompletableFuture <?> [5];
+      for (int i = 0; i < aFutures.length; ++i)
+        aFutures[i] = aEngine.sendGenericMessageAsync (sURL,
+                                                      null,
+                                                      new ByteArrayEntity (("<test" + i + "/>").getBytes (StandardCharsets.UTF_8),
+                                                                           ContentType.APPLICATION_XML),
+                                                      "msg" + i,
+                                                      new ResponseHandlerByteArray (),
+                                                      null,
+                                                      null);
+      CompletableFuture.allOf (aFutures).get (10, TimeUnit.SECONDS);
+      assertEquals (0, aEngine.getActiveDestinationCount ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testDestinationKey ()
+  {
+    assertEquals ("http://localhost:80", AS4AsyncResponseEngine.getDestinationKey ("http://localhost/as4"));
+    assertEquals ("https://example.org:443", AS4AsyncResponseEngine.getDestinationKey ("https://example.org/as4?x=y"));
+    assertEquals ("http://example.org:8080", AS4AsyncResponseEngine.getDestinationKey ("http://example.org:8080/as4"));
+    assertEquals ("no url", AS4AsyncResponseEngine.getDestinationKey ("no url"));
+  }
+}
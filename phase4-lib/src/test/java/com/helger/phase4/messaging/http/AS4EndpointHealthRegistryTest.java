@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.junit.Test;
+
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4EndpointHealthRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4EndpointHealthRegistryTest
+{
+  private static final String URL = "http://localhost/as4";
+
+  @Test
+  public void testCircuitStates () throws Exception
+  {
+    final AtomicLong aNow = new AtomicLong (1_000_000L);
+    final AS4EndpointHealthRegistry aRegistry = new AS4EndpointHealthRegistry (3,
+                                                                               Duration.ofSeconds (10),
+                                                                               4,
+                                                                               aNow::get);
+    assertNull (aRegistry.getHealth (URL));
+    assertTrue (aRegistry.isCallPermitted (URL));
+
+    final AS4EndpointHealth aHealth = aRegistry.getOrCreateHealth (URL);
+    assertEquals (EAS4CircuitState.CLOSED, aHealth.getState ());
+    assertEquals (-1, aHealth.getLatencyPercentile (50));
+
+    // Two failures keep it closed
+    for (int i = 0; i < 2; ++i)
+    {
+      aHealth.acquirePermission ();
+      aHealth.onFailure (10, new IOException ("down"));
+    }
+    assertEquals (EAS4CircuitState.CLOSED, aHealth.getState ());
+    assertEquals (2, aHealth.getConsecutiveFailures ());
+
+    // Third failure opens it
+    aHealth.acquirePermission ();
+    aHealth.onFailure (30, new IOException ("down"));
+    assertEquals (EAS4CircuitState.OPEN, aHealth.getState ());
+    assertFalse (aRegistry.isCallPermitted (URL));
+    assertEquals (1, aRegistry.getAllUnhealthy ().size ());
+    assertEquals ("IOException - down", aHealth.getLastError ());
+    try
+    {
+      aHealth.acquirePermission ();
+      fail ();
+    }
+    catch (final AS4CircuitOpenException ex)
+    {
+      assertEquals (10_000, ex.getRetryAfterMillis ());
+    }
+    assertEquals (1, aHealth.getTotalRejected ());
+
+    // After the open duration a single probe is permitted
+    aNow.addAndGet (10_000);
+    assertEquals (EAS4CircuitState.HALF_OPEN, aHealth.getState ());
+    aHealth.acquirePermission ();
+    assertFalse (aHealth.isCallPermitted ());
+    try
+    {
+      aHealth.acquirePermission ();
+      fail ();
+    }
+    catch (final AS4CircuitOpenException ex)
+    {
+      // expected
+    }
+
+    // Failed probe opens it again
+    aHealth.onFailure (20, null);
+    assertEquals (EAS4CircuitState.OPEN, aHealth.getState ());
+
+    // Successful probe closes it
+    aNow.addAndGet (10_000);
+    aHealth.acquirePermission ();
+    aHealth.onSuccess (40);
+    assertEquals (EAS4CircuitState.CLOSED, aHealth.getState ());
+    assertEquals (0, aHealth.getConsecutiveFailures ());
+    assertEquals (1, aHealth.getTotalSuccesses ());
+    assertEquals (4, aHealth.getTotalFailures ());
+
+    // Window of 4: 30, 20 (failures), 40 (success) and 10 (failure)
+    assertEquals (75, aHealth.getFailureRate (), 0.001);
+    assertEquals (20, aHealth.getLatencyPercentile (50));
+    assertEquals (40, aHealth.getLatencyPercentile (99));
+    assertEquals (10, aHealth.getLatencyPercentile (0));
+  }
+
+  @Test
+  public void testPosterFailsFast () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      aCalls.incrementAndGet ();
+      aExchange.sendResponseHeaders (503, 0);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        // empty
+      }
+    });
+    aServer.start ();
+    try
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final AS4EndpointHealthRegistry aRegistry = new AS4EndpointHealthRegistry (2,
+                                                                                 Duration.ofMinutes (1),
+                                                                                 16,
+                                                                                 System::currentTimeMillis);
+      // Each poster call must be a single HTTP call - so disable the
+      // automatic 503 retry of the HttpClient
+      final BasicHttpPoster aPoster = new BasicHttpPoster ().setHttpClientFactory (new HttpClientFactory ()
+      {
+        @Override
+        public HttpClientBuilder createHttpClientBuilder ()
+        {
+          return super.createHttpClientBuilder ().disableAutomaticRetries ();
+        }
+      }).setEndpointHealthRegistry (aRegistry);
+      final HttpRetrySettings aRetrySettings = new HttpRetrySettings ().setMaxRetries (5)
+                                                                       .setDurationBeforeRetry (Duration.ofMillis (1));
+      try
+      {
+        aPoster.sendGenericMessageWithRetries (sURL,
+                                               null,
+                                               new ByteArrayEntity ("<test/>".getBytes (StandardCharsets.UTF_8),
+                                                                    ContentType.APPLICATION_XML),
+                                               "msg1",
+                                               aRetrySettings,
+                                               new ResponseHandlerByteArray (),
+                                               null,
+                                               null);
+        fail ();
+      }
+      catch (final AS4CircuitOpenException ex)
+      {
+        // Retrying stopped once the circuit opened
+        assertEquals (sURL, ex.getURL ());
+      }
+      assertEquals (2, aCalls.get ());
+
+      final AS4EndpointHealth aHealth = aRegistry.getHealth (sURL);
+      assertNotNull (aHealth);
+      assertEquals (EAS4CircuitState.OPEN, aHealth.getState ());
+      assertEquals (100, aHealth.getFailureRate (), 0.001);
+
+      try
+      {
+        aPoster.checkEndpointAvailable (sURL);
+        fail ();
+      }
+      catch (final AS4CircuitOpenException ex)
+      {
+        // expected
+      }
+      assertEquals (2, aCalls.get ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testEndpointFailureClassification ()
+  {
+    final AS4EndpointHealthRegistry aRegistry = new AS4EndpointHealthRegistry ();
+    assertTrue (aRegistry.isEndpointFailure (new HttpResponseException (500, "error")));
+    assertTrue (aRegistry.isEndpointFailure (new HttpResponseException (503, "unavailable")));
+    assertTrue (aRegistry.isEndpointFailure (new SocketTimeoutException ("timeout")));
+    assertTrue (aRegistry.isEndpointFailure (new ConnectException ("refused")));
+    assertFalse (aRegistry.isEndpointFailure (new HttpResponseException (400, "bad request")));
+    assertFalse (aRegistry.isEndpointFailure (new HttpResponseException (404, "not found")));
+    assertFalse (aRegistry.isEndpointFailure (new IOException ("local")));
+    assertFalse (aRegistry.isEndpointFailure (new IllegalStateException ("local")));
+  }
+
+  @Test
+  public void testMaxEndpoints ()
+  {
+    final AS4EndpointHealthRegistry aRegistry = new AS4EndpointHealthRegistry (3,
+                                                                               Duration.ofSeconds (10),
+                                                                               4,
+                                                                               System::currentTimeMillis,
+                                                                               2);
+    assertEquals (2, aRegistry.getMaxEndpoints ());
+    final AS4EndpointHealth aHealth1 = aRegistry.getOrCreateHealth (URL + "1");
+    aRegistry.getOrCreateHealth (URL + "2");
+    // Marks endpoint 1 as recently used
+    assertTrue (aHealth1 == aRegistry.getOrCreateHealth (URL + "1"));
+    aRegistry.getOrCreateHealth (URL + "3");
+    assertEquals (2, aRegistry.getAllHealths ().size ());
+    assertNotNull (aRegistry.getHealth (URL + "1"));
+    assertNull (aRegistry.getHealth (URL + "2"));
+    assertNotNull (aRegistry.getHealth (URL + "3"));
+  }
+
+  @Test
+  public void testPosterClientErrorKeepsCircuitClosed () throws Exception
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      aExchange.sendResponseHeaders (404, 0);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        // empty
+      }
+    });
+    aServer.start ();
+    try
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final AS4EndpointHealthRegistry aRegistry = new AS4EndpointHealthRegistry (1,
+                                                                                 Duration.ofMinutes (1),
+                                                                                 16,
+                                                                                 System::currentTimeMillis);
+      final BasicHttpPoster aPoster = new BasicHttpPoster ().setEndpointHealthRegistry (aRegistry);
+      for (int i = 0; i < 3; ++i)
+      {
+        try
+        {
+          aPoster.sendGenericMessage (sURL,
+                                      null,
+                                      new ByteArrayEntity ("<test/>".getBytes (StandardCharsets.UTF_8),
+                                                           ContentType.APPLICATION_XML),
+                                      new ResponseHandlerByteArray ());
+          fail ();
+        }
+        catch (final HttpResponseException ex)
+        {
+          assertEquals (404, ex.getStatusCode ());
+        }
+      }
+
+      // The endpoint answered, so it is alive
+      final AS4EndpointHealth aHealth = aRegistry.getHealth (sURL);
+      assertNotNull (aHealth);
+      assertEquals (EAS4CircuitState.CLOSED, aHealth.getState ());
+      assertEquals (0, aHealth.getConsecutiveFailures ());
+      assertEquals (0, aHealth.getTotalFailures ());
+      assertTrue (aRegistry.isCallPermitted (sURL));
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.pool.PoolStats;
+import org.junit.Test;
+
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+
+/**
+ * Test class for class {@link AS4HttpClientPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4HttpClientPoolTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    final AS4HttpClientPool aPool = new AS4HttpClientPool (new HttpClientFactory ());
+    try
+    {
+      assertFalse (aPool.isClosed ());
+      aPool.setMaxPerRoute (new HttpHost ("https", "localhost", 443), 5);
+
+      final PoolStats aStats = aPool.getTotalStats ();
+      assertEquals (0, aStats.getLeased ());
+      assertEquals (0, aStats.getPending ());
+      assertEquals (0, aStats.getAvailable ());
+      assertEquals (AS4HttpClientPool.DEFAULT_MAX_TOTAL, aStats.getMax ());
+      assertEquals (5, aPool.getStats (new HttpHost ("https", "localhost", 443)).getMax ());
+      // The default port is resolved like for the actual requests
+      assertEquals (5, aPool.getStats (new HttpHost ("https", "localhost", -1)).getMax ());
+      assertEquals (AS4HttpClientPool.DEFAULT_MAX_PER_ROUTE,
+                    aPool.getStats (new HttpHost ("http", "localhost", -1)).getMax ());
+    }
+    finally
+    {
+      aPool.close ();
+    }
+    assertTrue (aPool.isClosed ());
+    // Closing twice is okay
+    aPool.close ();
+
+    try
+    {
+      aPool.execute (new HttpPost ("http://localhost:12345/as4"), new ResponseHandlerByteArray ());
+      fail ();
+    }
+    catch (final IllegalStateException ex)
+    {
+      // expected
+    }
+  }
+}
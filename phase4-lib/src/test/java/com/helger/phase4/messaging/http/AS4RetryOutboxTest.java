@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.EContinue;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.model.error.EEbmsError;
+import com.helger.phase4.model.message.AS4ErrorMessage;
+import com.helger.phase4.model.message.AS4ReceiptMessage;
+import com.helger.phase4.model.message.MessageHelperMethods;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4RetryOutbox}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4RetryOutboxTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Nonnull
+  private static File _createDir (@Nonnull final String sName)
+  {
+    final File aDir = new File ("target/test-retry-outbox/" + sName);
+    FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+    return aDir;
+  }
+
+  @Nonnull
+  private static byte [] _createReceipt (@Nonnull final String sMessageID)
+  {
+    final AS4ReceiptMessage aReceipt = AS4ReceiptMessage.create (ESoapVersion.SOAP_12,
+                                                                 MessageHelperMethods.createRandomMessageID (),
+                                                                 null,
+                                                                 null,
+                                                                 false);
+    aReceipt.getEbms3SignalMessage ().getMessageInfo ().setRefToMessageId (sMessageID);
+    // The receipt may not be empty
+    aReceipt.getEbms3SignalMessage ()
+            .getReceipt ()
+            .addAny (DOMReader.readXMLDOM ("<test:Receipt xmlns:test=\"urn:phase4:test\"/>").getDocumentElement ());
+    return XMLWriter.getNodeAsString (aReceipt.getAsSoapDocument ()).getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private static byte [] _createErrorSignal (@Nonnull final String sMessageID)
+  {
+    final AS4ErrorMessage aError = AS4ErrorMessage.create (ESoapVersion.SOAP_12,
+                                                           sMessageID,
+                                                           new CommonsArrayList <> (EEbmsError.EBMS_OTHER.errorBuilder (Locale.US)
+                                                                                                         .refToMessageInError (sMessageID)
+                                                                                                         .errorDetail ("Rejected")
+                                                                                                         .build ()));
+    return XMLWriter.getNodeAsString (aError.getAsSoapDocument ()).getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private static HttpServer _createServer (final int nFailures,
+                                           @Nonnull final AtomicInteger aCalls,
+                                           @Nonnull final byte [] aResponse) throws IOException
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      // Answer with the provided signal - but fail the first calls
+      try (final InputStream aIS = aExchange.getRequestBody ())
+      {
+        StreamHelper.getAllBytes (aIS);
+      }
+      // Use 500 and not 503, because the HttpClient retries 503 on its own
+      final int nStatus = aCalls.incrementAndGet () <= nFailures ? 500 : 200;
+      aExchange.getResponseHeaders ().add (CHttpHeader.CONTENT_TYPE, ESoapVersion.SOAP_12.getMimeType ().getAsString ());
+      aExchange.sendResponseHeaders (nStatus, aResponse.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aResponse);
+      }
+    });
+    aServer.start ();
+    return aServer;
+  }
+
+  @Nonnull
+  private static IAS4RetryOutboxListener _createListener (@Nonnull final CompletableFuture <byte []> aResult)
+  {
+    return new IAS4RetryOutboxListener ()
+    {
+      @Override
+      public void onDelivered (final String sMessageID, final String sURL, final int nTry, final byte [] aResponseBytes)
+      {
+        aResult.complete (aResponseBytes);
+      }
+
+      @Override
+      public void onFailed (final String sMessageID, final String sURL, final int nTry, final Exception ex)
+      {
+        aResult.completeExceptionally (ex);
+      }
+    };
+  }
+
+  @Test
+  public void testRetryWithoutBlocking () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final byte [] aReceipt = _createReceipt ("msg1");
+    final HttpServer aServer = _createServer (2, aCalls, aReceipt);
+    final File aDir = _createDir ("retry");
+    final CompletableFuture <byte []> aResult = new CompletableFuture <> ();
+    final AtomicInteger aCallbacks = new AtomicInteger (0);
+    try (final AS4RetryOutbox aOutbox = new AS4RetryOutbox (aDir,
+                                                            new BasicHttpPoster (),
+                                                            Duration.ofMillis (5),
+                                                            64,
+                                                            System::currentTimeMillis))
+    {
+      aOutbox.setListener (_createListener (aResult));
+      aOutbox.start ();
+
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final byte [] aPayload = "<test/>".getBytes (StandardCharsets.UTF_8);
+      final BasicHttpPoster aPoster = new BasicHttpPoster ().setRetryOutbox (aOutbox);
+      final HttpRetrySettings aRetrySettings = new HttpRetrySettings ().setMaxRetries (3)
+                                                                       .setDurationBeforeRetry (Duration.ofMillis (10));
+      try
+      {
+        aPoster.sendGenericMessageWithRetries (sURL,
+                                               null,
+                                               new ByteArrayEntity (aPayload, ContentType.APPLICATION_XML),
+                                               "msg1",
+                                               aRetrySettings,
+                                               new ResponseHandlerByteArray (),
+                                               null,
+                                               (sMessageID, sURL2, nTry, nMaxTries, nRetryIntervalMS, ex) -> {
+                                                 aCallbacks.incrementAndGet ();
+                                                 return EContinue.CONTINUE;
+                                               });
+        fail ();
+      }
+      catch (final AS4RetryScheduledException ex)
+      {
+        assertEquals ("msg1", ex.getMessageID ());
+        assertTrue (AS4RetryScheduledException.isRetryScheduled (ex));
+      }
+      // Only the first try happened in the calling thread
+      assertEquals (1, aOutbox.getPendingCount ());
+
+      assertArrayEquals (aReceipt, aResult.get (10, TimeUnit.SECONDS));
+      assertEquals (3, aCalls.get ());
+      assertEquals (2, aCallbacks.get ());
+      assertEquals (0, aOutbox.getPendingCount ());
+      assertEquals (0, aDir.list ().length);
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testSurvivesRestart () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final byte [] aReceipt = _createReceipt ("msg2");
+    final HttpServer aServer = _createServer (1, aCalls, aReceipt);
+    final File aDir = _createDir ("restart");
+    try
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final byte [] aPayload = "<restart/>".getBytes (StandardCharsets.UTF_8);
+      final HttpRetrySettings aRetrySettings = new HttpRetrySettings ().setMaxRetries (1)
+                                                                       .setDurationBeforeRetry (Duration.ofMinutes (1));
+      try (final AS4RetryOutbox aOutbox = new AS4RetryOutbox (aDir, new BasicHttpPoster ()))
+      {
+        aOutbox.start ();
+        new BasicHttpPoster ().setRetryOutbox (aOutbox)
+                              .sendGenericMessageWithRetries (sURL,
+                                                              null,
+                                                              new ByteArrayEntity (aPayload,
+                                                                                   ContentType.APPLICATION_XML),
+                                                              "msg2",
+                                                              aRetrySettings,
+                                                              new ResponseHandlerByteArray (),
+                                                              null,
+                                                              null);
+        fail ();
+      }
+      catch (final AS4RetryScheduledException ex)
+      {
+        // expected
+      }
+      assertEquals (1, aDir.list ().length);
+      assertEquals (1, aCalls.get ());
+
+      // Restart with a clock that is past the due time
+      final CompletableFuture <byte []> aResult = new CompletableFuture <> ();
+      try (final AS4RetryOutbox aOutbox = new AS4RetryOutbox (aDir,
+                                                              new BasicHttpPoster (),
+                                                              Duration.ofMillis (5),
+                                                              64,
+                                                              () -> System.currentTimeMillis () +
+                                                                    Duration.ofHours (1).toMillis ()))
+      {
+        aOutbox.setListener (_createListener (aResult));
+        aOutbox.start ();
+        assertEquals ("msg2", aOutbox.getAllPendingMessageIDs ().getFirstOrNull ());
+
+        assertArrayEquals (aReceipt, aResult.get (10, TimeUnit.SECONDS));
+        assertEquals (2, aCalls.get ());
+        assertEquals (0, aDir.list ().length);
+      }
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testErrorSignalIsFinal () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final HttpServer aServer = _createServer (1, aCalls, _createErrorSignal ("msg3"));
+    final File aDir = _createDir ("error");
+    final CompletableFuture <byte []> aResult = new CompletableFuture <> ();
+    try (final AS4RetryOutbox aOutbox = new AS4RetryOutbox (aDir,
+                                                            new BasicHttpPoster (),
+                                                            Duration.ofMillis (5),
+                                                            64,
+                                                            System::currentTimeMillis))
+    {
+      aOutbox.setListener (_createListener (aResult));
+      aOutbox.start ();
+
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final HttpRetrySettings aRetrySettings = new HttpRetrySettings ().setMaxRetries (3)
+                                                                       .setDurationBeforeRetry (Duration.ofMillis (10));
+      try
+      {
+        new BasicHttpPoster ().setRetryOutbox (aOutbox)
+                              .sendGenericMessageWithRetries (sURL,
+                                                              null,
+                                                              new ByteArrayEntity ("<error/>".getBytes (StandardCharsets.UTF_8),
+                                                                                   ContentType.APPLICATION_XML),
+                                                              "msg3",
+                                                              aRetrySettings,
+                                                              new ResponseHandlerByteArray (),
+                                                              null,
+                                                              null);
+        fail ();
+      }
+      catch (final AS4RetryScheduledException ex)
+      {
+        // expected
+      }
+
+      // The error signal is final - no further retries
+      try
+      {
+        aResult.get (10, TimeUnit.SECONDS);
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof AS4ErrorSignalException);
+        final AS4ErrorSignalException aErrorEx = (AS4ErrorSignalException) ex.getCause ();
+        assertEquals ("msg3", aErrorEx.getMessageID ());
+        assertEquals (1, aErrorEx.getAllErrors ().size ());
+      }
+      assertEquals (2, aCalls.get ());
+      assertEquals (0, aOutbox.getPendingCount ());
+      assertEquals (0, aDir.list ().length);
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.core5.http.ContentTooLongException;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link BasicAsyncHttpPoster}.
+ *
+ * @author Philip Helger
+ */
+public final class BasicAsyncHttpPosterTest
+{
+  @Nonnull
+  private static HttpServer _createServer (@Nonnull final AtomicInteger aCalls) throws IOException
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/as4", aExchange -> {
+      // Echo the request body - but fail the first call
+      final byte [] aBody;
+      try (final InputStream aIS = aExchange.getRequestBody ())
+      {
+        aBody = StreamHelper.getAllBytes (aIS);
+      }
+      final int nStatus = aCalls.incrementAndGet () == 1 ? 503 : 200;
+      aExchange.sendResponseHeaders (nStatus, aBody.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aBody);
+      }
+    });
+    aServer.start ();
+    return aServer;
+  }
+
+  @Test
+  public void testRetry () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final HttpServer aServer = _createServer (aCalls);
+    try (final AS4AsyncHttpClientPool aPool = new AS4AsyncHttpClientPool (new HttpClientFactory ()))
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final byte [] aPayload = "<test/>".getBytes (StandardCharsets.UTF_8);
+      final BasicAsyncHttpPoster aPoster = new BasicAsyncHttpPoster (aPool);
+
+      // With retry
+      final HttpRetrySettings aRetrySettings = new HttpRetrySettings ().setMaxRetries (2)
+                                                                       .setDurationBeforeRetry (Duration.ofMillis (10));
+      final byte [] aResponse = aPoster.sendGenericMessageWithRetriesAsync (sURL,
+                                                                            null,
+                                                                            new ByteArrayEntity (aPayload,
+                                                                                                 ContentType.APPLICATION_XML),
+                                                                            "msg-1",
+                                                                            aRetrySettings,
+                                                                            new ResponseHandlerByteArray (),
+                                                                            null,
+                                                                            null)
+                                       .get (10, TimeUnit.SECONDS);
+      assertArrayEquals (aPayload, aResponse);
+      assertEquals (2, aCalls.get ());
+
+      // Without retry - the error is propagated
+      aCalls.set (0);
+      try
+      {
+        aPoster.sendGenericMessageWithRetriesAsync (sURL,
+                                                    null,
+                                                    new ByteArrayEntity (aPayload, ContentType.APPLICATION_XML),
+                                                    "msg-2",
+                                                    new HttpRetrySettings ().setMaxRetries (0),
+                                                    new ResponseHandlerByteArray (),
+                                                    null,
+                                                    null)
+               .get (10, TimeUnit.SECONDS);
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof IOException);
+      }
+      assertEquals (1, aCalls.get ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+
+  @Test
+  public void testMaxResponseSize () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (1);
+    final HttpServer aServer = _createServer (aCalls);
+    try (final AS4AsyncHttpClientPool aPool = new AS4AsyncHttpClientPool (new HttpClientFactory ()))
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final byte [] aPayload = "<too-large/>".getBytes (StandardCharsets.UTF_8);
+      final BasicAsyncHttpPoster aPoster = new BasicAsyncHttpPoster (aPool).setMaxResponseSize (aPayload.length - 1);
+      try
+      {
+        aPoster.sendGenericMessageWithRetriesAsync (sURL,
+                                                    null,
+                                                    new ByteArrayEntity (aPayload, ContentType.APPLICATION_XML),
+                                                    "msg-3",
+                                                    new HttpRetrySettings ().setMaxRetries (2)
+                                                                            .setDurationBeforeRetry (Duration.ofMillis (10)),
+                                                    new ResponseHandlerByteArray (),
+                                                    null,
+                                                    null)
+               .get (10, TimeUnit.SECONDS);
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof ContentTooLongException);
+      }
+      // Not retried
+      assertEquals (2, aCalls.get ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.model.message.AS4PullRequestMessage;
+import com.helger.phase4.model.message.MessageHelperMethods;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link HttpAS4MessageEntity}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpAS4MessageEntityTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    for (final ESoapVersion eSoapVersion : ESoapVersion.values ())
+    {
+      final AS4PullRequestMessage aMsg = AS4PullRequestMessage.create (eSoapVersion,
+                                                                       MessageHelperMethods.createEbms3MessageInfo (),
+                                                                       "urn:test:mpc",
+                                                                       null);
+      final HttpAS4MessageEntity aEntity = new HttpAS4MessageEntity (aMsg, null, eSoapVersion.getMimeType ());
+      assertTrue (aEntity.isRepeatable ());
+
+      // The real length is known - no chunked encoding
+      final byte [] aExpected = StreamHelper.getAllBytes (aEntity.getContent ());
+      assertTrue (aExpected.length > 0);
+      assertEquals (aExpected.length, aEntity.getContentLength ());
+
+      // Written twice
+      for (int i = 0; i < 2; ++i)
+        try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+        {
+          aEntity.writeTo (aBAOS);
+          assertArrayEquals (aExpected, aBAOS.toByteArray ());
+        }
+
+      final Document aDoc = DOMReader.readXMLDOM (aExpected);
+      assertNotNull (aDoc);
+      assertEquals (eSoapVersion.getNamespaceURI (), aDoc.getDocumentElement ().getNamespaceURI ());
+    }
+  }
+}
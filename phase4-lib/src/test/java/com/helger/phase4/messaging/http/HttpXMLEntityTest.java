@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.util.AS4XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link HttpXMLEntity}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpXMLEntityTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM ("<root xmlns='urn:test'><child attr='a&amp;b'>Grüße</child></root>");
+    final byte [] aExpected = AS4XMLHelper.serializeXML (aDoc).getBytes (AS4XMLHelper.XWS.getCharset ());
+
+    final HttpXMLEntity aEntity = new HttpXMLEntity (aDoc, ESoapVersion.SOAP_12.getMimeType (), true);
+    assertTrue (aEntity.isRepeatable ());
+    assertTrue (aEntity.isChunked ());
+    assertFalse (aEntity.isSerializedBytesCached ());
+    assertEquals (-1, aEntity.getContentLength ());
+
+    // Streamed twice
+    for (int i = 0; i < 2; ++i)
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        aEntity.writeTo (aBAOS);
+        assertArrayEquals (aExpected, aBAOS.toByteArray ());
+      }
+    assertFalse (aEntity.isSerializedBytesCached ());
+
+    // Cache the serialized bytes
+    final byte [] aBytes = aEntity.getSerializedBytes ();
+    assertArrayEquals (aExpected, aBytes);
+    assertTrue (aEntity.isSerializedBytesCached ());
+    assertSame (aBytes, aEntity.getSerializedBytes ());
+    assertEquals (aExpected.length, aEntity.getContentLength ());
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aEntity.writeTo (aBAOS);
+      assertArrayEquals (aExpected, aBAOS.toByteArray ());
+    }
+    assertArrayEquals (aExpected, StreamHelper.getAllBytes (aEntity.getContent ()));
+  }
+
+  @Test
+  public void testNotChunkedByDefault () throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM ("<root xmlns='urn:test'><child attr='a&amp;b'>Grüße</child></root>");
+    final byte [] aExpected = AS4XMLHelper.serializeXML (aDoc).getBytes (AS4XMLHelper.XWS.getCharset ());
+
+    final HttpXMLEntity aEntity = new HttpXMLEntity (aDoc, ESoapVersion.SOAP_12.getMimeType ());
+    assertFalse (aEntity.isChunked ());
+    // The real length is reported
+    assertEquals (aExpected.length, aEntity.getContentLength ());
+    assertTrue (aEntity.isSerializedBytesCached ());
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aEntity.writeTo (aBAOS);
+      assertArrayEquals (aExpected, aBAOS.toByteArray ());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.mgr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.helger.commons.state.EChange;
+
+/**
+ * Test class for class {@link AS4SPIRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SPIRegistryTest
+{
+  /**
+   * SPI interface without any implementation in META-INF/services
+   */
+  public interface IMockSPI
+  {}
+
+  @Test
+  public void testBasic ()
+  {
+    final List <IMockSPI> aList = AS4SPIRegistry.getAll (IMockSPI.class);
+    assertTrue (aList.isEmpty ());
+    // Same snapshot
+    assertSame (aList, AS4SPIRegistry.getAll (IMockSPI.class));
+
+    try
+    {
+      aList.add (new IMockSPI ()
+      {});
+      fail ();
+    }
+    catch (final UnsupportedOperationException ex)
+    {
+      // expected
+    }
+
+    final IMockSPI aImpl = new IMockSPI ()
+    {};
+    AS4SPIRegistry.register (IMockSPI.class, aImpl);
+    try
+    {
+      final List <IMockSPI> aList2 = AS4SPIRegistry.getAll (IMockSPI.class);
+      assertNotSame (aList, aList2);
+      assertEquals (1, aList2.size ());
+      assertSame (aImpl, aList2.get (0));
+
+      // Registrations survive a reload
+      AS4SPIRegistry.reload (IMockSPI.class);
+      assertEquals (1, AS4SPIRegistry.getAll (IMockSPI.class).size ());
+    }
+    finally
+    {
+      assertSame (EChange.CHANGED, AS4SPIRegistry.unregister (IMockSPI.class, aImpl));
+    }
+    assertSame (EChange.UNCHANGED, AS4SPIRegistry.unregister (IMockSPI.class, aImpl));
+    assertTrue (AS4SPIRegistry.getAll (IMockSPI.class).isEmpty ());
+  }
+
+  @Test
+  public void testConcurrentRegister () throws Exception
+  {
+    for (int i = 0; i < 200; ++i)
+    {
+      AS4SPIRegistry.reload (IMockSPI.class);
+      final Thread aReader = new Thread ( () -> AS4SPIRegistry.getAll (IMockSPI.class));
+      aReader.start ();
+      final IMockSPI aImpl = new IMockSPI ()
+      {};
+      AS4SPIRegistry.register (IMockSPI.class, aImpl);
+      try
+      {
+        aReader.join ();
+        // A snapshot created concurrently must never hide the registration
+        assertTrue (AS4SPIRegistry.getAll (IMockSPI.class).contains (aImpl));
+      }
+      finally
+      {
+        AS4SPIRegistry.unregister (IMockSPI.class, aImpl);
+      }
+    }
+  }
+}
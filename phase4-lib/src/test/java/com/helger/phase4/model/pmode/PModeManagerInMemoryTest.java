@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.model.pmode;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.model.EMEP;
+import com.helger.phase4.model.EMEPBinding;
+import com.helger.phase4.model.pmode.leg.PModeLeg;
+import com.helger.phase4.model.pmode.leg.PModeLegBusinessInformation;
+
+/**
+ * Test class for class {@link PModeManagerInMemory}.
+ *
+ * @author Philip Helger
+ */
+public final class PModeManagerInMemoryTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Nonnull
+  private static PMode _createPMode (@Nonnull final String sID,
+                                     @Nonnull final String sInitiatorID,
+                                     @Nonnull final String sService,
+                                     @Nonnull final String sAction)
+  {
+    return new PMode (sID,
+                      PModeParty.createSimple (sInitiatorID, "initiator"),
+                      PModeParty.createSimple ("responder", "responder"),
+                      "agreement",
+                      EMEP.ONE_WAY,
+                      EMEPBinding.PUSH,
+                      new PModeLeg (null,
+                                    PModeLegBusinessInformation.create (sService, sAction, null, null),
+                                    null,
+                                    null,
+                                    null),
+                      null,
+                      null,
+                      null);
+  }
+
+  @Test
+  public void testIndex ()
+  {
+    final PModeManagerInMemory aMgr = new PModeManagerInMemory ();
+    final PMode p1 = _createPMode ("p1", "i1", "s1", "a1");
+    final PMode p2 = _createPMode ("p2", "i2", "s2", "a2");
+    aMgr.createPMode (p1);
+    aMgr.createPMode (p2);
+
+    assertSame (p1, aMgr.getPModeOfServiceAndAction ("s1", "a1"));
+    assertSame (p2, aMgr.getPModeOfServiceAndAction ("s2", "a2"));
+    assertNull (aMgr.getPModeOfServiceAndAction ("s1", "a2"));
+    assertSame (p1,
+                aMgr.getPModeOfInitiatorAndResponder (PModeParty.createSimple ("i1", "initiator"),
+                                                      PModeParty.createSimple ("responder", "responder")));
+
+    // Update changes the keys
+    aMgr.updatePMode (_createPMode ("p1", "i3", "s3", "a3"));
+    assertNull (aMgr.getPModeOfServiceAndAction ("s1", "a1"));
+    assertSame (p1, aMgr.getPModeOfServiceAndAction ("s3", "a3"));
+    assertNull (aMgr.getPModeOfInitiatorAndResponder (PModeParty.createSimple ("i1", "initiator"),
+                                                      PModeParty.createSimple ("responder", "responder")));
+
+    // Existing by initiator and responder - no new PMode
+    aMgr.createOrUpdatePMode (_createPMode ("p4", "i2", "s4", "a4"));
+    assertNull (aMgr.getPModeOfID ("p4"));
+
+    aMgr.deletePMode ("p2");
+    assertNull (aMgr.getPModeOfServiceAndAction ("s2", "a2"));
+
+    // Modified in place before deletion - the old keys must be removed
+    final PMode p5 = _createPMode ("p5", "i5", "s5", "a5");
+    aMgr.createPMode (p5);
+    p5.setLeg1 (_createPMode ("dummy", "i6", "s6", "a6").getLeg1 ());
+    p5.setInitiator (PModeParty.createSimple ("i6", "initiator"));
+    aMgr.deletePMode ("p5");
+    assertNull (aMgr.getPModeOfServiceAndAction ("s5", "a5"));
+    assertNull (aMgr.getPModeOfServiceAndAction ("s6", "a6"));
+    assertNull (aMgr.getPModeOfInitiatorAndResponder (PModeParty.createSimple ("i5", "initiator"),
+                                                      PModeParty.createSimple ("responder", "responder")));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.model.pmode.resolve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.model.pmode.IPMode;
+
+/**
+ * Test class for class {@link CachingPModeResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class CachingPModeResolverTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Test
+  public void testBasic ()
+  {
+    final CachingPModeResolver aResolver = new CachingPModeResolver (null, true, 1);
+    final long nEvictions = CachingPModeResolver.getEvictionStatistics ().getCount ();
+    final int nHits = CachingPModeResolver.getCacheStatistics ().getHits ();
+
+    final IPMode p1 = aResolver.findPMode (null, "s", "a", "i1", "r1", null, "http://a");
+    assertNotNull (p1);
+    assertSame (p1, aResolver.findPMode (null, "s", "a", "i1", "r1", null, "http://a"));
+    assertEquals (nHits + 1, CachingPModeResolver.getCacheStatistics ().getHits ());
+    assertEquals (1, aResolver.getCachedCount ());
+
+    // Never persisted
+    assertNull (MetaAS4Manager.getPModeMgr ().getPModeOfID (p1.getID ()));
+
+    // Evicts the first one
+    final IPMode p2 = aResolver.findPMode (null, "s", "a", "i2", "r1", null, "http://a");
+    assertNotSame (p1, p2);
+    assertEquals (1, aResolver.getCachedCount ());
+    assertEquals (nEvictions + 1, CachingPModeResolver.getEvictionStatistics ().getCount ());
+    assertNotSame (p1, aResolver.findPMode (null, "s", "a", "i1", "r1", null, "http://a"));
+
+    aResolver.clearCache ();
+    assertEquals (0, aResolver.getCachedCount ());
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.tools;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.resource.FileSystemResource;
+import com.helger.phase4.crypto.AS4CryptoFactoryProperties;
+import com.helger.phase4.crypto.AS4CryptoProperties;
+import com.helger.phase4.dump.AS4DumpReplayResult;
+import com.helger.phase4.dump.AS4DumpReplayer;
+import com.helger.phase4.dump.IAS4DumpReplaySink;
+
+/**
+ * This is a small tool that demonstrates how all "as4in" files of a directory
+ * can be decrypted in parallel. If it is interrupted, it continues where it
+ * stopped.
+ *
+ * @author Philip Helger
+ */
+public final class MainBulkReplayAS4In
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainBulkReplayAS4In.class);
+
+  public static void main (final String [] args) throws Exception
+  {
+    final File folder = new File ("src/test/resources/incoming/");
+    if (!folder.isDirectory ())
+      throw new IllegalStateException ();
+    final File aTargetDir = new File (folder, "decrypted");
+    FileOperationManager.INSTANCE.createDirIfNotExisting (aTargetDir);
+
+    final AS4CryptoProperties aCP = new AS4CryptoProperties (new FileSystemResource (folder, "crypto.properties"));
+    aCP.setKeyStorePath (folder.getAbsolutePath () + "/" + aCP.getKeyStorePath ());
+    aCP.setTrustStorePath (folder.getAbsolutePath () + "/" + aCP.getTrustStorePath ());
+
+    // One crypto factory for all threads
+    final AS4CryptoFactoryProperties aCryptoFactory = new AS4CryptoFactoryProperties (aCP);
+    final AS4DumpReplayResult aResult = new AS4DumpReplayer (aCryptoFactory,
+                                                             aCryptoFactory,
+                                                             IAS4DumpReplaySink.createForDirectory (aTargetDir)).setCheckpointFile (new File (folder,
+                                                                                                                                             "replay-checkpoint.txt"))
+                                                                                                                 .replayDirectory (folder);
+    LOGGER.info ("Replayed " +
+                 aResult.getProcessedCount () +
+                 " dumps with " +
+                 aResult.getPayloadCount () +
+                 " payloads in " +
+                 aResult.getDuration () +
+                 " (" +
+                 Math.round (aResult.getDumpsPerSecond ()) +
+                 " dumps/s)");
+  }
+}
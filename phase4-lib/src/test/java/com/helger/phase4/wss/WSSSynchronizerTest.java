@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.wss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link WSSSynchronizer}.
+ *
+ * @author Philip Helger
+ */
+public final class WSSSynchronizerTest
+{
+  @Test
+  public void testNestedCalls ()
+  {
+    final long nInvocations = WSSSynchronizer.getInvocationStatistics ().getCount ();
+    final String s = WSSSynchronizer.call ( () -> {
+      assertEquals (1, WSSSynchronizer.getActiveCount ());
+      return WSSSynchronizer.call ( () -> {
+        assertEquals (2, WSSSynchronizer.getActiveCount ());
+        return "abc";
+      });
+    });
+    assertEquals ("abc", s);
+    assertEquals (0, WSSSynchronizer.getActiveCount ());
+    assertTrue (WSSSynchronizer.getInvocationStatistics ().getCount () >= nInvocations + 2);
+  }
+
+  @Test
+  public void testMode ()
+  {
+    for (final EWSSSynchronizerMode e : EWSSSynchronizerMode.values ())
+      assertEquals (e, EWSSSynchronizerMode.getFromIDOrNull (e.getID ()));
+    // Default
+    assertEquals (EWSSSynchronizerMode.GLOBAL_LOCK, WSSSynchronizer.getConfiguredMode ());
+  }
+}
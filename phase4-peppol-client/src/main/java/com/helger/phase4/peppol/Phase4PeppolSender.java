@@ -29,6 +29,7 @@ import javax.annotation.Nullable;
 import javax.annotation.OverridingMethodsMustInvokeSuper;
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +40,7 @@ import org.w3c.dom.Element;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.streamprovider.ByteArrayInputStreamProvider;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.state.ESuccess;
@@ -90,6 +92,7 @@ import com.helger.smpclient.peppol.PeppolWildcardSelector;
 import com.helger.smpclient.peppol.SMPClientReadOnly;
 import com.helger.smpclient.url.IPeppolURLProvider;
 import com.helger.smpclient.url.PeppolURLProvider;
+import com.helger.xml.XMLFactory;
 import com.helger.xml.serialize.read.DOMReader;
 import com.helger.xsds.peppol.smp1.EndpointType;
 
@@ -1006,11 +1009,18 @@ public final class Phase4PeppolSender
   @NotThreadSafe
   public static class Builder extends AbstractPeppolUserMessageBuilder <Builder>
   {
+    /**
+     * By default byte and InputStream payloads are parsed to a DOM element
+     * @since 3.0.0
+     */
+    public static final boolean DEFAULT_STREAMING_PAYLOAD = false;
+
     private String m_sSBDHInstanceIdentifier;
     private String m_sSBDHTypeVersion;
     private Element m_aPayloadElement;
     private byte [] m_aPayloadBytes;
     private IHasInputStream m_aPayloadHasIS;
+    private boolean m_bStreamingPayload = DEFAULT_STREAMING_PAYLOAD;
     private Consumer <? super StandardBusinessDocument> m_aSBDDocumentConsumer;
     private Consumer <byte []> m_aSBDBytesConsumer;
 
@@ -1123,6 +1133,33 @@ public final class Phase4PeppolSender
       return this;
     }
 
+    /**
+     * Enable or disable the single-pass handling of byte array and InputStream
+     * provider payloads. If enabled, the payload is not parsed to a DOM
+     * element, but the SBDH is written and the payload bytes are copied as-is
+     * (and optionally compressed) directly into the outgoing attachment. This
+     * reduces the memory footprint and CPU usage for large payloads.<br>
+     * The streaming handling is only used if no validation is configured, if
+     * neither {@link #sbdDocumentConsumer(Consumer)} nor
+     * {@link #sbdBytesConsumer(Consumer)} is set and if the payload can be
+     * streamed (see
+     * {@link Phase4PeppolStreamingSBDHWriter#getStreamableRootElementName(IHasInputStream)}).
+     * In all other cases the payload is parsed as before. Note: in streaming
+     * mode the well-formedness of the payload is not checked before sending.
+     *
+     * @param bStreamingPayload
+     *        <code>true</code> to enable streaming, <code>false</code> to
+     *        disable it.
+     * @return this for chaining
+     * @since 3.0.0
+     */
+    @Nonnull
+    public Builder streamingPayload (final boolean bStreamingPayload)
+    {
+      m_bStreamingPayload = bStreamingPayload;
+      return this;
+    }
+
     /**
      * Use the provided byte array as the binary content of the Peppol SBDH
      * message. Internally the data will be wrapped in a predefined
@@ -1291,42 +1328,52 @@ public final class Phase4PeppolSender
       return validationConfiguration (null, null);
     }
 
+    @Nullable
+    private IHasInputStream _getStreamablePayload ()
+    {
+      if (!m_bStreamingPayload || m_aVESID != null || m_aSBDDocumentConsumer != null || m_aSBDBytesConsumer != null)
+        return null;
+      if (m_aPayloadBytes != null)
+        return new ByteArrayInputStreamProvider (m_aPayloadBytes);
+      return m_aPayloadHasIS;
+    }
+
     @Override
     protected ESuccess finishFields () throws Phase4Exception
     {
+      // Check if the payload can be written in a single pass
+      final IHasInputStream aStreamablePayload = _getStreamablePayload ();
+      final QName aStreamableRootName = aStreamablePayload == null ? null
+                                                                   : Phase4PeppolStreamingSBDHWriter.getStreamableRootElementName (aStreamablePayload);
+
       // Ensure a DOM element is present
       final Element aPayloadElement;
       final boolean bClonePayloadElement;
-      if (m_aPayloadElement != null)
+      if (aStreamableRootName != null)
       {
-        // Already provided as a DOM element
-        aPayloadElement = m_aPayloadElement;
-        bClonePayloadElement = true;
+        // Only the root element is needed to create the SBDH - the payload
+        // itself is never parsed
+        if (StringHelper.hasNoText (aStreamableRootName.getNamespaceURI ()))
+          throw new Phase4PeppolException ("The root element of the payload does not have a namespace URI");
+        aPayloadElement = XMLFactory.newDocument ()
+                                    .createElementNS (aStreamableRootName.getNamespaceURI (),
+                                                      aStreamableRootName.getLocalPart ());
+        bClonePayloadElement = false;
       }
       else
-        if (m_aPayloadBytes != null)
+        if (m_aPayloadElement != null)
         {
-          // Parse it
-          final Document aDoc = DOMReader.readXMLDOM (m_aPayloadBytes);
-          if (aDoc == null)
-            throw new Phase4PeppolException ("Failed to parse payload bytes to a DOM node");
-          aPayloadElement = aDoc.getDocumentElement ();
-          if (aPayloadElement == null)
-            throw new Phase4PeppolException ("The parsed XML document must have a root element");
-          if (aPayloadElement.getNamespaceURI () == null)
-            throw new Phase4PeppolException ("The root element of the parsed XML document does not have a namespace URI");
-          bClonePayloadElement = false;
+          // Already provided as a DOM element
+          aPayloadElement = m_aPayloadElement;
+          bClonePayloadElement = true;
         }
         else
-          if (m_aPayloadHasIS != null)
+          if (m_aPayloadBytes != null)
           {
             // Parse it
-            final InputStream aIS = m_aPayloadHasIS.getBufferedInputStream ();
-            if (aIS == null)
-              throw new Phase4PeppolException ("Failed to create payload InputStream from provider");
-            final Document aDoc = DOMReader.readXMLDOM (aIS);
+            final Document aDoc = DOMReader.readXMLDOM (m_aPayloadBytes);
             if (aDoc == null)
-              throw new Phase4PeppolException ("Failed to parse payload InputStream to a DOM node");
+              throw new Phase4PeppolException ("Failed to parse payload bytes to a DOM node");
             aPayloadElement = aDoc.getDocumentElement ();
             if (aPayloadElement == null)
               throw new Phase4PeppolException ("The parsed XML document must have a root element");
@@ -1335,7 +1382,24 @@ public final class Phase4PeppolSender
             bClonePayloadElement = false;
           }
           else
-            throw new IllegalStateException ("Unexpected - neither element nor bytes nor InputStream provider are present");
+            if (m_aPayloadHasIS != null)
+            {
+              // Parse it
+              final InputStream aIS = m_aPayloadHasIS.getBufferedInputStream ();
+              if (aIS == null)
+                throw new Phase4PeppolException ("Failed to create payload InputStream from provider");
+              final Document aDoc = DOMReader.readXMLDOM (aIS);
+              if (aDoc == null)
+                throw new Phase4PeppolException ("Failed to parse payload InputStream to a DOM node");
+              aPayloadElement = aDoc.getDocumentElement ();
+              if (aPayloadElement == null)
+                throw new Phase4PeppolException ("The parsed XML document must have a root element");
+              if (aPayloadElement.getNamespaceURI () == null)
+                throw new Phase4PeppolException ("The root element of the parsed XML document does not have a namespace URI");
+              bClonePayloadElement = false;
+            }
+            else
+              throw new IllegalStateException ("Unexpected - neither element nor bytes nor InputStream provider are present");
 
       // Consistency check
       if (CSBDH.SBDH_NS.equals (aPayloadElement.getNamespaceURI ()))
@@ -1379,6 +1443,19 @@ public final class Phase4PeppolSender
             .removeIf (x -> CPeppolSBDH.SCOPE_COUNTRY_C1.equals (x.getType ()));
       }
 
+      if (aStreamableRootName != null)
+      {
+        // Write the SBDH and copy the payload in a single pass into the
+        // attachment
+        payload (AS4OutgoingAttachment.builder ()
+                                      .data (new Phase4PeppolStreamingSBDHWriter (aSBD.getStandardBusinessDocumentHeader (),
+                                                                                  aStreamablePayload))
+                                      .mimeType (m_aPayloadMimeType)
+                                      .compression (m_bCompressPayload ? EAS4CompressionMode.GZIP : null)
+                                      .contentID (m_sPayloadContentID));
+        return ESuccess.SUCCESS;
+      }
+
       if (m_aSBDDocumentConsumer != null)
         m_aSBDDocumentConsumer.accept (aSBD);
 
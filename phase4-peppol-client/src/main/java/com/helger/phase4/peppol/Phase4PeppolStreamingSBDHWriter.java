@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.IWriteToStream;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.sbdh.CSBDH;
+import com.helger.sbdh.SBDHMarshaller;
+
+import jakarta.xml.bind.Marshaller;
+
+/**
+ * Write a Standard Business Document in a single pass, without creating a DOM
+ * representation of the business message. The StandardBusinessDocumentHeader
+ * is marshalled as an XML fragment and the bytes of the business message are
+ * copied as-is, only stripping a leading byte order mark and the XML
+ * declaration.<br>
+ * This only works for payloads that are UTF-8 encoded and don't contain a
+ * document type declaration. Use
+ * {@link #getStreamableRootElementName(IHasInputStream)} to check this upfront.
+ * Note: the well-formedness of the payload is not checked beyond its prolog.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@Immutable
+public final class Phase4PeppolStreamingSBDHWriter implements IWriteToStream
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolStreamingSBDHWriter.class);
+
+  private static final String SBD_PREFIX = "sh";
+  private static final byte [] SBD_START = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><" +
+                                            SBD_PREFIX +
+                                            ":StandardBusinessDocument xmlns:" +
+                                            SBD_PREFIX +
+                                            "=\"" +
+                                            CSBDH.SBDH_NS +
+                                            "\">").getBytes (StandardCharsets.UTF_8);
+  private static final byte [] SBD_END = ("</" + SBD_PREFIX + ":StandardBusinessDocument>").getBytes (StandardCharsets.UTF_8);
+  private static final byte [] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+  private static final byte [] XML_DECL_START = "<?xml".getBytes (StandardCharsets.US_ASCII);
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newFactory ();
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    // No DTDs and no external entities
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private final StandardBusinessDocumentHeader m_aSBDH;
+  private final IHasInputStream m_aPayloadProvider;
+
+  /**
+   * Constructor
+   *
+   * @param aSBDH
+   *        The SBDH to be written. May not be <code>null</code>.
+   * @param aPayloadProvider
+   *        The provider for the payload bytes. Must be a streamable payload as
+   *        indicated by
+   *        {@link #getStreamableRootElementName(IHasInputStream)}. May not be
+   *        <code>null</code>.
+   */
+  public Phase4PeppolStreamingSBDHWriter (@Nonnull final StandardBusinessDocumentHeader aSBDH,
+                                          @Nonnull final IHasInputStream aPayloadProvider)
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+    ValueEnforcer.notNull (aPayloadProvider, "PayloadProvider");
+    m_aSBDH = aSBDH;
+    m_aPayloadProvider = aPayloadProvider;
+  }
+
+  private static boolean _isUTF8 (@Nullable final String sEncoding)
+  {
+    return sEncoding == null || StandardCharsets.UTF_8.name ().equalsIgnoreCase (sEncoding);
+  }
+
+  /**
+   * Check if the provided payload can be streamed, and if so determine the
+   * name of the root element. Only the prolog of the payload is read.
+   *
+   * @param aPayloadProvider
+   *        The payload provider to check. May not be <code>null</code>.
+   * @return <code>null</code> if the payload cannot be streamed (because it
+   *         cannot be read multiple times, is not UTF-8 encoded, contains a
+   *         document type declaration or has no well-formed prolog), the
+   *         qualified name of the root element otherwise.
+   */
+  @Nullable
+  public static QName getStreamableRootElementName (@Nonnull final IHasInputStream aPayloadProvider)
+  {
+    ValueEnforcer.notNull (aPayloadProvider, "PayloadProvider");
+
+    // Opened once for checking and once for writing
+    if (!aPayloadProvider.isReadMultiple ())
+      return null;
+
+    try (final InputStream aIS = aPayloadProvider.getBufferedInputStream ())
+    {
+      if (aIS == null)
+        return null;
+
+      final XMLStreamReader aXSR = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      try
+      {
+        if (!_isUTF8 (aXSR.getEncoding ()) || !_isUTF8 (aXSR.getCharacterEncodingScheme ()))
+          return null;
+
+        while (aXSR.hasNext ())
+        {
+          final int nEvent = aXSR.next ();
+          if (nEvent == XMLStreamConstants.DTD)
+            return null;
+          if (nEvent == XMLStreamConstants.START_ELEMENT)
+            return aXSR.getName ();
+        }
+        return null;
+      }
+      finally
+      {
+        aXSR.close ();
+      }
+    }
+    catch (final IOException | XMLStreamException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Payload cannot be streamed: " + ex.getMessage ());
+      return null;
+    }
+  }
+
+  private static boolean _startsWith (@Nonnull final InputStream aIS,
+                                      @Nonnull final byte [] aPrefix,
+                                      final boolean bFollowedByWhitespace) throws IOException
+  {
+    final int nLen = aPrefix.length + (bFollowedByWhitespace ? 1 : 0);
+    aIS.mark (nLen);
+    final byte [] aBuf = new byte [nLen];
+    final int nRead = StreamHelper.readFully (aIS, aBuf, 0, nLen);
+    aIS.reset ();
+    if (nRead != nLen)
+      return false;
+    for (int i = 0; i < aPrefix.length; ++i)
+      if (aBuf[i] != aPrefix[i])
+        return false;
+    if (bFollowedByWhitespace)
+    {
+      // Distinguish "<?xml version..." from e.g. "<?xml-stylesheet ...?>"
+      final byte nLast = aBuf[nLen - 1];
+      return nLast == ' ' || nLast == '\t' || nLast == '\r' || nLast == '\n';
+    }
+    return true;
+  }
+
+  /**
+   * Skip a leading UTF-8 byte order mark and the XML declaration, as the
+   * payload becomes a child element of the Standard Business Document.
+   *
+   * @param aIS
+   *        The input stream to skip the prolog in. Must support mark and reset.
+   * @throws IOException
+   *         In case of read error
+   */
+  private static void _skipXMLDeclaration (@Nonnull @WillNotClose final InputStream aIS) throws IOException
+  {
+    if (_startsWith (aIS, UTF8_BOM, false))
+      StreamHelper.skipFully (aIS, UTF8_BOM.length);
+
+    if (_startsWith (aIS, XML_DECL_START, true))
+    {
+      // Read until the closing "?>"
+      int nPrev = -1;
+      int nCur;
+      while ((nCur = aIS.read ()) >= 0)
+      {
+        if (nPrev == '?' && nCur == '>')
+          return;
+        nPrev = nCur;
+      }
+      throw new IOException ("The XML declaration of the payload is not terminated");
+    }
+  }
+
+  public void writeTo (@Nonnull @WillNotClose final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    aOS.write (SBD_START);
+
+    // The SBDH as a fragment, without an XML declaration
+    if (new SBDHMarshaller ().write (m_aSBDH, (aMarshaller, aElement) -> {
+      aMarshaller.setProperty (Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+      aMarshaller.marshal (aElement, aOS);
+    }).isFailure ())
+      throw new IOException ("Failed to write the StandardBusinessDocumentHeader");
+
+    // Copy the payload as-is
+    try (final InputStream aSrcIS = m_aPayloadProvider.getInputStream ())
+    {
+      if (aSrcIS == null)
+        throw new IOException ("Failed to open the payload InputStream");
+      try (final NonBlockingBufferedInputStream aIS = new NonBlockingBufferedInputStream (aSrcIS))
+      {
+        _skipXMLDeclaration (aIS);
+        if (StreamHelper.copyByteStream ().from (aIS).closeFrom (false).to (aOS).closeTo (false).build ().isFailure ())
+          throw new IOException ("Failed to copy the payload");
+      }
+    }
+
+    aOS.write (SBD_END);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("SBDH", m_aSBDH)
+                                       .append ("PayloadProvider", m_aPayloadProvider)
+                                       .getToString ();
+  }
+}
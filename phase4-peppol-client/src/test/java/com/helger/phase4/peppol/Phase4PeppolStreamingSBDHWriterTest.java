@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.xml.namespace.QName;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.w3c.dom.Element;
+
+import com.helger.commons.datetime.XMLOffsetDateTime;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.io.streamprovider.ByteArrayInputStreamProvider;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.write.PeppolSBDHDocumentWriter;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.sbdh.SBDMarshaller;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link Phase4PeppolStreamingSBDHWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolStreamingSBDHWriterTest
+{
+  private static final String UBL_INVOICE_NS = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+
+  @Test
+  public void testGetStreamableRootElementName ()
+  {
+    final byte [] aPayload = StreamHelper.getAllBytes (new ClassPathResource ("external/examples/base-example.xml"));
+    assertNotNull (aPayload);
+    assertEquals (new QName (UBL_INVOICE_NS, "Invoice"),
+                  Phase4PeppolStreamingSBDHWriter.getStreamableRootElementName (new ByteArrayInputStreamProvider (aPayload)));
+
+    // Not UTF-8
+    assertNull (Phase4PeppolStreamingSBDHWriter.getStreamableRootElementName (new ByteArrayInputStreamProvider ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a xmlns=\"urn:a\"/>".getBytes (StandardCharsets.ISO_8859_1))));
+
+    // DOCTYPE
+    assertNull (Phase4PeppolStreamingSBDHWriter.getStreamableRootElementName (new ByteArrayInputStreamProvider ("<!DOCTYPE a><a xmlns=\"urn:a\"/>".getBytes (StandardCharsets.UTF_8))));
+
+    // Cannot be read twice
+    assertNull (Phase4PeppolStreamingSBDHWriter.getStreamableRootElementName (HasInputStream.once ( () -> new NonBlockingByteArrayInputStream (aPayload))));
+
+    // Not XML at all
+    assertNull (Phase4PeppolStreamingSBDHWriter.getStreamableRootElementName (new ByteArrayInputStreamProvider ("abc".getBytes (StandardCharsets.UTF_8))));
+  }
+
+  @Nonnull
+  private static StandardBusinessDocument _createSBD (@Nonnull final Element aPayloadElement)
+  {
+    final PeppolSBDHData aData = new PeppolSBDHData (PeppolIdentifierFactory.INSTANCE);
+    aData.setSender ("iso6523-actorid-upis", "9915:sender");
+    aData.setReceiver ("iso6523-actorid-upis", "9915:receiver");
+    aData.setDocumentType ("busdox-docid-qns",
+                           UBL_INVOICE_NS +
+                                                "::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+    aData.setProcess ("cenbii-procid-ubl", "urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+    aData.setCountryC1 ("AT");
+    aData.setDocumentIdentification (aPayloadElement.getNamespaceURI (),
+                                     "2.1",
+                                     aPayloadElement.getLocalName (),
+                                     "instance-1",
+                                     XMLOffsetDateTime.now ());
+    aData.setBusinessMessageNoClone (aPayloadElement);
+    return new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData);
+  }
+
+  private static void _testSameAsDOM (@Nonnull final byte [] aPayload) throws Exception
+  {
+    // DOM based
+    final Element aPayloadElement = DOMReader.readXMLDOM (aPayload).getDocumentElement ();
+    final StandardBusinessDocument aSBD = _createSBD (aPayloadElement);
+    final byte [] aDOMBytes = new SBDMarshaller ().getAsBytes (aSBD);
+    assertNotNull (aDOMBytes);
+
+    // Streaming based
+    final byte [] aStreamingBytes;
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      new Phase4PeppolStreamingSBDHWriter (aSBD.getStandardBusinessDocumentHeader (),
+                                           new ByteArrayInputStreamProvider (aPayload)).writeTo (aBAOS);
+      aStreamingBytes = aBAOS.toByteArray ();
+    }
+
+    // Read both again
+    final StandardBusinessDocument aDOMSBD = new SBDMarshaller ().read (aDOMBytes);
+    final StandardBusinessDocument aStreamingSBD = new SBDMarshaller ().read (aStreamingBytes);
+    assertNotNull (aDOMSBD);
+    assertNotNull (aStreamingSBD);
+    assertEquals (aDOMSBD.getStandardBusinessDocumentHeader (), aStreamingSBD.getStandardBusinessDocumentHeader ());
+    assertTrue (((Element) aDOMSBD.getAny ()).isEqualNode ((Element) aStreamingSBD.getAny ()));
+  }
+
+  @Test
+  public void testWriteSameAsDOM () throws Exception
+  {
+    for (final String sFilename : new String [] { "base-example.xml", "Vat-category-S.xml", "AU Invoice.xml" })
+    {
+      final byte [] aPayload = StreamHelper.getAllBytes (new ClassPathResource ("external/examples/" + sFilename));
+      assertNotNull (sFilename, aPayload);
+      _testSameAsDOM (aPayload);
+    }
+  }
+
+  @Test
+  public void testWriteWithBOMAndNoDeclaration () throws Exception
+  {
+    final String sPayload = "<Invoice xmlns=\"" + UBL_INVOICE_NS + "\"><!-- c --><ID>1</ID></Invoice>";
+
+    // With BOM and XML declaration
+    final byte [] aBOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+    final byte [] aWithDecl = ("<?xml version='1.0'?>\n" + sPayload).getBytes (StandardCharsets.UTF_8);
+    final byte [] aPayload = new byte [aBOM.length + aWithDecl.length];
+    System.arraycopy (aBOM, 0, aPayload, 0, aBOM.length);
+    System.arraycopy (aWithDecl, 0, aPayload, aBOM.length, aWithDecl.length);
+    _testSameAsDOM (aPayload);
+
+    // Without XML declaration
+    _testSameAsDOM (sPayload.getBytes (StandardCharsets.UTF_8));
+  }
+}
@@ -59,6 +59,7 @@ import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
 import com.helger.phase4.incoming.mgr.AS4ProfileSelector;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.peppol.server.storage.StorageHelper;
+import com.helger.phase4.peppol.servlet.Phase4PeppolCachingSMPServiceMetadataProvider;
 import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
 import com.helger.phase4.profile.peppol.AS4PeppolProfileRegistarSPI;
 import com.helger.phase4.profile.peppol.PeppolCRLDownloader;
@@ -323,7 +324,7 @@ public final class Phase4PeppolWebAppListener extends WebAppListener
     if (StringHelper.hasText (sSMPURL) && StringHelper.hasText (sAPURL))
     {
       Phase4PeppolDefaultReceiverConfiguration.setReceiverCheckEnabled (true);
-      Phase4PeppolDefaultReceiverConfiguration.setSMPClient (new SMPClientReadOnly (URLHelper.getAsURI (sSMPURL)));
+      Phase4PeppolDefaultReceiverConfiguration.setSMPClient (new Phase4PeppolCachingSMPServiceMetadataProvider (new SMPClientReadOnly (URLHelper.getAsURI (sSMPURL))));
       Phase4PeppolDefaultReceiverConfiguration.setWildcardSelectionMode (Phase4PeppolDefaultReceiverConfiguration.DEFAULT_WILDCARD_SELECTION_MODE);
       Phase4PeppolDefaultReceiverConfiguration.setAS4EndpointURL (sAPURL);
       Phase4PeppolDefaultReceiverConfiguration.setAPCertificate (aAPCert);
@@ -23,13 +23,15 @@ import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
 
 import com.helger.commons.annotation.IsSPIImplementation;
 import com.helger.commons.collection.CollectionHelper;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
-import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mutable.MutableLong;
 import com.helger.peppol.sbdh.PeppolSBDHData;
 import com.helger.phase4.ebms3header.Ebms3Error;
 import com.helger.phase4.ebms3header.Ebms3Property;
@@ -39,6 +41,7 @@ import com.helger.phase4.incoming.IAS4IncomingMessageState;
 import com.helger.phase4.model.error.EEbmsError;
 import com.helger.phase4.peppol.server.storage.StorageHelper;
 import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDHandlerSPI;
+import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDStreamingHandlerSPI;
 
 /**
  * Logging implementation of {@link IPhase4PeppolIncomingSBDHandlerSPI}.
@@ -46,29 +49,33 @@ import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDHandlerSPI;
  * @author Philip Helger
  */
 @IsSPIImplementation
-public class StoringPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingSBDHandlerSPI
+public class StoringPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingSBDStreamingHandlerSPI
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (StoringPeppolIncomingSBDHandlerSPI.class);
 
   public void handleIncomingSBD (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                  @Nonnull final HttpHeaderMap aHeaders,
                                  @Nonnull final Ebms3UserMessage aUserMessage,
-                                 @Nonnull final byte [] aSBDBytes,
-                                 @Nonnull final StandardBusinessDocument aSBD,
+                                 @Nonnull final IHasInputStream aSBDStreamProvider,
                                  @Nonnull final PeppolSBDHData aPeppolSBD,
                                  @Nonnull final IAS4IncomingMessageState aState,
                                  @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages) throws Exception
   {
     final File aFile = StorageHelper.getStorageFile (aMessageMetadata, ".sbd");
-    LOGGER.info ("Now writing SBD to '" + aFile.getAbsolutePath () + "' (" + aSBDBytes.length + " bytes)");
+    LOGGER.info ("Now writing SBD to '" + aFile.getAbsolutePath () + "'");
 
-    if (SimpleFileIO.writeFile (aFile, aSBDBytes).isFailure ())
-      throw new IllegalStateException ("Failed to write SBD to '" +
-                                       aFile.getAbsolutePath () +
-                                       "' (" +
-                                       aSBDBytes.length +
-                                       " bytes)");
-    LOGGER.info ("Successfully wrote SBD to '" + aFile.getAbsolutePath () + "'");
+    // Stream the SBD to the file without keeping it in memory
+    final MutableLong aByteCount = new MutableLong (0);
+    if (StreamHelper.copyByteStream ()
+                    .from (aSBDStreamProvider.getBufferedInputStream ())
+                    .closeFrom (true)
+                    .to (FileHelper.getBufferedOutputStream (aFile))
+                    .closeTo (true)
+                    .copyByteCount (aByteCount)
+                    .build ()
+                    .isFailure ())
+      throw new IllegalStateException ("Failed to write SBD to '" + aFile.getAbsolutePath () + "'");
+    LOGGER.info ("Successfully wrote SBD to '" + aFile.getAbsolutePath () + "' (" + aByteCount.longValue () + " bytes)");
 
     // Check if any "MessageProperty" with name "MockAction" is contained
     final Ebms3Property aMockAction = CollectionHelper.findFirst (aUserMessage.getMessageProperties ().getProperty (),
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import javax.annotation.Nonnull;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.streamprovider.ByteArrayInputStreamProvider;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
+import com.helger.phase4.incoming.IAS4IncomingMessageState;
+
+/**
+ * Streaming variant of {@link IPhase4PeppolIncomingSBDHandlerSPI} that is
+ * suitable for large documents. Implementations of this interface must be
+ * registered as {@link IPhase4PeppolIncomingSBDHandlerSPI}. If all registered
+ * handlers implement this interface, the incoming payload is never read into
+ * memory completely and no {@link StandardBusinessDocument} is created. Only
+ * the SBDH is extracted with StAX for the Peppol checks.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+public interface IPhase4PeppolIncomingSBDStreamingHandlerSPI extends IPhase4PeppolIncomingSBDHandlerSPI
+{
+  /**
+   * Handle the provided incoming StandardBusinessDocument as a stream.
+   *
+   * @param aMessageMetadata
+   *        Message metadata. Includes data when and from whom it was received.
+   *        Never <code>null</code>.
+   * @param aHeaders
+   *        The (HTTP) headers of the incoming request. Never <code>null</code>.
+   * @param aUserMessage
+   *        The received EBMS user message. Never <code>null</code>.
+   * @param aSBDStreamProvider
+   *        The provider for the raw SBD bytes. These are the bytes as received
+   *        via AS4, just decrypted and decompressed. The provider can be read
+   *        multiple times and the caller is responsible for closing the opened
+   *        streams. Never <code>null</code>.
+   * @param aPeppolSBD
+   *        The pre-parsed Peppol Standard Business Document. In streaming mode
+   *        the contained business message element only contains the root
+   *        element with its attributes but no content. Never
+   *        <code>null</code>.
+   * @param aState
+   *        The message state. Can e.g. be used to retrieve information about
+   *        the certificate found in the message. Never <code>null</code>.
+   * @param aProcessingErrorMessages
+   *        List for error messages that occur during processing. Never
+   *        <code>null</code>.
+   * @throws Exception
+   *         In case it cannot be processed.
+   */
+  void handleIncomingSBD (@Nonnull IAS4IncomingMessageMetadata aMessageMetadata,
+                          @Nonnull HttpHeaderMap aHeaders,
+                          @Nonnull Ebms3UserMessage aUserMessage,
+                          @Nonnull IHasInputStream aSBDStreamProvider,
+                          @Nonnull PeppolSBDHData aPeppolSBD,
+                          @Nonnull IAS4IncomingMessageState aState,
+                          @Nonnull ICommonsList <Ebms3Error> aProcessingErrorMessages) throws Exception;
+
+  /**
+   * This method is only invoked, if at least one other registered handler does
+   * not support streaming. The default implementation forwards to the
+   * streaming variant.
+   */
+  default void handleIncomingSBD (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                  @Nonnull final HttpHeaderMap aHeaders,
+                                  @Nonnull final Ebms3UserMessage aUserMessage,
+                                  @Nonnull final byte [] aSBDBytes,
+                                  @Nonnull final StandardBusinessDocument aSBD,
+                                  @Nonnull final PeppolSBDHData aPeppolSBD,
+                                  @Nonnull final IAS4IncomingMessageState aState,
+                                  @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages) throws Exception
+  {
+    handleIncomingSBD (aMessageMetadata,
+                       aHeaders,
+                       aUserMessage,
+                       new ByteArrayInputStreamProvider (aSBDBytes),
+                       aPeppolSBD,
+                       aState,
+                       aProcessingErrorMessages);
+  }
+}
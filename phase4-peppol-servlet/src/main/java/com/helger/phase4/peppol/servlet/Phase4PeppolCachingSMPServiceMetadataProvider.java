@@ -0,0 +1,585 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.state.EChange;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IStatisticsHandlerCache;
+import com.helger.commons.statistics.IStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.util.AS4BoundedCache;
+import com.helger.photon.io.PhotonWorkerPool;
+import com.helger.security.certificate.CertificateHelper;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.PeppolWildcardSelector;
+import com.helger.xsds.peppol.smp1.ServiceGroupType;
+import com.helger.xsds.peppol.smp1.SignedServiceMetadataType;
+
+/**
+ * A caching decorator for an {@link ISMPServiceMetadataProvider}, meant to be
+ * used for the receiver checks in {@link Phase4PeppolServletMessageProcessorSPI}
+ * so that not every received message triggers a live SMP lookup. It offers:
+ * <ul>
+ * <li>A TTL for found service metadata and a separate (usually shorter) TTL
+ * for service metadata that was not found (negative caching)</li>
+ * <li>Stale-while-revalidate: after the TTL expired, the old value is still
+ * returned for a configurable duration while it is refreshed in the
+ * background. If the refresh fails, the stale value is kept.</li>
+ * <li>Single-flight: concurrent identical lookups are de-duplicated, so that
+ * only one request is made to the SMP</li>
+ * <li>A cache for the parsed endpoint certificates</li>
+ * </ul>
+ * The variant of
+ * {@link #getWildcardServiceMetadataOrNull(ServiceGroupType, IParticipantIdentifier, IDocumentTypeIdentifier, PeppolWildcardSelector.EMode)}
+ * with an explicit service group is not cached.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@ThreadSafe
+public class Phase4PeppolCachingSMPServiceMetadataProvider implements ISMPServiceMetadataProvider
+{
+  /** The default TTL for found service metadata */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes (10);
+  /** The default TTL for service metadata that was not found */
+  public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes (1);
+  /** The default duration, stale entries are served while being refreshed */
+  public static final Duration DEFAULT_STALE_DURATION = Duration.ofHours (1);
+  /** The default maximum number of cached entries */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolCachingSMPServiceMetadataProvider.class);
+
+  private static final IMutableStatisticsHandlerCache STATS_CACHE = StatisticsManager.getCacheHandler (Phase4PeppolCachingSMPServiceMetadataProvider.class.getName () +
+                                                                                                       "$cache");
+  private static final IMutableStatisticsHandlerCounter STATS_STALE = StatisticsManager.getCounterHandler (Phase4PeppolCachingSMPServiceMetadataProvider.class.getName () +
+                                                                                                           "$stale");
+  private static final IMutableStatisticsHandlerCounter STATS_DEDUPLICATED = StatisticsManager.getCounterHandler (Phase4PeppolCachingSMPServiceMetadataProvider.class.getName () +
+                                                                                                                  "$deduplicated");
+  private static final IMutableStatisticsHandlerCache STATS_CERT_CACHE = StatisticsManager.getCacheHandler (Phase4PeppolCachingSMPServiceMetadataProvider.class.getName () +
+                                                                                                            "$certcache");
+
+  /**
+   * Internal interface for the lookup of a single service metadata.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  private interface ISMLookup
+  {
+    @Nullable
+    SignedServiceMetadataType lookup () throws SMPClientException;
+  }
+
+  /**
+   * A single cache entry
+   *
+   * @author Philip Helger
+   */
+  private static final class CacheEntry
+  {
+    private final SignedServiceMetadataType m_aValue;
+    private final long m_nExpiresAt;
+    private final long m_nStaleUntil;
+
+    CacheEntry (@Nullable final SignedServiceMetadataType aValue, final long nExpiresAt, final long nStaleUntil)
+    {
+      m_aValue = aValue;
+      m_nExpiresAt = nExpiresAt;
+      m_nStaleUntil = nStaleUntil;
+    }
+  }
+
+  private final ISMPServiceMetadataProvider m_aDelegate;
+  private final Duration m_aTTL;
+  private final Duration m_aNegativeTTL;
+  private final Duration m_aStaleDuration;
+  private final Executor m_aRefreshExecutor;
+
+  private final AS4BoundedCache <String, CacheEntry> m_aCache;
+  private final AS4BoundedCache <String, X509Certificate> m_aCertCache;
+  // The lookups currently in progress
+  private final ConcurrentHashMap <String, CompletableFuture <SignedServiceMetadataType>> m_aInFlight = new ConcurrentHashMap <> ();
+
+  /**
+   * Constructor using the default TTLs, the default maximum size and the
+   * {@link PhotonWorkerPool} for background refreshes.
+   *
+   * @param aDelegate
+   *        The provider doing the real lookups. May not be <code>null</code>.
+   */
+  public Phase4PeppolCachingSMPServiceMetadataProvider (@Nonnull final ISMPServiceMetadataProvider aDelegate)
+  {
+    this (aDelegate,
+          DEFAULT_TTL,
+          DEFAULT_NEGATIVE_TTL,
+          DEFAULT_STALE_DURATION,
+          DEFAULT_MAX_SIZE,
+          r -> PhotonWorkerPool.getInstance ().run (CAS4.LIB_NAME + " SMP cache refresh", r));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDelegate
+   *        The provider doing the real lookups. May not be <code>null</code>.
+   * @param aTTL
+   *        The time to live of found service metadata. May not be
+   *        <code>null</code> and must not be negative.
+   * @param aNegativeTTL
+   *        The time to live of service metadata that was not found. May not be
+   *        <code>null</code> and must not be negative. Use
+   *        {@link Duration#ZERO} to disable negative caching.
+   * @param aStaleDuration
+   *        The duration after the TTL expired, in which the old value is still
+   *        returned while it is refreshed in the background. May not be
+   *        <code>null</code> and must not be negative. Use
+   *        {@link Duration#ZERO} to disable stale-while-revalidate.
+   * @param nMaxSize
+   *        The maximum number of cached service metadata and certificates.
+   *        Must be &gt; 0.
+   * @param aRefreshExecutor
+   *        The executor to run the background refreshes. May not be
+   *        <code>null</code>.
+   */
+  public Phase4PeppolCachingSMPServiceMetadataProvider (@Nonnull final ISMPServiceMetadataProvider aDelegate,
+                                                        @Nonnull final Duration aTTL,
+                                                        @Nonnull final Duration aNegativeTTL,
+                                                        @Nonnull final Duration aStaleDuration,
+                                                        @Nonnegative final int nMaxSize,
+                                                        @Nonnull final Executor aRefreshExecutor)
+  {
+    ValueEnforcer.notNull (aDelegate, "Delegate");
+    ValueEnforcer.notNull (aTTL, "TTL");
+    ValueEnforcer.isFalse (aTTL.isNegative (), "TTL must not be negative");
+    ValueEnforcer.notNull (aNegativeTTL, "NegativeTTL");
+    ValueEnforcer.isFalse (aNegativeTTL.isNegative (), "NegativeTTL must not be negative");
+    ValueEnforcer.notNull (aStaleDuration, "StaleDuration");
+    ValueEnforcer.isFalse (aStaleDuration.isNegative (), "StaleDuration must not be negative");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    ValueEnforcer.notNull (aRefreshExecutor, "RefreshExecutor");
+    m_aDelegate = aDelegate;
+    m_aTTL = aTTL;
+    m_aNegativeTTL = aNegativeTTL;
+    m_aStaleDuration = aStaleDuration;
+    m_aRefreshExecutor = aRefreshExecutor;
+    m_aCache = new AS4BoundedCache <> (nMaxSize);
+    m_aCertCache = new AS4BoundedCache <> (nMaxSize);
+  }
+
+  /**
+   * @return The cache hit and miss statistics of the service metadata lookups
+   *         of all instances. Stale hits are counted as hits. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCacheStatistics ()
+  {
+    return STATS_CACHE;
+  }
+
+  /**
+   * @return The number of stale service metadata returned while being
+   *         refreshed, of all instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getStaleStatistics ()
+  {
+    return STATS_STALE;
+  }
+
+  /**
+   * @return The number of lookups that waited for an identical lookup already
+   *         in progress, of all instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCounter getDeduplicatedStatistics ()
+  {
+    return STATS_DEDUPLICATED;
+  }
+
+  /**
+   * @return The cache hit and miss statistics of the parsed certificates of
+   *         all instances. Never <code>null</code>.
+   */
+  @Nonnull
+  public static IStatisticsHandlerCache getCertificateCacheStatistics ()
+  {
+    return STATS_CERT_CACHE;
+  }
+
+  /**
+   * @return The provider doing the real lookups. Never <code>null</code>.
+   */
+  @Nonnull
+  public final ISMPServiceMetadataProvider getDelegate ()
+  {
+    return m_aDelegate;
+  }
+
+  /**
+   * @return The time to live of found service metadata. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getTTL ()
+  {
+    return m_aTTL;
+  }
+
+  /**
+   * @return The time to live of service metadata that was not found. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getNegativeTTL ()
+  {
+    return m_aNegativeTTL;
+  }
+
+  /**
+   * @return The duration stale service metadata is returned while being
+   *         refreshed. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getStaleDuration ()
+  {
+    return m_aStaleDuration;
+  }
+
+  /**
+   * @return The number of currently cached service metadata entries. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getCachedCount ()
+  {
+    return m_aCache.size ();
+  }
+
+  /**
+   * Remove all cached service metadata and certificates.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return m_aCache.clear ().or (m_aCertCache.clear ());
+  }
+
+  /**
+   * @return The current time in milliseconds. Overwrite for testing only.
+   */
+  protected long getCurrentTimeMillis ()
+  {
+    return System.currentTimeMillis ();
+  }
+
+  private void _put (@Nonnull final String sKey, @Nullable final SignedServiceMetadataType aValue)
+  {
+    final long nNow = getCurrentTimeMillis ();
+    final long nExpiresAt;
+    final long nStaleUntil;
+    if (aValue != null)
+    {
+      nExpiresAt = nNow + m_aTTL.toMillis ();
+      nStaleUntil = nExpiresAt + m_aStaleDuration.toMillis ();
+    }
+    else
+    {
+      if (m_aNegativeTTL.isZero ())
+      {
+        // Negative caching is disabled
+        return;
+      }
+      // Negative results are never served stale
+      nExpiresAt = nNow + m_aNegativeTTL.toMillis ();
+      nStaleUntil = nExpiresAt;
+    }
+    m_aCache.put (sKey, new CacheEntry (aValue, nExpiresAt, nStaleUntil));
+  }
+
+  @Nullable
+  private static SignedServiceMetadataType _await (@Nonnull final CompletableFuture <SignedServiceMetadataType> aFuture) throws SMPClientException
+  {
+    try
+    {
+      return aFuture.get ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new SMPClientException ("Interrupted while waiting for SMP lookup", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof SMPClientException)
+        throw (SMPClientException) aCause;
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      throw new SMPClientException ("Error in SMP lookup", aCause);
+    }
+  }
+
+  /**
+   * Perform the lookup and update the cache. If an identical lookup is already
+   * in progress, its result is used instead.
+   */
+  @Nullable
+  private SignedServiceMetadataType _load (@Nonnull final String sKey, @Nonnull final ISMLookup aLookup) throws SMPClientException
+  {
+    final CompletableFuture <SignedServiceMetadataType> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <SignedServiceMetadataType> aExistingFuture = m_aInFlight.putIfAbsent (sKey, aOwnFuture);
+    if (aExistingFuture != null)
+    {
+      STATS_DEDUPLICATED.increment ();
+      return _await (aExistingFuture);
+    }
+
+    try
+    {
+      final SignedServiceMetadataType ret = aLookup.lookup ();
+      _put (sKey, ret);
+      aOwnFuture.complete (ret);
+      return ret;
+    }
+    catch (final SMPClientException | RuntimeException ex)
+    {
+      aOwnFuture.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      m_aInFlight.remove (sKey, aOwnFuture);
+    }
+  }
+
+  private void _refreshInBackground (@Nonnull final String sKey, @Nonnull final ISMLookup aLookup)
+  {
+    if (m_aInFlight.containsKey (sKey))
+    {
+      // Refresh already in progress
+      return;
+    }
+
+    m_aRefreshExecutor.execute ( () -> {
+      try
+      {
+        _load (sKey, aLookup);
+      }
+      catch (final SMPClientException | RuntimeException ex)
+      {
+        // Keep the stale value
+        LOGGER.warn ("Failed to refresh the cached SMP service metadata for '" +
+                     sKey +
+                     "' - keeping the stale value: " +
+                     ex.getMessage ());
+      }
+    });
+  }
+
+  @Nullable
+  private SignedServiceMetadataType _getCached (@Nonnull final String sKey, @Nonnull final ISMLookup aLookup) throws SMPClientException
+  {
+    final CacheEntry aEntry = m_aCache.get (sKey);
+    if (aEntry != null)
+    {
+      final long nNow = getCurrentTimeMillis ();
+      if (nNow < aEntry.m_nExpiresAt)
+      {
+        STATS_CACHE.cacheHit ();
+        return aEntry.m_aValue;
+      }
+      if (nNow < aEntry.m_nStaleUntil)
+      {
+        // Return the stale value, but refresh it in the background
+        STATS_CACHE.cacheHit ();
+        STATS_STALE.increment ();
+        _refreshInBackground (sKey, aLookup);
+        return aEntry.m_aValue;
+      }
+    }
+
+    STATS_CACHE.cacheMiss ();
+    return _load (sKey, aLookup);
+  }
+
+  @Nonnull
+  private static String _getKey (@Nonnull final String sType,
+                                 @Nonnull final IParticipantIdentifier aServiceGroupID,
+                                 @Nonnull final IDocumentTypeIdentifier aDocumentTypeID)
+  {
+    return sType + '|' + aServiceGroupID.getURIEncoded () + '|' + aDocumentTypeID.getURIEncoded ();
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * Only found service metadata is taken from the cache. If the service
+   * metadata is not found, the delegate is queried to create the appropriate
+   * exception.
+   */
+  @Nonnull
+  public SignedServiceMetadataType getServiceMetadata (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                       @Nonnull final IDocumentTypeIdentifier aDocumentTypeID) throws SMPClientException
+  {
+    final SignedServiceMetadataType ret = getServiceMetadataOrNull (aServiceGroupID, aDocumentTypeID);
+    if (ret != null)
+      return ret;
+    return m_aDelegate.getServiceMetadata (aServiceGroupID, aDocumentTypeID);
+  }
+
+  @Nullable
+  public SignedServiceMetadataType getServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                             @Nonnull final IDocumentTypeIdentifier aDocumentTypeID) throws SMPClientException
+  {
+    ValueEnforcer.notNull (aServiceGroupID, "ServiceGroupID");
+    ValueEnforcer.notNull (aDocumentTypeID, "DocumentTypeID");
+
+    return _getCached (_getKey ("sm", aServiceGroupID, aDocumentTypeID),
+                       () -> m_aDelegate.getServiceMetadataOrNull (aServiceGroupID, aDocumentTypeID));
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * This variant is never cached, because the result depends on the provided
+   * service group.
+   */
+  @Nullable
+  public SignedServiceMetadataType getWildcardServiceMetadataOrNull (@Nonnull final ServiceGroupType aSG,
+                                                                     @Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                                     @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                                     @Nonnull final PeppolWildcardSelector.EMode eSelectionMode) throws SMPClientException
+  {
+    return m_aDelegate.getWildcardServiceMetadataOrNull (aSG, aServiceGroupID, aDocumentTypeID, eSelectionMode);
+  }
+
+  @Nullable
+  public SignedServiceMetadataType getWildcardServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                                     @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                                     @Nonnull final PeppolWildcardSelector.EMode eSelectionMode) throws SMPClientException
+  {
+    ValueEnforcer.notNull (aServiceGroupID, "ServiceGroupID");
+    ValueEnforcer.notNull (aDocumentTypeID, "DocumentTypeID");
+    ValueEnforcer.notNull (eSelectionMode, "SelectionMode");
+
+    return _getCached (_getKey ("wc-" + eSelectionMode.name (), aServiceGroupID, aDocumentTypeID),
+                       () -> m_aDelegate.getWildcardServiceMetadataOrNull (aServiceGroupID,
+                                                                           aDocumentTypeID,
+                                                                           eSelectionMode));
+  }
+
+  /**
+   * Convert the provided certificate string to an X.509 certificate, using the
+   * certificate cache.
+   *
+   * @param sCertString
+   *        The certificate string as contained in an SMP endpoint. May be
+   *        <code>null</code>.
+   * @return <code>null</code> if the certificate string is <code>null</code>
+   *         or empty.
+   * @throws CertificateException
+   *         In case the certificate string cannot be parsed
+   */
+  @Nullable
+  public X509Certificate getCertificate (@Nullable final String sCertString) throws CertificateException
+  {
+    if (sCertString == null)
+      return null;
+
+    final X509Certificate aCached = m_aCertCache.get (sCertString);
+    if (aCached != null)
+    {
+      STATS_CERT_CACHE.cacheHit ();
+      return aCached;
+    }
+    STATS_CERT_CACHE.cacheMiss ();
+
+    final X509Certificate ret = CertificateHelper.convertStringToCertficate (sCertString);
+    if (ret != null)
+      m_aCertCache.put (sCertString, ret);
+    return ret;
+  }
+
+  @Override
+  @Nullable
+  public X509Certificate getEndpointCertificate (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                 @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                 @Nonnull final IProcessIdentifier aProcessID,
+                                                 @Nonnull final ISMPTransportProfile aTransportProfile) throws SMPClientException,
+                                                                                                        CertificateException
+  {
+    return getCertificate (getEndpointCertificateString (aServiceGroupID,
+                                                         aDocumentTypeID,
+                                                         aProcessID,
+                                                         aTransportProfile));
+  }
+
+  @Override
+  @Nullable
+  public X509Certificate getEndpointCertificateAt (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                   @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                   @Nonnull final IProcessIdentifier aProcessID,
+                                                   @Nonnull final ISMPTransportProfile aTransportProfile,
+                                                   @Nonnull final LocalDateTime aDT) throws SMPClientException,
+                                                                                     CertificateException
+  {
+    return getCertificate (getEndpointCertificateStringAt (aServiceGroupID,
+                                                           aDocumentTypeID,
+                                                           aProcessID,
+                                                           aTransportProfile,
+                                                           aDT));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Delegate", m_aDelegate)
+                                       .append ("TTL", m_aTTL)
+                                       .append ("NegativeTTL", m_aNegativeTTL)
+                                       .append ("StaleDuration", m_aStaleDuration)
+                                       .append ("MaxSize", m_aCache.getMaxSize ())
+                                       .getToString ();
+  }
+}
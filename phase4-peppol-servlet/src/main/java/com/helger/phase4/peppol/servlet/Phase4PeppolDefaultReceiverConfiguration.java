@@ -107,7 +107,9 @@ public final class Phase4PeppolDefaultReceiverConfiguration
 
   /**
    * Set the SMP client to use for reverse checking if the participant is
-   * registered or not.
+   * registered or not. Consider wrapping it in a
+   * {@link Phase4PeppolCachingSMPServiceMetadataProvider} to avoid an SMP
+   * lookup for every received message.
    *
    * @param aSMPClient
    *        The SMP metadata provider to be used. May be <code>null</code>.
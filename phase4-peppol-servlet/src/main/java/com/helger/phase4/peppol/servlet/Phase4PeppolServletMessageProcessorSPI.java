@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.peppol.servlet;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
@@ -47,10 +48,11 @@ import com.helger.commons.datetime.XMLOffsetDateTime;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
 import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
-import com.helger.commons.lang.ServiceLoaderHelper;
-import com.helger.commons.state.ETriState;
 import com.helger.commons.string.StringHelper;
 import com.helger.peppol.reporting.api.CPeppolReporting;
 import com.helger.peppol.reporting.api.PeppolReportingItem;
@@ -60,6 +62,7 @@ import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
 import com.helger.peppol.smp.ESMPTransportProfile;
 import com.helger.peppol.smp.ISMPTransportProfile;
 import com.helger.peppol.utils.EPeppolCertificateCheckResult;
+import com.helger.peppol.utils.ERevoked;
 import com.helger.peppol.utils.PeppolCertificateChecker;
 import com.helger.peppol.utils.PeppolCertificateHelper;
 import com.helger.peppolid.IDocumentTypeIdentifier;
@@ -69,8 +72,9 @@ import com.helger.peppolid.factory.SimpleIdentifierFactory;
 import com.helger.peppolid.peppol.PeppolIdentifierHelper;
 import com.helger.phase4.attachment.AS4DecompressException;
 import com.helger.phase4.attachment.EAS4CompressionMode;
-import com.helger.phase4.attachment.IAS4Attachment;
 import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.crypto.AS4CertificateRevocationCache;
+import com.helger.phase4.crypto.IAS4CertificateRevocationChecker;
 import com.helger.phase4.ebms3header.Ebms3Error;
 import com.helger.phase4.ebms3header.Ebms3Property;
 import com.helger.phase4.ebms3header.Ebms3SignalMessage;
@@ -80,9 +84,11 @@ import com.helger.phase4.incoming.IAS4IncomingMessageState;
 import com.helger.phase4.incoming.spi.AS4MessageProcessorResult;
 import com.helger.phase4.incoming.spi.AS4SignalMessageProcessorResult;
 import com.helger.phase4.incoming.spi.IAS4IncomingMessageProcessorSPI;
+import com.helger.phase4.mgr.AS4SPIRegistry;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.error.EEbmsError;
 import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.phase4.util.Phase4Exception;
 import com.helger.sbdh.SBDMarshaller;
 import com.helger.security.certificate.CertificateHelper;
@@ -119,6 +125,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
     private Charset m_aCharset;
     private EAS4CompressionMode m_eCompressionMode;
     private byte [] m_aPayloadBytes;
+    private IHasInputStream m_aPayloadProvider;
     private StandardBusinessDocument m_aSBDH;
 
     private ReadAttachment ()
@@ -161,6 +168,12 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
       return m_aPayloadBytes;
     }
 
+    @Nonnull
+    public IHasInputStream payloadProvider ()
+    {
+      return m_aPayloadProvider;
+    }
+
     @Nonnull
     @ReturnsMutableObject
     public StandardBusinessDocument standardBusinessDocument ()
@@ -184,7 +197,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
   @UsedViaReflection
   public Phase4PeppolServletMessageProcessorSPI ()
   {
-    m_aHandlers = ServiceLoaderHelper.getAllSPIImplementations (IPhase4PeppolIncomingSBDHandlerSPI.class);
+    m_aHandlers = new CommonsArrayList <> (AS4SPIRegistry.getAll (IPhase4PeppolIncomingSBDHandlerSPI.class));
   }
 
   /**
@@ -332,6 +345,58 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
     }
   }
 
+  /**
+   * The real Peppol AP certificate revocation check, using the global
+   * certificate check mode.
+   */
+  private static final IAS4CertificateRevocationChecker PEPPOL_AP_REVOCATION_CHECKER = new IAS4CertificateRevocationChecker ()
+  {
+    @Nonnull
+    @Nonempty
+    public String getCheckerID ()
+    {
+      return "peppol-ap";
+    }
+
+    public boolean isRevoked (@Nonnull final X509Certificate aCert, @Nullable final OffsetDateTime aCheckDate)
+    {
+      final PeppolCertificateChecker.PeppolRevocationCheckBuilder aBuilder = PeppolCertificateChecker.peppolRevocationCheck ()
+                                                                                                     .certificate (aCert);
+      if (aCheckDate != null)
+        aBuilder.checkDate (aCheckDate);
+      else
+        aBuilder.checkDateNow ();
+      return aBuilder.validCAsPeppolAP ().build ().isRevoked ();
+    }
+  };
+
+  /**
+   * A Peppol revocation check builder that uses the shared
+   * {@link AS4CertificateRevocationCache} for the real OCSP/CRL check.
+   *
+   * @author Philip Helger
+   */
+  private static final class CachingPeppolRevocationCheckBuilder extends
+                                                              PeppolCertificateChecker.PeppolRevocationCheckBuilder
+  {
+    private final OffsetDateTime m_aCheckDate;
+
+    CachingPeppolRevocationCheckBuilder (@Nonnull final OffsetDateTime aCheckDate)
+    {
+      m_aCheckDate = aCheckDate;
+      checkDate (aCheckDate);
+    }
+
+    @Override
+    public ERevoked build ()
+    {
+      return ERevoked.valueOf (AS4CertificateRevocationCache.getDefaultInstance ()
+                                                            .isRevoked (certificate (),
+                                                                        m_aCheckDate,
+                                                                        PEPPOL_AP_REVOCATION_CHECKER));
+    }
+  }
+
   private static void _checkIfReceiverEndpointURLMatches (@Nonnull final String sLogPrefix,
                                                           @Nonnull @Nonempty final String sOwnAPUrl,
                                                           @Nonnull final EndpointType aRecipientEndpoint) throws Phase4PeppolServletException
@@ -358,6 +423,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
   }
 
   private static void _checkIfEndpointCertificateMatches (@Nonnull final String sLogPrefix,
+                                                          @Nonnull final ISMPServiceMetadataProvider aSMPClient,
                                                           @Nonnull final X509Certificate aOurCert,
                                                           @Nonnull final EndpointType aRecipientEndpoint) throws Phase4PeppolServletException
   {
@@ -365,7 +431,11 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
     X509Certificate aRecipientCert = null;
     try
     {
-      aRecipientCert = CertificateHelper.convertStringToCertficate (sRecipientCertString);
+      // Avoid parsing the same certificate over and over again
+      if (aSMPClient instanceof Phase4PeppolCachingSMPServiceMetadataProvider)
+        aRecipientCert = ((Phase4PeppolCachingSMPServiceMetadataProvider) aSMPClient).getCertificate (sRecipientCertString);
+      else
+        aRecipientCert = CertificateHelper.convertStringToCertficate (sRecipientCertString);
     }
     catch (final CertificateException t)
     {
@@ -530,6 +600,42 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
                                                   @Nonnull final IAS4IncomingMessageState aState)
   {}
 
+  /**
+   * @return <code>true</code> if at least one handler is present and all
+   *         handlers implement {@link IPhase4PeppolIncomingSBDStreamingHandlerSPI}.
+   *         In that case the incoming payload is not read into memory.
+   * @since 3.0.0
+   */
+  public final boolean isStreamingMode ()
+  {
+    return m_aHandlers.isNotEmpty () &&
+           m_aHandlers.containsOnly (x -> x instanceof IPhase4PeppolIncomingSBDStreamingHandlerSPI);
+  }
+
+  /**
+   * Get a payload provider that can be read more than once. If the attachment
+   * can only be read once, it is copied to a temporary file.
+   */
+  @Nonnull
+  private static IHasInputStream _getReReadablePayloadProvider (@Nonnull final WSS4JAttachment aAttachment,
+                                                                @Nonnull final AS4ResourceHelper aResHelper) throws IOException
+  {
+    final IHasInputStream aISP = aAttachment.getInputStreamProvider ();
+    if (aISP != null && aISP.isReadMultiple ())
+      return aISP;
+
+    final File aTempFile = aResHelper.createTempFile ();
+    if (StreamHelper.copyByteStream ()
+                    .from (aAttachment.getSourceStream (aResHelper))
+                    .closeFrom (true)
+                    .to (FileHelper.getBufferedOutputStream (aTempFile))
+                    .closeTo (true)
+                    .build ()
+                    .isFailure ())
+      throw new IOException ("Failed to write attachment to temporary file '" + aTempFile.getAbsolutePath () + "'");
+    return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+  }
+
   @Nonnull
   public AS4MessageProcessorResult processAS4UserMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                                           @Nonnull final HttpHeaderMap aHttpHeaders,
@@ -609,12 +715,13 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
       final OffsetDateTime aNow = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
       final X509Certificate aSenderCert = aState.getUsedCertificate ();
       // Check if signing AP certificate is revoked
-      // * Use global caching setting
+      // * Use the shared revocation cache
       // * Use global certificate check mode
-      final EPeppolCertificateCheckResult eCertCheckResult = PeppolCertificateChecker.checkPeppolAPCertificate (aSenderCert,
-                                                                                                                aNow,
-                                                                                                                ETriState.UNDEFINED,
-                                                                                                                null);
+      final EPeppolCertificateCheckResult eCertCheckResult = PeppolCertificateChecker.checkCertificate (PeppolCertificateChecker.getTrustedCertificatesAP ()
+                                                                                                                                .getAllTrustedCAIssuers (),
+                                                                                                        null,
+                                                                                                        new CachingPeppolRevocationCheckBuilder (aNow).certificate (aSenderCert)
+                                                                                                                                                      .validCAsPeppolAP ());
       if (eCertCheckResult.isInvalid ())
       {
         final String sDetails = "The received Peppol message is signed with a Peppol AP certificate invalid at " +
@@ -634,12 +741,17 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
       LOGGER.warn (sLogPrefix + "The revocation check of the received signing certificate is disabled.");
     }
 
+    // In streaming mode, the payload is never read into memory
+    final boolean bStreamingMode = isStreamingMode ();
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug (sLogPrefix + "Using " + (bStreamingMode ? "streaming" : "in-memory") + " SBD processing");
+
     // Read all attachments
     final ICommonsList <ReadAttachment> aReadAttachments = new CommonsArrayList <> ();
     if (aIncomingAttachments != null)
     {
       int nAttachmentIndex = 0;
-      for (final IAS4Attachment aIncomingAttachment : aIncomingAttachments)
+      for (final WSS4JAttachment aIncomingAttachment : aIncomingAttachments)
       {
         final ReadAttachment a = new ReadAttachment ();
         a.m_sID = aIncomingAttachment.getId ();
@@ -647,6 +759,40 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
         a.m_sUncompressedMimeType = aIncomingAttachment.getUncompressedMimeType ();
         a.m_aCharset = aIncomingAttachment.getCharset ();
         a.m_eCompressionMode = aIncomingAttachment.getCompressionMode ();
+
+        if (bStreamingMode)
+        {
+          try
+          {
+            // The SBDH is extracted from the stream below
+            a.m_aPayloadProvider = _getReReadablePayloadProvider (aIncomingAttachment, aState.getResourceHelper ());
+          }
+          catch (final IOException | AS4DecompressException ex)
+          {
+            final String sDetails = "Failed to decompress the payload of attachment #" + nAttachmentIndex;
+            LOGGER.error (sLogPrefix + sDetails, ex);
+            aProcessingErrorMessages.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.errorBuilder (aDisplayLocale)
+                                                                               .refToMessageInError (sMessageID)
+                                                                               .errorDetail (sDetails, ex)
+                                                                               .build ());
+            return AS4MessageProcessorResult.createFailure ();
+          }
+
+          aReadAttachments.add (a);
+
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug (sLogPrefix +
+                          "AS4 Attachment " +
+                          nAttachmentIndex +
+                          " with ID [" +
+                          a.m_sID +
+                          "] uses [" +
+                          a.m_sMimeType +
+                          "] and is streamed");
+          nAttachmentIndex++;
+          continue;
+        }
+
         try (final InputStream aSIS = aIncomingAttachment.getSourceStream ())
         {
           final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
@@ -758,7 +904,16 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
       final PeppolSBDHDocumentReader aReader = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE).setPerformValueChecks (bPerformValueChecks)
                                                                                                               .setCheckForCountryC1 (bCheckForCountryC1);
 
-      aPeppolSBD = aReader.extractData (aReadAttachment.standardBusinessDocument ());
+      if (bStreamingMode)
+      {
+        // Only read the SBDH from the stream
+        try (final InputStream aIS = aReadAttachment.payloadProvider ().getBufferedInputStream ())
+        {
+          aPeppolSBD = Phase4PeppolStreamingSBDHReader.readPeppolSBDHData (aIS, aReader);
+        }
+      }
+      else
+        aPeppolSBD = aReader.extractData (aReadAttachment.standardBusinessDocument ());
 
       if (LOGGER.isDebugEnabled ())
         LOGGER.debug (sLogPrefix +
@@ -775,6 +930,17 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
                                                          .build ());
       return AS4MessageProcessorResult.createFailure ();
     }
+    catch (final IOException | AS4DecompressException ex)
+    {
+      // Only in streaming mode
+      final String sMsg = "Failed to read the SBDH from the payload.";
+      LOGGER.error (sLogPrefix + sMsg, ex);
+      aProcessingErrorMessages.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.errorBuilder (aDisplayLocale)
+                                                                         .refToMessageInError (aState.getMessageID ())
+                                                                         .errorDetail (sMsg, ex)
+                                                                         .build ());
+      return AS4MessageProcessorResult.createFailure ();
+    }
 
     if (aReceiverCheckData.isReceiverCheckEnabled ())
     {
@@ -818,7 +984,10 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
         _checkIfReceiverEndpointURLMatches (sLogPrefix, aReceiverCheckData.getAS4EndpointURL (), aReceiverEndpoint);
 
         // Get the recipient certificate from the SMP
-        _checkIfEndpointCertificateMatches (sLogPrefix, aReceiverCheckData.getAPCertificate (), aReceiverEndpoint);
+        _checkIfEndpointCertificateMatches (sLogPrefix,
+                                            aReceiverCheckData.getSMPClient (),
+                                            aReceiverCheckData.getAPCertificate (),
+                                            aReceiverEndpoint);
       }
       catch (final Phase4Exception ex)
       {
@@ -852,14 +1021,23 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4IncomingMessa
         {
           if (LOGGER.isDebugEnabled ())
             LOGGER.debug (sLogPrefix + "Invoking Peppol handler " + aHandler);
-          aHandler.handleIncomingSBD (aMessageMetadata,
-                                      aHttpHeaders.getClone (),
-                                      aUserMessage.clone (),
-                                      aReadAttachment.payloadBytes (),
-                                      aReadAttachment.standardBusinessDocument (),
-                                      aPeppolSBD,
-                                      aState,
-                                      aProcessingErrorMessages);
+          if (bStreamingMode)
+            ((IPhase4PeppolIncomingSBDStreamingHandlerSPI) aHandler).handleIncomingSBD (aMessageMetadata,
+                                                                                        aHttpHeaders.getClone (),
+                                                                                        aUserMessage.clone (),
+                                                                                        aReadAttachment.payloadProvider (),
+                                                                                        aPeppolSBD,
+                                                                                        aState,
+                                                                                        aProcessingErrorMessages);
+          else
+            aHandler.handleIncomingSBD (aMessageMetadata,
+                                        aHttpHeaders.getClone (),
+                                        aUserMessage.clone (),
+                                        aReadAttachment.payloadBytes (),
+                                        aReadAttachment.standardBusinessDocument (),
+                                        aPeppolSBD,
+                                        aState,
+                                        aProcessingErrorMessages);
         }
         catch (final Exception ex)
         {
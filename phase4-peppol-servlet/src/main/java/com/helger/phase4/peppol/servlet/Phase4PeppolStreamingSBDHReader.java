@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.read.EPeppolSBDHDocumentReadError;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReadException;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.sbdh.CSBDH;
+import com.helger.sbdh.SBDHMarshaller;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Extract the Peppol SBDH data from a Standard Business Document stream
+ * without reading the whole document into memory. Only the
+ * StandardBusinessDocumentHeader is unmarshalled, and of the business message
+ * only the root element (with its namespace declarations and attributes) is
+ * created, as this is all that {@link PeppolSBDHDocumentReader} needs for its
+ * checks. The rest of the stream is not read.
+ *
+ * @author Philip Helger
+ * @since 3.0.0
+ */
+@Immutable
+public final class Phase4PeppolStreamingSBDHReader
+{
+  private static final QName QNAME_SBD = new QName (CSBDH.SBDH_NS, "StandardBusinessDocument");
+  private static final QName QNAME_SBDH = new QName (CSBDH.SBDH_NS, "StandardBusinessDocumentHeader");
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newFactory ();
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    // No DTDs and no external entities
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private Phase4PeppolStreamingSBDHReader ()
+  {}
+
+  @Nonnull
+  private static PeppolSBDHDocumentReadException _createException (@Nonnull final EPeppolSBDHDocumentReadError eError,
+                                                                   @Nonnull final Throwable aCause)
+  {
+    final PeppolSBDHDocumentReadException ret = new PeppolSBDHDocumentReadException (eError);
+    ret.initCause (aCause);
+    return ret;
+  }
+
+  /**
+   * Move the reader to the next start element.
+   *
+   * @return <code>false</code> if an end element or the end of the document was
+   *         found before.
+   */
+  private static boolean _moveToStartElement (@Nonnull final XMLStreamReader aXSR) throws XMLStreamException
+  {
+    while (true)
+    {
+      final int nEventType = aXSR.getEventType ();
+      if (nEventType == XMLStreamConstants.START_ELEMENT)
+        return true;
+      if (nEventType == XMLStreamConstants.END_ELEMENT || !aXSR.hasNext ())
+        return false;
+      aXSR.next ();
+    }
+  }
+
+  @Nonnull
+  private static Element _createShallowElement (@Nonnull final XMLStreamReader aXSR)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final String sPrefix = aXSR.getPrefix ();
+    final Element ret = aDoc.createElementNS (aXSR.getNamespaceURI (),
+                                              StringHelper.hasText (sPrefix) ? sPrefix + ":" + aXSR.getLocalName ()
+                                                                             : aXSR.getLocalName ());
+    aDoc.appendChild (ret);
+
+    // Namespace declarations
+    for (int i = 0; i < aXSR.getNamespaceCount (); ++i)
+    {
+      final String sNSPrefix = aXSR.getNamespacePrefix (i);
+      ret.setAttributeNS (XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                          StringHelper.hasText (sNSPrefix) ? XMLConstants.XMLNS_ATTRIBUTE + ":" + sNSPrefix
+                                                           : XMLConstants.XMLNS_ATTRIBUTE,
+                          aXSR.getNamespaceURI (i));
+    }
+
+    // Attributes
+    for (int i = 0; i < aXSR.getAttributeCount (); ++i)
+    {
+      final QName aAttrName = aXSR.getAttributeName (i);
+      final String sAttrPrefix = aAttrName.getPrefix ();
+      final String sAttrNamespaceURI = aAttrName.getNamespaceURI ();
+      ret.setAttributeNS (StringHelper.hasText (sAttrNamespaceURI) ? sAttrNamespaceURI : null,
+                          StringHelper.hasText (sAttrPrefix) ? sAttrPrefix + ":" + aAttrName.getLocalPart ()
+                                                             : aAttrName.getLocalPart (),
+                          aXSR.getAttributeValue (i));
+    }
+    return ret;
+  }
+
+  /**
+   * Read the SBDH and the root element of the business message from the
+   * provided stream and extract the Peppol SBDH data.
+   *
+   * @param aIS
+   *        The input stream to read the Standard Business Document from. Is
+   *        not closed by this method. May not be <code>null</code>.
+   * @param aReader
+   *        The Peppol SBDH reader to be used for the checks and the extraction.
+   *        May not be <code>null</code>.
+   * @return The extracted Peppol SBDH data. Never <code>null</code>. The
+   *         contained business message only contains the root element without
+   *         any content.
+   * @throws PeppolSBDHDocumentReadException
+   *         If the stream does not contain a valid Peppol SBD
+   */
+  @Nonnull
+  public static PeppolSBDHData readPeppolSBDHData (@Nonnull @WillNotClose final InputStream aIS,
+                                                   @Nonnull final PeppolSBDHDocumentReader aReader) throws PeppolSBDHDocumentReadException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aReader, "Reader");
+
+    final StandardBusinessDocumentHeader aSBDH;
+    final Element aBusinessMessage;
+    try
+    {
+      final XMLStreamReader aXSR = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      try
+      {
+        // Root element
+        if (!_moveToStartElement (aXSR) || !QNAME_SBD.equals (aXSR.getName ()))
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+        aXSR.next ();
+
+        // Header
+        if (!_moveToStartElement (aXSR) || !QNAME_SBDH.equals (aXSR.getName ()))
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.MISSING_SBDH);
+        // Unmarshal only the header element with XSD validation
+        aSBDH = new SBDHMarshaller ().read ( (u, c) -> u.unmarshal (aXSR, c));
+        if (aSBDH == null)
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.MISSING_SBDH);
+
+        // Business message
+        if (!_moveToStartElement (aXSR))
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.INVALID_BUSINESS_MESSAGE);
+        aBusinessMessage = _createShallowElement (aXSR);
+      }
+      finally
+      {
+        // Does not close the underlying stream
+        aXSR.close ();
+      }
+    }
+    catch (final XMLStreamException ex)
+    {
+      throw _createException (EPeppolSBDHDocumentReadError.INVALID_SBD_XML, ex);
+    }
+
+    return aReader.extractData (aSBDH, aBusinessMessage);
+  }
+}
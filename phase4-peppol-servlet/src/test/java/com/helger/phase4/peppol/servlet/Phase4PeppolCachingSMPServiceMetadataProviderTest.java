@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.PeppolWildcardSelector;
+import com.helger.xsds.peppol.smp1.ServiceGroupType;
+import com.helger.xsds.peppol.smp1.SignedServiceMetadataType;
+
+/**
+ * Test class for class {@link Phase4PeppolCachingSMPServiceMetadataProvider}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolCachingSMPServiceMetadataProviderTest
+{
+  private static final IParticipantIdentifier PID = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test");
+  private static final IDocumentTypeIdentifier DTID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:doc::Invoice##x::2.1");
+  private static final Duration TTL = Duration.ofSeconds (10);
+  private static final Duration NEGATIVE_TTL = Duration.ofSeconds (2);
+  private static final Duration STALE = Duration.ofSeconds (30);
+
+  private static final class MockProvider implements ISMPServiceMetadataProvider
+  {
+    private final AtomicInteger m_aCalls = new AtomicInteger (0);
+    private volatile SignedServiceMetadataType m_aResult = new SignedServiceMetadataType ();
+    private volatile boolean m_bFail = false;
+    private volatile CountDownLatch m_aBlocker;
+
+    @Nullable
+    private SignedServiceMetadataType _lookup () throws SMPClientException
+    {
+      m_aCalls.incrementAndGet ();
+      if (m_aBlocker != null)
+        try
+        {
+          m_aBlocker.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+      if (m_bFail)
+        throw new SMPClientException ("SMP is down");
+      return m_aResult;
+    }
+
+    public SignedServiceMetadataType getServiceMetadata (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                         @Nonnull final IDocumentTypeIdentifier aDocumentTypeID) throws SMPClientException
+    {
+      final SignedServiceMetadataType ret = _lookup ();
+      if (ret == null)
+        throw new SMPClientException ("Not found");
+      return ret;
+    }
+
+    public SignedServiceMetadataType getServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                               @Nonnull final IDocumentTypeIdentifier aDocumentTypeID) throws SMPClientException
+    {
+      return _lookup ();
+    }
+
+    public SignedServiceMetadataType getWildcardServiceMetadataOrNull (@Nonnull final ServiceGroupType aSG,
+                                                                       @Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                                       @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                                       @Nonnull final PeppolWildcardSelector.EMode eSelectionMode) throws SMPClientException
+    {
+      return _lookup ();
+    }
+
+    public SignedServiceMetadataType getWildcardServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                                       @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                                       @Nonnull final PeppolWildcardSelector.EMode eSelectionMode) throws SMPClientException
+    {
+      return _lookup ();
+    }
+  }
+
+  private static final class TestProvider extends Phase4PeppolCachingSMPServiceMetadataProvider
+  {
+    private final AtomicLong m_aNow = new AtomicLong (1_000_000);
+
+    TestProvider (@Nonnull final ISMPServiceMetadataProvider aDelegate, @Nonnull final Executor aExecutor)
+    {
+      super (aDelegate, TTL, NEGATIVE_TTL, STALE, 100, aExecutor);
+    }
+
+    void advance (@Nonnull final Duration aDuration)
+    {
+      m_aNow.addAndGet (aDuration.toMillis ());
+    }
+
+    @Override
+    protected long getCurrentTimeMillis ()
+    {
+      return m_aNow.get ();
+    }
+  }
+
+  @Test
+  public void testTTL () throws Exception
+  {
+    final MockProvider aMock = new MockProvider ();
+    final TestProvider aCache = new TestProvider (aMock, Runnable::run);
+
+    final SignedServiceMetadataType aSM = aCache.getServiceMetadataOrNull (PID, DTID);
+    assertNotNull (aSM);
+    assertEquals (1, aMock.m_aCalls.get ());
+    assertSame (aSM, aCache.getServiceMetadataOrNull (PID, DTID));
+    assertSame (aSM, aCache.getServiceMetadata (PID, DTID));
+    assertEquals (1, aMock.m_aCalls.get ());
+    assertEquals (1, aCache.getCachedCount ());
+
+    // Wildcard lookups are cached separately
+    assertSame (aSM, aCache.getWildcardServiceMetadataOrNull (PID, DTID, PeppolWildcardSelector.EMode.WILDCARD_ONLY));
+    assertEquals (2, aMock.m_aCalls.get ());
+    assertEquals (2, aCache.getCachedCount ());
+
+    // Expire TTL and stale duration
+    aCache.advance (TTL.plus (STALE));
+    final SignedServiceMetadataType aSM2 = new SignedServiceMetadataType ();
+    aMock.m_aResult = aSM2;
+    assertSame (aSM2, aCache.getServiceMetadataOrNull (PID, DTID));
+    assertEquals (3, aMock.m_aCalls.get ());
+
+    aCache.clearCache ();
+    assertEquals (0, aCache.getCachedCount ());
+  }
+
+  @Test
+  public void testNegativeCaching () throws Exception
+  {
+    final MockProvider aMock = new MockProvider ();
+    aMock.m_aResult = null;
+    final TestProvider aCache = new TestProvider (aMock, Runnable::run);
+
+    assertNull (aCache.getServiceMetadataOrNull (PID, DTID));
+    assertNull (aCache.getServiceMetadataOrNull (PID, DTID));
+    assertEquals (1, aMock.m_aCalls.get ());
+
+    // Negative results are never served stale
+    aCache.advance (NEGATIVE_TTL);
+    aMock.m_aResult = new SignedServiceMetadataType ();
+    assertNotNull (aCache.getServiceMetadataOrNull (PID, DTID));
+    assertEquals (2, aMock.m_aCalls.get ());
+  }
+
+  @Test
+  public void testStaleWhileRevalidate () throws Exception
+  {
+    final MockProvider aMock = new MockProvider ();
+    final ICommonsList <Runnable> aPending = new CommonsArrayList <> ();
+    final TestProvider aCache = new TestProvider (aMock, aPending::add);
+
+    final SignedServiceMetadataType aSM = aCache.getServiceMetadataOrNull (PID, DTID);
+    assertEquals (1, aMock.m_aCalls.get ());
+
+    // Stale value is returned and the refresh is scheduled
+    aCache.advance (TTL);
+    final SignedServiceMetadataType aSM2 = new SignedServiceMetadataType ();
+    aMock.m_aResult = aSM2;
+    assertSame (aSM, aCache.getServiceMetadataOrNull (PID, DTID));
+    assertEquals (1, aMock.m_aCalls.get ());
+    assertEquals (1, aPending.size ());
+
+    // Run the refresh
+    aPending.removeFirstOrNull ().run ();
+    assertEquals (2, aMock.m_aCalls.get ());
+    assertSame (aSM2, aCache.getServiceMetadataOrNull (PID, DTID));
+
+    // A failing refresh keeps the stale value
+    aCache.advance (TTL);
+    aMock.m_bFail = true;
+    assertSame (aSM2, aCache.getServiceMetadataOrNull (PID, DTID));
+    aPending.removeFirstOrNull ().run ();
+    assertEquals (3, aMock.m_aCalls.get ());
+    assertSame (aSM2, aCache.getServiceMetadataOrNull (PID, DTID));
+
+    // After the stale duration the error is propagated
+    aCache.advance (STALE);
+    try
+    {
+      aCache.getServiceMetadataOrNull (PID, DTID);
+      fail ();
+    }
+    catch (final SMPClientException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSingleFlight () throws Exception
+  {
+    final MockProvider aMock = new MockProvider ();
+    aMock.m_aBlocker = new CountDownLatch (1);
+    final TestProvider aCache = new TestProvider (aMock, Runnable::run);
+
+    final int nThreads = 8;
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    try
+    {
+      final ICommonsList <Future <SignedServiceMetadataType>> aFutures = new CommonsArrayList <> ();
+      for (int i = 0; i < nThreads; ++i)
+        aFutures.add (aES.submit ( () -> aCache.getServiceMetadataOrNull (PID, DTID)));
+
+      // Wait until the first lookup is running
+      while (aMock.m_aCalls.get () == 0)
+        Thread.sleep (5);
+      // Give the other threads a chance to join
+      Thread.sleep (100);
+      aMock.m_aBlocker.countDown ();
+
+      final SignedServiceMetadataType aSM = aFutures.getFirstOrNull ().get (10, TimeUnit.SECONDS);
+      assertNotNull (aSM);
+      for (final Future <SignedServiceMetadataType> aFuture : aFutures)
+        assertSame (aSM, aFuture.get (10, TimeUnit.SECONDS));
+
+      // Only the threads that came after the lookup finished may have hit the
+      // cache - but none of them triggered a second lookup
+      assertEquals (1, aMock.m_aCalls.get ());
+    }
+    finally
+    {
+      aES.shutdownNow ();
+    }
+  }
+}
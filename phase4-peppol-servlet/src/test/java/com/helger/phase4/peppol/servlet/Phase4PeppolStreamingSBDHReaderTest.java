@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.w3c.dom.Element;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReadException;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+import com.helger.sbdh.SBDMarshaller;
+
+/**
+ * Test class for class {@link Phase4PeppolStreamingSBDHReader}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolStreamingSBDHReaderTest
+{
+  private static final ClassPathResource RES = new ClassPathResource ("external/examples/base-sbdh.xml");
+
+  @Test
+  public void testReadSameAsDOM () throws Exception
+  {
+    final PeppolSBDHDocumentReader aReader = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE);
+
+    final StandardBusinessDocument aSBD = new SBDMarshaller ().read (RES);
+    assertNotNull (aSBD);
+    final PeppolSBDHData aExpected = aReader.extractData (aSBD);
+
+    final PeppolSBDHData aStreamed;
+    try (final InputStream aIS = RES.getInputStream ())
+    {
+      aStreamed = Phase4PeppolStreamingSBDHReader.readPeppolSBDHData (aIS, aReader);
+    }
+    assertNotNull (aStreamed);
+
+    assertEquals (aExpected.getSenderAsIdentifier (), aStreamed.getSenderAsIdentifier ());
+    assertEquals (aExpected.getReceiverAsIdentifier (), aStreamed.getReceiverAsIdentifier ());
+    assertEquals (aExpected.getDocumentTypeAsIdentifier (), aStreamed.getDocumentTypeAsIdentifier ());
+    assertEquals (aExpected.getProcessAsIdentifier (), aStreamed.getProcessAsIdentifier ());
+    assertEquals (aExpected.getCountryC1 (), aStreamed.getCountryC1 ());
+    assertEquals (aExpected.getInstanceIdentifier (), aStreamed.getInstanceIdentifier ());
+    assertEquals (aExpected.getCreationDateAndTime (), aStreamed.getCreationDateAndTime ());
+
+    // Only the root element of the business message is present
+    final Element aBM = aStreamed.getBusinessMessage ();
+    assertEquals (aExpected.getBusinessMessage ().getNamespaceURI (), aBM.getNamespaceURI ());
+    assertEquals (aExpected.getBusinessMessage ().getLocalName (), aBM.getLocalName ());
+    assertFalse (aBM.hasChildNodes ());
+  }
+
+  @Test (expected = PeppolSBDHDocumentReadException.class)
+  public void testNoSBD () throws Exception
+  {
+    final byte [] aBytes = "<Invoice xmlns='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2'/>".getBytes (StandardCharsets.UTF_8);
+    Phase4PeppolStreamingSBDHReader.readPeppolSBDHData (new NonBlockingByteArrayInputStream (aBytes),
+                                                        new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE));
+  }
+
+  @Test (expected = PeppolSBDHDocumentReadException.class)
+  public void testMalformed () throws Exception
+  {
+    final byte [] aBytes = "<StandardBusinessDocument xmlns='http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader'><Std"
+                                                                                                                                         .getBytes (StandardCharsets.UTF_8);
+    Phase4PeppolStreamingSBDHReader.readPeppolSBDHData (new NonBlockingByteArrayInputStream (aBytes),
+                                                        new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE));
+  }
+}
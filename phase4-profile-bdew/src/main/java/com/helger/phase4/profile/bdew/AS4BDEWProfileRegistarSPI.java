@@ -59,13 +59,16 @@ public final class AS4BDEWProfileRegistarSPI implements IAS4ProfileRegistrarSPI
 
   public void registerAS4Profile (@Nonnull final IAS4ProfileRegistrar aRegistrar)
   {
-    final IAS4ProfilePModeProvider aDefaultPModeProvider = (i, r, a) -> BDEWPMode.createBDEWPMode (i,
-                                                                                                   _getTypeFromID (i),
-                                                                                                   r,
-                                                                                                   _getTypeFromID (r),
-                                                                                                   a,
-                                                                                                   PMODE_ID_PROVIDER,
-                                                                                                   true);
+    final IAS4ProfilePModeProvider aDefaultPModeProvider = IAS4ProfilePModeProvider.create ( (i,
+                                                                                              r,
+                                                                                              a,
+                                                                                              p) -> BDEWPMode.createBDEWPMode (i,
+                                                                                                                               _getTypeFromID (i),
+                                                                                                                               r,
+                                                                                                                               _getTypeFromID (r),
+                                                                                                                               a,
+                                                                                                                               PMODE_ID_PROVIDER,
+                                                                                                                               p));
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Registering phase4 profile '" + AS4_PROFILE_ID + "'");
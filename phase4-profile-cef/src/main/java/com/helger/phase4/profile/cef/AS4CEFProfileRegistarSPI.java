@@ -48,11 +48,14 @@ public final class AS4CEFProfileRegistarSPI implements IAS4ProfileRegistrarSPI
 
   public void registerAS4Profile (@Nonnull final IAS4ProfileRegistrar aRegistrar)
   {
-    final IAS4ProfilePModeProvider aDefaultPModeProvider = (i, r, a) -> CEFPMode.createCEFPMode (i,
-                                                                                                 r,
-                                                                                                 a,
-                                                                                                 PMODE_ID_PROVIDER,
-                                                                                                 true);
+    final IAS4ProfilePModeProvider aDefaultPModeProvider = IAS4ProfilePModeProvider.create ( (i,
+                                                                                              r,
+                                                                                              a,
+                                                                                              p) -> CEFPMode.createCEFPMode (i,
+                                                                                                                             r,
+                                                                                                                             a,
+                                                                                                                             PMODE_ID_PROVIDER,
+                                                                                                                             p));
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Registering phase4 profile '" + AS4_PROFILE_ID_FOUR_CORNER + "'");
@@ -49,11 +49,14 @@ public final class AS4EuCtpProfileRegistarSPI implements IAS4ProfileRegistrarSPI
   public void registerAS4Profile (@Nonnull final IAS4ProfileRegistrar aRegistrar)
   {
     // push
-    final IAS4ProfilePModeProvider aPushPModeProvider = (i, r, a) -> EuCtpPMode.createEuCtpPushPMode (i,
-                                                                                                      r,
-                                                                                                      a,
-                                                                                                      PMODE_ID_PROVIDER,
-                                                                                                      true);
+    final IAS4ProfilePModeProvider aPushPModeProvider = IAS4ProfilePModeProvider.create ( (i,
+                                                                                           r,
+                                                                                           a,
+                                                                                           p) -> EuCtpPMode.createEuCtpPushPMode (i,
+                                                                                                                                  r,
+                                                                                                                                  a,
+                                                                                                                                  PMODE_ID_PROVIDER,
+                                                                                                                                  p));
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Registering phase4 profile '" + AS4_PROFILE_PUSH_ID + "'");
@@ -68,11 +71,14 @@ public final class AS4EuCtpProfileRegistarSPI implements IAS4ProfileRegistrarSPI
     aRegistrar.setDefaultProfile (aPushProfile);
 
     // pull
-    final IAS4ProfilePModeProvider aPullPModeProvider = (i, r, a) -> EuCtpPMode.createEuCtpPullPMode (i,
-                                                                                                      r,
-                                                                                                      a,
-                                                                                                      PMODE_ID_PROVIDER,
-                                                                                                      true);
+    final IAS4ProfilePModeProvider aPullPModeProvider = IAS4ProfilePModeProvider.create ( (i,
+                                                                                           r,
+                                                                                           a,
+                                                                                           p) -> EuCtpPMode.createEuCtpPullPMode (i,
+                                                                                                                                  r,
+                                                                                                                                  a,
+                                                                                                                                  PMODE_ID_PROVIDER,
+                                                                                                                                  p));
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Registering phase4 profile '" + AS4_PROFILE_PULL_ID + "'");
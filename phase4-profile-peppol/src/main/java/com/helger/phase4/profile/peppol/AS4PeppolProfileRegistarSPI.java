@@ -44,13 +44,14 @@ public final class AS4PeppolProfileRegistarSPI implements IAS4ProfileRegistrarSP
 
   public void registerAS4Profile (@Nonnull final IAS4ProfileRegistrar aRegistrar)
   {
-    final IAS4ProfilePModeProvider aDefaultPModeProvider = (i,
-                                                            r,
-                                                            a) -> PeppolPMode.createPeppolPMode (i,
-                                                                                                 r,
-                                                                                                 a,
-                                                                                                 PMODE_ID_PROVIDER,
-                                                                                                 true);
+    final IAS4ProfilePModeProvider aDefaultPModeProvider = IAS4ProfilePModeProvider.create ( (i,
+                                                                                              r,
+                                                                                              a,
+                                                                                              p) -> PeppolPMode.createPeppolPMode (i,
+                                                                                                                                   r,
+                                                                                                                                   a,
+                                                                                                                                   PMODE_ID_PROVIDER,
+                                                                                                                                   p));
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Registering phase4 profile '" + AS4_PROFILE_ID + "'");
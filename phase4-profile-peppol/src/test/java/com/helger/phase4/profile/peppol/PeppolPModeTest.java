@@ -16,13 +16,18 @@
  */
 package com.helger.phase4.profile.peppol;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.IPModeIDProvider;
 import com.helger.phase4.model.pmode.PMode;
+import com.helger.phase4.model.pmode.resolve.CachingPModeResolver;
 import com.helger.photon.app.mock.PhotonAppWebTestRule;
 
 /**
@@ -45,4 +50,25 @@ public final class PeppolPModeTest
                                                         false);
     assertNotNull (aPMode);
   }
+
+  @Test
+  public void testCachingResolverDoesNotPersist ()
+  {
+    final int nBefore = MetaAS4Manager.getPModeMgr ().getAll ().size ();
+    final CachingPModeResolver aResolver = new CachingPModeResolver (AS4PeppolProfileRegistarSPI.AS4_PROFILE_ID,
+                                                                     false);
+    final IPMode aPMode = aResolver.findPMode (null,
+                                               "s",
+                                               "a",
+                                               "CachingInitiator",
+                                               "CachingResponder",
+                                               null,
+                                               "https://test.example.org");
+    assertNotNull (aPMode);
+    assertEquals (1, aResolver.getCachedCount ());
+
+    // The profile template must not end up in the PMode manager
+    assertNull (MetaAS4Manager.getPModeMgr ().getPModeOfID (aPMode.getID ()));
+    assertEquals (nBefore, MetaAS4Manager.getPModeMgr ().getAll ().size ());
+  }
 }
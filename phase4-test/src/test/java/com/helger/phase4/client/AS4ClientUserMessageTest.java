@@ -20,6 +20,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -37,6 +39,7 @@ import com.helger.commons.annotation.VisibleForTesting;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.io.resource.ClassPathResource;
 import com.helger.commons.mime.CMimeType;
+import com.helger.httpclient.HttpClientFactory;
 import com.helger.httpclient.response.ResponseHandlerMicroDom;
 import com.helger.phase4.AS4TestConstants;
 import com.helger.phase4.CAS4;
@@ -47,7 +50,9 @@ import com.helger.phase4.crypto.ECryptoAlgorithmCrypt;
 import com.helger.phase4.crypto.ECryptoAlgorithmSign;
 import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.messaging.http.AS4AsyncHttpClientPool;
 import com.helger.phase4.messaging.http.AS4HttpDebug;
+import com.helger.phase4.messaging.http.BasicAsyncHttpPoster;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.ESoapVersion;
 import com.helger.phase4.model.message.MessageHelperMethods;
@@ -292,6 +297,35 @@ public final class AS4ClientUserMessageTest extends AbstractAS4TestSetUp
     assertTrue (MicroWriter.getNodeAsString (aDoc).contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
   }
 
+  @Test
+  public void testSendBodyPayloadSignedMessageAsyncSuccessful () throws Exception
+  {
+    final TestClientUserMessage aClient = _createMandatoryAttributesSuccessMessage ();
+    aClient.setPayload (DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_PAYLOAD_XML)));
+
+    // Keystore
+    _setKeyStoreTestData (aClient);
+
+    // Sign specific
+    aClient.signingParams ()
+           .setAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_256)
+           .setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_256);
+
+    try (final AS4AsyncHttpClientPool aPool = new AS4AsyncHttpClientPool (new HttpClientFactory ()))
+    {
+      final IMicroDocument aDoc = aClient.sendMessageWithRetriesAsync (SERVER_URL,
+                                                                       new ResponseHandlerMicroDom (),
+                                                                       null,
+                                                                       null,
+                                                                       null,
+                                                                       new BasicAsyncHttpPoster (aPool),
+                                                                       ForkJoinPool.commonPool ())
+                                         .get (30, TimeUnit.SECONDS)
+                                         .getResponseContent ();
+      assertTrue (MicroWriter.getNodeAsString (aDoc).contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+    }
+  }
+
   @Test
   public void testSendBodyPayloadEncryptedMessageSuccessful () throws Exception
   {
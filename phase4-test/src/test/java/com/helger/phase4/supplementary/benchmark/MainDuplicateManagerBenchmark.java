@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.phase4.duplicate.AS4DuplicateManagerInMemory;
+import com.helger.phase4.duplicate.AS4DuplicateManagerInMemoryBucketed;
+import com.helger.phase4.duplicate.IAS4DuplicateManager;
+
+/**
+ * Benchmark comparing {@link AS4DuplicateManagerInMemory} and
+ * {@link AS4DuplicateManagerInMemoryBucketed} with 1 million retained message
+ * IDs. Registration runs concurrently with a periodic eviction, similar to the
+ * duplicate cleanup job.
+ *
+ * @author Philip Helger
+ */
+public final class MainDuplicateManagerBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainDuplicateManagerBenchmark.class);
+  private static final int RETAINED = 1_000_000;
+  private static final int THREADS = 4;
+  private static final int REGISTRATIONS_PER_THREAD = 100_000;
+
+  private static void _run (final String sName, final IAS4DuplicateManager aMgr)
+  {
+    // Fill
+    long nStart = System.nanoTime ();
+    for (int i = 0; i < RETAINED; ++i)
+      aMgr.registerAndCheck ("retained-" + i, "profile", "pmode");
+    final long nFillMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+
+    // Register concurrently while evicting periodically
+    final AtomicBoolean aRunning = new AtomicBoolean (true);
+    final AtomicInteger aEvictions = new AtomicInteger ();
+    final AtomicLong aMaxLatency = new AtomicLong ();
+    final Thread aEvictor = new Thread ( () -> {
+      while (aRunning.get ())
+      {
+        // Nothing is expired - measures the pure overhead
+        aMgr.evictAllItemsBefore (PDTFactory.getCurrentOffsetDateTime ().minusHours (1));
+        aEvictions.incrementAndGet ();
+      }
+    }, "evictor");
+    aEvictor.start ();
+
+    final ExecutorService aES = Executors.newFixedThreadPool (THREADS);
+    nStart = System.nanoTime ();
+    for (int t = 0; t < THREADS; ++t)
+    {
+      final int nThread = t;
+      aES.submit ( () -> {
+        long nMax = 0;
+        for (int i = 0; i < REGISTRATIONS_PER_THREAD; ++i)
+        {
+          final long nRegStart = System.nanoTime ();
+          aMgr.registerAndCheck ("new-" + nThread + "-" + i, "profile", "pmode");
+          nMax = Math.max (nMax, System.nanoTime () - nRegStart);
+        }
+        final long nFinalMax = nMax;
+        aMaxLatency.accumulateAndGet (nFinalMax, Math::max);
+      });
+    }
+    aES.shutdown ();
+    ExecutorServiceHelper.waitUntilAllTasksAreFinished (aES);
+    final long nRegisterMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+    aRunning.set (false);
+    try
+    {
+      aEvictor.join ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+
+    LOGGER.info (sName +
+                 ": fill " +
+                 RETAINED +
+                 " in " +
+                 nFillMillis +
+                 " ms; " +
+                 (THREADS * REGISTRATIONS_PER_THREAD) +
+                 " concurrent registrations in " +
+                 nRegisterMillis +
+                 " ms (max latency " +
+                 TimeUnit.NANOSECONDS.toMillis (aMaxLatency.get ()) +
+                 " ms, " +
+                 aEvictions.get () +
+                 " parallel evictions)");
+  }
+
+  public static void main (final String [] args)
+  {
+    for (int nRun = 0; nRun < 2; ++nRun)
+    {
+      _run ("Global lock", new AS4DuplicateManagerInMemory ());
+      _run ("Bucketed", new AS4DuplicateManagerInMemoryBucketed ());
+    }
+  }
+}
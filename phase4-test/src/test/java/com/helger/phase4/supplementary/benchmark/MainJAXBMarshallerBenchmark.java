@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3PullRequest;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
+import com.helger.phase4.model.message.MessageHelperMethods;
+
+/**
+ * Benchmark for the JAXB marshalling of the Ebms3 Messaging header with and
+ * without XSD validation. See the configuration properties
+ * <code>phase4.outgoing.xsd.validation</code> and
+ * <code>phase4.incoming.xsd.validation.skip.senders</code>.
+ *
+ * @author Philip Helger
+ */
+public final class MainJAXBMarshallerBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainJAXBMarshallerBenchmark.class);
+  private static final int MESSAGES = 20_000;
+
+  private static void _log (final String sName, final long nStart)
+  {
+    final long nNanos = System.nanoTime () - nStart;
+    LOGGER.info (sName +
+                 ": " +
+                 MESSAGES +
+                 " messages in " +
+                 TimeUnit.NANOSECONDS.toMillis (nNanos) +
+                 " ms (" +
+                 TimeUnit.NANOSECONDS.toMicros (nNanos / MESSAGES) +
+                 " us per message)");
+  }
+
+  private static void _run (final String sName, final Ebms3Messaging aMessaging, final boolean bUseSchema)
+  {
+    final long nStart = System.nanoTime ();
+    for (int i = 0; i < MESSAGES; ++i)
+    {
+      final Document aDoc = new Ebms3MessagingMarshaller ().setUseSchema (bUseSchema).getAsDocument (aMessaging);
+      if (aDoc == null)
+        throw new IllegalStateException ("Failed to marshal");
+    }
+    _log (sName, nStart);
+  }
+
+  public static void main (final String [] args)
+  {
+    final Ebms3SignalMessage aSignalMessage = new Ebms3SignalMessage ();
+    aSignalMessage.setMessageInfo (MessageHelperMethods.createEbms3MessageInfo ());
+    final Ebms3PullRequest aPullRequest = new Ebms3PullRequest ();
+    aPullRequest.setMpc ("urn:benchmark:mpc");
+    aSignalMessage.setPullRequest (aPullRequest);
+    final Ebms3Messaging aMessaging = new Ebms3Messaging ();
+    aMessaging.addSignalMessage (aSignalMessage);
+
+    for (int nRun = 0; nRun < 3; ++nRun)
+    {
+      _run ("With XSD validation", aMessaging, true);
+      _run ("Without XSD validation", aMessaging, false);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.phase4.model.EMEP;
+import com.helger.phase4.model.EMEPBinding;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.model.pmode.IPModeManager;
+import com.helger.phase4.model.pmode.PMode;
+import com.helger.phase4.model.pmode.PModeManagerInMemory;
+import com.helger.phase4.model.pmode.PModeParty;
+import com.helger.phase4.model.pmode.leg.PModeLeg;
+import com.helger.phase4.model.pmode.leg.PModeLegBusinessInformation;
+import com.helger.servlet.mock.MockServletContext;
+import com.helger.web.scope.mgr.WebScopeManager;
+
+/**
+ * Benchmark for the indexed PMode lookup by service and action and by
+ * initiator and responder with 10.000 PModes, compared to the previous linear
+ * search via {@link IPModeManager#findFirst(java.util.function.Predicate)}.
+ *
+ * @author Philip Helger
+ */
+public final class MainPModeLookupBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainPModeLookupBenchmark.class);
+  private static final int PMODE_COUNT = 10_000;
+  private static final int LOOKUPS = 100_000;
+
+  private static PModeParty _initiator (final int i)
+  {
+    return PModeParty.createSimple ("initiator-" + i, "initiator");
+  }
+
+  private static PModeParty _responder (final int i)
+  {
+    return PModeParty.createSimple ("responder-" + i, "responder");
+  }
+
+  private static IPMode _findLinear (final IPModeManager aMgr, final String sService, final String sAction)
+  {
+    return aMgr.findFirst (x -> {
+      final PModeLegBusinessInformation aBI = x.getLeg1 ().getBusinessInfo ();
+      return EqualsHelper.equals (aBI.getService (), sService) && EqualsHelper.equals (aBI.getAction (), sAction);
+    });
+  }
+
+  private static void _log (final String sName, final long nStart, final int nHits)
+  {
+    final long nMicros = TimeUnit.NANOSECONDS.toMicros (System.nanoTime () - nStart);
+    LOGGER.info (sName + ": " + LOOKUPS + " lookups in " + (nMicros / 1000) + " ms (" + nHits + " hits)");
+  }
+
+  public static void main (final String [] args)
+  {
+    WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    try
+    {
+      final PModeManagerInMemory aMgr = new PModeManagerInMemory ();
+      long nStart = System.nanoTime ();
+      for (int i = 0; i < PMODE_COUNT; ++i)
+        aMgr.createOrUpdatePMode (new PMode ("pmode-" + i,
+                                             _initiator (i),
+                                             _responder (i),
+                                             "agreement",
+                                             EMEP.ONE_WAY,
+                                             EMEPBinding.PUSH,
+                                             new PModeLeg (null,
+                                                           PModeLegBusinessInformation.create ("service-" + i,
+                                                                                               "action-" + i,
+                                                                                               null,
+                                                                                               null),
+                                                           null,
+                                                           null,
+                                                           null),
+                                             null,
+                                             null,
+                                             null));
+      LOGGER.info ("Created " +
+                   PMODE_COUNT +
+                   " PModes via createOrUpdatePMode in " +
+                   TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart) +
+                   " ms");
+
+      for (int nRun = 0; nRun < 2; ++nRun)
+      {
+        int nHits = 0;
+        nStart = System.nanoTime ();
+        for (int i = 0; i < LOOKUPS; ++i)
+        {
+          final int n = (i * 7919) % PMODE_COUNT;
+          if (_findLinear (aMgr, "service-" + n, "action-" + n) != null)
+            nHits++;
+        }
+        _log ("Linear service/action", nStart, nHits);
+
+        nHits = 0;
+        nStart = System.nanoTime ();
+        for (int i = 0; i < LOOKUPS; ++i)
+        {
+          final int n = (i * 7919) % PMODE_COUNT;
+          if (aMgr.getPModeOfServiceAndAction ("service-" + n, "action-" + n) != null)
+            nHits++;
+        }
+        _log ("Indexed service/action", nStart, nHits);
+
+        nHits = 0;
+        nStart = System.nanoTime ();
+        for (int i = 0; i < LOOKUPS; ++i)
+        {
+          final int n = (i * 7919) % PMODE_COUNT;
+          if (aMgr.getPModeOfInitiatorAndResponder (_initiator (n), _responder (n)) != null)
+            nHits++;
+        }
+        _log ("Indexed initiator/responder", nStart, nHits);
+      }
+    }
+    finally
+    {
+      WebScopeManager.onGlobalEnd ();
+    }
+  }
+}
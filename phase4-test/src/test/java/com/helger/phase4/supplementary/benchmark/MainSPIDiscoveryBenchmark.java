@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.lang.ServiceLoaderHelper;
+import com.helger.phase4.incoming.AS4IncomingHandler;
+import com.helger.phase4.incoming.spi.IAS4IncomingMessageProcessingStatusSPI;
+import com.helger.phase4.mgr.AS4SPIRegistry;
+
+/**
+ * Benchmark for the SPI discovery overhead per incoming message in
+ * {@link AS4IncomingHandler}: discovering the
+ * {@link IAS4IncomingMessageProcessingStatusSPI} implementations via the
+ * {@link java.util.ServiceLoader} for every message, compared to the snapshot
+ * of the {@link AS4SPIRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class MainSPIDiscoveryBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainSPIDiscoveryBenchmark.class);
+  private static final int MESSAGES = 100_000;
+
+  private static void _log (final String sName, final long nStart, final int nSPIs)
+  {
+    final long nNanos = System.nanoTime () - nStart;
+    LOGGER.info (sName +
+                 ": " +
+                 MESSAGES +
+                 " messages in " +
+                 TimeUnit.NANOSECONDS.toMillis (nNanos) +
+                 " ms (" +
+                 (nNanos / MESSAGES) +
+                 " ns per message; " +
+                 nSPIs +
+                 " SPI invocations)");
+  }
+
+  public static void main (final String [] args)
+  {
+    for (int nRun = 0; nRun < 3; ++nRun)
+    {
+      int nSPIs = 0;
+      long nStart = System.nanoTime ();
+      for (int i = 0; i < MESSAGES; ++i)
+      {
+        final List <IAS4IncomingMessageProcessingStatusSPI> aSPIs = ServiceLoaderHelper.getAllSPIImplementations (IAS4IncomingMessageProcessingStatusSPI.class);
+        nSPIs += aSPIs.size ();
+      }
+      _log ("ServiceLoader per message", nStart, nSPIs);
+
+      nSPIs = 0;
+      nStart = System.nanoTime ();
+      for (int i = 0; i < MESSAGES; ++i)
+      {
+        final List <IAS4IncomingMessageProcessingStatusSPI> aSPIs = AS4SPIRegistry.getAll (IAS4IncomingMessageProcessingStatusSPI.class);
+        nSPIs += aSPIs.size ();
+      }
+      _log ("AS4SPIRegistry snapshot", nStart, nSPIs);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
+import com.helger.phase4.marshaller.Soap12EnvelopeMarshaller;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.model.message.AS4ReceiptMessage;
+import com.helger.phase4.model.message.AS4SoapEnvelopeWriter;
+import com.helger.phase4.model.message.AS4UserMessage;
+import com.helger.phase4.server.message.MockMessages;
+import com.helger.phase4.soap12.Soap12Body;
+import com.helger.phase4.soap12.Soap12Envelope;
+import com.helger.phase4.soap12.Soap12Header;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.AS4XMLHelper;
+import com.helger.servlet.mock.MockServletContext;
+import com.helger.web.scope.mgr.WebScopeManager;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Benchmark for creating the serialized SOAP envelope of outgoing user messages
+ * and receipts: the previous two-pass JAXB approach, the single-pass DOM
+ * creation of {@link AS4SoapEnvelopeWriter} and the streaming writer for
+ * unsigned messages.
+ *
+ * @author Philip Helger
+ */
+public final class MainSoapEnvelopeWriterBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainSoapEnvelopeWriterBenchmark.class);
+  private static final ESoapVersion SOAP_VERSION = ESoapVersion.SOAP_12;
+  private static final int MESSAGES = 10_000;
+
+  private interface IWriter
+  {
+    int write (@Nonnull Ebms3Messaging aMessaging, @Nullable Node aPayload) throws IOException;
+  }
+
+  private static int _twoPass (@Nonnull final Ebms3Messaging aMessaging, @Nullable final Node aPayload)
+  {
+    final Document aEbms3Document = new Ebms3MessagingMarshaller ().getAsDocument (aMessaging);
+    final Soap12Envelope aSoapEnv = new Soap12Envelope ();
+    aSoapEnv.setHeader (new Soap12Header ());
+    aSoapEnv.setBody (new Soap12Body ());
+    aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
+    if (aPayload != null)
+      aSoapEnv.getBody ().addAny (aPayload);
+    final Document aDoc = new Soap12EnvelopeMarshaller ().getAsDocument (aSoapEnv);
+    return AS4XMLHelper.serializeXML (aDoc).length ();
+  }
+
+  private static int _singlePass (@Nonnull final Ebms3Messaging aMessaging, @Nullable final Node aPayload)
+  {
+    final Document aDoc = AS4SoapEnvelopeWriter.createSoapDocument (SOAP_VERSION, aMessaging, aPayload, true);
+    return AS4XMLHelper.serializeXML (aDoc).length ();
+  }
+
+  private static int _streaming (@Nonnull final Ebms3Messaging aMessaging,
+                                 @Nullable final Node aPayload) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      AS4SoapEnvelopeWriter.writeSoapEnvelope (SOAP_VERSION, aMessaging, aPayload, true, aBAOS);
+      return aBAOS.size ();
+    }
+  }
+
+  private static void _run (@Nonnull final String sName,
+                            @Nonnull final Ebms3Messaging aMessaging,
+                            @Nullable final Node aPayload,
+                            @Nonnull final IWriter aWriter) throws IOException
+  {
+    long nBytes = 0;
+    final long nStart = System.nanoTime ();
+    for (int i = 0; i < MESSAGES; ++i)
+      nBytes += aWriter.write (aMessaging, aPayload);
+    final long nNanos = System.nanoTime () - nStart;
+    LOGGER.info (sName +
+                 ": " +
+                 MESSAGES +
+                 " messages in " +
+                 TimeUnit.NANOSECONDS.toMillis (nNanos) +
+                 " ms (" +
+                 TimeUnit.NANOSECONDS.toMicros (nNanos / MESSAGES) +
+                 " us per message; " +
+                 (nBytes / MESSAGES) +
+                 " chars/bytes per message)");
+  }
+
+  public static void main (final String [] args) throws IOException, WSSecurityException
+  {
+    WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    try
+    {
+      final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML))
+                                     .getDocumentElement ();
+
+      final AS4UserMessage aUserMsg = MockMessages.createUserMessageNotSigned (SOAP_VERSION, aPayload, null);
+      final Ebms3Messaging aUserMessaging = new Ebms3Messaging ();
+      aUserMessaging.setS12MustUnderstand (Boolean.TRUE);
+      aUserMessaging.addUserMessage (aUserMsg.getEbms3UserMessage ());
+
+      // Receipts with non-repudiation information require a signed source
+      final Document aSignedUserMsg;
+      try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+      {
+        aSignedUserMsg = MockMessages.createUserMessageSigned (SOAP_VERSION, aPayload, null, aResHelper);
+      }
+      final AS4ReceiptMessage aReceiptMsg = MockMessages.createReceiptMessage (SOAP_VERSION,
+                                                                               aUserMsg.getEbms3UserMessage (),
+                                                                               aSignedUserMsg);
+      final Ebms3Messaging aReceiptMessaging = new Ebms3Messaging ();
+      aReceiptMessaging.setS12MustUnderstand (Boolean.TRUE);
+      aReceiptMessaging.addSignalMessage (aReceiptMsg.getEbms3SignalMessage ());
+
+      for (int nRun = 0; nRun < 3; ++nRun)
+      {
+        _run ("UserMessage two-pass", aUserMessaging, aPayload, MainSoapEnvelopeWriterBenchmark::_twoPass);
+        _run ("UserMessage single-pass", aUserMessaging, aPayload, MainSoapEnvelopeWriterBenchmark::_singlePass);
+        _run ("UserMessage streaming", aUserMessaging, aPayload, MainSoapEnvelopeWriterBenchmark::_streaming);
+        _run ("Receipt two-pass", aReceiptMessaging, null, MainSoapEnvelopeWriterBenchmark::_twoPass);
+        _run ("Receipt single-pass", aReceiptMessaging, null, MainSoapEnvelopeWriterBenchmark::_singlePass);
+        _run ("Receipt streaming", aReceiptMessaging, null, MainSoapEnvelopeWriterBenchmark::_streaming);
+      }
+    }
+    finally
+    {
+      WebScopeManager.onGlobalEnd ();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hc.client5.http.impl.classic.BasicHttpClientResponseHandler;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.phase4.messaging.http.AS4HttpClientPool;
+import com.helger.phase4.messaging.http.BasicHttpPoster;
+import com.helger.phase4.util.AS4ExecutorHelper;
+import com.helger.servlet.mock.MockServletContext;
+import com.helger.web.scope.mgr.WebScopeManager;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Benchmark for sending to many slow receivers concurrently with a bounded
+ * pool of platform threads and with virtual threads as provided by
+ * {@link AS4ExecutorHelper}. Virtual threads are only measured on Java 21 and
+ * later.
+ *
+ * @author Philip Helger
+ */
+public final class MainVirtualThreadBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainVirtualThreadBenchmark.class);
+  private static final int CONCURRENT_RECEIVERS = 2_000;
+  private static final int PLATFORM_THREADS = 200;
+  private static final long RECEIVER_DELAY_MILLIS = 200;
+
+  private static void _run (@Nonnull final String sName,
+                            @Nonnull final ExecutorService aES,
+                            @Nonnull final String sURL,
+                            @Nonnull final BasicHttpPoster aPoster)
+  {
+    final AtomicInteger aErrors = new AtomicInteger (0);
+    final long nStart = System.nanoTime ();
+    for (int i = 0; i < CONCURRENT_RECEIVERS; ++i)
+      aES.submit ( () -> {
+        try
+        {
+          aPoster.sendGenericMessage (sURL,
+                                      null,
+                                      new StringEntity ("<dummy/>", ContentType.APPLICATION_XML),
+                                      new BasicHttpClientResponseHandler ());
+        }
+        catch (final IOException ex)
+        {
+          aErrors.incrementAndGet ();
+        }
+      });
+    aES.shutdown ();
+    ExecutorServiceHelper.waitUntilAllTasksAreFinished (aES);
+    final long nMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+
+    LOGGER.info (sName +
+                 ": " +
+                 CONCURRENT_RECEIVERS +
+                 " messages in " +
+                 nMillis +
+                 " ms (" +
+                 (CONCURRENT_RECEIVERS * 1000L / Math.max (nMillis, 1)) +
+                 " msg/s); " +
+                 aErrors.get () +
+                 " error(s); " +
+                 Thread.activeCount () +
+                 " live thread(s) afterwards");
+  }
+
+  public static void main (final String [] args) throws IOException
+  {
+    // The slow receiver
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), CONCURRENT_RECEIVERS);
+    aServer.createContext ("/as4", aExchange -> {
+      aExchange.getRequestBody ().readAllBytes ();
+      try
+      {
+        Thread.sleep (RECEIVER_DELAY_MILLIS);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      final byte [] aResponse = "OK".getBytes (StandardCharsets.US_ASCII);
+      aExchange.sendResponseHeaders (200, aResponse.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aResponse);
+      }
+    });
+    final ExecutorService aServerES = Executors.newCachedThreadPool ();
+    aServer.setExecutor (aServerES);
+    aServer.start ();
+
+    WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (BasicHttpPoster.createDefaultHttpClientFactory (),
+                                                                CONCURRENT_RECEIVERS,
+                                                                CONCURRENT_RECEIVERS,
+                                                                Duration.ofMinutes (1)))
+    {
+      final String sURL = "http://localhost:" + aServer.getAddress ().getPort () + "/as4";
+      final BasicHttpPoster aPoster = new BasicHttpPoster ().setHttpClientPool (aPool);
+
+      // Warm up
+      _run ("Warm up", Executors.newFixedThreadPool (PLATFORM_THREADS), sURL, aPoster);
+
+      _run (PLATFORM_THREADS + " platform threads", Executors.newFixedThreadPool (PLATFORM_THREADS), sURL, aPoster);
+      if (AS4ExecutorHelper.isVirtualThreadSupported ())
+      {
+        // Use a dedicated executor, as the shared one must not be shut down
+        _run ("Virtual threads",
+              Executors.newCachedThreadPool (AS4ExecutorHelper.getVirtualThreadFactory ()),
+              sURL,
+              aPoster);
+      }
+      else
+        LOGGER.info ("Virtual threads are not supported by Java " + Runtime.version ().feature ());
+    }
+    finally
+    {
+      WebScopeManager.onGlobalEnd ();
+      aServer.stop (0);
+      aServerES.shutdownNow ();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015-2024 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.benchmark;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phase4.ScopedAS4Configuration;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.crypto.AS4CryptParams;
+import com.helger.phase4.crypto.AS4CryptoFactoryProperties;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.messaging.crypto.AS4Encryptor;
+import com.helger.phase4.model.ESoapVersion;
+import com.helger.phase4.server.message.MockMessages;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.wss.EWSSSynchronizerMode;
+import com.helger.phase4.wss.WSSSynchronizer;
+import com.helger.servlet.mock.MockServletContext;
+import com.helger.web.scope.mgr.WebScopeManager;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Benchmark for the signed and encrypted message creation throughput with the
+ * different {@link EWSSSynchronizerMode} values and an increasing number of
+ * threads.
+ *
+ * @author Philip Helger
+ */
+public final class MainWSSSynchronizerBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainWSSSynchronizerBenchmark.class);
+  private static final int MESSAGES_PER_RUN = 2_000;
+
+  private static void _signAndEncrypt (final Node aPayload, final IAS4CryptoFactory aCryptoFactory)
+  {
+    final ESoapVersion eSoapVersion = ESoapVersion.SOAP_12;
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final Document aSignedDoc = MockMessages.createUserMessageSigned (eSoapVersion, aPayload, null, aResHelper);
+      AS4Encryptor.encryptSoapBodyPayload (aCryptoFactory,
+                                           eSoapVersion,
+                                           aSignedDoc,
+                                           false,
+                                           AS4CryptParams.createDefault ().setAlias (aCryptoFactory.getKeyAlias ()));
+    }
+    catch (final Exception ex)
+    {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  private static void _run (final EWSSSynchronizerMode eMode, final int nThreads, final Node aPayload)
+  {
+    final StringMap aSettings = new StringMap ();
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_WSS4J_SYNCSECURITY, true);
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_WSS4J_SYNCSECURITY_MODE, eMode.getID ());
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_WSS4J_SYNCSECURITY_MAXCONCURRENT, 256);
+    try (final ScopedAS4Configuration aSC = ScopedAS4Configuration.create (aSettings))
+    {
+      final IAS4CryptoFactory aCryptoFactory = AS4CryptoFactoryProperties.getDefaultInstance ();
+
+      final long nContendedBefore = WSSSynchronizer.getContendedStatistics ().getCount ();
+      final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+      final long nStart = System.nanoTime ();
+      for (int i = 0; i < MESSAGES_PER_RUN; ++i)
+        aES.submit ( () -> _signAndEncrypt (aPayload, aCryptoFactory));
+      aES.shutdown ();
+      ExecutorServiceHelper.waitUntilAllTasksAreFinished (aES);
+      final long nMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+
+      LOGGER.info (eMode.getID () +
+                   " with " +
+                   nThreads +
+                   " thread(s): " +
+                   (MESSAGES_PER_RUN * 1000L / Math.max (nMillis, 1)) +
+                   " msg/s; " +
+                   (WSSSynchronizer.getContendedStatistics ().getCount () - nContendedBefore) +
+                   " contended invocations");
+    }
+  }
+
+  public static void main (final String [] args)
+  {
+    WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    try
+    {
+      final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource ("SOAPBodyPayload.xml"));
+
+      // Warm up
+      _run (EWSSSynchronizerMode.GLOBAL_LOCK, 1, aPayload);
+
+      final int nMaxThreads = Runtime.getRuntime ().availableProcessors () * 2;
+      for (final EWSSSynchronizerMode eMode : EWSSSynchronizerMode.values ())
+        for (int nThreads = 1; nThreads <= nMaxThreads; nThreads *= 2)
+          _run (eMode, nThreads, aPayload);
+    }
+    finally
+    {
+      WebScopeManager.onGlobalEnd ();
+    }
+  }
+}